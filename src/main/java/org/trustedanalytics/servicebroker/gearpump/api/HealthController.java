@@ -18,11 +18,16 @@ package org.trustedanalytics.servicebroker.gearpump.api;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.ResponseStatus;
+import org.trustedanalytics.servicebroker.gearpump.service.health.DeepHealth;
+import org.trustedanalytics.servicebroker.gearpump.service.health.DeepHealthService;
 
 @Controller
 @RequestMapping("/api")
@@ -30,10 +35,27 @@ public class HealthController {
 
     private static final Logger LOG = LoggerFactory.getLogger(HealthController.class);
 
+    private final DeepHealthService deepHealthService;
+
+    @Autowired
+    public HealthController(DeepHealthService deepHealthService) {
+        this.deepHealthService = deepHealthService;
+    }
+
     @RequestMapping(method = RequestMethod.GET, value = "/healthz")
     @ResponseStatus(HttpStatus.OK)
     public void getHealth() {
         LOG.info("GET Healthz.");
     }
 
+    /**
+     * @return state and latency of every dependency; 503 if any of them is down
+     */
+    @RequestMapping(method = RequestMethod.GET, value = "/healthz/deep", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<DeepHealth> getDeepHealth() {
+        DeepHealth health = deepHealthService.getHealth();
+        LOG.debug("GET Healthz deep: {}", health.getStatus());
+        return new ResponseEntity<>(health, health.isUp() ? HttpStatus.OK : HttpStatus.SERVICE_UNAVAILABLE);
+    }
+
 }
@@ -0,0 +1,48 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.trustedanalytics.servicebroker.gearpump.api;
+
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+/**
+ * Prometheus scrape endpoint.
+ */
+@Controller
+@RequestMapping("/api")
+public class MetricsController {
+
+    static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final PrometheusMeterRegistry meterRegistry;
+
+    @Autowired
+    public MetricsController(PrometheusMeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @RequestMapping(method = RequestMethod.GET, value = "/metrics", produces = PROMETHEUS_CONTENT_TYPE)
+    @ResponseBody
+    public String getMetrics() {
+        return meterRegistry.scrape();
+    }
+}
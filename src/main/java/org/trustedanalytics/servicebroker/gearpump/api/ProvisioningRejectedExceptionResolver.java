@@ -0,0 +1,71 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.trustedanalytics.servicebroker.gearpump.api;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.Ordered;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.HandlerExceptionResolver;
+import org.springframework.web.servlet.ModelAndView;
+import org.trustedanalytics.servicebroker.gearpump.service.ProvisioningRejectedException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Answers provision requests rejected by admission control with 429 Too Many Requests, so that the platform
+ * retries them later. The broker library's controllers map every exception they don't know to 500 with a local
+ * exception handler, which would win over a controller advice, hence a resolver ordered before them.
+ */
+@Component
+public class ProvisioningRejectedExceptionResolver implements HandlerExceptionResolver, Ordered {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ProvisioningRejectedExceptionResolver.class);
+
+    static final int TOO_MANY_REQUESTS = 429;
+    static final String RETRY_AFTER = "Retry-After";
+    static final String RETRY_AFTER_SECONDS = "30";
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    @Override
+    public ModelAndView resolveException(HttpServletRequest request, HttpServletResponse response, Object handler,
+                                         Exception ex) {
+        if (!(ex instanceof ProvisioningRejectedException)) {
+            return null;
+        }
+        try {
+            response.setStatus(TOO_MANY_REQUESTS);
+            response.setHeader(RETRY_AFTER, RETRY_AFTER_SECONDS);
+            response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+            OBJECT_MAPPER.writeValue(response.getOutputStream(), ImmutableMap.of("description", ex.getMessage()));
+        } catch (IOException e) {
+            LOGGER.warn("Couldn't write provisioning rejection response", e);
+        }
+        return new ModelAndView();
+    }
+
+    @Override
+    public int getOrder() {
+        return Ordered.HIGHEST_PRECEDENCE;
+    }
+}
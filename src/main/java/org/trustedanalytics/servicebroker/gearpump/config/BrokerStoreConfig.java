@@ -16,6 +16,10 @@
 
 package org.trustedanalytics.servicebroker.gearpump.config;
 
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.api.ACLProvider;
+import org.apache.curator.retry.ExponentialBackoffRetry;
 import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.data.ACL;
 import org.apache.zookeeper.data.Id;
@@ -37,6 +41,7 @@ import org.trustedanalytics.hadoop.kerberos.KrbLoginManagerFactory;
 import org.trustedanalytics.servicebroker.gearpump.kerberos.KerberosProperties;
 import org.apache.zookeeper.server.auth.DigestAuthenticationProvider;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.List;
@@ -117,7 +122,44 @@ public class BrokerStoreConfig {
         return zkClient;
     }
 
+    /**
+     * Curator client rooted at {@code zookeeper.node}, used for watches the broker-store ZookeeperClient does not offer.
+     */
+    @Bean(destroyMethod = "close")
+    @Profile("cloud")
+    public CuratorFramework getCuratorFramework() throws NoSuchAlgorithmException {
+        CuratorFramework curatorFramework = helper.getCuratorFrameworkInstance(
+                zookeeperCluster,
+                kerberosProperties.getUser(),
+                kerberosProperties.getPassword(),
+                zookeeperNode
+        );
+        curatorFramework.start();
+        return curatorFramework;
+    }
+
     static final class FactoryHelper {
+        CuratorFramework getCuratorFrameworkInstance(String zkCluster, String user, String pass, String zkNode) throws NoSuchAlgorithmException {
+            List<ACL> acl = getAcl(user, pass);
+            return CuratorFrameworkFactory.builder()
+                    .connectString(zkCluster)
+                    .namespace(zkNode.replaceFirst("^/", ""))
+                    .authorization("digest", String.format("%s:%s", user, pass).getBytes(StandardCharsets.UTF_8))
+                    .aclProvider(new ACLProvider() {
+                        @Override
+                        public List<ACL> getDefaultAcl() {
+                            return acl;
+                        }
+
+                        @Override
+                        public List<ACL> getAclForPath(String path) {
+                            return acl;
+                        }
+                    })
+                    .retryPolicy(new ExponentialBackoffRetry(1000, 3))
+                    .build();
+        }
+
         ZookeeperClient getSecureZkClientInstance(String zkCluster, String user, String pass, String kdc, String realm, String zkNode) throws IOException, NoSuchAlgorithmException {
             KrbLoginManagerFactory.getInstance().getKrbLoginManagerInstance(kdc, realm);
             return new ZookeeperClientBuilder(zkCluster, user, pass, zkNode).withRootCreation(getAcl(user, pass)).build();
@@ -16,20 +16,24 @@
 
 package org.trustedanalytics.servicebroker.gearpump.config;
 
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import org.cloudfoundry.community.servicebroker.model.Catalog;
 import org.cloudfoundry.community.servicebroker.model.Plan;
 import org.cloudfoundry.community.servicebroker.model.ServiceDefinition;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import javax.annotation.PostConstruct;
 import javax.validation.constraints.NotNull;
 import java.util.*;
 import java.util.stream.Collectors;
 
 @Configuration
+@ConfigurationProperties("gearpump.catalog")
 public class CatalogConfig {
 
     @Value("${cf.serviceid}")
@@ -52,8 +56,13 @@ public class CatalogConfig {
     private static final String DISPLAY_NAME = "displayName";
     private static final String DISPLAY_NAME_VALUE = "Apache Gearpump";
     private static final String SYSLOG_DRAIN = "syslog_drain";
-    private static final String GEARPUMP_PLAN_PREFIX = "gearpump-";
-    private static final String[] GEARPUMP_PLANS = {"small", "medium"};
+    private static final List<GearPumpPlan> DEFAULT_PLANS = ImmutableList.of(
+            new GearPumpPlan("small", 1), new GearPumpPlan("medium", 3));
+
+    private List<GearPumpPlan> plans = new ArrayList<>();
+
+    private Map<String, GearPumpPlan> plansById = Collections.emptyMap();
+
     @Bean
     public Catalog catalog() {
         return new Catalog(Arrays.asList(new ServiceDefinition(getCfServiceId(), getCfServiceName(),
@@ -61,35 +70,55 @@ public class CatalogConfig {
                 Arrays.asList("data-science-tool"), getServiceDefinitionMetadata(), Arrays.asList(SYSLOG_DRAIN), null)));
     }
 
-    public String getNumberOfWorkers(String planName) {
-        if(planName.equalsIgnoreCase(GEARPUMP_PLAN_PREFIX.concat(GEARPUMP_PLANS[0]))) {
-            return "1";
-        }
-        if(planName.equalsIgnoreCase(GEARPUMP_PLAN_PREFIX.concat(GEARPUMP_PLANS[1]))) {
-            return "3";
+    /**
+     * Indexes the configured plans by the plan ids they are offered under, once at startup.
+     */
+    @PostConstruct
+    public void indexPlans() {
+        Map<String, GearPumpPlan> index = new LinkedHashMap<>();
+        for (GearPumpPlan plan : plans.isEmpty() ? DEFAULT_PLANS : plans) {
+            if (Strings.isNullOrEmpty(plan.getName()) || plan.getWorkers() < 0) {
+                throw new IllegalStateException("Invalid Gearpump plan: " + plan);
+            }
+            if (index.put(getPlanId(plan.getName()), plan) != null) {
+                throw new IllegalStateException("Gearpump plan " + plan.getName() + " is defined more than once");
+            }
         }
+        plansById = Collections.unmodifiableMap(index);
+    }
 
-        return "1";
+    /**
+     * @throws IllegalArgumentException if no plan is offered under the given id
+     */
+    public GearPumpPlan getPlan(String planId) {
+        GearPumpPlan plan = plansById.get(planId);
+        if (plan == null) {
+            throw new IllegalArgumentException("Unknown Gearpump plan id: " + planId);
+        }
+        return plan;
     }
 
     private List<Plan> getGearPumpPlans() {
-        return ImmutableList.copyOf(GEARPUMP_PLANS)
+        return plansById.entrySet()
                 .stream()
-                .map(x -> "" + x)
-                .map(this::createPlan)
+                .map(entry -> createPlan(entry.getKey(), entry.getValue()))
                 .collect(Collectors.toList());
     }
 
-    private Plan createPlan(String planName) {
+    private Plan createPlan(String planId, GearPumpPlan plan) {
         return new Plan(
-                getCfBaseId() + "-" + planName,
-                planName,
-                "Run Gearpump with " + getNumberOfWorkers(planName),
-                ImmutableMap.of("planName", (Object) planName),
+                planId,
+                plan.getName(),
+                Strings.isNullOrEmpty(plan.getDescription()) ? "Run Gearpump with " + plan.getWorkers() : plan.getDescription(),
+                ImmutableMap.of("planName", (Object) plan.getName()),
                 true
         );
     }
 
+    private String getPlanId(String planName) {
+        return getCfBaseId() + "-" + planName;
+    }
+
     private Map<String, Object> getServiceDefinitionMetadata() {
         Map<String,Object> serviceMetadata = new HashMap<>();
 
@@ -124,6 +153,14 @@ public class CatalogConfig {
         this.cfBaseId = cfBaseId;
     }
 
+    public List<GearPumpPlan> getPlans() {
+        return plans;
+    }
+
+    public void setPlans(List<GearPumpPlan> plans) {
+        this.plans = plans;
+    }
+
     public String getImageUrl() {
         return imageUrl;
     }
@@ -139,6 +176,7 @@ public class CatalogConfig {
                 ", cfServiceName='" + cfServiceName + '\'' +
                 ", cfBaseId='" + cfBaseId + '\'' +
                 ", imageUrl='" + imageUrl + '\'' +
+                ", plans=" + plans +
                 '}';
     }
 }
@@ -16,10 +16,29 @@
 
 package org.trustedanalytics.servicebroker.gearpump.config;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.ConnPoolControl;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.HttpComponentsAsyncClientHttpRequestFactory;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.security.oauth2.client.DefaultOAuth2ClientContext;
 import org.springframework.security.oauth2.client.OAuth2ClientContext;
 import org.springframework.security.oauth2.client.OAuth2RestTemplate;
@@ -27,9 +46,14 @@ import org.springframework.security.oauth2.client.resource.OAuth2ProtectedResour
 import org.springframework.security.oauth2.client.token.DefaultAccessTokenRequest;
 import org.springframework.security.oauth2.client.token.grant.client.ClientCredentialsAccessTokenProvider;
 import org.springframework.security.oauth2.client.token.grant.client.ClientCredentialsResourceDetails;
+import org.springframework.web.client.AsyncRestTemplate;
 import org.trustedanalytics.servicebroker.gearpump.service.externals.helpers.CfCaller;
 
 import javax.validation.constraints.NotNull;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 @Configuration
 public class CfCallerConfiguration {
@@ -57,21 +81,160 @@ public class CfCallerConfiguration {
         return gearPumpUiSpace;
     }
 
+    @Value("${http.client.maxConnections:50}")
+    private int maxConnections;
+
+    @Value("${http.client.maxConnectionsPerRoute:20}")
+    private int maxConnectionsPerRoute;
+
+    @Value("${http.client.connectTimeout:5000}")
+    private int connectTimeout;
+
+    @Value("${http.client.readTimeout:30000}")
+    private int readTimeout;
+
+    @Value("${http.client.connectionRequestTimeout:5000}")
+    private int connectionRequestTimeout;
+
+    @Value("${http.client.keepAlive:30}")
+    private long keepAlive;
+
+    @Value("${http.client.ioThreads:2}")
+    private int ioThreads;
+
+    @Value("${http.client.tokenThreads:2}")
+    private int tokenThreads = 2;
+
     @Bean
-    public CfCaller cfCaller(OAuth2RestTemplate oAuth2RestTemplate) {
-        return new CfCaller(oAuth2RestTemplate);
+    public CfCaller cfCaller(OAuth2RestTemplate oAuth2RestTemplate, AsyncRestTemplate asyncRestTemplate,
+                             @Qualifier("tokenExecutor") ExecutorService tokenExecutor) {
+        return new CfCaller(oAuth2RestTemplate, asyncRestTemplate, tokenExecutor);
+    }
+
+    /**
+     * Renews the access tokens of non-blocking calls. Kept apart from the provisioning stage threads, which a YARN
+     * spawn blocks for minutes, so that a token renewal never queues behind the spawns.
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService tokenExecutor() {
+        return Executors.newFixedThreadPool(tokenThreads,
+                new ThreadFactoryBuilder().setNameFormat("http-client-token-%d").setDaemon(true).build());
+    }
+
+    @Bean
+    public AsyncRestTemplate asyncRestTemplate(CloseableHttpAsyncClient pooledHttpAsyncClient) {
+        return new AsyncRestTemplate(new HttpComponentsAsyncClientHttpRequestFactory(pooledHttpAsyncClient));
+    }
+
+    /**
+     * Closes pooled connections of the non-blocking client that expired or stayed idle for http.client.keepAlive
+     * seconds, which its builder can't do on its own unlike the blocking one.
+     */
+    @Bean(destroyMethod = "shutdownNow")
+    public ScheduledExecutorService idleConnectionEvictor() {
+        return Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("http-client-evictor-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Non-blocking client: in-flight calls share http.client.ioThreads event loop threads.
+     */
+    @Bean(destroyMethod = "close")
+    public CloseableHttpAsyncClient pooledHttpAsyncClient(MeterRegistry meterRegistry,
+                                                          @Qualifier("idleConnectionEvictor") ScheduledExecutorService idleConnectionEvictor)
+            throws IOReactorException {
+        IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+                .setIoThreadCount(ioThreads)
+                .setConnectTimeout(connectTimeout)
+                .setSoTimeout(readTimeout)
+                .build();
+        PoolingNHttpClientConnectionManager connectionManager
+                = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(ioReactorConfig));
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        bindPoolMetrics(meterRegistry, "http.client.async.pool", connectionManager);
+        long evictionInterval = Math.max(keepAlive, 1);
+        idleConnectionEvictor.scheduleWithFixedDelay(() -> {
+            connectionManager.closeExpiredConnections();
+            connectionManager.closeIdleConnections(keepAlive, TimeUnit.SECONDS);
+        }, evictionInterval, evictionInterval, TimeUnit.SECONDS);
+
+        CloseableHttpAsyncClient client = HttpAsyncClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig())
+                .setKeepAliveStrategy(keepAliveStrategy())
+                .useSystemProperties()
+                .build();
+        client.start();
+        return client;
     }
 
     @Bean
     public OAuth2RestTemplate oAuth2RestTemplate(OAuth2ProtectedResourceDetails clientCredentials,
-                                                 OAuth2ClientContext clientContext) {
+                                                 OAuth2ClientContext clientContext,
+                                                 ClientHttpRequestFactory pooledRequestFactory) {
         OAuth2RestTemplate template = new OAuth2RestTemplate(clientCredentials, clientContext);
+        template.setRequestFactory(pooledRequestFactory);
         ClientCredentialsAccessTokenProvider tokenProvider = new ClientCredentialsAccessTokenProvider();
+        tokenProvider.setRequestFactory(pooledRequestFactory);
         template.setAccessTokenProvider(tokenProvider);
 
         return template;
     }
 
+    @Bean
+    public ClientHttpRequestFactory pooledRequestFactory(CloseableHttpClient pooledHttpClient) {
+        return new HttpComponentsClientHttpRequestFactory(pooledHttpClient);
+    }
+
+    /**
+     * Keeps TLS connections to the TAP API and UAA open between calls instead of connecting for every request.
+     */
+    @Bean(destroyMethod = "close")
+    public CloseableHttpClient pooledHttpClient(MeterRegistry meterRegistry) {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        // re-check connections idle for a while, the server may have closed them
+        connectionManager.setValidateAfterInactivity(2000);
+
+        bindPoolMetrics(meterRegistry, "http.client.pool", connectionManager);
+
+        return HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig())
+                .setKeepAliveStrategy(keepAliveStrategy())
+                .evictExpiredConnections()
+                .evictIdleConnections(keepAlive, TimeUnit.SECONDS)
+                .useSystemProperties()
+                .build();
+    }
+
+    private RequestConfig requestConfig() {
+        return RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setSocketTimeout(readTimeout)
+                .setConnectionRequestTimeout(connectionRequestTimeout)
+                .build();
+    }
+
+    private static void bindPoolMetrics(MeterRegistry meterRegistry, String prefix, ConnPoolControl<?> pool) {
+        meterRegistry.gauge(prefix + ".leased", pool, p -> p.getTotalStats().getLeased());
+        meterRegistry.gauge(prefix + ".pending", pool, p -> p.getTotalStats().getPending());
+        meterRegistry.gauge(prefix + ".available", pool, p -> p.getTotalStats().getAvailable());
+        meterRegistry.gauge(prefix + ".max", pool, p -> p.getTotalStats().getMax());
+    }
+
+    /**
+     * Honours the Keep-Alive header of the server, connections without one are kept for http.client.keepAlive seconds.
+     */
+    private ConnectionKeepAliveStrategy keepAliveStrategy() {
+        return (response, context) -> {
+            long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return serverKeepAlive > 0 ? serverKeepAlive : TimeUnit.SECONDS.toMillis(keepAlive);
+        };
+    }
+
     @Bean
     @ConfigurationProperties("spring.oauth2.client")
     public OAuth2ProtectedResourceDetails clientCredentials() {
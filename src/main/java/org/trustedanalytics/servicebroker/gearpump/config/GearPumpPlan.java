@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trustedanalytics.servicebroker.gearpump.config;
+
+/**
+ * Size of the Gearpump cluster spawned for a catalog plan, bound from gearpump.catalog.plans. Resources left unset
+ * fall back to the broker wide defaults.
+ */
+public class GearPumpPlan {
+
+    private String name;
+    private String description;
+    private int workers = 1;
+    private Integer workerMemory;
+    private Integer workerVcores;
+    private Integer masterMemory;
+    private String queue;
+
+    public GearPumpPlan() {
+    }
+
+    public GearPumpPlan(String name, int workers) {
+        this.name = name;
+        this.workers = workers;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return description shown in the catalog, null to describe the plan by its number of workers
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    public void setDescription(String description) {
+        this.description = description;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public void setWorkers(int workers) {
+        this.workers = workers;
+    }
+
+    /**
+     * @return MB of memory per worker container, null to use workers.memorylimit
+     */
+    public Integer getWorkerMemory() {
+        return workerMemory;
+    }
+
+    public void setWorkerMemory(Integer workerMemory) {
+        this.workerMemory = workerMemory;
+    }
+
+    /**
+     * @return vcores per worker container, null to use the Gearpump default
+     */
+    public Integer getWorkerVcores() {
+        return workerVcores;
+    }
+
+    public void setWorkerVcores(Integer workerVcores) {
+        this.workerVcores = workerVcores;
+    }
+
+    /**
+     * @return MB of memory of the Gearpump master container, null to use the Gearpump default
+     */
+    public Integer getMasterMemory() {
+        return masterMemory;
+    }
+
+    public void setMasterMemory(Integer masterMemory) {
+        this.masterMemory = masterMemory;
+    }
+
+    /**
+     * @return YARN queue the cluster is submitted to, null to use the broker's queue
+     */
+    public String getQueue() {
+        return queue;
+    }
+
+    public void setQueue(String queue) {
+        this.queue = queue;
+    }
+
+    @Override
+    public String toString() {
+        return "GearPumpPlan{" +
+                "name='" + name + '\'' +
+                ", workers=" + workers +
+                ", workerMemory=" + workerMemory +
+                ", workerVcores=" + workerVcores +
+                ", masterMemory=" + masterMemory +
+                ", queue='" + queue + '\'' +
+                '}';
+    }
+}
@@ -16,27 +16,54 @@
 
 package org.trustedanalytics.servicebroker.gearpump.config;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.hadoop.yarn.api.records.LocalResourceVisibility;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.trustedanalytics.cfbroker.store.zookeeper.service.ZookeeperClient;
 import org.trustedanalytics.servicebroker.gearpump.kerberos.KerberosService;
+import org.trustedanalytics.servicebroker.gearpump.metrics.StageMetrics;
 import org.trustedanalytics.servicebroker.gearpump.service.CredentialPersistorService;
 import org.trustedanalytics.servicebroker.gearpump.service.GearPumpSpawner;
+import org.trustedanalytics.servicebroker.gearpump.service.OperationStatePersistorService;
+import org.trustedanalytics.servicebroker.gearpump.service.WarmPoolService;
+import org.trustedanalytics.servicebroker.gearpump.service.WorkerScalingService;
 import org.trustedanalytics.servicebroker.gearpump.service.dashboard.DashboardDeployer;
+import org.trustedanalytics.servicebroker.gearpump.service.externals.GearPumpClusterManager;
 import org.trustedanalytics.servicebroker.gearpump.service.externals.GearPumpCredentialsParser;
 import org.trustedanalytics.servicebroker.gearpump.service.externals.GearPumpDriverExec;
+import org.trustedanalytics.servicebroker.gearpump.service.externals.GearPumpLauncher;
+import org.trustedanalytics.servicebroker.gearpump.service.externals.GearPumpPackResource;
+import org.trustedanalytics.servicebroker.gearpump.service.externals.GearPumpRestClient;
+import org.trustedanalytics.servicebroker.gearpump.service.externals.InProcessGearPumpLauncher;
+import org.trustedanalytics.servicebroker.gearpump.service.externals.helpers.HdfsUtils;
 import org.trustedanalytics.servicebroker.gearpump.yarn.YarnAppManager;
 
 import javax.validation.constraints.NotNull;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 @Configuration
 public class GearPumpSpawnerConfig {
 
+    static final String LAUNCHER_IN_PROCESS = "in-process";
+
     @Value("${gearpump.pack.name}")
     @NotNull
     private String gearPumpPackName;
 
+    @Value("${gearpump.pack.version}")
+    @NotNull
+    private String gearPumpPackVersion;
+
+    @Value("${gearpump.pack.visibility:APPLICATION}")
+    private String gearPumpPackVisibility = "APPLICATION";
+
     @Value("${gearpump.destinationFolder}")
     @NotNull
     private String gearPumpDestinationFolder;
@@ -52,17 +79,50 @@ public class GearPumpSpawnerConfig {
     @NotNull
     private String workersMemoryLimit;
 
+    @Value("${gearpump.yarn.queue:default}")
+    private String yarnQueue = "default";
+
+    @Value("${gearpump.yarnclient.timeout:300}")
+    private long yarnclientTimeout;
+
+    @Value("${gearpump.launcher.mode:forked}")
+    private String launcherMode;
+
+    @Value("${gearpump.provisioning.stageThreads:8}")
+    private int provisioningStageThreads;
+
+    @Value("${gearpump.provisioning.async.staleAfter:3600}")
+    private long operationStaleAfter = 3600;
+
     public String getHdfsGearPumpPackPath() {
         return String.format("%s/%s", hdfsDir, gearPumpPackName);
     }
 
     @Bean
     public GearPumpSpawner getGearPumpSpawner(GearPumpDriverExec gearPumpDriver,
+                                              InProcessGearPumpLauncher inProcessGearPumpLauncher,
                                               DashboardDeployer dashboardDeployer,
                                               YarnAppManager yarnAppManager,
                                               CatalogConfig catalogConfig,
-                                              KerberosService kerberosService) {
-        return new GearPumpSpawner(gearPumpDriver, dashboardDeployer, yarnAppManager, catalogConfig, kerberosService);
+                                              KerberosService kerberosService,
+                                              WarmPoolService warmPoolService,
+                                              StageMetrics stageMetrics) {
+        return new GearPumpSpawner(selectLauncher(gearPumpDriver, inProcessGearPumpLauncher), dashboardDeployer,
+                yarnAppManager, catalogConfig, kerberosService, warmPoolService, provisioningStageExecutor(), stageMetrics);
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService provisioningStageExecutor() {
+        return new ThreadPoolExecutor(provisioningStageThreads, provisioningStageThreads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat("gearpump-provisioning-stage-%d").setDaemon(true).build());
+    }
+
+    /**
+     * @return launcher chosen by gearpump.launcher.mode
+     */
+    public GearPumpLauncher selectLauncher(GearPumpDriverExec gearPumpDriver, InProcessGearPumpLauncher inProcessGearPumpLauncher) {
+        return LAUNCHER_IN_PROCESS.equalsIgnoreCase(launcherMode) ? inProcessGearPumpLauncher : gearPumpDriver;
     }
 
     @Bean
@@ -70,20 +130,68 @@ public class GearPumpSpawnerConfig {
         return new GearPumpDriverExec();
     }
 
+    @Bean
+    public InProcessGearPumpLauncher inProcessGearPumpLauncher() {
+        return new InProcessGearPumpLauncher();
+    }
+
+    @Bean
+    public GearPumpPackResource gearPumpPackResource(HdfsUtils hdfsUtils) {
+        return new GearPumpPackResource(hdfsUtils, getHdfsGearPumpPackPath(), getGearPumpPackVisibility());
+    }
+
+    @Bean
+    public GearPumpClusterManager gearPumpClusterManager() {
+        return new GearPumpClusterManager();
+    }
+
+    @Bean
+    public GearPumpRestClient gearPumpRestClient() {
+        return new GearPumpRestClient();
+    }
+
+    @Bean
+    public WorkerScalingService workerScalingService(YarnAppManager yarnAppManager, CatalogConfig catalogConfig,
+                                                     CredentialPersistorService credentialPersistorService) {
+        return new WorkerScalingService(yarnAppManager, gearPumpRestClient(), gearPumpClusterManager(), catalogConfig,
+                credentialPersistorService);
+    }
+
     @Bean
     public GearPumpCredentialsParser gearPumpCredentialsParser() {
         return new GearPumpCredentialsParser();
     }
 
+    @Bean(initMethod = "start", destroyMethod = "close")
+    public CredentialPersistorService credentialPersistorService(ZookeeperClient getZKClient, CuratorFramework curatorFramework,
+                                                                 StageMetrics stageMetrics) {
+        return new CredentialPersistorService(getZKClient, curatorFramework, stageMetrics);
+    }
+
     @Bean
-    public CredentialPersistorService credentialPersistorService(ZookeeperClient getZKClient) {
-        return new CredentialPersistorService(getZKClient);
+    public OperationStatePersistorService operationStatePersistorService(ZookeeperClient getZKClient,
+                                                                         CuratorFramework curatorFramework) {
+        return new OperationStatePersistorService(getZKClient, curatorFramework, Duration.ofSeconds(operationStaleAfter));
     }
 
     public String getGearPumpPackName() {
         return gearPumpPackName;
     }
 
+    /**
+     * @return name of the top level directory inside the Gearpump pack archive
+     */
+    public String getGearPumpPackDirectory() {
+        return "gearpump-" + gearPumpPackVersion;
+    }
+
+    /**
+     * @return visibility the pack is localized with by the in-process launcher
+     */
+    public LocalResourceVisibility getGearPumpPackVisibility() {
+        return LocalResourceVisibility.valueOf(gearPumpPackVisibility.trim().toUpperCase());
+    }
+
     public String getGearPumpDestinationFolder() {
         return gearPumpDestinationFolder;
     }
@@ -96,6 +204,20 @@ public class GearPumpSpawnerConfig {
         return workersMemoryLimit;
     }
 
+    /**
+     * @return queue Gearpump is submitted to unless the plan sets one; the same queue is checked for free capacity
+     */
+    public String getYarnQueue() {
+        return yarnQueue;
+    }
+
+    /**
+     * @return time after which a running bin/yarnclient is killed, in milliseconds
+     */
+    public long getYarnclientTimeoutMillis() {
+        return TimeUnit.SECONDS.toMillis(yarnclientTimeout);
+    }
+
     public String getYarnConfDir() {
         return yarnConfDir;
     }
@@ -104,9 +226,13 @@ public class GearPumpSpawnerConfig {
     public String toString() {
         return "GearPumpSpawnerConfig{" +
                 ", gearPumpPackName='" + gearPumpPackName + '\'' +
+                ", gearPumpPackVisibility='" + gearPumpPackVisibility + '\'' +
                 ", gearPumpDestinationFolder='" + gearPumpDestinationFolder + '\'' +
                 ", hdfsDir='" + hdfsDir + '\'' +
                 ", workersMemoryLimit='" + workersMemoryLimit + '\'' +
+                ", yarnclientTimeout=" + yarnclientTimeout +
+                ", launcherMode='" + launcherMode + '\'' +
+                ", provisioningStageThreads=" + provisioningStageThreads +
                 ", yarnConfDir='" + yarnConfDir + '\'' +
                 '}';
     }
@@ -18,16 +18,33 @@ package org.trustedanalytics.servicebroker.gearpump.config;
 
 import org.trustedanalytics.cfbroker.store.api.BrokerStore;
 import org.trustedanalytics.cfbroker.store.impl.ServiceInstanceServiceStore;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.trustedanalytics.servicebroker.gearpump.service.CredentialPersistorService;
 import org.trustedanalytics.servicebroker.gearpump.service.GearPumpServiceInstanceService;
+import org.trustedanalytics.servicebroker.gearpump.service.OperationStatePersistorService;
+import org.trustedanalytics.servicebroker.gearpump.service.ProvisioningAdmissionController;
+import org.trustedanalytics.servicebroker.gearpump.service.WorkerScalingService;
+import org.trustedanalytics.servicebroker.gearpump.service.prerequisities.PrerequisitesCheckingService;
 import org.cloudfoundry.community.servicebroker.model.ServiceInstance;
 import org.cloudfoundry.community.servicebroker.service.ServiceInstanceService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.trustedanalytics.servicebroker.gearpump.service.GearPumpSpawner;
 
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 @Configuration
 public class ServiceInstanceServiceConfig {
 
@@ -35,8 +52,65 @@ public class ServiceInstanceServiceConfig {
     @Qualifier(value = Qualifiers.SERVICE_INSTANCE)
     private BrokerStore<ServiceInstance> store;
 
+    @Value("${gearpump.provisioning.async.enabled:false}")
+    private boolean asyncProvisioningEnabled;
+
+    @Value("${gearpump.provisioning.async.threads:4}")
+    private int asyncProvisioningThreads;
+
+    @Value("${gearpump.provisioning.async.queueSize:16}")
+    private int asyncProvisioningQueueSize;
+
+    @Value("${gearpump.provisioning.admission.maxConcurrent:8}")
+    private int admissionMaxConcurrent;
+
+    @Value("${gearpump.provisioning.admission.planLimits:}")
+    private String admissionPlanLimits;
+
+    @Value("${gearpump.provisioning.admission.queueSize:16}")
+    private int admissionQueueSize;
+
+    @Value("${gearpump.provisioning.admission.maxWait:600}")
+    private long admissionMaxWait;
+
+    @Value("${gearpump.scaling.enabled:true}")
+    private boolean scalingEnabled;
+
+    @Bean
+    public ServiceInstanceService getServiceInstanceService(GearPumpSpawner gearPumpSpawner,
+                                                            CredentialPersistorService credentialPersistorService,
+                                                            OperationStatePersistorService operationStatePersistorService,
+                                                            ProvisioningAdmissionController admissionController,
+                                                            WorkerScalingService workerScalingService,
+                                                            PrerequisitesCheckingService prerequisitesCheckingService) {
+        return new GearPumpServiceInstanceService(new ServiceInstanceServiceStore(store), gearPumpSpawner,
+                credentialPersistorService, operationStatePersistorService, provisioningExecutor(),
+                asyncProvisioningEnabled, admissionController,
+                scalingEnabled ? workerScalingService : WorkerScalingService.disabled(), prerequisitesCheckingService);
+    }
+
     @Bean
-    public ServiceInstanceService getServiceInstanceService(GearPumpSpawner gearPumpSpawner, CredentialPersistorService credentialPersistorService) {
-        return new GearPumpServiceInstanceService(new ServiceInstanceServiceStore(store), gearPumpSpawner, credentialPersistorService);
+    public ProvisioningAdmissionController provisioningAdmissionController(MeterRegistry meterRegistry) {
+        return new ProvisioningAdmissionController(admissionMaxConcurrent, getPlanLimits(), admissionQueueSize,
+                Duration.ofSeconds(admissionMaxWait), meterRegistry);
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService provisioningExecutor() {
+        return new ThreadPoolExecutor(asyncProvisioningThreads, asyncProvisioningThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(asyncProvisioningQueueSize),
+                new ThreadFactoryBuilder().setNameFormat("gearpump-provisioning-%d").setDaemon(true).build());
+    }
+
+    /**
+     * @return max concurrent provisionings per plan id, parsed from gearpump.provisioning.admission.planLimits ("planId=limit,...")
+     */
+    Map<String, Integer> getPlanLimits() {
+        Map<String, Integer> planLimits = new HashMap<>();
+        if (!Strings.isNullOrEmpty(admissionPlanLimits)) {
+            Splitter.on(',').trimResults().omitEmptyStrings().withKeyValueSeparator('=').split(admissionPlanLimits)
+                    .forEach((planId, limit) -> planLimits.put(planId.trim(), Integer.valueOf(limit.trim())));
+        }
+        return planLimits;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trustedanalytics.servicebroker.gearpump.config;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.curator.framework.CuratorFramework;
+import org.cloudfoundry.community.servicebroker.model.Plan;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.trustedanalytics.servicebroker.gearpump.kerberos.KerberosService;
+import org.trustedanalytics.servicebroker.gearpump.service.WarmPoolService;
+import org.trustedanalytics.servicebroker.gearpump.service.externals.GearPumpDriverExec;
+import org.trustedanalytics.servicebroker.gearpump.service.externals.InProcessGearPumpLauncher;
+import org.trustedanalytics.servicebroker.gearpump.service.prerequisities.PrerequisitesCheckingService;
+import org.trustedanalytics.servicebroker.gearpump.yarn.YarnAppManager;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+@Configuration
+public class WarmPoolConfig {
+
+    @Autowired
+    private GearPumpSpawnerConfig gearPumpSpawnerConfig;
+
+    @Value("${gearpump.warmPool.enabled:false}")
+    private boolean enabled;
+
+    @Value("${gearpump.warmPool.size:1}")
+    private int size;
+
+    @Value("${gearpump.warmPool.targets:}")
+    private String targets;
+
+    @Value("${gearpump.warmPool.maxIdleAge:86400}")
+    private long maxIdleAge;
+
+    @Value("${gearpump.warmPool.checkInterval:300}")
+    private long checkInterval;
+
+    @Bean(initMethod = "start")
+    public WarmPoolService warmPoolService(CuratorFramework curatorFramework,
+                                           GearPumpDriverExec gearPumpDriver,
+                                           InProcessGearPumpLauncher inProcessGearPumpLauncher,
+                                           YarnAppManager yarnAppManager,
+                                           CatalogConfig catalogConfig,
+                                           KerberosService kerberosService,
+                                           PrerequisitesCheckingService prerequisitesCheckingService,
+                                           MeterRegistry meterRegistry) {
+        return new WarmPoolService(curatorFramework, gearPumpSpawnerConfig.selectLauncher(gearPumpDriver, inProcessGearPumpLauncher),
+                yarnAppManager, catalogConfig, kerberosService, prerequisitesCheckingService::isGearpumpPackReady,
+                meterRegistry, warmPoolExecutor(),
+                getTargetSizes(catalogConfig), Duration.ofSeconds(maxIdleAge), Duration.ofSeconds(checkInterval));
+    }
+
+    @Bean(destroyMethod = "shutdownNow")
+    public ScheduledExecutorService warmPoolExecutor() {
+        return Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("gearpump-warm-pool-%d").setDaemon(true).build());
+    }
+
+    /**
+     * @return pool size per plan id; gearpump.warmPool.targets ("planId=size,...") overrides the default size
+     */
+    Map<String, Integer> getTargetSizes(CatalogConfig catalogConfig) {
+        Map<String, Integer> targetSizes = new HashMap<>();
+        if (!enabled) {
+            return targetSizes;
+        }
+        for (Plan plan : catalogConfig.catalog().getServiceDefinitions().get(0).getPlans()) {
+            targetSizes.put(plan.getId(), size);
+        }
+        if (!Strings.isNullOrEmpty(targets)) {
+            Splitter.on(',').trimResults().omitEmptyStrings().withKeyValueSeparator('=').split(targets)
+                    .forEach((planId, target) -> targetSizes.put(planId, Integer.valueOf(target.trim())));
+        }
+        targetSizes.values().removeIf(target -> target <= 0);
+        return targetSizes;
+    }
+}
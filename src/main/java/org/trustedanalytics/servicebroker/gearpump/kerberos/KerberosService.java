@@ -15,32 +15,74 @@
  */
 package org.trustedanalytics.servicebroker.gearpump.kerberos;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.apache.hadoop.conf.Configuration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.trustedanalytics.hadoop.kerberos.KrbLoginManager;
+import org.trustedanalytics.servicebroker.gearpump.metrics.StageMetrics;
 import org.trustedanalytics.servicebroker.gearpump.service.externals.helpers.ExternalProcessEnvBuilder;
 
+import javax.annotation.PreDestroy;
 import javax.security.auth.Subject;
+import javax.security.auth.kerberos.KerberosTicket;
 import javax.security.auth.login.LoginException;
 import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Logs in to Kerberos once and keeps the ticket. {@link #login()} is a no-op while the ticket is fresh;
+ * a background thread logs in again when 80% of the ticket lifetime has passed.
+ */
 @Service
 public class KerberosService {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(KerberosService.class);
 
+    private static final double RENEW_AT_LIFETIME_FRACTION = 0.8;
+    private static final Duration DEFAULT_TICKET_LIFETIME = Duration.ofHours(1);
+    private static final Duration RENEWAL_RETRY_DELAY = Duration.ofMinutes(1);
+    private static final String TGT_SERVER_PREFIX = "krbtgt/";
+
     private final KerberosProperties kerberosProperties;
     private final KrbLoginManager loginManager;
     private final Configuration hadoopConfiguration;
+    private final StageMetrics stageMetrics;
+    private final ScheduledExecutorService renewalScheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("kerberos-renewal-%d").setDaemon(true).build());
+
+    private volatile Instant loginTime;
+    private volatile Instant ticketExpiry;
+    private volatile Instant renewalTime;
+    private ScheduledFuture<?> scheduledRenewal;
 
     @Autowired
-    public KerberosService(KrbLoginManager loginManager, KerberosProperties kerberosProperties, Configuration hadoopConfiguration) {
+    public KerberosService(KrbLoginManager loginManager, KerberosProperties kerberosProperties, Configuration hadoopConfiguration,
+                           MeterRegistry meterRegistry, StageMetrics stageMetrics) {
         this.kerberosProperties = kerberosProperties;
         this.hadoopConfiguration = hadoopConfiguration;
         this.loginManager = loginManager;
+        this.stageMetrics = stageMetrics;
+
+        Gauge.builder("kerberos.ticket.age", this, KerberosService::getTicketAgeSeconds)
+                .description("Seconds since the Kerberos ticket was obtained")
+                .baseUnit("seconds")
+                .register(meterRegistry);
+        Gauge.builder("kerberos.ticket.remaining", this, KerberosService::getTicketRemainingSeconds)
+                .description("Seconds until the Kerberos ticket expires")
+                .baseUnit("seconds")
+                .register(meterRegistry);
     }
 
     public String getKerberosJavaOpts() {
@@ -59,12 +101,92 @@ public class KerberosService {
         return kerberosProperties;
     }
 
+    /**
+     * Makes sure there is a valid Kerberos login in Hadoop. Only talks to the KDC when there is no ticket yet
+     * or the current one is due for renewal.
+     */
     public void login() throws LoginException, IOException {
-        LOGGER.info("Logging in to Hadoop, kerberosEnabled ? {}", kerberosProperties.isKerberosEnabled());
-        if (kerberosProperties.isKerberosEnabled()) {
-            Subject subject = loginManager.loginWithCredentials(kerberosProperties.getUser(), kerberosProperties.getPassword().toCharArray());
-            loginManager.loginInHadoop(subject, hadoopConfiguration);
-            LOGGER.debug("Logged in to hadoop");
+        if (!kerberosProperties.isKerberosEnabled()) {
+            LOGGER.debug("Kerberos disabled, not logging in to Hadoop");
+            return;
+        }
+        if (isTicketFresh()) {
+            LOGGER.debug("Reusing Kerberos ticket valid until {}", ticketExpiry);
+            return;
+        }
+        synchronized (this) {
+            if (!isTicketFresh()) {
+                StageMetrics.Sample sample = stageMetrics.start(StageMetrics.KERBEROS_LOGIN);
+                boolean success = false;
+                try {
+                    loginWithCredentials();
+                    success = true;
+                } finally {
+                    sample.stop(success);
+                }
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        renewalScheduler.shutdownNow();
+    }
+
+    private boolean isTicketFresh() {
+        Instant renewal = renewalTime;
+        return renewal != null && Instant.now().isBefore(renewal);
+    }
+
+    private synchronized void loginWithCredentials() throws LoginException, IOException {
+        LOGGER.info("Logging in to Hadoop as {}", kerberosProperties.getUser());
+        Subject subject = loginManager.loginWithCredentials(kerberosProperties.getUser(), kerberosProperties.getPassword().toCharArray());
+        loginManager.loginInHadoop(subject, hadoopConfiguration);
+
+        Instant now = Instant.now();
+        Instant expiry = getTicketExpiry(subject).orElse(now.plus(DEFAULT_TICKET_LIFETIME));
+        long lifetimeMillis = Math.max(0, Duration.between(now, expiry).toMillis());
+        loginTime = now;
+        ticketExpiry = expiry;
+        renewalTime = now.plusMillis((long) (lifetimeMillis * RENEW_AT_LIFETIME_FRACTION));
+        LOGGER.debug("Logged in to hadoop, ticket valid until {}, renewal at {}", expiry, renewalTime);
+
+        scheduleRenewal(Duration.between(now, renewalTime));
+    }
+
+    private void renew() {
+        try {
+            loginWithCredentials();
+        } catch (LoginException | IOException | RuntimeException e) {
+            LOGGER.error("Kerberos ticket renewal failed, retrying in " + RENEWAL_RETRY_DELAY, e);
+            scheduleRenewal(RENEWAL_RETRY_DELAY);
+        }
+    }
+
+    private synchronized void scheduleRenewal(Duration delay) {
+        if (scheduledRenewal != null) {
+            scheduledRenewal.cancel(false);
         }
+        scheduledRenewal = renewalScheduler.schedule(this::renew, delay.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private static Optional<Instant> getTicketExpiry(Subject subject) {
+        if (subject == null) {
+            return Optional.empty();
+        }
+        return subject.getPrivateCredentials(KerberosTicket.class).stream()
+                .filter(ticket -> ticket.getServer().getName().startsWith(TGT_SERVER_PREFIX))
+                .map(ticket -> ticket.getEndTime().toInstant())
+                .min(Comparator.naturalOrder());
+    }
+
+    private double getTicketAgeSeconds() {
+        Instant login = loginTime;
+        return login == null ? Double.NaN : Duration.between(login, Instant.now()).getSeconds();
+    }
+
+    private double getTicketRemainingSeconds() {
+        Instant expiry = ticketExpiry;
+        return expiry == null ? Double.NaN : Duration.between(Instant.now(), expiry).getSeconds();
     }
 }
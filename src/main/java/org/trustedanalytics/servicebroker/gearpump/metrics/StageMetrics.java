@@ -0,0 +1,172 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.trustedanalytics.servicebroker.gearpump.metrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Times the steps of provisioning and deprovisioning as {@value #STAGE_METRIC}, tagged with stage, plan and outcome.
+ * The plan is taken from the {@link PlanScope} opened by the calling thread, so that components which don't know
+ * the plan (Kerberos, yarnclient, ZooKeeper) can still tag their steps with it.
+ */
+public class StageMetrics {
+
+    public static final String STAGE_METRIC = "gearpump.stage";
+
+    public static final String KERBEROS_LOGIN = "kerberos.login";
+    public static final String YARNCLIENT_RUN = "yarnclient.run";
+    public static final String REPORT_READ = "report.read";
+    public static final String UAA_TOKEN = "uaa.token";
+    public static final String UAA_CLIENT_CREATE = "uaa.client.create";
+    public static final String DASHBOARD_CREATE = "dashboard.create";
+    public static final String DASHBOARD_WAIT = "dashboard.wait";
+    public static final String DASHBOARD_DELETE = "dashboard.delete";
+    public static final String CREDENTIALS_PERSIST = "credentials.persist";
+    public static final String CREDENTIALS_READ = "credentials.read";
+    public static final String YARN_KILL = "yarn.kill";
+
+    public static final StageMetrics NOOP = new StageMetrics(null);
+
+    static final String NO_PLAN = "none";
+
+    private static final ThreadLocal<String> CURRENT_PLAN = new ThreadLocal<>();
+
+    private final MeterRegistry meterRegistry;
+
+    /**
+     * @param meterRegistry may be null if nothing should be recorded
+     */
+    public StageMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @FunctionalInterface
+    public interface Step<T, E extends Exception> {
+        T run() throws E;
+    }
+
+    /**
+     * Tags the steps recorded by the current thread with the plan until the scope is closed.
+     */
+    public static PlanScope planScope(String planId) {
+        return new PlanScope(planId);
+    }
+
+    /**
+     * Starts timing a step whose outcome is decided by the caller, e.g. one throwing several checked exceptions.
+     */
+    public Sample start(String stage) {
+        return new Sample(stage, currentPlan());
+    }
+
+    /**
+     * Times the step; it fails if it throws.
+     */
+    public <T, E extends Exception> T record(String stage, Step<T, E> step) throws E {
+        return record(stage, step, result -> true);
+    }
+
+    /**
+     * Times the step; it fails if it throws or if its result doesn't pass the check.
+     */
+    public <T, E extends Exception> T record(String stage, Step<T, E> step, Predicate<T> succeeded) throws E {
+        return record(start(stage), step, succeeded);
+    }
+
+    /**
+     * Times the step of the given plan, whatever plan scope the current thread is in; it fails if it throws.
+     */
+    public <T, E extends Exception> T record(String stage, String planId, Step<T, E> step) throws E {
+        return record(new Sample(stage, planId), step, result -> true);
+    }
+
+    private <T, E extends Exception> T record(Sample sample, Step<T, E> step, Predicate<T> succeeded) throws E {
+        boolean success = false;
+        try {
+            T result = step.run();
+            success = succeeded.test(result);
+            return result;
+        } finally {
+            sample.stop(success);
+        }
+    }
+
+    /**
+     * Times a non-blocking step until its future completes.
+     */
+    public <T> CompletableFuture<T> recordAsync(String stage, String planId, Supplier<CompletableFuture<T>> step) {
+        long start = System.nanoTime();
+        CompletableFuture<T> future;
+        try {
+            future = step.get();
+        } catch (RuntimeException e) {
+            record(stage, planId, false, System.nanoTime() - start);
+            throw e;
+        }
+        return future.whenComplete((result, failure) -> record(stage, planId, failure == null, System.nanoTime() - start));
+    }
+
+    private void record(String stage, String planId, boolean success, long nanos) {
+        if (meterRegistry != null) {
+            meterRegistry.timer(STAGE_METRIC, "stage", stage, "plan", planId == null ? NO_PLAN : planId,
+                    "outcome", success ? "success" : "failure").record(nanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private static String currentPlan() {
+        return CURRENT_PLAN.get();
+    }
+
+    public final class Sample {
+        private final String stage;
+        private final String planId;
+        private final long start = System.nanoTime();
+
+        private Sample(String stage, String planId) {
+            this.stage = stage;
+            this.planId = planId;
+        }
+
+        public void stop(boolean success) {
+            record(stage, planId, success, System.nanoTime() - start);
+        }
+    }
+
+    public static final class PlanScope implements AutoCloseable {
+        private final String previous;
+
+        private PlanScope(String planId) {
+            previous = CURRENT_PLAN.get();
+            CURRENT_PLAN.set(planId);
+        }
+
+        @Override
+        public void close() {
+            if (previous == null) {
+                CURRENT_PLAN.remove();
+            } else {
+                CURRENT_PLAN.set(previous);
+            }
+        }
+    }
+}
@@ -29,6 +29,8 @@ public class GearPumpCredentials {
     private String username;
     private String password;
     private String uaaClientName;
+    private Integer targetWorkers;
+    private Integer actualWorkers;
 
     public GearPumpCredentials(String masters, String yarnApplicationId) {
         this.masters = masters;
@@ -46,16 +48,27 @@ public class GearPumpCredentials {
         this.uaaClientName = uaaClientName;
     }
 
+    /**
+     * @return credentials without the unknown ones, e.g. of an instance still being provisioned or never scaled
+     */
     public Map<String, Object> toMap() {
-        return ImmutableMap.<String, Object>builder()
-                .put("masters", masters)
-                .put("yarnApplicationId", yarnApplicationId)
-                .put("dashboardUrl", dashboardUrl)
-                .put("dashboardGuid", dashboardGuid)
-                .put("username", username)
-                .put("password", password)
-                .put("uaaClientName", uaaClientName)
-                .build();
+        ImmutableMap.Builder<String, Object> builder = ImmutableMap.builder();
+        putIfKnown(builder, "masters", masters);
+        putIfKnown(builder, "yarnApplicationId", yarnApplicationId);
+        putIfKnown(builder, "dashboardUrl", dashboardUrl);
+        putIfKnown(builder, "dashboardGuid", dashboardGuid);
+        putIfKnown(builder, "username", username);
+        putIfKnown(builder, "password", password);
+        putIfKnown(builder, "uaaClientName", uaaClientName);
+        putIfKnown(builder, "targetWorkers", targetWorkers);
+        putIfKnown(builder, "actualWorkers", actualWorkers);
+        return builder.build();
+    }
+
+    private static void putIfKnown(ImmutableMap.Builder<String, Object> builder, String key, Object value) {
+        if (value != null) {
+            builder.put(key, value);
+        }
     }
 
     public String getDashboardUrl() {
@@ -114,6 +127,28 @@ public class GearPumpCredentials {
         this.uaaClientName = uaaClientName;
     }
 
+    /**
+     * @return number of workers the instance was last scaled to, null if it was never scaled
+     */
+    public Integer getTargetWorkers() {
+        return targetWorkers;
+    }
+
+    public void setTargetWorkers(Integer targetWorkers) {
+        this.targetWorkers = targetWorkers;
+    }
+
+    /**
+     * @return number of running worker containers seen on YARN after the last scaling, null if it was never scaled
+     */
+    public Integer getActualWorkers() {
+        return actualWorkers;
+    }
+
+    public void setActualWorkers(Integer actualWorkers) {
+        this.actualWorkers = actualWorkers;
+    }
+
 
     @Override
     public String toString() {
@@ -125,6 +160,8 @@ public class GearPumpCredentials {
                 ", username='" + username + '\'' +
                 ", password='" + password + '\'' +
                 ", uaaClientName='" + uaaClientName + '\'' +
+                ", targetWorkers=" + targetWorkers +
+                ", actualWorkers=" + actualWorkers +
                 '}';
     }
 }
\ No newline at end of file
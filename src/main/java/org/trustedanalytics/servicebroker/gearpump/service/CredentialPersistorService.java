@@ -20,22 +20,74 @@ package org.trustedanalytics.servicebroker.gearpump.service;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.PathChildrenCache;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
+import org.apache.curator.utils.ZKPaths;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.trustedanalytics.cfbroker.store.zookeeper.service.ZookeeperClient;
+import org.trustedanalytics.servicebroker.gearpump.metrics.StageMetrics;
 import org.trustedanalytics.servicebroker.gearpump.model.GearPumpCredentials;
 
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Stores Gearpump credentials of service instances under {@code /additionalData}. When created with a
+ * CuratorFramework, a PathChildrenCache watches {@code /additionalData} and reads are served from memory,
+ * while writes of other broker replicas are still seen. Parsed credentials are reused until the znode changes.
+ */
 public class CredentialPersistorService {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CredentialPersistorService.class);
+
     private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
     private static final Charset CHARSET = StandardCharsets.UTF_8;
+    private static final String CREDENTIALS_PATH = "/additionalData";
 
     private final ZookeeperClient zookeeperClient;
+    private final CuratorFramework curatorFramework;
+    private final StageMetrics stageMetrics;
+    private final Map<String, ParsedCredentials> parsedCredentials = new ConcurrentHashMap<>();
+
+    private PathChildrenCache childrenCache;
+    private volatile boolean cacheInitialized;
+    private volatile boolean connected = true;
 
     public CredentialPersistorService(ZookeeperClient zookeeperClient) {
+        this(zookeeperClient, null);
+    }
+
+    public CredentialPersistorService(ZookeeperClient zookeeperClient, CuratorFramework curatorFramework) {
+        this(zookeeperClient, curatorFramework, StageMetrics.NOOP);
+    }
+
+    public CredentialPersistorService(ZookeeperClient zookeeperClient, CuratorFramework curatorFramework,
+                                      StageMetrics stageMetrics) {
         this.zookeeperClient = zookeeperClient;
+        this.curatorFramework = curatorFramework;
+        this.stageMetrics = stageMetrics;
+    }
+
+    public void start() throws Exception {
+        if (curatorFramework == null) {
+            return;
+        }
+        childrenCache = new PathChildrenCache(curatorFramework, CREDENTIALS_PATH, true);
+        childrenCache.getListenable().addListener((client, event) -> onCacheEvent(event));
+        childrenCache.start(PathChildrenCache.StartMode.POST_INITIALIZED_EVENT);
+    }
+
+    public void close() throws IOException {
+        cacheInitialized = false;
+        if (childrenCache != null) {
+            childrenCache.close();
+        }
+        parsedCredentials.clear();
     }
 
     public static GearPumpCredentials fromJSONString(String json) throws IOException {
@@ -52,29 +104,126 @@ public class CredentialPersistorService {
                     (String) map.get("username"),
                     (String) map.get("password"),
                     (String) map.get("uaaClientName"));
+            result.setTargetWorkers(toInteger(map.get("targetWorkers")));
+            result.setActualWorkers(toInteger(map.get("actualWorkers")));
         }
 
         return result;
     }
 
+    private static Integer toInteger(Object value) {
+        return value == null ? null : Integer.valueOf(value.toString());
+    }
+
     public String toJSONString(Map<String, Object> map) throws JsonProcessingException {
         return OBJECT_MAPPER.writeValueAsString(map);
     }
 
     public void persistCredentials(String serviceInstanceId, Map<String, Object> map) throws IOException {
-        zookeeperClient.addZNode(this.getZNodePath(serviceInstanceId), toJSONString(map).getBytes(CHARSET));
+        stageMetrics.record(StageMetrics.CREDENTIALS_PERSIST, () -> {
+            zookeeperClient.addZNode(this.getZNodePath(serviceInstanceId), toJSONString(map).getBytes(CHARSET));
+            return null;
+        });
+    }
+
+    /**
+     * Replaces credentials persisted earlier in a single write, e.g. after the instance has been scaled, so that
+     * they are never missing if the broker or ZooKeeper fails in the middle. Needs the CuratorFramework.
+     */
+    public void updateCredentials(String serviceInstanceId, Map<String, Object> map) throws IOException {
+        if (curatorFramework == null) {
+            throw new IOException("Credentials can't be updated without a Curator client");
+        }
+        byte[] data = toJSONString(map).getBytes(CHARSET);
+        stageMetrics.record(StageMetrics.CREDENTIALS_PERSIST, () -> {
+            try {
+                curatorFramework.setData().forPath(getZNodePath(serviceInstanceId), data);
+            } catch (Exception e) {
+                throw new IOException("Couldn't update credentials of service instance " + serviceInstanceId, e);
+            }
+            return null;
+        });
     }
 
+    /**
+     * @return credentials of the instance, null if none were persisted
+     */
     public GearPumpCredentials readCredentials(String serviceInstanceId) throws IOException {
+        return stageMetrics.record(StageMetrics.CREDENTIALS_READ, () -> doReadCredentials(serviceInstanceId));
+    }
+
+    private GearPumpCredentials doReadCredentials(String serviceInstanceId) throws IOException {
+        if (isCacheUsable()) {
+            ChildData data = childrenCache.getCurrentData(getZNodePath(serviceInstanceId));
+            if (data != null) {
+                return fromCache(serviceInstanceId, data);
+            }
+            // not watched yet (e.g. written a moment ago), ask ZooKeeper directly
+        }
         byte[] bytes = zookeeperClient.getZNode(this.getZNodePath(serviceInstanceId));
-        return fromJSONString(new String(bytes));
+        if (bytes == null || bytes.length == 0) {
+            return null;
+        }
+        return fromJSONString(new String(bytes, CHARSET));
     }
 
     public void removeCredentials(String serviceInstanceId) throws IOException {
         zookeeperClient.deleteZNode(this.getZNodePath(serviceInstanceId));
+        parsedCredentials.remove(serviceInstanceId);
+    }
+
+    boolean isCacheUsable() {
+        return cacheInitialized && connected;
+    }
+
+    boolean isCached(String serviceInstanceId) {
+        return isCacheUsable() && childrenCache.getCurrentData(getZNodePath(serviceInstanceId)) != null;
+    }
+
+    private GearPumpCredentials fromCache(String serviceInstanceId, ChildData data) throws IOException {
+        long version = data.getStat().getMzxid();
+        ParsedCredentials parsed = parsedCredentials.get(serviceInstanceId);
+        if (parsed == null || parsed.version != version) {
+            parsed = new ParsedCredentials(version, fromJSONString(new String(data.getData(), CHARSET)));
+            parsedCredentials.put(serviceInstanceId, parsed);
+        }
+        return parsed.credentials;
+    }
+
+    private void onCacheEvent(PathChildrenCacheEvent event) {
+        switch (event.getType()) {
+            case CHILD_REMOVED:
+                parsedCredentials.remove(ZKPaths.getNodeFromPath(event.getData().getPath()));
+                break;
+            case INITIALIZED:
+                cacheInitialized = true;
+                LOGGER.info("Credentials cache initialized with {} entries", childrenCache.getCurrentData().size());
+                break;
+            case CONNECTION_SUSPENDED:
+            case CONNECTION_LOST:
+                // changes may be missed while disconnected, read from ZooKeeper until the connection is back
+                LOGGER.warn("ZooKeeper connection {}, bypassing credentials cache", event.getType());
+                connected = false;
+                break;
+            case CONNECTION_RECONNECTED:
+                connected = true;
+                break;
+            default:
+                break;
+        }
     }
 
     private String getZNodePath(String serviceInstanceId) {
-        return  String.format("/additionalData/%s", serviceInstanceId);
+        return  String.format("%s/%s", CREDENTIALS_PATH, serviceInstanceId);
+    }
+
+    private static class ParsedCredentials {
+        private final long version;
+        private final GearPumpCredentials credentials;
+
+        ParsedCredentials(long version, GearPumpCredentials credentials) {
+            this.version = version;
+            this.credentials = credentials;
+        }
     }
 }
@@ -17,46 +17,192 @@
 package org.trustedanalytics.servicebroker.gearpump.service;
 
 import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
+import org.cloudfoundry.community.servicebroker.exception.ServiceInstanceDoesNotExistException;
 import org.cloudfoundry.community.servicebroker.exception.ServiceInstanceExistsException;
+import org.cloudfoundry.community.servicebroker.exception.ServiceInstanceUpdateNotSupportedException;
 import org.cloudfoundry.community.servicebroker.model.CreateServiceInstanceRequest;
 import org.cloudfoundry.community.servicebroker.model.DeleteServiceInstanceRequest;
+import org.cloudfoundry.community.servicebroker.model.OperationState;
 import org.cloudfoundry.community.servicebroker.model.ServiceInstance;
+import org.cloudfoundry.community.servicebroker.model.ServiceInstanceLastOperation;
+import org.cloudfoundry.community.servicebroker.model.UpdateServiceInstanceRequest;
 import org.cloudfoundry.community.servicebroker.service.ServiceInstanceService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.trustedanalytics.cfbroker.store.impl.ForwardingServiceInstanceServiceStore;
+import org.trustedanalytics.servicebroker.gearpump.metrics.StageMetrics;
 import org.trustedanalytics.servicebroker.gearpump.model.GearPumpCredentials;
+import org.trustedanalytics.servicebroker.gearpump.service.OperationStatePersistorService.OperationType;
+import org.trustedanalytics.servicebroker.gearpump.service.prerequisities.PrerequisitesCheckingService;
 
 import java.io.IOException;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class GearPumpServiceInstanceService extends ForwardingServiceInstanceServiceStore {
     private static final Logger LOGGER = LoggerFactory.getLogger(GearPumpServiceInstanceService.class);
     public static final String COULD_NOT_SPAWN_GEARPUMP_INSTANCE = "Couldn't spawn GearPump instance";
 
+    static final String PROVISIONING_IN_PROGRESS = "Provisioning GearPump instance";
+    static final String PROVISIONING_SUCCEEDED = "GearPump instance has been spawned";
+    static final String SCALING_IN_PROGRESS = "Scaling GearPump instance";
+    static final String SCALING_SUCCEEDED = "GearPump instance has been scaled";
+    private static final String COULD_NOT_SCALE_GEARPUMP_INSTANCE = "Couldn't scale Apache Gearpump instance";
+
     private final GearPumpSpawner gearPumpSpawner;
     private final CredentialPersistorService credentialPersistorService;
+    private final OperationStatePersistorService operationStatePersistorService;
+    private final Executor provisioningExecutor;
+    private final boolean asyncProvisioning;
+    private final ProvisioningAdmissionController admissionController;
+    private final WorkerScalingService workerScalingService;
+    private final PrerequisitesCheckingService prerequisitesCheckingService;
 
-    public GearPumpServiceInstanceService(ServiceInstanceService delegate, GearPumpSpawner gearPumpSpawner, CredentialPersistorService credentialPersistorService) {
+    /**
+     * @param asyncProvisioning whether requests accepting incomplete operations are provisioned and scaled in the
+     *                          background on the provisioningExecutor, with the progress kept for last_operation
+     * @param admissionController bounds the number of instances provisioned at once
+     * @param workerScalingService flexes the workers on plan change, {@link WorkerScalingService#disabled()} refuses it
+     * @param prerequisitesCheckingService tells whether the Gearpump pack is on HDFS
+     */
+    public GearPumpServiceInstanceService(ServiceInstanceService delegate, GearPumpSpawner gearPumpSpawner,
+                                          CredentialPersistorService credentialPersistorService,
+                                          OperationStatePersistorService operationStatePersistorService,
+                                          Executor provisioningExecutor,
+                                          boolean asyncProvisioning,
+                                          ProvisioningAdmissionController admissionController,
+                                          WorkerScalingService workerScalingService,
+                                          PrerequisitesCheckingService prerequisitesCheckingService) {
         super(delegate);
         this.gearPumpSpawner = gearPumpSpawner;
         this.credentialPersistorService = credentialPersistorService;
+        this.operationStatePersistorService = operationStatePersistorService;
+        this.provisioningExecutor = provisioningExecutor;
+        this.asyncProvisioning = asyncProvisioning;
+        this.admissionController = admissionController;
+        this.workerScalingService = workerScalingService;
+        this.prerequisitesCheckingService = prerequisitesCheckingService;
     }
 
     @Override
     public ServiceInstance createServiceInstance(CreateServiceInstanceRequest request) throws ServiceInstanceExistsException, ServiceBrokerException {
         LOGGER.info("Spawning GearPump instance {}", request);
-        ServiceInstance instance =  super.createServiceInstance(request);
-        String instanceId = instance.getServiceInstanceId();
-        String spaceId = request.getSpaceGuid();
-        String orgId = request.getOrganizationGuid();
         String planId = request.getPlanId();
-        LOGGER.debug("GearPump service instance guid: {}; Space id: {}; Org id: {}; Plan id: {}", instanceId, spaceId, orgId, planId);
+        ensureGearpumpPackReady();
+        if (asyncProvisioning && request.hasAsyncClient()) {
+            admissionController.ensureCapacity(planId);
+            ServiceInstance instance = createInstanceRecord(request);
+            return provisionAsync(instance, request.getSpaceGuid(), request.getOrganizationGuid(), planId);
+        }
+
+        // the platform gives up on a synchronous request long before maxWait, so it isn't queued
+        try (ProvisioningAdmissionController.Permit permit = admissionController.tryAdmit(planId)) {
+            ServiceInstance instance = createInstanceRecord(request);
+            try {
+                provision(instance.getServiceInstanceId(), request.getSpaceGuid(), request.getOrganizationGuid(), planId);
+            } catch (ProvisioningRejectedException e) {
+                // nothing was provisioned, forget the instance so that the platform can retry with the same id
+                super.deleteServiceInstance(new DeleteServiceInstanceRequest(instance.getServiceInstanceId(),
+                        instance.getServiceDefinitionId(), planId));
+                throw e;
+            }
+            return instance;
+        }
+    }
+
+    /**
+     * Refuses to provision while the Gearpump pack is still being verified or uploaded, as yarnclient would fail on it.
+     */
+    private void ensureGearpumpPackReady() throws ProvisioningRejectedException {
+        if (!prerequisitesCheckingService.isGearpumpPackReady()) {
+            LOGGER.warn("Gearpump pack is not on HDFS yet, rejecting provision request");
+            throw new ProvisioningRejectedException("The Apache Gearpump pack is still being uploaded to HDFS, try again later.");
+        }
+    }
+
+    private ServiceInstance createInstanceRecord(CreateServiceInstanceRequest request) throws ServiceInstanceExistsException, ServiceBrokerException {
+        ServiceInstance instance = super.createServiceInstance(request);
+        LOGGER.debug("GearPump service instance guid: {}; Space id: {}; Org id: {}; Plan id: {}", instance.getServiceInstanceId(),
+                request.getSpaceGuid(), request.getOrganizationGuid(), request.getPlanId());
+        return instance;
+    }
+
+    @Override
+    public ServiceInstance getServiceInstance(String id) {
+        ServiceInstance instance = super.getServiceInstance(id);
+        if (instance == null) {
+            return instance;
+        }
+
+        try {
+            Optional<ServiceInstanceLastOperation> lastOperation = operationStatePersistorService.readOperation(id);
+            if (lastOperation.isPresent()) {
+                instance.withLastOperation(lastOperation.get());
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Couldn't read last operation of service instance {}", id, e);
+        }
+        return instance;
+    }
+
+    private ServiceInstance provisionAsync(ServiceInstance instance, String spaceId, String orgId, String planId) throws ServiceBrokerException {
+        String instanceId = instance.getServiceInstanceId();
+        startOperation(instanceId, OperationType.PROVISIONING, PROVISIONING_IN_PROGRESS);
 
+        try {
+            provisioningExecutor.execute(() -> provisionInBackground(instanceId, spaceId, orgId, planId));
+        } catch (RejectedExecutionException e) {
+            LOGGER.error("Provisioning queue is full, rejecting instance {}", instanceId, e);
+            operationStatePersistorService.removeOperation(instanceId);
+            super.deleteServiceInstance(new DeleteServiceInstanceRequest(instanceId, instance.getServiceDefinitionId(), planId));
+            throw prepareSBException(COULD_NOT_SPAWN_GEARPUMP_INSTANCE, e);
+        }
+
+        LOGGER.info("GearPump instance {} accepted for asynchronous provisioning", instanceId);
+        return instance.withAsync(true);
+    }
+
+    private void provisionInBackground(String instanceId, String spaceId, String orgId, String planId) {
+        OperationState state;
+        String description;
+        try (ProvisioningAdmissionController.Permit permit = admissionController.admit(planId)) {
+            provision(instanceId, spaceId, orgId, planId);
+            state = OperationState.SUCCEEDED;
+            description = PROVISIONING_SUCCEEDED;
+        } catch (ServiceBrokerException e) {
+            state = OperationState.FAILED;
+            description = e.getMessage();
+        } catch (RuntimeException e) {
+            // must not leave the operation in progress, or the instance could never be deleted
+            LOGGER.error(COULD_NOT_SPAWN_GEARPUMP_INSTANCE, e);
+            state = OperationState.FAILED;
+            description = String.format("%s (%s)", COULD_NOT_SPAWN_GEARPUMP_INSTANCE, e.getMessage());
+        }
+
+        try {
+            operationStatePersistorService.persistOperation(instanceId, state, description);
+        } catch (IOException e) {
+            LOGGER.error("Couldn't persist operation state {} of service instance {}", state, instanceId, e);
+        }
+    }
+
+    private void provision(String instanceId, String spaceId, String orgId, String planId) throws ServiceBrokerException {
+        try (StageMetrics.PlanScope scope = StageMetrics.planScope(planId)) {
+            provisionAndPersist(instanceId, spaceId, orgId, planId);
+        }
+    }
+
+    private void provisionAndPersist(String instanceId, String spaceId, String orgId, String planId) throws ServiceBrokerException {
         GearPumpCredentials gearPumpCredentials;
 
         try {
-            gearPumpCredentials = gearPumpSpawner.provisionInstance(instanceId, spaceId, orgId, planId);
+            gearPumpCredentials = gearPumpSpawner.provisionInstance(instanceId, spaceId, orgId, planId, journalOf(instanceId));
             LOGGER.info("GearPump instance has been spawned");
+        } catch (ProvisioningRejectedException e) {
+            LOGGER.warn("GearPump instance {} rejected: {}", instanceId, e.getMessage());
+            throw e;
         } catch (Exception e) {
             LOGGER.error(COULD_NOT_SPAWN_GEARPUMP_INSTANCE, e);
             throw prepareSBException(COULD_NOT_SPAWN_GEARPUMP_INSTANCE, e);
@@ -68,40 +214,181 @@ public class GearPumpServiceInstanceService extends ForwardingServiceInstanceSer
         }
 
         try {
-            credentialPersistorService.persistCredentials(instanceId, gearPumpCredentials.toMap());
+            credentialPersistorService.updateCredentials(instanceId, gearPumpCredentials.toMap());
             LOGGER.info("Persisted GearPump credentials {}", gearPumpCredentials);
         } catch (IOException e) {
             LOGGER.error("Couldn't persist credentials", e);
             throw prepareSBException("Couldn't persist credentials", e);
         }
-        return instance;
+    }
+
+    /**
+     * Keeps what provisioning has created in the credentials of the instance: the first record creates them before
+     * anything is provisioned, later ones replace them.
+     */
+    private GearPumpSpawner.ProvisioningJournal journalOf(String instanceId) {
+        AtomicBoolean recorded = new AtomicBoolean();
+        return created -> {
+            if (recorded.get()) {
+                credentialPersistorService.updateCredentials(instanceId, created.toMap());
+            } else {
+                credentialPersistorService.persistCredentials(instanceId, created.toMap());
+                recorded.set(true);
+            }
+        };
     }
 
     @Override
     public ServiceInstance deleteServiceInstance(DeleteServiceInstanceRequest request) throws ServiceBrokerException {
+        try (StageMetrics.PlanScope scope = StageMetrics.planScope(request.getPlanId())) {
+            return deprovision(request);
+        }
+    }
+
+    private ServiceInstance deprovision(DeleteServiceInstanceRequest request) throws ServiceBrokerException {
         LOGGER.info("Deleting GearPump service instance with guid: {}", request.getServiceInstanceId());
 
+        ensureNotInProgress(request.getServiceInstanceId());
+
         GearPumpCredentials gearpumpCredentials;
 
         try {
+            // while they can't be read, whatever a failed or interrupted provisioning created would be leaked
             gearpumpCredentials = credentialPersistorService.readCredentials(request.getServiceInstanceId());
         } catch (IOException e) {
             LOGGER.error("Couldn't obtain credentials.", e);
             throw prepareSBException("Couldn't obtain credentials", e);
         }
 
+        if (gearpumpCredentials == null) {
+            // provisioning records the credentials before creating anything, so none was created
+            LOGGER.info("Nothing to tear down for service instance {}, removing its record", request.getServiceInstanceId());
+            removeOperation(request.getServiceInstanceId());
+            return super.deleteServiceInstance(request);
+        }
+
         LOGGER.debug("Obtained Apache Gearpump credentials: {}", gearpumpCredentials);
         try {
-            gearPumpSpawner.deprovisionInstance(gearpumpCredentials);
+            gearPumpSpawner.deprovisionInstance(gearpumpCredentials, request.getPlanId());
             credentialPersistorService.removeCredentials(request.getServiceInstanceId());
         } catch (Exception e) {
             LOGGER.error("Couldn't delete Apache Gearpump instance", e);
             throw prepareSBException("Couldn't delete Apache Gearpump instance", e);
         }
 
+        removeOperation(request.getServiceInstanceId());
         return super.deleteServiceInstance(request);
     }
 
+    private void removeOperation(String instanceId) {
+        operationStatePersistorService.removeOperation(instanceId);
+    }
+
+    /**
+     * Flexes the workers to the new plan. With accepts_incomplete the workers are flexed in the background and the
+     * progress is reported through last_operation, as a yarnclient run per removed worker easily outlasts the request.
+     */
+    @Override
+    public ServiceInstance updateServiceInstance(UpdateServiceInstanceRequest request)
+            throws ServiceInstanceUpdateNotSupportedException, ServiceBrokerException, ServiceInstanceDoesNotExistException {
+        String instanceId = request.getServiceInstanceId();
+        LOGGER.info("Updating GearPump service instance {} to plan {}", instanceId, request.getPlanId());
+        workerScalingService.ensureEnabled();
+        ServiceInstance instance = super.getServiceInstance(instanceId);
+        if (instance == null) {
+            throw new ServiceInstanceDoesNotExistException(instanceId);
+        }
+        if (asyncProvisioning && request.hasAsyncClient()) {
+            return updateAsync(instance, request);
+        }
+        ensureNotInProgress(instanceId);
+        scale(request);
+        return super.updateServiceInstance(request);
+    }
+
+    private ServiceInstance updateAsync(ServiceInstance instance, UpdateServiceInstanceRequest request) throws ServiceBrokerException {
+        String instanceId = instance.getServiceInstanceId();
+        startOperation(instanceId, OperationType.SCALING, SCALING_IN_PROGRESS);
+
+        try {
+            provisioningExecutor.execute(() -> updateInBackground(request));
+        } catch (RejectedExecutionException e) {
+            LOGGER.error("Provisioning queue is full, rejecting update of instance {}", instanceId, e);
+            operationStatePersistorService.removeOperation(instanceId);
+            throw prepareSBException(COULD_NOT_SCALE_GEARPUMP_INSTANCE, e);
+        }
+
+        LOGGER.info("GearPump instance {} accepted for asynchronous scaling", instanceId);
+        return instance.withAsync(true);
+    }
+
+    private void updateInBackground(UpdateServiceInstanceRequest request) {
+        OperationState state;
+        String description;
+        try {
+            scale(request);
+            super.updateServiceInstance(request);
+            state = OperationState.SUCCEEDED;
+            description = SCALING_SUCCEEDED;
+        } catch (Exception e) {
+            LOGGER.error("Couldn't update Apache Gearpump instance {}", request.getServiceInstanceId(), e);
+            state = OperationState.FAILED;
+            description = e.getMessage();
+        }
+
+        try {
+            operationStatePersistorService.persistOperation(request.getServiceInstanceId(), state, description);
+        } catch (IOException e) {
+            LOGGER.error("Couldn't persist operation state {} of service instance {}", state, request.getServiceInstanceId(), e);
+        }
+    }
+
+    private void scale(UpdateServiceInstanceRequest request) throws ServiceBrokerException {
+        String instanceId = request.getServiceInstanceId();
+        try (StageMetrics.PlanScope scope = StageMetrics.planScope(request.getPlanId())) {
+            GearPumpCredentials scaled = workerScalingService.scale(instanceId, request.getPlanId());
+            LOGGER.info("Scaled GearPump instance {}: {} of {} workers running", instanceId,
+                    scaled.getActualWorkers(), scaled.getTargetWorkers());
+        } catch (Exception e) {
+            LOGGER.error(COULD_NOT_SCALE_GEARPUMP_INSTANCE, e);
+            throw prepareSBException(COULD_NOT_SCALE_GEARPUMP_INSTANCE, e);
+        }
+    }
+
+    /**
+     * Records the operation as in progress, refusing it while another one runs on the instance.
+     */
+    private void startOperation(String instanceId, OperationType type, String description) throws ServiceBrokerException {
+        Optional<OperationType> running;
+        try {
+            running = operationStatePersistorService.startOperation(instanceId, type, description);
+        } catch (IOException e) {
+            LOGGER.error("Couldn't persist operation state", e);
+            throw prepareSBException("Couldn't persist operation state", e);
+        }
+        if (running.isPresent()) {
+            throw stillInProgress(running.get());
+        }
+    }
+
+    private void ensureNotInProgress(String instanceId) throws ServiceBrokerException {
+        Optional<OperationType> running;
+        try {
+            running = operationStatePersistorService.readOperationInProgress(instanceId);
+        } catch (IOException e) {
+            LOGGER.warn("Couldn't read last operation of service instance {}", instanceId, e);
+            return;
+        }
+        if (running.isPresent()) {
+            throw stillInProgress(running.get());
+        }
+    }
+
+    private static ServiceBrokerException stillInProgress(OperationType type) {
+        return new ServiceBrokerException(String.format("Apache Gearpump instance is still being %s.",
+                type == OperationType.SCALING ? "scaled" : "provisioned"));
+    }
+
     private ServiceBrokerException prepareSBException(String message, Exception e) {
         return new ServiceBrokerException(String.format("%s (%s)", message, e.getMessage()), e);
     }
@@ -23,15 +23,27 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.trustedanalytics.servicebroker.gearpump.config.CatalogConfig;
+import org.trustedanalytics.servicebroker.gearpump.config.GearPumpPlan;
 import org.trustedanalytics.servicebroker.gearpump.kerberos.KerberosService;
+import org.trustedanalytics.servicebroker.gearpump.metrics.StageMetrics;
 import org.trustedanalytics.servicebroker.gearpump.model.GearPumpCredentials;
 import org.trustedanalytics.servicebroker.gearpump.service.dashboard.DashboardDeployer;
 import org.trustedanalytics.servicebroker.gearpump.service.dashboard.DashboardServiceException;
-import org.trustedanalytics.servicebroker.gearpump.service.externals.GearPumpDriverExec;
+import org.trustedanalytics.servicebroker.gearpump.service.externals.GearPumpLauncher;
 import org.trustedanalytics.servicebroker.gearpump.service.externals.SpawnResult;
 import org.trustedanalytics.servicebroker.gearpump.yarn.YarnAppManager;
 
+import java.io.IOException;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 public class GearPumpSpawner {
 
@@ -39,52 +51,93 @@ public class GearPumpSpawner {
 
     private static final String ADMIN_USERNAME = "admin";
 
-    private final GearPumpDriverExec gearPumpDriver;
+    private final GearPumpLauncher gearPumpDriver;
     private final DashboardDeployer cloudFoundryService;
     private final YarnAppManager yarnAppManager;
     private final CatalogConfig configuration;
     private final KerberosService kerberosService;
+    private final WarmPoolService warmPoolService;
+    private final Executor stageExecutor;
+    private final StageMetrics stageMetrics;
 
+    /**
+     * @param warmPoolService hands out idle clusters, {@link WarmPoolService#disabled()} when there is no pool
+     * @param stageExecutor runs the provisioning stages that don't depend on each other in parallel
+     */
     @Autowired
-    public GearPumpSpawner(GearPumpDriverExec gearPumpDriver,
+    public GearPumpSpawner(GearPumpLauncher gearPumpDriver,
                            DashboardDeployer cloudFoundryService,
                            YarnAppManager yarnAppManager,
                            CatalogConfig catalogConfig,
-                           KerberosService kerberosService) {
+                           KerberosService kerberosService,
+                           WarmPoolService warmPoolService,
+                           Executor stageExecutor,
+                           StageMetrics stageMetrics) {
         this.gearPumpDriver = gearPumpDriver;
         this.cloudFoundryService = cloudFoundryService;
         this.yarnAppManager = yarnAppManager;
         this.configuration = catalogConfig;
         this.kerberosService = kerberosService;
+        this.warmPoolService = warmPoolService;
+        this.stageExecutor = stageExecutor;
+        this.stageMetrics = stageMetrics;
     }
 
-    private GearPumpCredentials provisionOnYarn(String numberOfWorkers) throws Exception {
-        SpawnResult spawnResult = gearPumpDriver.spawnGearPumpOnYarn(numberOfWorkers);
+    private Optional<GearPumpCredentials> claimFromWarmPool(String planId) {
+        Optional<GearPumpCredentials> claimed = warmPoolService.claim(planId);
+        claimed.ifPresent(credentials -> LOGGER.info("Using idle cluster {} from the warm pool", credentials.getYarnApplicationId()));
+        return claimed;
+    }
+
+    /**
+     * Refuses a plan that the YARN queue can't host right now, before yarnclient is forked and the UAA client created.
+     */
+    private void ensureYarnCapacity(String planId, GearPumpPlan plan) throws ProvisioningRejectedException {
+        if (!yarnAppManager.canHost(plan)) {
+            throw new ProvisioningRejectedException(String.format(
+                    "YARN doesn't have enough free resources for plan %s at the moment, try again later.", planId));
+        }
+    }
+
+    private GearPumpCredentials provisionOnYarn(GearPumpPlan plan, CreatedResources resources, YarnLaunch launch)
+            throws Exception {
+        // remember the appId as soon as YARN assigns it, so that a failed or crashed launch can still be cleaned up
+        AtomicReference<String> createdApplicationId = new AtomicReference<>();
+        SpawnResult spawnResult;
+        try {
+            launch.start();
+            try {
+                spawnResult = gearPumpDriver.spawnGearPumpOnYarn(plan, applicationId -> {
+                    LOGGER.info("YARN application {} created", applicationId);
+                    createdApplicationId.set(applicationId);
+                    resources.update(created -> created.setYarnApplicationId(applicationId));
+                });
+            } finally {
+                launch.finish();
+            }
+        } catch (RuntimeException e) {
+            cleanUp(new GearPumpCredentials(null, createdApplicationId.get()), resources);
+            throw e;
+        }
         LOGGER.debug("spawnResult: {}", spawnResult.toString());
-        if (spawnResult.getStatus() == SpawnResult.STATUS_OK) {
+        if (spawnResult.getStatus() == SpawnResult.STATUS_OK && launch.isCancelled()) {
+            // the provisioning failed elsewhere while the cluster was starting
+            cleanUp(spawnResult.getGearPumpCredentials(), resources);
+            throw new CancellationException("Gearpump launch cancelled, provisioning has failed");
+        } else if (spawnResult.getStatus() == SpawnResult.STATUS_OK) {
             LOGGER.debug("SpawnResult.STATUS_OK");
             return spawnResult.getGearPumpCredentials();
         } else {
             LOGGER.warn("SpawnResult NOT OK!");
-            cleanUp(spawnResult.getGearPumpCredentials());
+            GearPumpCredentials credentials = spawnResult.getGearPumpCredentials();
+            if (credentials == null || Strings.isNullOrEmpty(credentials.getYarnApplicationId())) {
+                credentials = new GearPumpCredentials(null, createdApplicationId.get());
+            }
+            cleanUp(credentials, resources);
             throw spawnResult.getException();
         }
     }
 
-    private void provisionOnTap(GearPumpCredentials gearPumpCredentials, String spaceId, String orgId, String serviceInstanceId)
-            throws DashboardServiceException {
-        LOGGER.info("Provisioning on TAP");
-
-        String uiServiceInstanceName = "gp-ui-" + serviceInstanceId;
-        String uaaClientName = RandomStringUtils.randomAlphanumeric(10).toLowerCase();
-        String password = RandomStringUtils.randomAlphanumeric(10).toLowerCase();
-
-        Map<String, String> dashboardData
-                = cloudFoundryService.deployUI(uiServiceInstanceName, ADMIN_USERNAME, password, gearPumpCredentials.getMasters(), spaceId, orgId, uaaClientName);
-
-        updateCredentials(gearPumpCredentials, dashboardData);
-    }
-
     private void updateCredentials(GearPumpCredentials gearPumpCredentials, Map<String, String> dashboardData) {
         gearPumpCredentials.setDashboardUrl(dashboardData.get("uiAppUrl"));
         gearPumpCredentials.setDashboardGuid(dashboardData.get("uiServiceInstanceGuid"));
@@ -93,13 +146,110 @@ public class GearPumpSpawner {
         gearPumpCredentials.setUaaClientName(dashboardData.get("uaaClientName"));
     }
 
-    private void cleanUp(GearPumpCredentials gearPumpCredentials) {
+    /**
+     * Undoes whatever the branches of a failed provisioning managed to create. A YARN launch still running is
+     * interrupted, which kills yarnclient or stops waiting for the masters, and its application is killed right away
+     * if YARN has assigned its id already; otherwise the launch kills it once it returns. Only the non-blocking UAA
+     * and TAP calls are waited for.
+     */
+    private void compensate(CompletableFuture<GearPumpCredentials> yarnStage, CompletableFuture<String> uaaClientStage,
+                            CompletableFuture<String> dashboardStage, String uaaClientName, String planId,
+                            CreatedResources resources, YarnLaunch launch) {
+        launch.cancel();
+        boolean launchRunning = !yarnStage.isDone();
+        if (launchRunning) {
+            // the dashboard stage never starts once the launch is cancelled
+            String yarnApplicationId = resources.getYarnApplicationId();
+            if (yarnApplicationId != null) {
+                cleanUp(new GearPumpCredentials(null, yarnApplicationId), resources);
+            }
+            uaaClientStage.handle((result, e) -> null).join();
+        } else {
+            CompletableFuture.allOf(uaaClientStage, dashboardStage).handle((result, e) -> null).join();
+        }
+
+        if (succeeded(dashboardStage)) {
+            try {
+                cloudFoundryService.deleteDashboard(dashboardStage.join());
+                resources.update(created -> created.setDashboardGuid(null));
+            } catch (DashboardServiceException | RuntimeException e) {
+                LOGGER.warn("Cannot delete dashboard while cleaning up.", e);
+            }
+        }
+        if (succeeded(uaaClientStage)) {
+            try {
+                cloudFoundryService.deleteUaaClient(uaaClientName, planId);
+                resources.update(created -> created.setUaaClientName(null));
+            } catch (DashboardServiceException | RuntimeException e) {
+                LOGGER.warn("Cannot delete UAA client while cleaning up.", e);
+            }
+        } else {
+            resources.update(created -> created.setUaaClientName(null));
+        }
+        if (!launchRunning && succeeded(yarnStage)) {
+            cleanUp(yarnStage.join(), resources);
+        }
+    }
+
+    /**
+     * @return result of the last stage, failing as soon as any of the stages it depends on fails
+     */
+    private static <T> CompletableFuture<T> failFast(CompletableFuture<T> lastStage, CompletableFuture<?>... stages) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        for (CompletableFuture<?> stage : stages) {
+            stage.whenComplete((value, e) -> {
+                if (e != null) {
+                    result.completeExceptionally(e);
+                }
+            });
+        }
+        lastStage.whenComplete((value, e) -> {
+            if (e != null) {
+                result.completeExceptionally(e);
+            } else {
+                result.complete(value);
+            }
+        });
+        return result;
+    }
+
+    private static boolean succeeded(CompletableFuture<?> stage) {
+        return stage.isDone() && !stage.isCompletedExceptionally();
+    }
+
+    private static <T> Supplier<T> stage(Stage<T> stage) {
+        return () -> {
+            try {
+                return stage.run();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        };
+    }
+
+    private static Exception unwrap(CompletionException e) {
+        Throwable cause = e.getCause() == null ? e : e.getCause();
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return (Exception) cause;
+    }
+
+    @FunctionalInterface
+    private interface Stage<T> {
+        T run() throws Exception;
+    }
+
+    private void cleanUp(GearPumpCredentials gearPumpCredentials, CreatedResources resources) {
         LOGGER.info("cleanUp [" + gearPumpCredentials + "]");
         if ( gearPumpCredentials != null && !Strings.isNullOrEmpty(gearPumpCredentials.getYarnApplicationId())) {
             LOGGER.debug("Found yarnApplicationId {}", gearPumpCredentials.getYarnApplicationId());
             try {
                 yarnAppManager.killApplication(gearPumpCredentials.getYarnApplicationId());
                 LOGGER.debug("killApplication finished");
+                resources.update(created -> created.setYarnApplicationId(null));
             } catch (YarnException e) {
                 LOGGER.warn("YARN problem while cleaning up.", e);
             }
@@ -108,25 +258,91 @@ public class GearPumpSpawner {
         }
     }
 
-    public GearPumpCredentials provisionInstance(String serviceInstanceId, String spaceId, String orgId, String planId) throws Exception {
+    /**
+     * @param journal told what is about to be created before anything is, and again whenever a resource is created or
+     *                removed, so that the instance can be torn down even if provisioning never finishes
+     */
+    public GearPumpCredentials provisionInstance(String serviceInstanceId, String spaceId, String orgId, String planId,
+                                                 ProvisioningJournal journal) throws Exception {
+        try (StageMetrics.PlanScope scope = StageMetrics.planScope(planId)) {
+            return provision(serviceInstanceId, spaceId, orgId, planId, journal);
+        }
+    }
+
+    private GearPumpCredentials provision(String serviceInstanceId, String spaceId, String orgId, String planId,
+                                          ProvisioningJournal journal) throws Exception {
         LOGGER.info("Trying to provision gearPump for: " + serviceInstanceId);
         kerberosService.login();
-        GearPumpCredentials credentials = null;
+
+        String uiServiceInstanceName = "gp-ui-" + serviceInstanceId;
+        String uaaClientName = RandomStringUtils.randomAlphanumeric(10).toLowerCase();
+        String password = RandomStringUtils.randomAlphanumeric(10).toLowerCase();
+
+        Optional<GearPumpCredentials> claimed = claimFromWarmPool(planId);
+        GearPumpPlan plan = configuration.getPlan(planId);
+        if (!claimed.isPresent()) {
+            ensureYarnCapacity(planId, plan);
+        }
+
+        CreatedResources resources = new CreatedResources(serviceInstanceId, journal);
+        YarnLaunch launch = new YarnLaunch();
         try {
-            credentials = provisionOnYarn(configuration.getNumberOfWorkers(planId));
-            if (credentials != null) {
-                provisionOnTap(credentials, spaceId, orgId, serviceInstanceId);
-            }
-        } catch (Exception e) {
-            LOGGER.error("Error occurred during provisioning", e);
-            cleanUp(credentials);
+            resources.start(uaaClientName, claimed.map(GearPumpCredentials::getYarnApplicationId).orElse(null));
+        } catch (IOException e) {
+            claimed.ifPresent(cluster -> cleanUp(cluster, resources));
             throw e;
         }
 
+        // only the dashboard instance needs the masters, so the UAA client is registered while YARN spawns the cluster;
+        // the TAP and UAA calls are non-blocking and renew their tokens on a separate token executor, so only the YARN
+        // stage occupies a stage thread
+        CompletableFuture<GearPumpCredentials> yarnStage = claimed.isPresent()
+                ? CompletableFuture.completedFuture(claimed.get())
+                : CompletableFuture.supplyAsync(stage(() -> {
+                    try (StageMetrics.PlanScope scope = StageMetrics.planScope(planId)) {
+                        return provisionOnYarn(plan, resources, launch);
+                    }
+                }), stageExecutor);
+        CompletableFuture<String> uaaClientStage = stageMetrics.recordAsync(StageMetrics.UAA_CLIENT_CREATE, planId,
+                () -> cloudFoundryService.createUaaClient(uiServiceInstanceName, password, uaaClientName, planId));
+        CompletableFuture<String> dashboardStage = yarnStage.thenCombine(uaaClientStage, (credentials, uiAppUrl) -> credentials)
+                .thenCompose(credentials -> {
+                    if (launch.isCancelled()) {
+                        throw new CancellationException("Provisioning has failed, dashboard not created");
+                    }
+                    LOGGER.info("Provisioning on TAP");
+                    return stageMetrics.recordAsync(StageMetrics.DASHBOARD_CREATE, planId,
+                            () -> cloudFoundryService.createDashboard(uiServiceInstanceName, ADMIN_USERNAME, password,
+                                    credentials.getMasters(), spaceId, orgId, uaaClientName));
+                });
+
+        try {
+            // a failed UAA call must not wait for the YARN launch, which takes minutes
+            String uiServiceInstanceGuid = failFast(dashboardStage, yarnStage, uaaClientStage).join();
+            resources.update(created -> created.setDashboardGuid(uiServiceInstanceGuid));
+            // the dashboard state is polled by a shared watcher, no stage thread waits for it
+            stageMetrics.recordAsync(StageMetrics.DASHBOARD_WAIT, planId,
+                    () -> cloudFoundryService.whenDashboardRunning(uiServiceInstanceGuid)).join();
+        } catch (CompletionException e) {
+            LOGGER.error("Error occurred during provisioning", e.getCause());
+            compensate(yarnStage, uaaClientStage, dashboardStage, uaaClientName, planId, resources, launch);
+            throw unwrap(e);
+        }
+
+        Map<String, String> dashboardData = new HashMap<>();
+        dashboardData.put("uiServiceInstanceGuid", dashboardStage.join());
+        dashboardData.put("uiAppUrl", uaaClientStage.join());
+        dashboardData.put("username", ADMIN_USERNAME);
+        dashboardData.put("password", password);
+        dashboardData.put("uaaClientName", uaaClientName);
+
+        GearPumpCredentials credentials = yarnStage.join();
+        updateCredentials(credentials, dashboardData);
         return credentials;
     }
 
-    public void deprovisionInstance(GearPumpCredentials gearPumpCredentials) throws YarnException, DashboardServiceException {
+    public void deprovisionInstance(GearPumpCredentials gearPumpCredentials, String planId)
+            throws YarnException, DashboardServiceException {
         LOGGER.info("deprovisionInstance {}", gearPumpCredentials);
         if (gearPumpCredentials != null) {
             if (gearPumpCredentials.getYarnApplicationId() != null) {
@@ -136,7 +352,112 @@ public class GearPumpSpawner {
                 LOGGER.debug("Yarn Application ID is NULL!");
             }
 
-            cloudFoundryService.undeployUI(gearPumpCredentials.getDashboardGuid(), gearPumpCredentials.getUaaClientName());
+            // an instance whose provisioning never finished may lack the dashboard or the UAA client
+            String dashboardGuid = gearPumpCredentials.getDashboardGuid();
+            String uaaClientName = gearPumpCredentials.getUaaClientName();
+            stageMetrics.record(StageMetrics.DASHBOARD_DELETE, () -> {
+                if (dashboardGuid != null && uaaClientName != null) {
+                    cloudFoundryService.undeployUI(dashboardGuid, uaaClientName, planId);
+                } else if (dashboardGuid != null) {
+                    cloudFoundryService.deleteDashboard(dashboardGuid);
+                } else if (uaaClientName != null) {
+                    cloudFoundryService.deleteUaaClient(uaaClientName, planId);
+                }
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Records what a provisioning has created so far, so that an instance whose provisioning never finished, e.g.
+     * because the broker was restarted, can still be torn down.
+     */
+    @FunctionalInterface
+    public interface ProvisioningJournal {
+        /**
+         * @param created YARN application, UAA client and dashboard of the instance; null where none exists
+         */
+        void record(GearPumpCredentials created) throws IOException;
+    }
+
+    /**
+     * Keeps the journal up to date while the stages of one provisioning create and remove resources.
+     */
+    private static final class CreatedResources {
+        private final String serviceInstanceId;
+        private final ProvisioningJournal journal;
+        private String yarnApplicationId;
+        private String uaaClientName;
+        private String dashboardGuid;
+
+        CreatedResources(String serviceInstanceId, ProvisioningJournal journal) {
+            this.serviceInstanceId = serviceInstanceId;
+            this.journal = journal;
+        }
+
+        /**
+         * Must succeed before anything is created, otherwise nothing would tell what to tear down.
+         */
+        synchronized void start(String uaaClientName, String yarnApplicationId) throws IOException {
+            this.uaaClientName = uaaClientName;
+            this.yarnApplicationId = yarnApplicationId;
+            journal.record(snapshot());
+        }
+
+        synchronized void update(Consumer<GearPumpCredentials> change) {
+            GearPumpCredentials created = snapshot();
+            change.accept(created);
+            yarnApplicationId = created.getYarnApplicationId();
+            uaaClientName = created.getUaaClientName();
+            dashboardGuid = created.getDashboardGuid();
+            try {
+                journal.record(created);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.warn("Couldn't record the resources of service instance {}: {}", serviceInstanceId, created, e);
+            }
+        }
+
+        synchronized String getYarnApplicationId() {
+            return yarnApplicationId;
+        }
+
+        private GearPumpCredentials snapshot() {
+            return new GearPumpCredentials(null, yarnApplicationId, null, dashboardGuid, null, null, uaaClientName);
+        }
+    }
+
+    /**
+     * Lets a failed provisioning interrupt the thread that launches Gearpump on YARN.
+     */
+    private static final class YarnLaunch {
+        private Thread thread;
+        private boolean cancelled;
+
+        synchronized void start() {
+            if (cancelled) {
+                throw new CancellationException("Provisioning has failed, Gearpump not launched");
+            }
+            thread = Thread.currentThread();
+        }
+
+        synchronized void finish() {
+            thread = null;
+            if (cancelled) {
+                // the cleanup that follows talks to YARN, which fails in an interrupted thread
+                Thread.interrupted();
+            }
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            if (thread != null) {
+                LOGGER.info("Interrupting Gearpump launch in thread {}", thread.getName());
+                thread.interrupt();
+            }
+        }
+
+        synchronized boolean isCancelled() {
+            return cancelled;
         }
     }
 }
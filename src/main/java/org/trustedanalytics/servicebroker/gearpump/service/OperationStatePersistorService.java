@@ -0,0 +1,208 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trustedanalytics.servicebroker.gearpump.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+import org.cloudfoundry.community.servicebroker.model.OperationState;
+import org.cloudfoundry.community.servicebroker.model.ServiceInstanceLastOperation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.trustedanalytics.cfbroker.store.zookeeper.service.ZookeeperClient;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Keeps the state of asynchronous provisioning operations in ZooKeeper, so that
+ * last_operation polling can be served by any broker replica. An operation still in progress after staleAfter,
+ * e.g. because the broker was restarted while running it, is reported as failed.
+ */
+public class OperationStatePersistorService {
+    private static final Logger LOGGER = LoggerFactory.getLogger(OperationStatePersistorService.class);
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final Charset CHARSET = StandardCharsets.UTF_8;
+
+    private static final String STATE = "state";
+    private static final String TYPE = "type";
+    private static final String DESCRIPTION = "description";
+    private static final String UPDATED_AT = "updatedAt";
+    static final String INTERRUPTED = "Operation was interrupted, it didn't finish in time";
+
+    private final ZookeeperClient zookeeperClient;
+    private final CuratorFramework curatorFramework;
+    private final Duration staleAfter;
+
+    public OperationStatePersistorService(ZookeeperClient zookeeperClient, CuratorFramework curatorFramework,
+                                          Duration staleAfter) {
+        this.zookeeperClient = zookeeperClient;
+        this.curatorFramework = curatorFramework;
+        this.staleAfter = staleAfter;
+    }
+
+    /**
+     * Kinds of asynchronous operations; only one of them may be in progress on a service instance at a time.
+     */
+    public enum OperationType {
+        PROVISIONING,
+        SCALING
+    }
+
+    /**
+     * Marks a new operation in progress unless another one still is. The check and the write are a single
+     * compare-and-set on the znode version, so that two broker replicas never start operations on the same instance.
+     * @return type of the operation found in progress instead, empty once the new one has been started
+     */
+    public Optional<OperationType> startOperation(String serviceInstanceId, OperationType type, String description)
+            throws IOException {
+        String path = getZNodePath(serviceInstanceId);
+        Stat stat = new Stat();
+        Map<String, String> current = readOperationData(path, stat);
+        if (current != null && isInProgress(current)) {
+            return Optional.of(typeOf(current));
+        }
+        byte[] data = serialize(ImmutableMap.of(STATE, OperationState.IN_PROGRESS.name(), TYPE, type.name(),
+                DESCRIPTION, Strings.nullToEmpty(description), UPDATED_AT, String.valueOf(System.currentTimeMillis())));
+        try {
+            if (current == null) {
+                curatorFramework.create().creatingParentsIfNeeded().forPath(path, data);
+            } else {
+                curatorFramework.setData().withVersion(stat.getVersion()).forPath(path, data);
+            }
+        } catch (KeeperException.NodeExistsException | KeeperException.BadVersionException e) {
+            // the operation that won the race may have finished already, it still wasn't ours
+            LOGGER.info("Another operation on service instance {} has just been started", serviceInstanceId);
+            return Optional.of(readOperationInProgress(serviceInstanceId).orElse(type));
+        } catch (Exception e) {
+            throw new IOException("Couldn't start operation on service instance " + serviceInstanceId, e);
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Replaces the state in a single write, so that other broker replicas never see the operation missing.
+     */
+    public void persistOperation(String serviceInstanceId, OperationState state, String description) throws IOException {
+        Map<String, String> map = ImmutableMap.of(STATE, state.name(), DESCRIPTION, Strings.nullToEmpty(description),
+                UPDATED_AT, String.valueOf(System.currentTimeMillis()));
+        String path = getZNodePath(serviceInstanceId);
+        byte[] data = serialize(map);
+        try {
+            try {
+                curatorFramework.setData().forPath(path, data);
+            } catch (KeeperException.NoNodeException e) {
+                curatorFramework.create().creatingParentsIfNeeded().forPath(path, data);
+            }
+        } catch (Exception e) {
+            throw new IOException("Couldn't persist operation state of service instance " + serviceInstanceId, e);
+        }
+    }
+
+    /**
+     * @return type of the operation in progress on the instance, empty if none is or it has gone stale
+     */
+    public Optional<OperationType> readOperationInProgress(String serviceInstanceId) throws IOException {
+        Map<String, String> current = readOperationData(getZNodePath(serviceInstanceId), new Stat());
+        if (current == null || !isInProgress(current)) {
+            return Optional.empty();
+        }
+        return Optional.of(typeOf(current));
+    }
+
+    public Optional<ServiceInstanceLastOperation> readOperation(String serviceInstanceId) throws IOException {
+        byte[] bytes = zookeeperClient.getZNode(getZNodePath(serviceInstanceId));
+        if (bytes == null || bytes.length == 0) {
+            return Optional.empty();
+        }
+        Map<String, String> map = OBJECT_MAPPER.readValue(new String(bytes, CHARSET), new TypeReference<Map<String, String>>(){});
+        OperationState state = OperationState.valueOf(map.get(STATE));
+        if (state == OperationState.IN_PROGRESS && isStale(map.get(UPDATED_AT))) {
+            LOGGER.warn("Operation on service instance {} is in progress since {}, reporting it as failed",
+                    serviceInstanceId, map.get(UPDATED_AT));
+            return Optional.of(new ServiceInstanceLastOperation(INTERRUPTED, OperationState.FAILED));
+        }
+        return Optional.of(new ServiceInstanceLastOperation(map.get(DESCRIPTION), state));
+    }
+
+    /**
+     * @return state of the operation at the path, null if there is none
+     */
+    private Map<String, String> readOperationData(String path, Stat stat) throws IOException {
+        byte[] bytes;
+        try {
+            bytes = curatorFramework.getData().storingStatIn(stat).forPath(path);
+        } catch (KeeperException.NoNodeException e) {
+            return null;
+        } catch (Exception e) {
+            throw new IOException("Couldn't read operation state at " + path, e);
+        }
+        if (bytes == null || bytes.length == 0) {
+            return Collections.emptyMap();
+        }
+        return OBJECT_MAPPER.readValue(new String(bytes, CHARSET), new TypeReference<Map<String, String>>(){});
+    }
+
+    private boolean isInProgress(Map<String, String> map) {
+        return OperationState.IN_PROGRESS.name().equals(map.get(STATE)) && !isStale(map.get(UPDATED_AT));
+    }
+
+    /**
+     * Operations persisted before the type was recorded were provisionings.
+     */
+    private static OperationType typeOf(Map<String, String> map) {
+        return map.containsKey(TYPE) ? OperationType.valueOf(map.get(TYPE)) : OperationType.PROVISIONING;
+    }
+
+    private static byte[] serialize(Map<String, String> map) throws IOException {
+        return OBJECT_MAPPER.writeValueAsString(map).getBytes(CHARSET);
+    }
+
+    /**
+     * @param updatedAt epoch millis of the last state change; operations persisted before it was recorded are stale
+     */
+    private boolean isStale(String updatedAt) {
+        return Strings.isNullOrEmpty(updatedAt)
+                || System.currentTimeMillis() - Long.parseLong(updatedAt) > staleAfter.toMillis();
+    }
+
+    public void removeOperation(String serviceInstanceId) {
+        removeQuietly(getZNodePath(serviceInstanceId));
+    }
+
+    private void removeQuietly(String path) {
+        try {
+            zookeeperClient.deleteZNode(path);
+        } catch (IOException e) {
+            LOGGER.debug("No operation state to remove at {}", path, e);
+        }
+    }
+
+    private String getZNodePath(String serviceInstanceId) {
+        return String.format("/operations/%s", serviceInstanceId);
+    }
+}
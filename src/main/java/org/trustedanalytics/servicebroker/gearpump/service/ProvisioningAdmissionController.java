@@ -0,0 +1,222 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.trustedanalytics.servicebroker.gearpump.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounds the number of Gearpump instances provisioned at once, globally and per plan.
+ * Requests that can't start immediately wait in a bounded queue for at most maxWait;
+ * when the queue is full they are rejected right away with {@link ProvisioningRejectedException}.
+ * Synchronous requests, which hold the platform's HTTP call, use {@link #tryAdmit(String)} and never wait.
+ */
+public class ProvisioningAdmissionController {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ProvisioningAdmissionController.class);
+
+    static final String QUEUE_DEPTH_METRIC = "gearpump.provisioning.queue.depth";
+    static final String ACTIVE_METRIC = "gearpump.provisioning.active";
+    static final String WAIT_METRIC = "gearpump.provisioning.admission.wait";
+
+    private final Semaphore globalPermits;
+    private final int maxConcurrent;
+    private final Map<String, Integer> planLimits;
+    private final Map<String, Semaphore> planPermits = new ConcurrentHashMap<>();
+    private final int queueSize;
+    private final Duration maxWait;
+    private final MeterRegistry meterRegistry;
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    /**
+     * @param maxConcurrent max number of instances provisioned at once by this broker
+     * @param planLimits max number of instances of a given plan provisioned at once; plans not listed are only
+     *                   bounded by maxConcurrent
+     * @param queueSize max number of requests waiting for a free slot; more are rejected immediately
+     * @param maxWait max time a request waits for a free slot before being rejected
+     * @param meterRegistry may be null if metrics shouldn't be recorded
+     */
+    public ProvisioningAdmissionController(int maxConcurrent, Map<String, Integer> planLimits, int queueSize,
+                                           Duration maxWait, MeterRegistry meterRegistry) {
+        this.maxConcurrent = maxConcurrent;
+        this.globalPermits = new Semaphore(maxConcurrent, true);
+        this.planLimits = planLimits;
+        this.queueSize = queueSize;
+        this.maxWait = maxWait;
+        this.meterRegistry = meterRegistry;
+
+        if (meterRegistry != null) {
+            Gauge.builder(QUEUE_DEPTH_METRIC, waiting, AtomicInteger::get)
+                    .description("Provision requests waiting for admission")
+                    .register(meterRegistry);
+            Gauge.builder(ACTIVE_METRIC, this, ProvisioningAdmissionController::getActive)
+                    .description("Instances being provisioned")
+                    .register(meterRegistry);
+        }
+    }
+
+    /**
+     * @return controller admitting every request immediately
+     */
+    public static ProvisioningAdmissionController unbounded() {
+        return new ProvisioningAdmissionController(Integer.MAX_VALUE, new ConcurrentHashMap<>(), 0, Duration.ZERO, null);
+    }
+
+    /**
+     * Blocks until a provisioning slot for the plan is free.
+     *
+     * @return permit which has to be closed once provisioning is finished
+     * @throws ProvisioningRejectedException if the wait queue is full or the slot wasn't freed within maxWait
+     */
+    public Permit admit(String planId) throws ProvisioningRejectedException {
+        Semaphore plan = getPlanPermits(planId);
+        if (tryAcquireNow(plan)) {
+            record(planId, "immediate", 0);
+            return new Permit(plan);
+        }
+
+        if (waiting.incrementAndGet() > queueSize) {
+            waiting.decrementAndGet();
+            record(planId, "queueFull", 0);
+            LOGGER.warn("Provisioning queue is full ({} waiting), rejecting request for plan {}", queueSize, planId);
+            throw new ProvisioningRejectedException("Too many Apache Gearpump instances are being provisioned, try again later.");
+        }
+
+        long start = System.nanoTime();
+        try {
+            if (tryAcquire(plan, maxWait.toNanos())) {
+                record(planId, "queued", System.nanoTime() - start);
+                return new Permit(plan);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            waiting.decrementAndGet();
+        }
+
+        record(planId, "timeout", System.nanoTime() - start);
+        LOGGER.warn("No provisioning slot for plan {} was freed within {}", planId, maxWait);
+        throw new ProvisioningRejectedException(String.format(
+                "No Apache Gearpump provisioning slot was freed within %d seconds, try again later.", maxWait.getSeconds()));
+    }
+
+    /**
+     * Takes a provisioning slot for the plan only if one is free right now.
+     *
+     * @return permit which has to be closed once provisioning is finished
+     * @throws ProvisioningRejectedException if no slot is free
+     */
+    public Permit tryAdmit(String planId) throws ProvisioningRejectedException {
+        Semaphore plan = getPlanPermits(planId);
+        if (tryAcquireNow(plan)) {
+            record(planId, "immediate", 0);
+            return new Permit(plan);
+        }
+        record(planId, "busy", 0);
+        LOGGER.warn("No provisioning slot free for plan {}, rejecting synchronous request", planId);
+        throw new ProvisioningRejectedException("Too many Apache Gearpump instances are being provisioned, try again later.");
+    }
+
+    /**
+     * Fails fast if a request for the plan would be rejected by {@link #admit(String)} right now;
+     * used to refuse asynchronous requests before they are accepted.
+     */
+    public void ensureCapacity(String planId) throws ProvisioningRejectedException {
+        Semaphore plan = getPlanPermits(planId);
+        boolean slotFree = plan.availablePermits() > 0 && globalPermits.availablePermits() > 0;
+        if (!slotFree && waiting.get() >= queueSize) {
+            record(planId, "queueFull", 0);
+            LOGGER.warn("Provisioning queue is full ({} waiting), rejecting request for plan {}", queueSize, planId);
+            throw new ProvisioningRejectedException("Too many Apache Gearpump instances are being provisioned, try again later.");
+        }
+    }
+
+    int getWaiting() {
+        return waiting.get();
+    }
+
+    int getActive() {
+        return maxConcurrent - globalPermits.availablePermits();
+    }
+
+    private Semaphore getPlanPermits(String planId) {
+        return planPermits.computeIfAbsent(planId,
+                id -> new Semaphore(planLimits.getOrDefault(id, maxConcurrent), true));
+    }
+
+    private boolean tryAcquire(Semaphore plan, long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        // plan slot first, so that a request throttled by its plan doesn't hold a global slot
+        if (!plan.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS)) {
+            return false;
+        }
+        boolean acquired = false;
+        try {
+            acquired = globalPermits.tryAcquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } finally {
+            if (!acquired) {
+                plan.release();
+            }
+        }
+        return acquired;
+    }
+
+    private boolean tryAcquireNow(Semaphore plan) {
+        try {
+            return tryAcquire(plan, 0L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void record(String planId, String outcome, long waitNanos) {
+        if (meterRegistry != null) {
+            meterRegistry.timer(WAIT_METRIC, "plan", planId, "outcome", outcome).record(waitNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Provisioning slot held until closed; closing more than once has no effect.
+     */
+    public final class Permit implements AutoCloseable {
+        private final Semaphore plan;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(Semaphore plan) {
+            this.plan = plan;
+        }
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                globalPermits.release();
+                plan.release();
+            }
+        }
+    }
+}
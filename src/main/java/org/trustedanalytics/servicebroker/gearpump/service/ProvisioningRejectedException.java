@@ -0,0 +1,31 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.trustedanalytics.servicebroker.gearpump.service;
+
+import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
+
+/**
+ * Thrown when the broker is already provisioning as many instances as it is allowed to
+ * and the request couldn't be admitted; the platform should retry later.
+ */
+public class ProvisioningRejectedException extends ServiceBrokerException {
+
+    public ProvisioningRejectedException(String message) {
+        super(message);
+    }
+}
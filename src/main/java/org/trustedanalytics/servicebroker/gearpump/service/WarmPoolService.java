@@ -0,0 +1,329 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trustedanalytics.servicebroker.gearpump.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.locks.InterProcessMutex;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.hadoop.yarn.exceptions.YarnException;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.trustedanalytics.servicebroker.gearpump.config.CatalogConfig;
+import org.trustedanalytics.servicebroker.gearpump.kerberos.KerberosService;
+import org.trustedanalytics.servicebroker.gearpump.metrics.StageMetrics;
+import org.trustedanalytics.servicebroker.gearpump.model.GearPumpCredentials;
+import org.trustedanalytics.servicebroker.gearpump.service.externals.GearPumpLauncher;
+import org.trustedanalytics.servicebroker.gearpump.service.externals.SpawnResult;
+import org.trustedanalytics.servicebroker.gearpump.yarn.YarnAppManager;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Keeps idle Gearpump clusters already running on YARN, so that provisioning only has to wire up the dashboard.
+ * Idle clusters are stored in ZooKeeper under {@code /warmPool/{planId}/{yarnApplicationId}}; a cluster is
+ * claimed by deleting its znode, so each one is handed out by exactly one broker replica.
+ */
+public class WarmPoolService {
+    private static final Logger LOGGER = LoggerFactory.getLogger(WarmPoolService.class);
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final String POOL_PATH = "/warmPool";
+    private static final String LOCKS_PATH = "/warmPoolLocks";
+
+    private static final String MASTERS = "masters";
+    private static final String YARN_APPLICATION_ID = "yarnApplicationId";
+    private static final String CREATED_AT = "createdAt";
+
+    static final String CLAIMS_METRIC = "gearpump.warmpool.claims";
+    static final String REFILL_METRIC = "gearpump.warmpool.refill";
+
+    static final Duration PACK_CHECK_INTERVAL = Duration.ofSeconds(10);
+
+    private final CuratorFramework curatorFramework;
+    private final GearPumpLauncher gearPumpLauncher;
+    private final YarnAppManager yarnAppManager;
+    private final CatalogConfig catalogConfig;
+    private final KerberosService kerberosService;
+    private final BooleanSupplier gearpumpPackReady;
+    private final MeterRegistry meterRegistry;
+    private final ScheduledExecutorService executor;
+    private final Map<String, Integer> targetSizes;
+    private final Duration maxIdleAge;
+    private final Duration checkInterval;
+    private final Set<String> pendingRefills = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param gearpumpPackReady tells whether the Gearpump pack is on HDFS; no cluster is spawned before it is
+     * @param targetSizes number of idle clusters to keep per plan id; an empty map disables the pool
+     */
+    public WarmPoolService(CuratorFramework curatorFramework, GearPumpLauncher gearPumpLauncher, YarnAppManager yarnAppManager,
+                           CatalogConfig catalogConfig, KerberosService kerberosService, BooleanSupplier gearpumpPackReady,
+                           MeterRegistry meterRegistry, ScheduledExecutorService executor, Map<String, Integer> targetSizes,
+                           Duration maxIdleAge, Duration checkInterval) {
+        this.curatorFramework = curatorFramework;
+        this.gearPumpLauncher = gearPumpLauncher;
+        this.yarnAppManager = yarnAppManager;
+        this.catalogConfig = catalogConfig;
+        this.kerberosService = kerberosService;
+        this.gearpumpPackReady = gearpumpPackReady;
+        this.meterRegistry = meterRegistry;
+        this.executor = executor;
+        this.targetSizes = ImmutableMap.copyOf(targetSizes);
+        this.maxIdleAge = maxIdleAge;
+        this.checkInterval = checkInterval;
+    }
+
+    /**
+     * @return pool which never keeps idle clusters
+     */
+    public static WarmPoolService disabled() {
+        return new WarmPoolService(null, null, null, null, null, () -> false, null, null, Collections.emptyMap(),
+                Duration.ZERO, Duration.ZERO);
+    }
+
+    public void start() {
+        if (targetSizes.isEmpty()) {
+            LOGGER.info("Warm pool disabled");
+            return;
+        }
+        LOGGER.info("Warm pool enabled with targets {}, max idle age {}", targetSizes, maxIdleAge);
+        startWhenPackReady();
+    }
+
+    // a cluster spawned before the pack upload has finished would fail to start
+    private void startWhenPackReady() {
+        if (gearpumpPackReady.getAsBoolean()) {
+            executor.scheduleWithFixedDelay(this::maintain, 0, checkInterval.toMillis(), TimeUnit.MILLISECONDS);
+        } else {
+            LOGGER.debug("Gearpump pack is not ready yet, warm pool starts later");
+            executor.schedule(this::startWhenPackReady, PACK_CHECK_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Takes an idle cluster of the given plan out of the pool and schedules a refill.
+     * @return credentials of the claimed cluster (without dashboard data), empty if the pool has none
+     */
+    public Optional<GearPumpCredentials> claim(String planId) {
+        if (getTargetSize(planId) <= 0) {
+            return Optional.empty();
+        }
+
+        Optional<GearPumpCredentials> claimed = Optional.empty();
+        try {
+            for (String child : getIdleClusters(planId)) {
+                claimed = tryClaim(planId, child, false);
+                if (claimed.isPresent()) {
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.warn("Cannot claim a cluster from the warm pool of plan {}", planId, e);
+        }
+
+        LOGGER.info("Warm pool of plan {}: {}", planId, claimed.isPresent() ? "hit " + claimed.get().getYarnApplicationId() : "miss");
+        meterRegistry.counter(CLAIMS_METRIC, "plan", planId, "result", claimed.isPresent() ? "hit" : "miss").increment();
+        refillAsync(planId);
+        return claimed;
+    }
+
+    public void refillAsync(String planId) {
+        if (!pendingRefills.add(planId)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                pendingRefills.remove(planId);
+                refill(planId);
+            });
+        } catch (RejectedExecutionException e) {
+            pendingRefills.remove(planId);
+            LOGGER.warn("Cannot schedule warm pool refill of plan {}", planId, e);
+        }
+    }
+
+    void maintain() {
+        for (String planId : targetSizes.keySet()) {
+            evictExpired(planId);
+            refill(planId);
+        }
+    }
+
+    void refill(String planId) {
+        if (!gearpumpPackReady.getAsBoolean()) {
+            LOGGER.debug("Gearpump pack is not ready yet, warm pool of plan {} not refilled", planId);
+            return;
+        }
+        InterProcessMutex lock = new InterProcessMutex(curatorFramework, ZKPaths.makePath(LOCKS_PATH, planId));
+        try {
+            // another replica already refills this plan
+            if (!lock.acquire(0, TimeUnit.SECONDS)) {
+                return;
+            }
+            try {
+                int missing = getTargetSize(planId) - getIdleClusters(planId).size();
+                for (int i = 0; i < missing && fitsIntoYarn(planId) && spawnIdleCluster(planId); i++) {
+                    LOGGER.debug("Added idle cluster to the warm pool of plan {}", planId);
+                }
+            } finally {
+                lock.release();
+            }
+        } catch (Exception e) {
+            LOGGER.warn("Warm pool refill of plan {} failed", planId, e);
+        }
+    }
+
+    private void evictExpired(String planId) {
+        try {
+            for (String child : getIdleClusters(planId)) {
+                tryClaim(planId, child, true);
+            }
+        } catch (Exception e) {
+            LOGGER.warn("Cannot evict expired clusters of plan {}", planId, e);
+        }
+    }
+
+    /**
+     * Deletes the znode of an idle cluster, unless another replica was faster. Expired clusters are killed
+     * instead of being returned.
+     */
+    private Optional<GearPumpCredentials> tryClaim(String planId, String child, boolean onlyExpired) throws Exception {
+        String path = ZKPaths.makePath(getPlanPath(planId), child);
+        Map<String, Object> cluster;
+        try {
+            Stat stat = new Stat();
+            byte[] data = curatorFramework.getData().storingStatIn(stat).forPath(path);
+            cluster = OBJECT_MAPPER.readValue(new String(data, StandardCharsets.UTF_8), Map.class);
+            boolean expired = isExpired(cluster);
+            if (onlyExpired && !expired) {
+                return Optional.empty();
+            }
+            curatorFramework.delete().withVersion(stat.getVersion()).forPath(path);
+            if (expired) {
+                LOGGER.info("Idle cluster {} of plan {} expired", child, planId);
+                killQuietly((String) cluster.get(YARN_APPLICATION_ID));
+                return Optional.empty();
+            }
+        } catch (KeeperException.NoNodeException | KeeperException.BadVersionException e) {
+            return Optional.empty();
+        } catch (IOException e) {
+            LOGGER.warn("Dropping unreadable warm pool entry {}", path, e);
+            curatorFramework.delete().forPath(path);
+            return Optional.empty();
+        }
+        return Optional.of(new GearPumpCredentials((String) cluster.get(MASTERS), (String) cluster.get(YARN_APPLICATION_ID)));
+    }
+
+    /**
+     * Idle clusters must never take the YARN capacity that provisioning needs.
+     */
+    private boolean fitsIntoYarn(String planId) {
+        if (yarnAppManager.canHost(catalogConfig.getPlan(planId))) {
+            return true;
+        }
+        LOGGER.info("No YARN capacity left for an idle cluster of plan {}", planId);
+        return false;
+    }
+
+    private boolean spawnIdleCluster(String planId) {
+        long start = System.nanoTime();
+        boolean success = false;
+        String yarnApplicationId = null;
+        try (StageMetrics.PlanScope scope = StageMetrics.planScope(planId)) {
+            kerberosService.login();
+            SpawnResult spawnResult = gearPumpLauncher.spawnGearPumpOnYarn(catalogConfig.getPlan(planId));
+            GearPumpCredentials credentials = spawnResult.getGearPumpCredentials();
+            yarnApplicationId = credentials == null ? null : credentials.getYarnApplicationId();
+            if (spawnResult.getStatus() != SpawnResult.STATUS_OK) {
+                LOGGER.warn("Cannot spawn idle cluster for plan {}", planId, spawnResult.getException());
+                return false;
+            }
+
+            Map<String, Object> cluster = ImmutableMap.of(
+                    MASTERS, credentials.getMasters(),
+                    YARN_APPLICATION_ID, yarnApplicationId,
+                    CREATED_AT, System.currentTimeMillis());
+            curatorFramework.create().creatingParentsIfNeeded()
+                    .forPath(ZKPaths.makePath(getPlanPath(planId), yarnApplicationId),
+                            OBJECT_MAPPER.writeValueAsBytes(cluster));
+            success = true;
+            return true;
+        } catch (Exception e) {
+            LOGGER.warn("Cannot add idle cluster to the warm pool of plan {}", planId, e);
+            return false;
+        } finally {
+            if (!success) {
+                killQuietly(yarnApplicationId);
+            }
+            meterRegistry.timer(REFILL_METRIC, "plan", planId, "outcome", success ? "success" : "failure")
+                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private List<String> getIdleClusters(String planId) throws Exception {
+        try {
+            List<String> children = curatorFramework.getChildren().forPath(getPlanPath(planId));
+            Collections.sort(children);
+            return children;
+        } catch (KeeperException.NoNodeException e) {
+            return Collections.emptyList();
+        }
+    }
+
+    private boolean isExpired(Map<String, Object> cluster) {
+        Object createdAt = cluster.get(CREATED_AT);
+        return !(createdAt instanceof Number)
+                || System.currentTimeMillis() - ((Number) createdAt).longValue() > maxIdleAge.toMillis();
+    }
+
+    private void killQuietly(String yarnApplicationId) {
+        if (Strings.isNullOrEmpty(yarnApplicationId)) {
+            return;
+        }
+        try {
+            yarnAppManager.killApplication(yarnApplicationId);
+        } catch (YarnException | RuntimeException e) {
+            LOGGER.warn("Cannot kill idle cluster {}", yarnApplicationId, e);
+        }
+    }
+
+    private int getTargetSize(String planId) {
+        return targetSizes.getOrDefault(planId, 0);
+    }
+
+    private String getPlanPath(String planId) {
+        return ZKPaths.makePath(POOL_PATH, planId);
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trustedanalytics.servicebroker.gearpump.service;
+
+import org.apache.hadoop.yarn.exceptions.YarnException;
+import org.cloudfoundry.community.servicebroker.exception.ServiceInstanceUpdateNotSupportedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.trustedanalytics.servicebroker.gearpump.config.CatalogConfig;
+import org.trustedanalytics.servicebroker.gearpump.model.GearPumpCredentials;
+import org.trustedanalytics.servicebroker.gearpump.service.externals.ExternalProcessException;
+import org.trustedanalytics.servicebroker.gearpump.service.externals.GearPumpClusterManager;
+import org.trustedanalytics.servicebroker.gearpump.service.externals.GearPumpRestClient;
+import org.trustedanalytics.servicebroker.gearpump.yarn.YarnAppManager;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Scales the workers of a running Gearpump cluster to the size of a plan, so that a plan change doesn't require
+ * re-spawning the cluster and killing its streaming jobs. The workers are listed by the Gearpump master and removed
+ * newest first.
+ */
+public class WorkerScalingService {
+    private static final Logger LOGGER = LoggerFactory.getLogger(WorkerScalingService.class);
+
+    private final YarnAppManager yarnAppManager;
+    private final GearPumpRestClient gearPumpRestClient;
+    private final GearPumpClusterManager clusterManager;
+    private final CatalogConfig catalogConfig;
+    private final CredentialPersistorService credentialPersistorService;
+
+    public WorkerScalingService(YarnAppManager yarnAppManager, GearPumpRestClient gearPumpRestClient,
+                                GearPumpClusterManager clusterManager, CatalogConfig catalogConfig,
+                                CredentialPersistorService credentialPersistorService) {
+        this.yarnAppManager = yarnAppManager;
+        this.gearPumpRestClient = gearPumpRestClient;
+        this.clusterManager = clusterManager;
+        this.catalogConfig = catalogConfig;
+        this.credentialPersistorService = credentialPersistorService;
+    }
+
+    /**
+     * @return service refusing every plan change
+     */
+    public static WorkerScalingService disabled() {
+        return new WorkerScalingService(null, null, null, null, null) {
+            @Override
+            public void ensureEnabled() throws ServiceInstanceUpdateNotSupportedException {
+                throw new ServiceInstanceUpdateNotSupportedException("Changing plans of Apache Gearpump instances is disabled.");
+            }
+        };
+    }
+
+    /**
+     * Lets a plan change be refused before anything is read or persisted.
+     */
+    public void ensureEnabled() throws ServiceInstanceUpdateNotSupportedException {
+    }
+
+    /**
+     * Flexes the workers and stores the target and the actual number of workers in the credentials of the instance.
+     * They are stored even if flexing fails half way, so that the credentials tell how many workers are running.
+     * @return stored credentials; the actual number of workers may lag behind while YARN allocates added containers
+     */
+    public GearPumpCredentials scale(String serviceInstanceId, String planId)
+            throws IOException, YarnException, ExternalProcessException {
+        GearPumpCredentials credentials = credentialPersistorService.readCredentials(serviceInstanceId);
+        if (credentials == null) {
+            throw new IOException("No credentials of service instance " + serviceInstanceId);
+        }
+        String applicationId = credentials.getYarnApplicationId();
+        int target = catalogConfig.getPlan(planId).getWorkers();
+
+        List<String> workers = readWorkers(applicationId);
+        LOGGER.info("Scaling {} from {} to {} workers", applicationId, workers.size(), target);
+        try {
+            if (workers.size() < target) {
+                clusterManager.addWorkers(applicationId, target - workers.size());
+            } else {
+                for (String containerId : workers.subList(target, workers.size())) {
+                    clusterManager.removeWorker(applicationId, containerId);
+                }
+            }
+        } catch (ExternalProcessException | RuntimeException e) {
+            try {
+                storeWorkers(serviceInstanceId, credentials, target);
+            } catch (IOException | YarnException storeFailure) {
+                e.addSuppressed(storeFailure);
+            }
+            throw e;
+        }
+        return storeWorkers(serviceInstanceId, credentials, target);
+    }
+
+    private GearPumpCredentials storeWorkers(String serviceInstanceId, GearPumpCredentials credentials, int target)
+            throws IOException, YarnException {
+        // the cached credentials are shared with other readers, so a copy is stored
+        GearPumpCredentials scaled = copyOf(credentials);
+        scaled.setTargetWorkers(target);
+        scaled.setActualWorkers(readWorkers(credentials.getYarnApplicationId()).size());
+        credentialPersistorService.updateCredentials(serviceInstanceId, scaled.toMap());
+        return scaled;
+    }
+
+    private List<String> readWorkers(String applicationId) throws IOException, YarnException {
+        return gearPumpRestClient.readWorkerContainers(yarnAppManager.getTrackingUrl(applicationId));
+    }
+
+    private static GearPumpCredentials copyOf(GearPumpCredentials credentials) {
+        return new GearPumpCredentials(credentials.getMasters(), credentials.getYarnApplicationId(),
+                credentials.getDashboardUrl(), credentials.getDashboardGuid(), credentials.getUsername(),
+                credentials.getPassword(), credentials.getUaaClientName());
+    }
+}
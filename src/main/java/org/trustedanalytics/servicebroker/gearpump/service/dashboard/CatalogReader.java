@@ -15,68 +15,260 @@ package org.trustedanalytics.servicebroker.gearpump.service.dashboard;
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.ClientHttpResponse;
 import org.springframework.stereotype.Service;
+import org.springframework.web.client.RestClientException;
 import org.trustedanalytics.servicebroker.gearpump.service.externals.helpers.CfCaller;
-import org.trustedanalytics.servicebroker.gearpump.service.externals.helpers.JsonUtils;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * Resolves the Gearpump dashboard offering from the TAP catalog at startup and keeps it fresh in the background.
+ * Refreshes are conditional (If-None-Match), and the catalog is stream-parsed so only the matching offering is kept.
+ */
 @Service
 class CatalogReader {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(CatalogReader.class);
 
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
     static final String CATALOG_URL = "{apiUrl}/api/v3/offerings";
 
     @Value("${gearpump.uiName:}")
     private String uiServiceName;
 
-    private String uiServiceGuid;
+    @Value("${gearpump.catalog.ttl:300}")
+    private long ttl = 300;
 
-    private String uiServicePlanGuid;
+    private volatile Offering offering;
+
+    private volatile String etag;
 
     @Value("${tap.api.endpoint}")
     private String platformApiEndpoint;
 
     private final CfCaller cfCaller;
 
+    private final Object refreshLock = new Object();
+
+    private final AtomicBoolean refreshScheduled = new AtomicBoolean();
+
+    private final AtomicBoolean missingOfferingReported = new AtomicBoolean();
+
+    private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("catalog-refresh-%d").setDaemon(true).build());
+
     @Autowired
     public CatalogReader(CfCaller cfCaller) {
         this.cfCaller = cfCaller;
     }
 
     void readGearpumpDashboardServiceOffering() throws IOException {
-        ResponseEntity<String> response = readCatalog();
-        JsonNode root = JsonUtils.getRoot(response.getBody());
-        for (JsonNode offeringNode : root) {
-            if (uiServiceName.equals(offeringNode.get("name").asText())) {
-                uiServiceGuid = offeringNode.get("id").asText();
-                uiServicePlanGuid = offeringNode.at("/offeringPlans/0/id").asText();
-                break;
+        synchronized (refreshLock) {
+            HttpHeaders headers = new HttpHeaders();
+            if (offering != null && etag != null) {
+                headers.setIfNoneMatch(etag);
+            }
+            ResponseEntity<Offering> response = readCatalog(headers);
+            if (response.getStatusCode() == HttpStatus.NOT_MODIFIED) {
+                LOGGER.debug("Service catalog not modified");
+                return;
             }
+            Offering found = response.getBody();
+            if (found == null) {
+                if (missingOfferingReported.compareAndSet(false, true)) {
+                    LOGGER.error("No offering '{}' in the service catalog, check gearpump.uiName", uiServiceName);
+                }
+                throw new OfferingNotFoundException(uiServiceName);
+            }
+            missingOfferingReported.set(false);
+            offering = found;
+            etag = response.getHeaders().getETag();
+            LOGGER.info("Retrieved service GUIDs: serviceGuid={}, servicePlanGuid={}", found.serviceGuid, found.servicePlanGuid);
         }
-        LOGGER.info("Retrieved service GUIDs: serviceGuid={}, servicePlanGuid={}", uiServiceGuid, uiServicePlanGuid);
     }
 
-    private ResponseEntity<String> readCatalog() {
+    /**
+     * @return the offering found in the catalog as the body, none if the catalog is not modified or has no offering
+     */
+    private ResponseEntity<Offering> readCatalog(HttpHeaders headers) {
         LOGGER.info("Service catalog reading");
-        ResponseEntity<String> response = cfCaller.execute(CATALOG_URL, HttpMethod.GET, "", platformApiEndpoint);
-        LOGGER.debug("Response body {}", response.getBody());
+        ResponseEntity<Offering> response = cfCaller.executeWithHeaders(CATALOG_URL, HttpMethod.GET, headers,
+                this::extractOffering, platformApiEndpoint);
+        LOGGER.debug("Response status {}", response.getStatusCode());
         return response;
     }
 
-    String getUiServiceGuid() {
-        return uiServiceGuid;
+    private ResponseEntity<Offering> extractOffering(ClientHttpResponse response) throws IOException {
+        if (response.getStatusCode() == HttpStatus.NOT_MODIFIED) {
+            return new ResponseEntity<>(response.getHeaders(), response.getStatusCode());
+        }
+        return new ResponseEntity<>(findOffering(response.getBody()), response.getHeaders(), response.getStatusCode());
+    }
+
+    /**
+     * Walks the offerings array token by token while the response streams in; other offerings are skipped without
+     * building a tree. Returns null when the catalog has no offering named gearpump.uiName.
+     */
+    private Offering findOffering(InputStream catalog) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(catalog)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IOException("Service catalog is not a JSON array");
+            }
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                String name = null;
+                String id = null;
+                String planId = null;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    JsonToken value = parser.nextToken();
+                    if ("name".equals(field)) {
+                        name = parser.getValueAsString();
+                    } else if ("id".equals(field)) {
+                        id = parser.getValueAsString();
+                    } else if ("offeringPlans".equals(field) && value == JsonToken.START_ARRAY) {
+                        planId = readFirstPlanId(parser);
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                if (uiServiceName.equals(name)) {
+                    return new Offering(id, planId);
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String readFirstPlanId(JsonParser parser) throws IOException {
+        String planId = null;
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (planId != null || parser.getCurrentToken() != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                continue;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                if ("id".equals(field)) {
+                    planId = parser.getValueAsString();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return planId;
+    }
+
+    /**
+     * Loads the catalog on first use and from then on refreshes it every gearpump.catalog.ttl seconds.
+     * Nothing is cached until the offering is found, so a failed lookup is retried on the next call.
+     */
+    private Offering resolve() {
+        Offering current = offering;
+        if (current == null) {
+            synchronized (refreshLock) {
+                if (offering == null) {
+                    try {
+                        readGearpumpDashboardServiceOffering();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Cannot read the service catalog", e);
+                    }
+                }
+                current = offering;
+            }
+        }
+        if (refreshScheduled.compareAndSet(false, true)) {
+            long delay = Math.max(ttl, 1);
+            refresher.scheduleWithFixedDelay(this::refreshQuietly, delay, delay, TimeUnit.SECONDS);
+        }
+        return current;
+    }
+
+    /**
+     * Non-blocking variant of {@link #resolve()}: the cached offering is returned right away, otherwise the catalog
+     * is read on the refresher thread, so that the provisioning stages it is chained into never wait for it.
+     */
+    CompletableFuture<Offering> resolveAsync() {
+        if (offering != null) {
+            return CompletableFuture.completedFuture(resolve());
+        }
+        return CompletableFuture.supplyAsync(this::resolve, refresher);
+    }
+
+    /**
+     * Reads the catalog in the background as soon as the broker starts, so that the first provisioning finds the
+     * offering cached.
+     */
+    @PostConstruct
+    void warmUp() {
+        refresher.execute(() -> {
+            try {
+                resolve();
+            } catch (UncheckedIOException | RestClientException e) {
+                LOGGER.warn("Cannot read the service catalog at startup, it is read again on first use", e);
+            }
+        });
+    }
+
+    private void refreshQuietly() {
+        try {
+            readGearpumpDashboardServiceOffering();
+        } catch (OfferingNotFoundException e) {
+            LOGGER.debug("Keeping the cached offering", e);
+        } catch (IOException | RestClientException e) {
+            LOGGER.warn("Cannot refresh the service catalog, keeping the cached offering", e);
+        }
     }
 
-    String getUiServicePlanGuid() {
-        return uiServicePlanGuid;
+    @PreDestroy
+    void shutdown() {
+        refresher.shutdownNow();
+    }
+
+    private static class OfferingNotFoundException extends IOException {
+        OfferingNotFoundException(String name) {
+            super(String.format("No offering '%s' in the service catalog", name));
+        }
+    }
+
+    static class Offering {
+        private final String serviceGuid;
+        private final String servicePlanGuid;
+
+        Offering(String serviceGuid, String servicePlanGuid) {
+            this.serviceGuid = serviceGuid;
+            this.servicePlanGuid = servicePlanGuid;
+        }
+
+        String getServiceGuid() {
+            return serviceGuid;
+        }
+
+        String getServicePlanGuid() {
+            return servicePlanGuid;
+        }
     }
 }
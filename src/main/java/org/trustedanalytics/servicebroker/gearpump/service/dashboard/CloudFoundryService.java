@@ -20,13 +20,21 @@ package org.trustedanalytics.servicebroker.gearpump.service.dashboard;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
+import org.springframework.web.client.HttpClientErrorException;
 
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
 
 @Service
 public class CloudFoundryService implements DashboardDeployer {
@@ -35,6 +43,7 @@ public class CloudFoundryService implements DashboardDeployer {
 
     private final UaaConnector uaaConnector;
     private final ServiceInstanceManager dashboardFactory;
+    private final Executor tokenExecutor;
 
     @Value("${tap.api.endpoint}")
     private String platformApiEndpoint;
@@ -45,30 +54,37 @@ public class CloudFoundryService implements DashboardDeployer {
     @Value("${uaa.admin_client.secret}")
     private String ssoAdminClientSecret;
 
-    @Autowired
+    /**
+     * Fetches the admin token in the calling thread.
+     */
     public CloudFoundryService(ServiceInstanceManager dashboardFactory, UaaConnector uaaConnector) {
+        this(dashboardFactory, uaaConnector, Runnable::run);
+    }
+
+    /**
+     * @param tokenExecutor fetches the admin token for async calls, as it may block on UAA; async calls are chained on
+     *                      the HTTP client's I/O threads, which must never block
+     */
+    @Autowired
+    public CloudFoundryService(ServiceInstanceManager dashboardFactory, UaaConnector uaaConnector,
+                               @Qualifier("tokenExecutor") Executor tokenExecutor) {
         this.dashboardFactory = dashboardFactory;
         this.uaaConnector = uaaConnector;
+        this.tokenExecutor = tokenExecutor;
     }
 
     @Override
     public Map<String, String> deployUI(String uiInstanceName, String username, String password, String gearpumpMaster,
-                                        String spaceId, String orgId, String uaaClientName)
+                                        String spaceId, String orgId, String uaaClientName, String planId)
             throws DashboardServiceException {
 
         LOGGER.info("Deploying GearPump dashboard: uiInstanceName={}", uiInstanceName);
 
-        String uiServiceInstanceGuid;
-        String uiAppUrl = uiInstanceName + "." + getTapEndpointDomain();
-
-        String uaaToken = uaaConnector.createUaaToken(ssoAdminClientId, ssoAdminClientSecret);
-        uaaConnector.createUaaClient(uaaClientName, password, uiAppUrl, uaaToken);
+        String uiAppUrl = await(createUaaClient(uiInstanceName, password, uaaClientName, planId));
 
-        uiServiceInstanceGuid = dashboardFactory.createInstance(uiInstanceName, spaceId, orgId, username, password, gearpumpMaster, uaaClientName);
+        String uiServiceInstanceGuid = await(createDashboard(uiInstanceName, username, password, gearpumpMaster, spaceId, orgId, uaaClientName));
 
-        if (!dashboardFactory.ensureInstanceRunning(uiServiceInstanceGuid)) {
-            throw new DashboardServiceException("UI instance seems still not running.");
-        }
+        ensureDashboardRunning(uiServiceInstanceGuid);
 
         Map<String, String> dashboardData = new HashMap<>();
         dashboardData.put("uiServiceInstanceGuid", uiServiceInstanceGuid);
@@ -80,6 +96,46 @@ public class CloudFoundryService implements DashboardDeployer {
         return dashboardData;
     }
 
+    @Override
+    public CompletableFuture<String> createUaaClient(String uiInstanceName, String password, String uaaClientName,
+                                                     String planId) {
+        String uiAppUrl;
+        try {
+            uiAppUrl = uiInstanceName + "." + getTapEndpointDomain();
+        } catch (DashboardServiceException e) {
+            return failed(e);
+        }
+        return withAdminTokenAsync(planId, uaaToken -> uaaConnector.createUaaClientAsync(uaaClientName, password, uiAppUrl, uaaToken))
+                .thenApply(response -> uiAppUrl);
+    }
+
+    @Override
+    public void deleteUaaClient(String uaaClientName, String planId) throws DashboardServiceException {
+        withAdminToken(planId, uaaToken -> uaaConnector.deleteUaaClient(uaaClientName, uaaToken));
+    }
+
+    @Override
+    public CompletableFuture<String> createDashboard(String uiInstanceName, String username, String password, String gearpumpMaster,
+                                                     String spaceId, String orgId, String uaaClientName) {
+        return dashboardFactory.createInstanceAsync(uiInstanceName, spaceId, orgId, username, password, gearpumpMaster, uaaClientName);
+    }
+
+    @Override
+    public void ensureDashboardRunning(String uiServiceInstanceGuid) throws DashboardServiceException {
+        if (!dashboardFactory.ensureInstanceRunning(uiServiceInstanceGuid)) {
+            throw new DashboardServiceException("UI instance seems still not running.");
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> whenDashboardRunning(String uiServiceInstanceGuid) {
+        return dashboardFactory.whenInstanceRunning(uiServiceInstanceGuid).thenAccept(running -> {
+            if (!running) {
+                throw new CompletionException(new DashboardServiceException("UI instance seems still not running."));
+            }
+        });
+    }
+
     private String getTapEndpointDomain() throws DashboardServiceException {
         String domain;
         try {
@@ -98,16 +154,100 @@ public class CloudFoundryService implements DashboardDeployer {
     }
 
     @Override
-    public void undeployUI(String uiServiceInstanceId, String clientId) throws DashboardServiceException {
+    public void undeployUI(String uiServiceInstanceId, String clientId, String planId) throws DashboardServiceException {
         LOGGER.info("Undeploying GearPump dashboard: uiServiceInstanceId={}", uiServiceInstanceId);
 
-        if (dashboardFactory.stopInstance(uiServiceInstanceId)
-                && dashboardFactory.ensureInstanceStopped(uiServiceInstanceId)) {
+        deleteDashboard(uiServiceInstanceId);
+
+        deleteUaaClient(clientId, planId);
+    }
+
+    @Override
+    public void deleteDashboard(String uiServiceInstanceGuid) throws DashboardServiceException {
+        if (dashboardFactory.stopInstance(uiServiceInstanceGuid)
+                && dashboardFactory.ensureInstanceStopped(uiServiceInstanceGuid)) {
+
+            dashboardFactory.deleteInstance(uiServiceInstanceGuid);
+        }
+    }
+
+    /**
+     * Calls UAA with the cached admin token. If UAA rejects the token (e.g. it was revoked), a new one is obtained
+     * and the call is repeated once.
+     */
+    private <T> T withAdminToken(String planId, Function<String, T> uaaCall) throws DashboardServiceException {
+        String uaaToken = uaaConnector.getUaaToken(ssoAdminClientId, ssoAdminClientSecret, planId);
+        try {
+            return uaaCall.apply(uaaToken);
+        } catch (HttpClientErrorException e) {
+            if (e.getStatusCode() != HttpStatus.UNAUTHORIZED) {
+                throw e;
+            }
+            LOGGER.info("UAA rejected the admin token, retrying with a new one.");
+            uaaConnector.invalidateUaaToken(uaaToken);
+            return uaaCall.apply(uaaConnector.getUaaToken(ssoAdminClientId, ssoAdminClientSecret, planId));
+        }
+    }
 
-            dashboardFactory.deleteInstance(uiServiceInstanceId);
+    /**
+     * Non-blocking variant of {@link #withAdminToken(String, Function)}.
+     */
+    private <T> CompletableFuture<T> withAdminTokenAsync(String planId, Function<String, CompletableFuture<T>> uaaCall) {
+        return adminTokenAsync(planId).thenCompose(uaaToken -> uaaCall.apply(uaaToken)
+                .<CompletableFuture<T>>handle((value, failure) -> {
+                    Throwable cause = unwrap(failure);
+                    if (cause == null) {
+                        return CompletableFuture.completedFuture(value);
+                    }
+                    if (cause instanceof HttpClientErrorException
+                            && ((HttpClientErrorException) cause).getStatusCode() == HttpStatus.UNAUTHORIZED) {
+                        LOGGER.info("UAA rejected the admin token, retrying with a new one.");
+                        return CompletableFuture.runAsync(() -> uaaConnector.invalidateUaaToken(uaaToken), tokenExecutor)
+                                .thenCompose(invalidated -> adminTokenAsync(planId))
+                                .thenCompose(uaaCall);
+                    }
+                    return failed(cause);
+                })
+                .thenCompose(Function.identity()));
+    }
+
+    private CompletableFuture<String> adminTokenAsync(String planId) {
+        // the cached token is handed over right away, only a renewal is worth a thread hop
+        Optional<String> cachedToken = uaaConnector.getCachedUaaToken(ssoAdminClientId);
+        if (cachedToken.isPresent()) {
+            return CompletableFuture.completedFuture(cachedToken.get());
         }
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return uaaConnector.getUaaToken(ssoAdminClientId, ssoAdminClientSecret, planId);
+            } catch (DashboardServiceException e) {
+                throw new CompletionException(e);
+            }
+        }, tokenExecutor);
+    }
 
-        String uaaToken = uaaConnector.createUaaToken(ssoAdminClientId, ssoAdminClientSecret);
-        uaaConnector.deleteUaaClient(clientId, uaaToken);
+    private static Throwable unwrap(Throwable failure) {
+        return failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable e) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        result.completeExceptionally(e);
+        return result;
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws DashboardServiceException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = unwrap(e);
+            if (cause instanceof DashboardServiceException) {
+                throw (DashboardServiceException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw e;
+        }
     }
 }
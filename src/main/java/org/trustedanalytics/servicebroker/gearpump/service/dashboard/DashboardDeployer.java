@@ -16,12 +16,40 @@
 package org.trustedanalytics.servicebroker.gearpump.service.dashboard;
 
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public interface DashboardDeployer {
 
     Map<String, String> deployUI(String uiInstanceName, String username, String password, String gearpumpMaster,
-                                 String spaceId, String orgId, String uaaClientName)
+                                 String spaceId, String orgId, String uaaClientName, String planId)
             throws DashboardServiceException;
 
-    void undeployUI(String uiServiceInstanceId, String clientId) throws DashboardServiceException;
+    void undeployUI(String uiServiceInstanceId, String clientId, String planId) throws DashboardServiceException;
+
+    /**
+     * Registers the UAA client used by the dashboard. Does not need the Gearpump masters, so it can run while
+     * the cluster is still being spawned.
+     * @param planId plan of the instance, tags the metrics of the UAA calls
+     * @return future of the url of the dashboard application
+     */
+    CompletableFuture<String> createUaaClient(String uiInstanceName, String password, String uaaClientName, String planId);
+
+    void deleteUaaClient(String uaaClientName, String planId) throws DashboardServiceException;
+
+    /**
+     * Requests the dashboard service instance without waiting for it to start.
+     * @return future of the guid of the dashboard service instance
+     */
+    CompletableFuture<String> createDashboard(String uiInstanceName, String username, String password, String gearpumpMaster,
+                                              String spaceId, String orgId, String uaaClientName);
+
+    void ensureDashboardRunning(String uiServiceInstanceGuid) throws DashboardServiceException;
+
+    /**
+     * Non-blocking variant of {@link #ensureDashboardRunning(String)}; the future fails with
+     * {@link DashboardServiceException} if the instance does not start in time.
+     */
+    CompletableFuture<Void> whenDashboardRunning(String uiServiceInstanceGuid);
+
+    void deleteDashboard(String uiServiceInstanceGuid) throws DashboardServiceException;
 }
@@ -21,15 +21,15 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
-import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.HttpClientErrorException;
 import org.trustedanalytics.servicebroker.gearpump.service.externals.helpers.CfCaller;
 import org.trustedanalytics.servicebroker.gearpump.service.externals.helpers.JsonUtils;
 
-import javax.annotation.PostConstruct;
 import java.io.IOException;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 @Service
 class DashboardInstanceFactory implements ServiceInstanceManager {
@@ -72,33 +72,38 @@ class DashboardInstanceFactory implements ServiceInstanceManager {
         this.stateValidator = stateValidator;
     }
 
-    @PostConstruct
-    protected void init() throws IOException {
-        catalogReader.readGearpumpDashboardServiceOffering();
-    }
-
     @Override
     public String createInstance(String uiInstanceName, String spaceId, String orgId, String username,
                                  String password, String gearpumpMaster, String uaaClientName) throws DashboardServiceException {
-        LOGGER.info("Creating Dashboard service instance");
-
-        String body = createCreateRequestBody(uiInstanceName, spaceId, orgId, username, password, gearpumpMaster, uaaClientName);
-        ResponseEntity<String> response = cfCaller.execute(CREATE_SERVICE_INSTANCE_URL, HttpMethod.POST, body, platformApiEndpoint);
+        return await(createInstanceAsync(uiInstanceName, spaceId, orgId, username, password, gearpumpMaster, uaaClientName));
+    }
 
-        String instanceId = getInstanceProperty(response.getBody(), METADATA_ID);
-        LOGGER.info("UI service instanceId: {}", instanceId);
+    @Override
+    public CompletableFuture<String> createInstanceAsync(String uiInstanceName, String spaceId, String orgId, String username,
+                                                         String password, String gearpumpMaster, String uaaClientName) {
+        LOGGER.info("Creating Dashboard service instance");
 
-        return instanceId;
+        return catalogReader.resolveAsync()
+                .thenCompose(offering -> cfCaller.executeAsync(CREATE_SERVICE_INSTANCE_URL, HttpMethod.POST,
+                        createCreateRequestBody(uiInstanceName, spaceId, orgId, username, password, gearpumpMaster,
+                                uaaClientName, offering),
+                        platformApiEndpoint))
+                .thenApply(response -> {
+                    String instanceId = getInstancePropertyUnchecked(response.getBody(), METADATA_ID);
+                    LOGGER.info("UI service instanceId: {}", instanceId);
+                    return instanceId;
+                });
     }
 
     private String createCreateRequestBody(String uiInstanceName, String spaceId, String orgId, String username,
-                                           String password, String gearpumpMaster, String uaaClientName) {
+                                           String password, String gearpumpMaster, String uaaClientName,
+                                           CatalogReader.Offering offering) {
 
         LOGGER.debug("Creating request body. uiInstanceName: {}, spaceId: {}, orgId: {}, username: {}, gearpumpMaster: {}, uaaClientName: {}",
                 uiInstanceName, spaceId, orgId, username, gearpumpMaster, password);
         String body = String.format(CREATE_SERVICE_BODY_TEMPLATE, uiInstanceName,
-                catalogReader.getUiServiceGuid(),
-                catalogReader.getUiServicePlanGuid(),
+                offering.getServiceGuid(),
+                offering.getServicePlanGuid(),
                 username, password, gearpumpMaster, uaaClientName, password);
         LOGGER.debug("Create req body: {}", body);
         return body;
@@ -140,20 +145,26 @@ class DashboardInstanceFactory implements ServiceInstanceManager {
 
     @Override
     public Optional<String> getInstance(String instanceId) throws DashboardServiceException {
+        return await(getInstanceAsync(instanceId));
+    }
+
+    private CompletableFuture<Optional<String>> getInstanceAsync(String instanceId) {
         LOGGER.info("Getting dashboard service instance");
-        try {
-            ResponseEntity<String> response = cfCaller.execute(GET_SERVICE_INSTANCE_URL, HttpMethod.GET, "", platformApiEndpoint, instanceId);
-            LOGGER.debug("Response: {}", response);
-            return Optional.of(response.getBody());
-        } catch (HttpClientErrorException e) {
-            if (e.getStatusCode().equals(HttpStatus.NOT_FOUND)) {
-                LOGGER.warn("Cannot load Gearpump UI instance data. Gearpump UI instance with GUID {} doesn't exist. Skipping.", instanceId);
-                return Optional.empty();
-            } else {
-                LOGGER.debug("Cannot get Gearpump UI instance with GUID {} - rethrowing exception.", instanceId);
-                throw e;
-            }
-        }
+        return cfCaller.executeAsync(GET_SERVICE_INSTANCE_URL, HttpMethod.GET, "", platformApiEndpoint, instanceId)
+                .handle((response, failure) -> {
+                    if (failure == null) {
+                        LOGGER.debug("Response: {}", response);
+                        return Optional.of(response.getBody());
+                    }
+                    Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+                    if (cause instanceof HttpClientErrorException
+                            && ((HttpClientErrorException) cause).getStatusCode().equals(HttpStatus.NOT_FOUND)) {
+                        LOGGER.warn("Cannot load Gearpump UI instance data. Gearpump UI instance with GUID {} doesn't exist. Skipping.", instanceId);
+                        return Optional.empty();
+                    }
+                    LOGGER.debug("Cannot get Gearpump UI instance with GUID {} - rethrowing exception.", instanceId);
+                    throw new CompletionException(cause);
+                });
     }
 
     private static String getInstanceProperty(String instanceData, String propertyName) throws DashboardServiceException {
@@ -165,28 +176,57 @@ class DashboardInstanceFactory implements ServiceInstanceManager {
         }
     }
 
+    private static String getInstancePropertyUnchecked(String instanceData, String propertyName) {
+        try {
+            return getInstanceProperty(instanceData, propertyName);
+        } catch (DashboardServiceException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws DashboardServiceException {
+        try {
+            return CfCaller.await(future);
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof DashboardServiceException) {
+                throw (DashboardServiceException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
     @Override
     public Optional<Boolean> hasInstanceState(String instanceId, InstanceState expectedState) throws DashboardServiceException {
+        return await(hasInstanceStateAsync(instanceId, expectedState));
+    }
+
+    private CompletableFuture<Optional<Boolean>> hasInstanceStateAsync(String instanceId, InstanceState expectedState) {
         LOGGER.info("Checking if the Gearpump dashboard is in state: {}", expectedState);
 
-        Optional<String> instanceData = getInstance(instanceId);
-        if (!instanceData.isPresent()) {
-            return Optional.empty();
-        }
+        return getInstanceAsync(instanceId).thenApply(instanceData -> {
+            if (!instanceData.isPresent()) {
+                return Optional.empty();
+            }
 
-        String instanceState = getInstanceProperty(instanceData.get(), METADATA_STATE);
-        LOGGER.info("Current Gearpump dashboard state: {}", instanceState);
-        boolean hasState = expectedState.name().equals(instanceState);
-        return Optional.of(hasState);
+            String instanceState = getInstancePropertyUnchecked(instanceData.get(), METADATA_STATE);
+            LOGGER.info("Current Gearpump dashboard state: {}", instanceState);
+            boolean hasState = expectedState.name().equals(instanceState);
+            return Optional.of(hasState);
+        });
     }
 
     @Override
     public boolean ensureInstanceStopped(String instanceId) throws DashboardServiceException {
-        return stateValidator.validate(this::hasInstanceState, instanceId, InstanceState.STOPPED);
+        return stateValidator.await(stateValidator.watchAsync(this::hasInstanceStateAsync, instanceId, InstanceState.STOPPED));
     }
 
     @Override
     public boolean ensureInstanceRunning(String instanceId) throws DashboardServiceException {
-        return stateValidator.validate(this::hasInstanceState, instanceId, InstanceState.RUNNING);
+        return stateValidator.await(whenInstanceRunning(instanceId));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> whenInstanceRunning(String instanceId) {
+        return stateValidator.watchAsync(this::hasInstanceStateAsync, instanceId, InstanceState.RUNNING);
     }
 }
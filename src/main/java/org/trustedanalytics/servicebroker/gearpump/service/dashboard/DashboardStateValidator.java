@@ -15,21 +15,36 @@
  */
 package org.trustedanalytics.servicebroker.gearpump.service.dashboard;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PreDestroy;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Waits for dashboard instances to reach a state. A single scheduler thread polls all pending instances with
+ * exponential backoff and jitter, so waiting does not hold a thread per instance.
+ */
 @Service
 class DashboardStateValidator {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(DashboardStateValidator.class);
 
     @FunctionalInterface
-    interface StateValiditySupplier {
-        Optional<Boolean> validate(String instanceId, InstanceState expectedState) throws DashboardServiceException;
+    interface AsyncStateValiditySupplier {
+        CompletableFuture<Optional<Boolean>> validate(String instanceId, InstanceState expectedState);
     }
 
     @Value("${gearpump.dashboard.stateValidator.maxRetryCount}")
@@ -38,46 +53,116 @@ class DashboardStateValidator {
     @Value("${gearpump.dashboard.stateValidator.retryInterval}")
     private long retryInterval;
 
+    @Value("${gearpump.dashboard.stateValidator.initialRetryInterval:250}")
+    private long initialRetryInterval;
+
     @Value("${gearpump.dashboard.stateValidator.retryEnabled:false}")
     private boolean retryEnabled;
 
-    boolean validate(StateValiditySupplier validator, String instanceId, InstanceState expectedState) throws DashboardServiceException {
-        LOGGER.info("Ensuring if a Gearpump dashboard is in state: {}", expectedState);
-
-        Optional<Boolean> result;
-        int retryCount = 0;
-
-        while (true) {
-            result = validator.validate(instanceId, expectedState);
-            LOGGER.info("The Gearpump dashboard has state {}? {}", expectedState, result);
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("dashboard-state-watcher-%d").setDaemon(true).build());
 
-            if (!result.isPresent() || result.get().equals(true) || !retryEnabled || retryCount >= maxRetryCount) {
-                break;
+    boolean await(CompletableFuture<Boolean> watch) throws DashboardServiceException {
+        try {
+            return watch.get();
+        } catch (InterruptedException e) {
+            LOGGER.warn("Waiting for the Gearpump dashboard interrupted.", e);
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DashboardServiceException) {
+                throw (DashboardServiceException) e.getCause();
             }
-
-            LOGGER.info("Value not yet available. Let's retry validation. retryCount/maxRetryCount/retryInterval: {}/{}/{}", retryCount, maxRetryCount, retryInterval);
-            retryCount++;
-
-            if (retryInterval > 0) {
-                sleepMoment();
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
             }
-
+            throw new DashboardServiceException("Cannot check the Gearpump dashboard state.", e.getCause());
         }
+    }
+
+    /**
+     * @return future completed with true as soon as the instance is observed in the expected state, with false when
+     * the instance does not exist or the wait budget (maxRetryCount * retryInterval seconds) is used up
+     */
+    CompletableFuture<Boolean> watchAsync(AsyncStateValiditySupplier validator, String instanceId, InstanceState expectedState) {
+        LOGGER.info("Ensuring if a Gearpump dashboard is in state: {}", expectedState);
+        Watch watch = new Watch(validator, instanceId, expectedState,
+                System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(retryInterval * maxRetryCount));
+        scheduler.execute(() -> poll(watch));
+        return watch.result;
+    }
 
-        return result.isPresent() ? result.get() : false;
+    // the scheduler thread only sends the request, the response is handled by the HTTP client's I/O thread
+    private void poll(Watch watch) {
+        if (watch.result.isDone()) {
+            return;
+        }
+        CompletableFuture<Optional<Boolean>> check;
+        try {
+            check = watch.validator.validate(watch.instanceId, watch.expectedState);
+        } catch (RuntimeException e) {
+            watch.result.completeExceptionally(e);
+            return;
+        }
+        check.whenComplete((result, failure) -> {
+            if (failure != null) {
+                watch.result.completeExceptionally(failure instanceof CompletionException && failure.getCause() != null
+                        ? failure.getCause() : failure);
+            } else {
+                onResult(watch, result);
+            }
+        });
     }
 
-    private void sleepMoment() {
+    private void onResult(Watch watch, Optional<Boolean> result) {
+        LOGGER.info("The Gearpump dashboard has state {}? {}", watch.expectedState, result);
+
+        long delay = nextDelay(watch.attempt.getAndIncrement());
+        if (!result.isPresent() || result.get() || !retryEnabled
+                || System.currentTimeMillis() + delay > watch.deadline) {
+            watch.result.complete(result.orElse(false));
+            return;
+        }
+        LOGGER.debug("Dashboard {} not yet in state {}, next check in {} ms", watch.instanceId, watch.expectedState, delay);
         try {
-            Thread.sleep(retryInterval * 1000);
-        } catch (InterruptedException e) {
-            LOGGER.warn("Thread.sleep() interrupted.", e);
-            Thread.currentThread().interrupt();
+            scheduler.schedule(() -> poll(watch), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            watch.result.completeExceptionally(e);
         }
     }
 
+    /**
+     * Doubles the interval after each attempt up to retryInterval seconds and spreads it over its upper half,
+     * so that instances created together do not poll in lockstep.
+     */
+    private long nextDelay(int attempt) {
+        long maxDelay = Math.max(TimeUnit.SECONDS.toMillis(retryInterval), 1);
+        long delay = Math.min(maxDelay, initialRetryInterval << Math.min(attempt, 20));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
     void disableRetrials() {
         this.retryEnabled = false;
     }
 
+    @PreDestroy
+    void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    private static class Watch {
+        private final AsyncStateValiditySupplier validator;
+        private final String instanceId;
+        private final InstanceState expectedState;
+        private final long deadline;
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        private final AtomicInteger attempt = new AtomicInteger();
+
+        Watch(AsyncStateValiditySupplier validator, String instanceId, InstanceState expectedState, long deadline) {
+            this.validator = validator;
+            this.instanceId = instanceId;
+            this.expectedState = expectedState;
+            this.deadline = deadline;
+        }
+    }
 }
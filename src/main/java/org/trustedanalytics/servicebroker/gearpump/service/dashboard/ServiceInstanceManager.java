@@ -16,12 +16,19 @@
 package org.trustedanalytics.servicebroker.gearpump.service.dashboard;
 
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
 interface ServiceInstanceManager {
 
     String createInstance(String uiInstanceName, String spaceId, String orgId, String username,
                           String password, String gearpumpMaster, String uaaClientName) throws DashboardServiceException;
 
+    /**
+     * Non-blocking variant of {@link #createInstance}.
+     */
+    CompletableFuture<String> createInstanceAsync(String uiInstanceName, String spaceId, String orgId, String username,
+                                                  String password, String gearpumpMaster, String uaaClientName);
+
     void deleteInstance(String instanceId) throws DashboardServiceException;
 
     boolean stopInstance(String instanceId) throws DashboardServiceException;
@@ -33,4 +40,9 @@ interface ServiceInstanceManager {
     boolean ensureInstanceStopped(String instanceId) throws DashboardServiceException;
 
     boolean ensureInstanceRunning(String instanceId) throws DashboardServiceException;
+
+    /**
+     * Non-blocking variant of {@link #ensureInstanceRunning(String)}.
+     */
+    CompletableFuture<Boolean> whenInstanceRunning(String instanceId);
 }
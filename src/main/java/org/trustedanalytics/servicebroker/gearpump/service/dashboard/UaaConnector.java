@@ -15,6 +15,7 @@
  */
 package org.trustedanalytics.servicebroker.gearpump.service.dashboard;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -25,11 +26,15 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.HttpClientErrorException;
+import org.trustedanalytics.servicebroker.gearpump.metrics.StageMetrics;
 import org.trustedanalytics.servicebroker.gearpump.service.externals.helpers.CfCaller;
 import org.trustedanalytics.servicebroker.gearpump.service.externals.helpers.JsonUtils;
 
 import java.io.IOException;
+import java.time.Instant;
 import java.util.Base64;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
 import static org.trustedanalytics.servicebroker.gearpump.service.externals.helpers.CfCaller.AUTHORIZATION_HEADER;
 import static org.trustedanalytics.servicebroker.gearpump.service.externals.helpers.CfCaller.CONTENT_TYPE_HEADER;
@@ -40,6 +45,9 @@ class UaaConnector {
 
     private static final String UAA_ACCESS_TOKEN = "/access_token";
     private static final String UAA_TOKEN_TYPE = "/token_type";
+    private static final String UAA_EXPIRES_IN = "/expires_in";
+
+    static final long DEFAULT_TOKEN_REFRESH_MARGIN = 60;
 
     private static final String CREATE_UAA_TOKEN_BODY_TEMPLATE = "grant_type=client_credentials&response_type=token";
     private static final String CREATE_UAA_CLIENT_BODY_TEMPLATE = "{\"client_id\":\"%s\",\"name\":\"%s\",\"client_secret\":\"%s\",\"scope\":[\"openid\",\"tap.user\"],\"resource_ids\":[\"none\"],\"authorities\":[\"uaa.resource\"],\"authorized_grant_types\":[\"client_credentials\",\"authorization_code\",\"refresh_token\"],\"autoapprove\":true,\"access_token_validity\":43200,\"redirect_uri\":[\"%s\"]}";
@@ -58,19 +66,73 @@ class UaaConnector {
     @Value("${uaa.token_uri}")
     private String uaaTokenApiEndpoint;
 
+    @Value("${uaa.token.refreshMargin:" + DEFAULT_TOKEN_REFRESH_MARGIN + "}")
+    private long tokenRefreshMargin = DEFAULT_TOKEN_REFRESH_MARGIN;
+
+    @Autowired
+    private StageMetrics stageMetrics = StageMetrics.NOOP;
+
+    private final Object tokenLock = new Object();
+    private volatile CachedToken cachedToken;
+
     @Autowired
     UaaConnector(CfCaller cfCaller) {
         this.cfCaller = cfCaller;
     }
 
     /**
-     * Creates a UAA token.
+     * Returns a cached UAA token, requesting a new one only when there is none yet or it expires within
+     * {@code uaa.token.refreshMargin} seconds. Concurrent callers share a single token request.
      * @param clientId The client ID
      * @param clientSecret The client secret
-     * @return The generated UAA token
+     * @param planId The plan whose provisioning needs the token, tags the token request metric
+     * @return The UAA token
      * @throws DashboardServiceException If token extracting goes wrong
      */
-    public String createUaaToken(String clientId, String clientSecret) throws DashboardServiceException {
+    public String getUaaToken(String clientId, String clientSecret, String planId) throws DashboardServiceException {
+        CachedToken token = cachedToken;
+        if (isUsable(token, clientId)) {
+            return token.value;
+        }
+        synchronized (tokenLock) {
+            token = cachedToken;
+            if (!isUsable(token, clientId)) {
+                token = requestToken(clientId, clientSecret, planId);
+                cachedToken = token;
+            }
+            return token.value;
+        }
+    }
+
+    /**
+     * @param clientId The client ID
+     * @return The cached UAA token if it can still be used, so that callers can skip {@link #getUaaToken} and its
+     *         possible token request
+     */
+    public Optional<String> getCachedUaaToken(String clientId) {
+        CachedToken token = cachedToken;
+        return isUsable(token, clientId) ? Optional.of(token.value) : Optional.empty();
+    }
+
+    /**
+     * Drops the cached token, e.g. after UAA rejected it. Does nothing if the cache already holds a different token.
+     * @param token The rejected UAA token
+     */
+    public void invalidateUaaToken(String token) {
+        synchronized (tokenLock) {
+            if (cachedToken != null && cachedToken.value.equals(token)) {
+                LOGGER.info("Invalidating cached UAA token. clientId: {}", cachedToken.clientId);
+                cachedToken = null;
+            }
+        }
+    }
+
+    private boolean isUsable(CachedToken token, String clientId) {
+        return token != null && token.clientId.equals(clientId)
+                && Instant.now().plusSeconds(tokenRefreshMargin).isBefore(token.expiresAt);
+    }
+
+    private CachedToken requestToken(String clientId, String clientSecret, String planId) throws DashboardServiceException {
         LOGGER.info("Creating new UAA token. clientId: {}", clientId);
 
         String authorizationString = new String(Base64.getEncoder().encode((clientId + ":" + clientSecret).getBytes()));
@@ -79,8 +141,10 @@ class UaaConnector {
         headers.add(AUTHORIZATION_HEADER, "Basic " + authorizationString);
         headers.add(CONTENT_TYPE_HEADER, "application/x-www-form-urlencoded");
 
-        ResponseEntity<String> response = cfCaller.executeWithHeaders(CREATE_UAA_TOKEN_URL, HttpMethod.POST, CREATE_UAA_TOKEN_BODY_TEMPLATE, headers, uaaTokenApiEndpoint);
-        return extractToken(response);
+        return stageMetrics.record(StageMetrics.UAA_TOKEN, planId, () -> {
+            ResponseEntity<String> response = cfCaller.executeWithHeaders(CREATE_UAA_TOKEN_URL, HttpMethod.POST, CREATE_UAA_TOKEN_BODY_TEMPLATE, headers, uaaTokenApiEndpoint);
+            return extractToken(clientId, response);
+        });
     }
 
     /**
@@ -92,6 +156,13 @@ class UaaConnector {
      * @return The response body
      */
     public String createUaaClient(String clientId, String clientSecret, String redirectUri, String token) {
+        return CfCaller.await(createUaaClientAsync(clientId, clientSecret, redirectUri, token));
+    }
+
+    /**
+     * Non-blocking variant of {@link #createUaaClient(String, String, String, String)}.
+     */
+    public CompletableFuture<String> createUaaClientAsync(String clientId, String clientSecret, String redirectUri, String token) {
         LOGGER.info("Creating new UAA client");
         String body = String.format(CREATE_UAA_CLIENT_BODY_TEMPLATE, clientId, clientId, clientSecret, "http://" + redirectUri + REDIRECT_URI_SUFFIX);
         LOGGER.debug("body: {}", body);
@@ -100,9 +171,11 @@ class UaaConnector {
         headers.add(AUTHORIZATION_HEADER, token);
         headers.add(CONTENT_TYPE_HEADER, "application/json");
 
-        ResponseEntity<String> response = cfCaller.executeWithHeaders(CREATE_UAA_CLIENT_URL, HttpMethod.POST, body, headers, uaaApiEndpoint);
-        LOGGER.debug("Created UAA client. Response body: {}", response.getBody());
-        return response.getBody();
+        return cfCaller.executeWithHeadersAsync(CREATE_UAA_CLIENT_URL, HttpMethod.POST, body, headers, uaaApiEndpoint)
+                .thenApply(response -> {
+                    LOGGER.debug("Created UAA client. Response body: {}", response.getBody());
+                    return response.getBody();
+                });
     }
 
     /**
@@ -132,12 +205,27 @@ class UaaConnector {
         return null;
     }
 
-    private String extractToken(ResponseEntity<String> response) throws DashboardServiceException {
+    private CachedToken extractToken(String clientId, ResponseEntity<String> response) throws DashboardServiceException {
         try {
-            return JsonUtils.getValueFromJson(response.getBody(), UAA_TOKEN_TYPE)
-                    + " " + JsonUtils.getValueFromJson(response.getBody(), UAA_ACCESS_TOKEN);
+            JsonNode root = JsonUtils.getRoot(response.getBody());
+            String value = root.at(UAA_TOKEN_TYPE).asText() + " " + root.at(UAA_ACCESS_TOKEN).asText();
+            // without expires_in the token is used once and not cached
+            Instant expiresAt = Instant.now().plusSeconds(root.at(UAA_EXPIRES_IN).asLong(0));
+            return new CachedToken(clientId, value, expiresAt);
         } catch (IOException e) {
             throw new DashboardServiceException("Cannot obtain UAA token.", e);
         }
     }
+
+    private static class CachedToken {
+        private final String clientId;
+        private final String value;
+        private final Instant expiresAt;
+
+        CachedToken(String clientId, String value, Instant expiresAt) {
+            this.clientId = clientId;
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
 }
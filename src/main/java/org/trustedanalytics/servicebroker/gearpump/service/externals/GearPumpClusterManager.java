@@ -0,0 +1,83 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trustedanalytics.servicebroker.gearpump.service.externals;
+
+import com.google.common.base.Strings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.trustedanalytics.servicebroker.gearpump.config.GearPumpSpawnerConfig;
+import org.trustedanalytics.servicebroker.gearpump.kerberos.KerberosService;
+import org.trustedanalytics.servicebroker.gearpump.service.externals.helpers.ExternalProcessExecutor;
+import org.trustedanalytics.servicebroker.gearpump.service.externals.helpers.ExternalProcessExecutorResult;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Flexes a running Gearpump cluster through its YARN application master, using the command mode of bin/yarnclient.
+ */
+public class GearPumpClusterManager {
+    private static final Logger LOGGER = LoggerFactory.getLogger(GearPumpClusterManager.class);
+
+    private static final String COMMAND_LINE_TEMPLATE = "bin/yarnclient command -appid %s -command %s";
+    private static final String ADD_WORKER = "addworker";
+    private static final String REMOVE_WORKER = "removeworker";
+
+    @Autowired
+    private GearPumpSpawnerConfig gearPumpSpawnerConfig;
+
+    @Autowired
+    private ExternalProcessExecutor externalProcessExecutor;
+
+    @Autowired
+    private KerberosService kerberosService;
+
+    public void addWorkers(String applicationId, int count) throws ExternalProcessException {
+        LOGGER.info("Adding {} workers to {}", count, applicationId);
+        run(String.format(COMMAND_LINE_TEMPLATE, applicationId, ADD_WORKER) + " -count " + count);
+    }
+
+    /**
+     * @param containerId YARN container of the worker, e.g. container_1449093574559_0004_01_000005
+     */
+    public void removeWorker(String applicationId, String containerId) throws ExternalProcessException {
+        LOGGER.info("Removing worker {} from {}", containerId, applicationId);
+        run(String.format(COMMAND_LINE_TEMPLATE, applicationId, REMOVE_WORKER) + " -container " + containerId);
+    }
+
+    private void run(String commandLine) throws ExternalProcessException {
+        ExternalProcessExecutorResult result = externalProcessExecutor.run(commandLine.split(" "),
+                gearPumpSpawnerConfig.getGearPumpDestinationFolder(), getEnv(), null,
+                gearPumpSpawnerConfig.getYarnclientTimeoutMillis());
+        if (result.getStatus() == ExternalProcessExecutorResult.Status.TIMED_OUT) {
+            throw new ExternalProcessException("yarnclient did not finish in time and was killed.", result.getException());
+        }
+        if (result.getExitCode() != 0) {
+            throw new ExternalProcessException("yarnclient command exited with code " + result.getExitCode(), result.getException());
+        }
+    }
+
+    private Map<String, String> getEnv() {
+        Map<String, String> result = new HashMap<>();
+        String kerberosOpts = kerberosService.getKerberosJavaOpts();
+        if (!Strings.isNullOrEmpty(kerberosOpts)) {
+            result.put("JAVA_OPTS", kerberosOpts);
+        }
+        return result;
+    }
+}
@@ -18,7 +18,10 @@ package org.trustedanalytics.servicebroker.gearpump.service.externals;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.trustedanalytics.servicebroker.gearpump.service.externals.helpers.ProcessOutputListener;
 
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -66,4 +69,33 @@ public class GearPumpCredentialsParser {
         }
         return result;
     }
+
+    /**
+     * Watches yarnclient output line by line and reports the created application id as soon as it is printed.
+     */
+    public static class ApplicationIdListener implements ProcessOutputListener {
+
+        private final AtomicReference<String> applicationId = new AtomicReference<>();
+        private final Consumer<String> onApplicationId;
+
+        public ApplicationIdListener(Consumer<String> onApplicationId) {
+            this.onApplicationId = onApplicationId;
+        }
+
+        @Override
+        public void onLine(String line) {
+            if (applicationId.get() != null) {
+                return;
+            }
+            Matcher m = CREATED_APPLICATION_ID_PATTERN.matcher(line);
+            if (m.find() && applicationId.compareAndSet(null, m.group(1))) {
+                LOGGER.info("Captured applicationId {}", m.group(1));
+                onApplicationId.accept(m.group(1));
+            }
+        }
+
+        public String getApplicationId() {
+            return applicationId.get();
+        }
+    }
 }
@@ -17,26 +17,37 @@
 package org.trustedanalytics.servicebroker.gearpump.service.externals;
 
 import com.google.common.base.Strings;
-import org.apache.commons.lang.RandomStringUtils;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.trustedanalytics.servicebroker.gearpump.config.GearPumpPlan;
 import org.trustedanalytics.servicebroker.gearpump.config.GearPumpSpawnerConfig;
 import org.trustedanalytics.servicebroker.gearpump.kerberos.KerberosService;
+import org.trustedanalytics.servicebroker.gearpump.metrics.StageMetrics;
 import org.trustedanalytics.servicebroker.gearpump.model.GearPumpCredentials;
 import org.trustedanalytics.servicebroker.gearpump.service.externals.helpers.ExternalProcessExecutor;
 import org.trustedanalytics.servicebroker.gearpump.service.externals.helpers.ExternalProcessExecutorResult;
 import org.trustedanalytics.servicebroker.gearpump.service.externals.helpers.HdfsUtils;
+import org.trustedanalytics.servicebroker.gearpump.service.externals.helpers.ProcessOutputListener;
 
+import javax.annotation.PreDestroy;
+import java.io.File;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 
-public class GearPumpDriverExec {
+public class GearPumpDriverExec implements GearPumpLauncher {
     private static final Logger LOGGER = LoggerFactory.getLogger(GearPumpDriverExec.class);
 
     private static final String COMMAND_LINE_TEMPLATE_SPAWN = "bin/yarnclient launch -package %s -output %s";
-    private static final String WORKERS_NUMBER_SWITCH = "-Dgearpump.yarn.worker.containers=";
-    private static final String WORKERS_MEMORY_LIMIT  = "-Dgearpump.yarn.worker.memory=";
+    private static final String REPORT_MODE_FIFO = "fifo";
+    private static final long REPORT_PIPE_TIMEOUT_MILLIS = 10_000;
 
     @Autowired
     private GearPumpCredentialsParser gearPumpCredentialsParser;
@@ -56,36 +67,63 @@ public class GearPumpDriverExec {
     @Autowired
     private KerberosService kerberosService;
 
-    public SpawnResult spawnGearPumpOnYarn(String numberOfWorkers)  {
-        LOGGER.info("spawnGearPumpOnYarn numberOfWorkers = [" + numberOfWorkers + "]");
+    @Autowired
+    private StageMetrics stageMetrics = StageMetrics.NOOP;
+
+    @Value("${gearpump.yarnclient.reportMode:file}")
+    private String reportMode = "file";
+
+    // readers of report pipes block until yarnclient opens the pipe, so the pool can't be bounded
+    private final ExecutorService reportPipeExecutor = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("report-pipe-%d").setDaemon(true).build());
 
-        String outputReportFilePath = createOutputReportFilePath(gearPumpSpawnerConfig.getGearPumpDestinationFolder());
+    @Override
+    public SpawnResult spawnGearPumpOnYarn(GearPumpPlan plan, Consumer<String> onApplicationId)  {
+        LOGGER.info("spawnGearPumpOnYarn plan = [" + plan + "]");
+
+        Optional<ReportPipe> reportPipe = openReportPipe();
+        String outputReportFilePath = reportPipe.map(ReportPipe::getPath)
+                .orElseGet(() -> createOutputReportFilePath(gearPumpSpawnerConfig.getGearPumpDestinationFolder()));
 
         String yarnApplicationId = null;
         String mastersUrl = null;
         Exception resultException = null;
 
-        ExternalProcessExecutorResult processExecutorResult = deployGearPumpOnYarn(outputReportFilePath, numberOfWorkers);
-        LOGGER.debug("processExecutorResult: {}", processExecutorResult);
-
-        // try to determine appId regardless of the result (if failed, we still need appId to kill the app on yarn)
-        if (!Strings.isNullOrEmpty(processExecutorResult.getOutput())) {
-            yarnApplicationId = gearPumpCredentialsParser.getApplicationId(processExecutorResult.getOutput());
-        }
+        GearPumpCredentialsParser.ApplicationIdListener applicationIdListener =
+                new GearPumpCredentialsParser.ApplicationIdListener(onApplicationId);
+        ExternalProcessExecutorResult processExecutorResult;
+        try {
+            processExecutorResult = deployGearPumpOnYarn(outputReportFilePath, plan, applicationIdListener);
+            LOGGER.debug("processExecutorResult: {}", processExecutorResult);
+
+            // try to determine appId regardless of the result (if failed, we still need appId to kill the app on yarn)
+            yarnApplicationId = applicationIdListener.getApplicationId();
+            if (yarnApplicationId == null && !Strings.isNullOrEmpty(processExecutorResult.getOutput())) {
+                yarnApplicationId = gearPumpCredentialsParser.getApplicationId(processExecutorResult.getOutput());
+            }
 
-        // obtain mastersUrl
-        if (processExecutorResult.getExitCode() == 0) {
-            try {
-                mastersUrl = gearPumpOutputReportReader.fromOutput(outputReportFilePath).getMasterUrl();
-            } catch (GearpumpOutputException e) {
-                LOGGER.warn(String.format("GearpumpOutputException %s", e.getMessage()), e);
+            // obtain mastersUrl
+            if (processExecutorResult.getExitCode() == 0) {
+                try {
+                    mastersUrl = stageMetrics.record(StageMetrics.REPORT_READ, () -> reportPipe.isPresent()
+                            ? reportPipe.get().awaitMasterUrl(REPORT_PIPE_TIMEOUT_MILLIS)
+                            : gearPumpOutputReportReader.getMasterUrl(outputReportFilePath));
+                } catch (GearpumpOutputException e) {
+                    LOGGER.warn(String.format("GearpumpOutputException %s", e.getMessage()), e);
+                }
+            }
+        } finally {
+            // clean report file or pipe before exiting
+            if (reportPipe.isPresent()) {
+                reportPipe.get().close();
+            } else {
+                gearPumpOutputReportReader.deleteReportFile(outputReportFilePath);
             }
         }
 
-        // clean report file before exiting
-        gearPumpOutputReportReader.fromOutput(outputReportFilePath).deleteReportFile();
-
-        if (processExecutorResult.getExitCode() != 0) {
+        if (processExecutorResult.getStatus() == ExternalProcessExecutorResult.Status.TIMED_OUT) {
+            resultException = new ExternalProcessException("yarnclient did not finish in time and was killed.", processExecutorResult.getException());
+        } else if (processExecutorResult.getExitCode() != 0) {
             resultException = new ExternalProcessException("Error executing yarnclient.", processExecutorResult.getException());
         }
 
@@ -99,10 +137,34 @@ public class GearPumpDriverExec {
         return new SpawnResult(status, new GearPumpCredentials(mastersUrl, yarnApplicationId), resultException);
     }
 
-    private ExternalProcessExecutorResult deployGearPumpOnYarn(String outputReportFilePath, String numberOfWorkers) {
+    /**
+     * @return pipe the report is streamed through if gearpump.yarnclient.reportMode is fifo and a pipe can be created
+     */
+    private Optional<ReportPipe> openReportPipe() {
+        if (!REPORT_MODE_FIFO.equalsIgnoreCase(reportMode)) {
+            return Optional.empty();
+        }
+        Optional<ReportPipe> reportPipe = ReportPipe.open(new File(System.getProperty("java.io.tmpdir")),
+                gearPumpOutputReportReader::getMasterUrl, reportPipeExecutor);
+        if (!reportPipe.isPresent()) {
+            LOGGER.warn("Couldn't create a pipe for the launch report, falling back to a report file");
+        }
+        return reportPipe;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        reportPipeExecutor.shutdownNow();
+    }
+
+    private ExternalProcessExecutorResult deployGearPumpOnYarn(String outputReportFilePath, GearPumpPlan plan,
+                                                               ProcessOutputListener outputListener) {
         String[] command = getGearPumpYarnCommand(outputReportFilePath);
-        Map<String, String> envProperties = getEnvForProcessBuilder(numberOfWorkers, gearPumpSpawnerConfig.getWorkersMemoryLimit());
-        return externalProcessExecutor.run(command, gearPumpSpawnerConfig.getGearPumpDestinationFolder(), envProperties);
+        Map<String, String> envProperties = getEnvForProcessBuilder(plan, gearPumpSpawnerConfig.getWorkersMemoryLimit());
+        return stageMetrics.record(StageMetrics.YARNCLIENT_RUN,
+                () -> externalProcessExecutor.run(command, gearPumpSpawnerConfig.getGearPumpDestinationFolder(), envProperties,
+                        outputListener, gearPumpSpawnerConfig.getYarnclientTimeoutMillis()),
+                result -> result.getExitCode() == 0);
     }
 
     private String[] getGearPumpYarnCommand(String outputReportFilePath) {
@@ -111,20 +173,18 @@ public class GearPumpDriverExec {
     }
 
     private String createOutputReportFilePath(String gearPumpDestinationFolderPath) {
-        return String.format("%s/output-%d-%s.conf", gearPumpDestinationFolderPath, System.currentTimeMillis(), RandomStringUtils.randomNumeric(4));
+        // unique per launch, concurrent launches must never share a report file
+        return String.format("%s/output-%d-%s.conf", gearPumpDestinationFolderPath, System.currentTimeMillis(), UUID.randomUUID());
     }
 
-    private Map<String, String> getEnvForProcessBuilder(String numberOfWorkers, String workersMemoryLimit)  {
+    private Map<String, String> getEnvForProcessBuilder(GearPumpPlan plan, String workersMemoryLimit)  {
         Map<String, String> result = new HashMap<>();
 
         String envOptions = Strings.nullToEmpty(kerberosService.getKerberosJavaOpts());
 
-        if(!Strings.isNullOrEmpty(numberOfWorkers)) {
-            envOptions += " " + WORKERS_NUMBER_SWITCH + numberOfWorkers;
-        }
-
-        if(!Strings.isNullOrEmpty(workersMemoryLimit)) {
-            envOptions += " " + WORKERS_MEMORY_LIMIT + workersMemoryLimit;
+        String planOptions = GearPumpPlanOptions.build(plan, workersMemoryLimit, gearPumpSpawnerConfig.getYarnQueue());
+        if (!planOptions.isEmpty()) {
+            envOptions += " " + planOptions;
         }
 
         if (!envOptions.isEmpty()) {
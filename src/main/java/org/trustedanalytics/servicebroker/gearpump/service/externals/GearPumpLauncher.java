@@ -0,0 +1,42 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trustedanalytics.servicebroker.gearpump.service.externals;
+
+import org.trustedanalytics.servicebroker.gearpump.config.GearPumpPlan;
+
+import java.util.function.Consumer;
+
+/**
+ * Launches an Apache Gearpump cluster on YARN.
+ */
+public interface GearPumpLauncher {
+
+    /**
+     * Same as {@link #spawnGearPumpOnYarn(GearPumpPlan, Consumer)}, without being told about the application id early.
+     */
+    default SpawnResult spawnGearPumpOnYarn(GearPumpPlan plan) {
+        return spawnGearPumpOnYarn(plan, applicationId -> { });
+    }
+
+    /**
+     * @param plan number of worker containers and resources to request; unset resources use the Gearpump defaults
+     * @param onApplicationId called with the YARN application id as soon as the application is created,
+     *                        before the cluster is up
+     * @return the result of the launch; credentials carry the YARN application id even on failure if it is known
+     */
+    SpawnResult spawnGearPumpOnYarn(GearPumpPlan plan, Consumer<String> onApplicationId);
+}
@@ -15,22 +15,24 @@
  */
 package org.trustedanalytics.servicebroker.gearpump.service.externals;
 
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParseException;
-import com.google.gson.JsonParser;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
+import org.trustedanalytics.servicebroker.gearpump.service.externals.helpers.ConfigValueExtractor;
 import org.trustedanalytics.servicebroker.gearpump.service.file.FileReaderService;
 import org.trustedanalytics.servicebroker.gearpump.service.file.FileWriterService;
 
 import java.io.IOException;
+import java.io.Reader;
+import java.util.List;
 
+/**
+ * Reads the report of a yarnclient launch. Holds no per-launch state, so concurrent launches only need distinct
+ * report paths.
+ */
 @Service
 public class GearPumpOutputReportReader {
 
-    private static final String GEARPUMP_TAG = "gearpump";
-    private static final String CLUSTER_TAG = "cluster";
-    private static final String MASTERS_TAG = "masters";
+    private static final String MASTERS_PATH = "gearpump.cluster.masters";
 
     @Autowired
     private FileReaderService fileReaderService;
@@ -38,36 +40,47 @@ public class GearPumpOutputReportReader {
     @Autowired
     private FileWriterService fileWriterService;
 
-    private String outputFileReport;
+    /**
+     * @param outputFileReport report written by bin/yarnclient launch -output
+     * @return all masters, separated by commas
+     */
+    public String getMasterUrl(String outputFileReport) throws GearpumpOutputException {
+        try (Reader outputReport = fileReaderService.open(outputFileReport)) {
+            return getMasterUrl(outputReport);
+        } catch (GearpumpOutputException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new GearpumpOutputException("Unable to read Apache Gearpump launch output report", e);
+        }
+    }
 
-    public GearPumpOutputReportReader fromOutput(String path) {
-        outputFileReport = path;
-        return this;
+    /**
+     * @param outputReport report streamed by bin/yarnclient launch -output, read only up to the masters
+     * @return all masters, separated by commas
+     */
+    public String getMasterUrl(Reader outputReport) throws GearpumpOutputException {
+        return String.join(",", getMasters(outputReport));
     }
 
-    public String getMasterUrl() throws GearpumpOutputException {
+    public List<String> getMasters(Reader outputReport) throws GearpumpOutputException {
+        List<String> masters;
         try {
-            String outputReport = fileReaderService.read(outputFileReport);
-            return parseOutputReport(outputReport);
-        } catch (JsonParseException | IOException e) {
+            masters = ConfigValueExtractor.readStringList(outputReport, MASTERS_PATH).orElseThrow(
+                    () -> new GearpumpOutputException("No " + MASTERS_PATH + " in Apache Gearpump launch output report"));
+        } catch (GearpumpOutputException e) {
+            throw e;
+        } catch (IOException e) {
             throw new GearpumpOutputException("Unable to parse Apache Gearpump launch output report", e);
         }
-    }
-
-    public void deleteReportFile() {
-        fileWriterService.intoDestination(outputFileReport);
-        if (fileWriterService.isOutputExists()) {
-            fileWriterService.delete();
+        if (masters.isEmpty()) {
+            throw new GearpumpOutputException("Apache Gearpump launch output report has no masters");
         }
-    }
-    
-    private String parseOutputReport(String outputReport) {
-        JsonParser jsonParser = new JsonParser();
-        JsonObject jsonObject = (JsonObject)jsonParser.parse(removeCommentLines(outputReport));
-        return jsonObject.getAsJsonObject(GEARPUMP_TAG).getAsJsonObject(CLUSTER_TAG).getAsJsonArray(MASTERS_TAG).getAsString();
+        return masters;
     }
 
-    private String removeCommentLines(String input) {
-        return input.replaceAll("(?m)^#.*", "");
+    public void deleteReportFile(String outputFileReport) {
+        if (fileWriterService.isOutputExists(outputFileReport)) {
+            fileWriterService.delete(outputFileReport);
+        }
     }
 }
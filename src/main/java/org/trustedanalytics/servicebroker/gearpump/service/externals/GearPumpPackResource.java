@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trustedanalytics.servicebroker.gearpump.service.externals;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsAction;
+import org.apache.hadoop.yarn.api.records.LocalResource;
+import org.apache.hadoop.yarn.api.records.LocalResourceType;
+import org.apache.hadoop.yarn.api.records.LocalResourceVisibility;
+import org.apache.hadoop.yarn.util.ConverterUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.trustedanalytics.servicebroker.gearpump.service.externals.helpers.HdfsUtils;
+
+import java.io.IOException;
+
+/**
+ * The Gearpump pack as a YARN local resource. Timestamp and size of the pack on HDFS are read once and reused for
+ * every launch, until {@link #invalidate()} is called.
+ * <p>
+ * With PUBLIC visibility a NodeManager localizes the pack once into its public cache and shares it between all
+ * Gearpump applications on that node, instead of downloading and unpacking it for every application. NodeManagers
+ * accept a PUBLIC resource only if it is readable by others and all its ancestor directories are executable by
+ * others, so a pack that isn't falls back to APPLICATION.
+ */
+public class GearPumpPackResource {
+    private static final Logger LOGGER = LoggerFactory.getLogger(GearPumpPackResource.class);
+
+    private final HdfsUtils hdfsUtils;
+    private final String packPath;
+    private final LocalResourceVisibility visibility;
+
+    private volatile LocalResource cached;
+
+    public GearPumpPackResource(HdfsUtils hdfsUtils, String packPath, LocalResourceVisibility visibility) {
+        this.hdfsUtils = hdfsUtils;
+        this.packPath = packPath;
+        this.visibility = visibility;
+    }
+
+    public LocalResource get() throws IOException {
+        LocalResource resource = cached;
+        if (resource == null) {
+            resource = create(hdfsUtils.getFileStatus(packPath));
+            cached = resource;
+        }
+        return resource;
+    }
+
+    /**
+     * Makes the next {@link #get()} read the pack status again, e.g. after a launch failed because the pack changed.
+     */
+    public void invalidate() {
+        cached = null;
+    }
+
+    private LocalResource create(FileStatus packStatus) throws IOException {
+        LocalResourceVisibility effectiveVisibility = visibility;
+        if (visibility == LocalResourceVisibility.PUBLIC && !packStatus.getPermission().getOtherAction().implies(FsAction.READ)) {
+            LOGGER.warn("{} isn't readable by others and can't be localized as PUBLIC, using APPLICATION", packPath);
+            effectiveVisibility = LocalResourceVisibility.APPLICATION;
+        } else if (visibility == LocalResourceVisibility.PUBLIC && !ancestorsExecutableByOthers(packStatus.getPath())) {
+            effectiveVisibility = LocalResourceVisibility.APPLICATION;
+        }
+        LOGGER.info("Gearpump pack resource: {}, size: {}, timestamp: {}, visibility: {}", packStatus.getPath(),
+                packStatus.getLen(), packStatus.getModificationTime(), effectiveVisibility);
+        return LocalResource.newInstance(
+                ConverterUtils.getYarnUrlFromURI(packStatus.getPath().toUri()),
+                LocalResourceType.ARCHIVE,
+                effectiveVisibility,
+                packStatus.getLen(),
+                packStatus.getModificationTime());
+    }
+
+    private boolean ancestorsExecutableByOthers(Path path) throws IOException {
+        for (Path dir = path.getParent(); dir != null; dir = dir.getParent()) {
+            if (!hdfsUtils.getFileStatus(dir.toString()).getPermission().getOtherAction().implies(FsAction.EXECUTE)) {
+                LOGGER.warn("{} isn't executable by others, {} can't be localized as PUBLIC, using APPLICATION", dir, packPath);
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trustedanalytics.servicebroker.gearpump.service.externals;
+
+import com.google.common.base.Strings;
+import org.trustedanalytics.servicebroker.gearpump.config.GearPumpPlan;
+import org.trustedanalytics.servicebroker.gearpump.service.externals.helpers.ExternalProcessEnvBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Translates a plan into the Gearpump YARN settings read by yarnclient and the Gearpump application master.
+ */
+final class GearPumpPlanOptions {
+
+    private static final String WORKER_CONTAINERS = "gearpump.yarn.worker.containers";
+    private static final String WORKER_MEMORY = "gearpump.yarn.worker.memory";
+    private static final String WORKER_VCORES = "gearpump.yarn.worker.vcores";
+    private static final String MASTER_MEMORY = "gearpump.yarn.master.memory";
+    private static final String QUEUE = "gearpump.yarn.applicationmaster.queue";
+
+    private GearPumpPlanOptions() {
+    }
+
+    /**
+     * @param defaultWorkerMemory worker memory used when the plan doesn't set one, may be empty
+     * @param defaultQueue queue used when the plan doesn't set one, may be empty
+     * @return java options for the plan separated by spaces
+     */
+    static String build(GearPumpPlan plan, String defaultWorkerMemory, String defaultQueue) {
+        List<String> options = new ArrayList<>();
+        options.add(ExternalProcessEnvBuilder.buildJavaParam(WORKER_CONTAINERS, String.valueOf(plan.getWorkers())));
+
+        String workerMemory = plan.getWorkerMemory() != null ? plan.getWorkerMemory().toString() : defaultWorkerMemory;
+        if (!Strings.isNullOrEmpty(workerMemory)) {
+            options.add(ExternalProcessEnvBuilder.buildJavaParam(WORKER_MEMORY, workerMemory));
+        }
+        if (plan.getWorkerVcores() != null) {
+            options.add(ExternalProcessEnvBuilder.buildJavaParam(WORKER_VCORES, plan.getWorkerVcores().toString()));
+        }
+        if (plan.getMasterMemory() != null) {
+            options.add(ExternalProcessEnvBuilder.buildJavaParam(MASTER_MEMORY, plan.getMasterMemory().toString()));
+        }
+        String queue = Strings.isNullOrEmpty(plan.getQueue()) ? defaultQueue : plan.getQueue();
+        if (!Strings.isNullOrEmpty(queue)) {
+            options.add(ExternalProcessEnvBuilder.buildJavaParam(QUEUE, queue));
+        }
+        return String.join(" ", options);
+    }
+}
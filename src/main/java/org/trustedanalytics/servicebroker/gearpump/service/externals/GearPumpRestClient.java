@@ -0,0 +1,130 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trustedanalytics.servicebroker.gearpump.service.externals;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Strings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+/**
+ * Reads the state of a running Gearpump cluster from the REST API served behind the YARN tracking URL of its
+ * application master.
+ */
+public class GearPumpRestClient {
+    private static final Logger LOGGER = LoggerFactory.getLogger(GearPumpRestClient.class);
+
+    static final String MASTER_API = "/api/v1.0/master";
+    static final String WORKER_LIST_API = MASTER_API + "/workerlist";
+
+    private static final String NO_TRACKING_URL = "N/A";
+    private static final int API_TIMEOUT = 5000;
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final RestTemplate restTemplate;
+
+    public GearPumpRestClient() {
+        this(createRestTemplate());
+    }
+
+    public GearPumpRestClient(RestTemplate restTemplate) {
+        this.restTemplate = restTemplate;
+    }
+
+    /**
+     * @return masters as host:port separated by commas, empty while the API doesn't answer or knows no master yet
+     */
+    public Optional<String> readMasters(String trackingUrl) {
+        if (!isTrackingUrl(trackingUrl)) {
+            return Optional.empty();
+        }
+        String masterApiUrl = apiUrl(trackingUrl, MASTER_API);
+        try {
+            JsonNode cluster = OBJECT_MAPPER.readTree(restTemplate.getForObject(masterApiUrl, String.class))
+                    .path("masterDescription").path("cluster");
+            String masters = StreamSupport.stream(cluster.spliterator(), false)
+                    .map(GearPumpRestClient::toHostPort)
+                    .collect(Collectors.joining(","));
+            return masters.isEmpty() ? Optional.empty() : Optional.of(masters);
+        } catch (RestClientException | IOException e) {
+            LOGGER.debug("Gearpump REST API at {} isn't ready yet", masterApiUrl, e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Lists the workers registered with the Gearpump master, so that masters are never mistaken for workers
+     * whatever order YARN started their containers in.
+     * @return YARN containers of the workers, oldest first
+     * @throws IOException if the API doesn't answer or a worker has no YARN container
+     */
+    public List<String> readWorkerContainers(String trackingUrl) throws IOException {
+        if (!isTrackingUrl(trackingUrl)) {
+            throw new IOException("Gearpump application master has no tracking URL yet: " + trackingUrl);
+        }
+        String workerListUrl = apiUrl(trackingUrl, WORKER_LIST_API);
+        JsonNode workers;
+        try {
+            workers = OBJECT_MAPPER.readTree(restTemplate.getForObject(workerListUrl, String.class));
+        } catch (RestClientException e) {
+            throw new IOException("Cannot read the Gearpump workers from " + workerListUrl, e);
+        }
+        if (!workers.isArray()) {
+            throw new IOException("Gearpump worker list at " + workerListUrl + " is not a JSON array");
+        }
+        List<String> containers = StreamSupport.stream(workers.spliterator(), false)
+                .map(worker -> worker.path("resourceManagerContainerId").asText())
+                .sorted()
+                .collect(Collectors.toList());
+        if (containers.contains("")) {
+            throw new IOException("Gearpump worker list at " + workerListUrl + " has workers without a YARN container");
+        }
+        return containers;
+    }
+
+    private static boolean isTrackingUrl(String trackingUrl) {
+        return !Strings.isNullOrEmpty(trackingUrl) && !NO_TRACKING_URL.equals(trackingUrl);
+    }
+
+    private static String apiUrl(String trackingUrl, String api) {
+        return (trackingUrl.contains("://") ? trackingUrl : "http://" + trackingUrl).replaceAll("/+$", "") + api;
+    }
+
+    private static String toHostPort(JsonNode master) {
+        if (master.isArray()) {
+            return master.path(0).asText() + ":" + master.path(1).asInt();
+        }
+        return master.path("host").asText() + ":" + master.path("port").asInt();
+    }
+
+    private static RestTemplate createRestTemplate() {
+        SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+        requestFactory.setConnectTimeout(API_TIMEOUT);
+        requestFactory.setReadTimeout(API_TIMEOUT);
+        return new RestTemplate(requestFactory);
+    }
+}
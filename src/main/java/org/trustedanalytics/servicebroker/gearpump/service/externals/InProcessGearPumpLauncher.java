@@ -0,0 +1,238 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trustedanalytics.servicebroker.gearpump.service.externals;
+
+import com.google.common.base.Strings;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.security.Credentials;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.apache.hadoop.yarn.api.ApplicationConstants;
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.hadoop.yarn.api.records.ApplicationReport;
+import org.apache.hadoop.yarn.api.records.ApplicationSubmissionContext;
+import org.apache.hadoop.yarn.api.records.ContainerLaunchContext;
+import org.apache.hadoop.yarn.api.records.LocalResource;
+import org.apache.hadoop.yarn.api.records.Resource;
+import org.apache.hadoop.yarn.api.records.YarnApplicationState;
+import org.apache.hadoop.yarn.client.api.YarnClient;
+import org.apache.hadoop.yarn.client.api.YarnClientApplication;
+import org.apache.hadoop.yarn.conf.YarnConfiguration;
+import org.apache.hadoop.yarn.exceptions.YarnException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.trustedanalytics.servicebroker.gearpump.config.GearPumpPlan;
+import org.trustedanalytics.servicebroker.gearpump.config.GearPumpSpawnerConfig;
+import org.trustedanalytics.servicebroker.gearpump.kerberos.KerberosService;
+import org.trustedanalytics.servicebroker.gearpump.model.GearPumpCredentials;
+import org.trustedanalytics.servicebroker.gearpump.service.externals.helpers.HdfsUtils;
+import org.trustedanalytics.servicebroker.gearpump.yarn.YarnClientFactory;
+
+import javax.security.auth.login.LoginException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+/**
+ * Submits the Gearpump application master straight through the broker's YarnClient instead of
+ * forking bin/yarnclient. The Hadoop classpath, configuration and Kerberos login of the broker JVM are reused.
+ *
+ * The pack is localized from HDFS as the "pack" archive, see {@link GearPumpPackResource}. Once the application
+ * is RUNNING, the masters are read from the Gearpump REST API at the tracking URL of the application master.
+ */
+public class InProcessGearPumpLauncher implements GearPumpLauncher {
+    private static final Logger LOGGER = LoggerFactory.getLogger(InProcessGearPumpLauncher.class);
+
+    private static final String PACK_LINK_NAME = "pack";
+    private static final String APP_MASTER_CLASS = "io.gearpump.experiments.yarn.appmaster.YarnAppMaster";
+    private static final String APPLICATION_TYPE = "gearpump";
+
+    private static final EnumSet<YarnApplicationState> FAILED_STATES =
+            EnumSet.of(YarnApplicationState.FAILED, YarnApplicationState.KILLED, YarnApplicationState.FINISHED);
+
+    @Autowired
+    private YarnClientFactory yarnClientFactory;
+
+    @Autowired
+    private GearPumpSpawnerConfig gearPumpSpawnerConfig;
+
+    @Autowired
+    private HdfsUtils hdfsUtils;
+
+    @Autowired
+    private GearPumpPackResource gearPumpPackResource;
+
+    @Autowired
+    private KerberosService kerberosService;
+
+    @Autowired
+    private org.apache.hadoop.conf.Configuration yarnConfiguration;
+
+    @Autowired
+    private GearPumpRestClient gearPumpRestClient;
+
+    @Value("${gearpump.launcher.inProcess.applicationName:Gearpump}")
+    private String applicationName;
+
+    @Value("${gearpump.launcher.inProcess.amMemory:512}")
+    private int amMemory;
+
+    @Value("${gearpump.launcher.inProcess.amVcores:1}")
+    private int amVcores;
+
+    @Value("${gearpump.launcher.inProcess.startTimeout:120}")
+    private long startTimeout;
+
+    @Value("${gearpump.launcher.inProcess.pollInterval:1000}")
+    private long pollInterval;
+
+    @Override
+    public SpawnResult spawnGearPumpOnYarn(GearPumpPlan plan, Consumer<String> onApplicationId) {
+        LOGGER.info("spawnGearPumpOnYarn (in-process) plan = [" + plan + "]");
+
+        String yarnApplicationId = null;
+        String mastersUrl = null;
+        Exception resultException = null;
+
+        YarnClient yarnClient = null;
+        try {
+            yarnClient = yarnClientFactory.getYarnClient();
+            YarnClientApplication application = yarnClient.createApplication();
+            ApplicationId applicationId = application.getApplicationSubmissionContext().getApplicationId();
+            LOGGER.info("Create application, appId: {}", applicationId);
+            yarnApplicationId = applicationId.toString();
+            onApplicationId.accept(yarnApplicationId);
+
+            submitApplication(yarnClient, application, plan);
+            mastersUrl = awaitMasters(yarnClient, applicationId);
+        } catch (IOException | LoginException | YarnException e) {
+            if (yarnClient != null && YarnClientFactory.isAuthFailure(e)) {
+                // not retried here, the application may already be submitted; next launch gets a fresh client
+                yarnClientFactory.invalidate(yarnClient);
+            }
+            resultException = new ExternalProcessException("Error submitting Apache Gearpump to YARN.", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            resultException = new ExternalProcessException("Interrupted while waiting for Apache Gearpump on YARN.", e);
+        }
+
+        if (resultException != null) {
+            // a pack replaced on HDFS fails localization until its new timestamp and size are read
+            gearPumpPackResource.invalidate();
+        }
+
+        if (resultException == null && (Strings.isNullOrEmpty(mastersUrl) || Strings.isNullOrEmpty(yarnApplicationId))) {
+            resultException = new ExternalProcessException("Couldn't obtain yarn credentials.");
+        }
+
+        int status = resultException == null ? SpawnResult.STATUS_OK : SpawnResult.STATUS_ERR;
+
+        return new SpawnResult(status, new GearPumpCredentials(mastersUrl, yarnApplicationId), resultException);
+    }
+
+    private void submitApplication(YarnClient yarnClient, YarnClientApplication application, GearPumpPlan plan)
+            throws IOException, YarnException {
+        ApplicationSubmissionContext context = application.getApplicationSubmissionContext();
+
+        context.setApplicationName(applicationName);
+        context.setApplicationType(APPLICATION_TYPE);
+        context.setQueue(Strings.isNullOrEmpty(plan.getQueue()) ? gearPumpSpawnerConfig.getYarnQueue() : plan.getQueue());
+        context.setResource(Resource.newInstance(amMemory, amVcores));
+        context.setAMContainerSpec(createAmContainer(plan));
+
+        yarnClient.submitApplication(context);
+        LOGGER.info("Submitted application {}", context.getApplicationId());
+    }
+
+    private ContainerLaunchContext createAmContainer(GearPumpPlan plan) throws IOException {
+        Map<String, LocalResource> localResources = Collections.singletonMap(PACK_LINK_NAME, gearPumpPackResource.get());
+        List<String> commands = Collections.singletonList(buildAmCommand(plan));
+        return ContainerLaunchContext.newInstance(localResources, Collections.emptyMap(), commands, null, createTokens(), null);
+    }
+
+    private ByteBuffer createTokens() throws IOException {
+        if (!UserGroupInformation.isSecurityEnabled()) {
+            return null;
+        }
+        Credentials credentials = new Credentials();
+        hdfsUtils.addDelegationTokens(yarnConfiguration.get(YarnConfiguration.RM_PRINCIPAL), credentials);
+        DataOutputBuffer buffer = new DataOutputBuffer();
+        credentials.writeTokenStorageToStream(buffer);
+        return ByteBuffer.wrap(buffer.getData(), 0, buffer.getLength());
+    }
+
+    private String buildAmCommand(GearPumpPlan plan) {
+        String gearpumpHome = PACK_LINK_NAME + "/" + gearPumpSpawnerConfig.getGearPumpPackDirectory();
+        String classPath = String.join(ApplicationConstants.CLASS_PATH_SEPARATOR,
+                gearpumpHome + "/conf", gearpumpHome + "/lib/*", gearpumpHome + "/lib/yarn/*",
+                ApplicationConstants.Environment.HADOOP_CONF_DIR.$$());
+
+        StringBuilder command = new StringBuilder()
+                .append(ApplicationConstants.Environment.JAVA_HOME.$$()).append("/bin/java")
+                .append(" -Xmx").append(amMemory).append('m')
+                .append(" -cp ").append(classPath)
+                .append(" -Dgearpump.home=").append(gearpumpHome);
+
+        String kerberosOpts = kerberosService.getKerberosJavaOpts();
+        if (!Strings.isNullOrEmpty(kerberosOpts)) {
+            command.append(' ').append(kerberosOpts);
+        }
+        String planOptions = GearPumpPlanOptions.build(plan, gearPumpSpawnerConfig.getWorkersMemoryLimit(),
+                gearPumpSpawnerConfig.getYarnQueue());
+        if (!planOptions.isEmpty()) {
+            command.append(' ').append(planOptions);
+        }
+
+        command.append(' ').append(APP_MASTER_CLASS)
+                .append(" -version ").append(gearPumpSpawnerConfig.getGearPumpPackDirectory())
+                .append(" 1>").append(ApplicationConstants.LOG_DIR_EXPANSION_VAR).append("/stdout")
+                .append(" 2>").append(ApplicationConstants.LOG_DIR_EXPANSION_VAR).append("/stderr");
+
+        LOGGER.debug("Application master command: {}", command);
+        return command.toString();
+    }
+
+    private String awaitMasters(YarnClient yarnClient, ApplicationId applicationId)
+            throws IOException, YarnException, InterruptedException {
+        long deadline = System.currentTimeMillis() + startTimeout * 1000;
+
+        while (System.currentTimeMillis() < deadline) {
+            ApplicationReport report = yarnClient.getApplicationReport(applicationId);
+            YarnApplicationState state = report.getYarnApplicationState();
+            if (FAILED_STATES.contains(state)) {
+                throw new YarnException(String.format("Application %s ended in state %s: %s", applicationId, state, report.getDiagnostics()));
+            }
+
+            if (state == YarnApplicationState.RUNNING) {
+                Optional<String> masters = gearPumpRestClient.readMasters(report.getOriginalTrackingUrl());
+                if (masters.isPresent()) {
+                    LOGGER.info("Application {} is running with masters {}", applicationId, masters.get());
+                    return masters.get();
+                }
+            }
+            Thread.sleep(pollInterval);
+        }
+
+        throw new YarnException(String.format("Launch Application %s timeout...", applicationId));
+    }
+}
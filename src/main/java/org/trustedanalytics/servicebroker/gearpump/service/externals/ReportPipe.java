@@ -0,0 +1,153 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trustedanalytics.servicebroker.gearpump.service.externals;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A named pipe that yarnclient writes its launch report into. The report is parsed in a background thread while
+ * yarnclient is still running, so nothing is written to or read from disk and no report is left behind by a crash.
+ */
+class ReportPipe implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReportPipe.class);
+
+    private static final long MKFIFO_TIMEOUT_SECONDS = 5;
+    private static final int BUFFER_SIZE = 4096;
+
+    @FunctionalInterface
+    interface ReportParser {
+        String parse(Reader report) throws GearpumpOutputException;
+    }
+
+    private final File fifo;
+    private final CompletableFuture<String> masterUrl;
+
+    private ReportPipe(File fifo, ReportParser parser, Executor executor) {
+        this.fifo = fifo;
+        this.masterUrl = CompletableFuture.supplyAsync(() -> read(parser), executor);
+    }
+
+    /**
+     * @return the pipe, or empty if a FIFO can't be created here, e.g. because mkfifo is missing
+     */
+    static Optional<ReportPipe> open(File directory, ReportParser parser, Executor executor) {
+        File fifo = new File(directory, "gearpump-report-" + UUID.randomUUID() + ".fifo");
+        try {
+            Process mkfifo = new ProcessBuilder("mkfifo", "-m", "600", fifo.getAbsolutePath()).start();
+            if (!mkfifo.waitFor(MKFIFO_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                mkfifo.destroyForcibly();
+                LOGGER.warn("mkfifo {} did not finish in time", fifo);
+                return Optional.empty();
+            }
+            if (mkfifo.exitValue() != 0) {
+                LOGGER.warn("mkfifo {} failed with exit code {}", fifo, mkfifo.exitValue());
+                return Optional.empty();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Couldn't create named pipe {}", fifo, e);
+            return Optional.empty();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Optional.empty();
+        }
+        return Optional.of(new ReportPipe(fifo, parser, executor));
+    }
+
+    String getPath() {
+        return fifo.getAbsolutePath();
+    }
+
+    /**
+     * To be called once yarnclient has exited; an empty report is reported as a parse failure.
+     */
+    String awaitMasterUrl(long timeoutMillis) throws GearpumpOutputException {
+        releaseReader();
+        try {
+            return masterUrl.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+            if (cause instanceof GearpumpOutputException) {
+                throw (GearpumpOutputException) cause;
+            }
+            throw new GearpumpOutputException("Unable to read Apache Gearpump launch output report", cause);
+        } catch (TimeoutException e) {
+            throw new GearpumpOutputException("Apache Gearpump launch output report was not read in time", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GearpumpOutputException("Interrupted while reading Apache Gearpump launch output report", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        releaseReader();
+        masterUrl.cancel(true);
+        if (!fifo.delete()) {
+            LOGGER.warn("Couldn't delete named pipe {}", fifo);
+        }
+    }
+
+    private String read(ReportParser parser) {
+        try (Reader report = new InputStreamReader(new FileInputStream(fifo), StandardCharsets.UTF_8)) {
+            String result = parser.parse(report);
+            // the parser may stop early, but yarnclient would fail writing into a pipe without a reader
+            drain(report);
+            return result;
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private static void drain(Reader report) throws IOException {
+        char[] buffer = new char[BUFFER_SIZE];
+        while (report.read(buffer) != -1) {
+            // discard
+        }
+    }
+
+    /**
+     * If yarnclient never opened the pipe, the reader is still blocked in open. Opening the pipe for read and write
+     * doesn't block, and closing it again hands the reader an end of file.
+     */
+    private void releaseReader() {
+        if (masterUrl.isDone()) {
+            return;
+        }
+        try {
+            new RandomAccessFile(fifo, "rw").close();
+        } catch (IOException e) {
+            LOGGER.debug("Couldn't release reader of {}", fifo, e);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trustedanalytics.servicebroker.gearpump.service.externals.helpers;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Collects process output lines up to a character limit. When the limit is exceeded the oldest lines
+ * are dropped, so the end of the output (where errors usually are) is kept. Safe to read while the process is
+ * still writing.
+ */
+class BoundedOutputBuffer {
+
+    private final int maxSize;
+    private final Deque<String> lines = new ArrayDeque<>();
+    private int size;
+    private boolean truncated;
+
+    BoundedOutputBuffer(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    synchronized void append(String line) {
+        lines.addLast(line);
+        size += line.length() + 1;
+        while (size > maxSize && !lines.isEmpty()) {
+            size -= lines.removeFirst().length() + 1;
+            truncated = true;
+        }
+    }
+
+    synchronized boolean isTruncated() {
+        return truncated;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder output = new StringBuilder(size);
+        for (String line : lines) {
+            output.append(line).append('\n');
+        }
+        return output.toString();
+    }
+}
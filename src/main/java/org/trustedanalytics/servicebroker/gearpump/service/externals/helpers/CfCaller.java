@@ -22,10 +22,17 @@ import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.ResponseEntity;
+import org.springframework.security.oauth2.client.OAuth2RestTemplate;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.web.client.AsyncRestTemplate;
+import org.springframework.web.client.ResponseExtractor;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.util.UriTemplate;
 
 import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 public class CfCaller {
 
@@ -35,9 +42,31 @@ public class CfCaller {
     public static final String CONTENT_TYPE_HEADER = "Content-Type";
 
     private RestTemplate restTemplate;
+    private AsyncRestTemplate asyncRestTemplate;
+    private Executor tokenExecutor;
 
+    /**
+     * Async calls are served by the blocking template and return completed futures.
+     */
     public CfCaller(RestTemplate restTemplate) {
+        this(restTemplate, null);
+    }
+
+    /**
+     * The access token of async calls is fetched in the calling thread.
+     */
+    public CfCaller(RestTemplate restTemplate, AsyncRestTemplate asyncRestTemplate) {
+        this(restTemplate, asyncRestTemplate, Runnable::run);
+    }
+
+    /**
+     * @param tokenExecutor fetches the access token of async calls, which blocks when the token has to be renewed;
+     *                      async calls are often chained on the I/O threads of the async client, which must not block
+     */
+    public CfCaller(RestTemplate restTemplate, AsyncRestTemplate asyncRestTemplate, Executor tokenExecutor) {
         this.restTemplate = restTemplate;
+        this.asyncRestTemplate = asyncRestTemplate;
+        this.tokenExecutor = tokenExecutor;
     }
 
     private HttpEntity<String> createJsonRequest(String body, HttpHeaders headers) {
@@ -65,4 +94,99 @@ public class CfCaller {
         return response;
     }
 
+    /**
+     * Hands the response to the extractor while it streams in, so that a large body is never buffered in a String.
+     * Error statuses fail the call before the extractor sees them, like in {@link #executeWithHeaders}.
+     */
+    public <T> T executeWithHeaders(String url, HttpMethod method, HttpHeaders headers,
+                                    ResponseExtractor<T> responseExtractor, Object... urlVariables) {
+        HttpHeaders requestHeaders = prepareHeaders(headers == null ? new HttpHeaders() : headers);
+        URI expanded = (new UriTemplate(url)).expand(urlVariables);
+        LOGGER.info("Performing call: {}", expanded.toString());
+        return this.restTemplate.execute(url, method, request -> request.getHeaders().putAll(requestHeaders),
+                responseExtractor, urlVariables);
+    }
+
+    public CompletableFuture<ResponseEntity<String>> executeAsync(String url, HttpMethod method, String body, Object... urlVariables) {
+        return executeWithHeadersAsync(url, method, body, null, urlVariables);
+    }
+
+    /**
+     * Non-blocking variant of {@link #executeWithHeaders}. The future fails with the same exceptions the blocking
+     * call throws, e.g. {@link org.springframework.web.client.HttpClientErrorException}.
+     */
+    public CompletableFuture<ResponseEntity<String>> executeWithHeadersAsync(String url, HttpMethod method, String body,
+                                                                            HttpHeaders headers, Object... urlVariables) {
+        CompletableFuture<ResponseEntity<String>> result = new CompletableFuture<>();
+        if (asyncRestTemplate == null) {
+            try {
+                result.complete(executeWithHeaders(url, method, body, headers, urlVariables));
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+            return result;
+        }
+
+        // only a token renewal blocks, a call whose token is still valid is sent from the calling thread
+        Executor requestExecutor = needsTokenRenewal(headers) ? tokenExecutor : Runnable::run;
+        CompletableFuture.supplyAsync(() -> createJsonRequest(body, addAccessToken(headers)), requestExecutor)
+                .whenComplete((request, failure) -> {
+                    if (failure != null) {
+                        result.completeExceptionally(failure instanceof CompletionException && failure.getCause() != null
+                                ? failure.getCause() : failure);
+                    } else {
+                        exchangeAsync(url, method, request, result, urlVariables);
+                    }
+                });
+        return result;
+    }
+
+    private void exchangeAsync(String url, HttpMethod method, HttpEntity<String> request,
+                               CompletableFuture<ResponseEntity<String>> result, Object... urlVariables) {
+        try {
+            URI expanded = (new UriTemplate(url)).expand(urlVariables);
+            LOGGER.info("Performing async call: {}", expanded.toString());
+            asyncRestTemplate.exchange(url, method, request, String.class, urlVariables).addCallback(
+                    response -> {
+                        LOGGER.debug("Response status: {}", response.getStatusCode());
+                        LOGGER.debug("Response: {}", response);
+                        result.complete(response);
+                    },
+                    result::completeExceptionally);
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Waits for an async call, rethrowing the exception of a failed call unwrapped.
+     */
+    public static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private boolean needsTokenRenewal(HttpHeaders headers) {
+        if (!(restTemplate instanceof OAuth2RestTemplate) || headers != null && headers.containsKey(AUTHORIZATION_HEADER)) {
+            return false;
+        }
+        OAuth2AccessToken accessToken = ((OAuth2RestTemplate) restTemplate).getOAuth2ClientContext().getAccessToken();
+        return accessToken == null || accessToken.isExpired();
+    }
+
+    // the blocking OAuth2RestTemplate authenticates its requests itself, the async one needs the token in the headers
+    private HttpHeaders addAccessToken(HttpHeaders headers) {
+        HttpHeaders result = headers == null ? new HttpHeaders() : headers;
+        if (restTemplate instanceof OAuth2RestTemplate && !result.containsKey(AUTHORIZATION_HEADER)) {
+            OAuth2AccessToken accessToken = ((OAuth2RestTemplate) restTemplate).getAccessToken();
+            result.add(AUTHORIZATION_HEADER, String.format("%s %s", OAuth2AccessToken.BEARER_TYPE, accessToken.getValue()));
+        }
+        return result;
+    }
 }
\ No newline at end of file
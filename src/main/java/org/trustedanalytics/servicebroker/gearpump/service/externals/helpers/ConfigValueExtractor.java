@@ -0,0 +1,98 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trustedanalytics.servicebroker.gearpump.service.externals.helpers;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Pulls a single value out of a Gearpump config rendered as JSON (the format of yarnclient's launch report and of
+ * Config.root().render()), without building a tree. '#' and '//' comments are skipped inline, keys may be nested
+ * or dotted ("gearpump.cluster.masters") and parsing stops as soon as the value has been read.
+ * <p>
+ * HOCON-only syntax such as '=' separators or unquoted dotted keys isn't supported.
+ */
+public final class ConfigValueExtractor {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory()
+            .enable(JsonParser.Feature.ALLOW_COMMENTS)
+            .enable(JsonParser.Feature.ALLOW_YAML_COMMENTS)
+            .enable(JsonParser.Feature.ALLOW_UNQUOTED_FIELD_NAMES)
+            .enable(JsonParser.Feature.ALLOW_SINGLE_QUOTES)
+            .disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+
+    private ConfigValueExtractor() {
+    }
+
+    /**
+     * @param config read up to the end of the value only, and not closed
+     * @param path dotted path of the value, e.g. "gearpump.cluster.masters"
+     * @return elements of the array at path (a scalar is returned as a single element), or empty if there's none
+     */
+    public static Optional<List<String>> readStringList(Reader config, String path) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(config)) {
+            Deque<String> enclosingPaths = new ArrayDeque<>();
+            JsonToken token;
+            while ((token = parser.nextToken()) != null) {
+                if (token == JsonToken.END_OBJECT) {
+                    enclosingPaths.pollFirst();
+                } else if (token == JsonToken.FIELD_NAME) {
+                    String fieldPath = enclosingPaths.isEmpty()
+                            ? parser.getCurrentName() : enclosingPaths.peekFirst() + "." + parser.getCurrentName();
+                    JsonToken value = parser.nextToken();
+                    if (fieldPath.equals(path)) {
+                        return Optional.of(readValues(parser, value));
+                    }
+                    if (value == JsonToken.START_OBJECT && path.startsWith(fieldPath + ".")) {
+                        enclosingPaths.push(fieldPath);
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    private static List<String> readValues(JsonParser parser, JsonToken value) throws IOException {
+        List<String> values = new ArrayList<>();
+        if (value == JsonToken.START_ARRAY) {
+            JsonToken element;
+            while ((element = parser.nextToken()) != JsonToken.END_ARRAY && element != null) {
+                if (element.isScalarValue()) {
+                    values.add(parser.getValueAsString());
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } else if (value != null && value.isScalarValue()) {
+            values.add(parser.getValueAsString());
+        } else {
+            parser.skipChildren();
+        }
+        return values;
+    }
+}
@@ -16,16 +16,18 @@
 
 package org.trustedanalytics.servicebroker.gearpump.service.externals.helpers;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.trustedanalytics.servicebroker.gearpump.service.externals.ExternalProcessException;
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 
 @Service
@@ -33,31 +35,31 @@ public class ExternalProcessExecutor {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ExternalProcessExecutor.class);
 
+    static final int DEFAULT_MAX_OUTPUT_SIZE = 64 * 1024;
+
+    public static final long NO_TIMEOUT = 0;
+
+    private static final ExecutorService OUTPUT_READERS = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("external-process-output-%d").setDaemon(true).build());
+
+    @Value("${gearpump.yarnclient.maxOutputSize:" + DEFAULT_MAX_OUTPUT_SIZE + "}")
+    private int maxOutputSize = DEFAULT_MAX_OUTPUT_SIZE;
+
     private void updateEnvOfProcessBuilder(Map<String, String> processBuilderEnv, Map<String, String> properties) {
         if (properties != null) {
             processBuilderEnv.putAll(properties);
         }
     }
 
-    private void closeReader(BufferedReader reader) {
-        try {
-            if (reader != null) {
-                reader.close();
-            }
-        } catch (IOException e) {
-            LOGGER.debug("Cannot close process input stream.", e);
-        }
-    }
-
-    private void waitForProcess(Process process, String lineToRun) {
-        try {
-            process.waitFor();
-        } catch (InterruptedException e) {
-            LOGGER.error("Command '" + lineToRun + "' interrupted.", e);
-        }
-    }
-
-    public ExternalProcessExecutorResult run(String[] command, String workingDir, Map<String, String> properties) {
+    /**
+     * Starts the command and returns immediately. Each line of its output is passed to the listener as soon as it is read.
+     * Only the last {@code gearpump.yarnclient.maxOutputSize} characters of the output are kept in the result.
+     *
+     * @param timeoutMillis time after which the process (and its children) are killed, {@link #NO_TIMEOUT} to wait forever
+     * @return handle to wait for or cancel the execution
+     */
+    public ProcessExecution start(String[] command, String workingDir, Map<String, String> properties,
+                                  ProcessOutputListener listener, long timeoutMillis) throws IOException {
 
         String lineToRun = Arrays.asList(command).stream().collect(Collectors.joining(" "));
 
@@ -72,32 +74,30 @@ public class ExternalProcessExecutor {
         }
         processBuilder.redirectErrorStream(true);
 
-        StringBuilder processOutput = new StringBuilder();
-        Process process;
-        BufferedReader stdout = null;
-
-        try {
-            process = processBuilder.start();
-            stdout = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        Process process = processBuilder.start();
+        return new ProcessExecution(process, lineToRun, new BoundedOutputBuffer(maxOutputSize), listener, timeoutMillis, OUTPUT_READERS);
+    }
 
-            String line;
-            while ((line = stdout.readLine()) != null) {
-                LOGGER.debug(":::::: " + line);
-                processOutput.append(line);
-                processOutput.append('\n');
-            }
+    public ExternalProcessExecutorResult run(String[] command, String workingDir, Map<String, String> properties) {
+        return run(command, workingDir, properties, null, NO_TIMEOUT);
+    }
 
-            waitForProcess(process, lineToRun);
+    /**
+     * Runs the command and waits until it finishes, times out or the calling thread is interrupted.
+     *
+     * @see #start(String[], String, Map, ProcessOutputListener, long)
+     */
+    public ExternalProcessExecutorResult run(String[] command, String workingDir, Map<String, String> properties,
+                                             ProcessOutputListener listener, long timeoutMillis) {
+        ExternalProcessExecutorResult result;
+        try {
+            result = start(command, workingDir, properties, listener, timeoutMillis).await();
         } catch (IOException e) {
             LOGGER.error("Problem executing external process.", e);
             return new ExternalProcessExecutorResult(Integer.MIN_VALUE, "", e);
-        } finally {
-            closeReader(stdout);
         }
 
-        ExternalProcessExecutorResult result = new ExternalProcessExecutorResult(process.exitValue(), processOutput.toString(), null);
-
-        LOGGER.info("Exit value: {}", result.getExitCode());
+        LOGGER.info("Exit value: {}, status: {}", result.getExitCode(), result.getStatus());
         LOGGER.info("===================");
         return result;
     }
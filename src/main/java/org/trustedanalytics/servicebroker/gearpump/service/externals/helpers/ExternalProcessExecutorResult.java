@@ -18,11 +18,30 @@ package org.trustedanalytics.servicebroker.gearpump.service.externals.helpers;
 
 public class ExternalProcessExecutorResult {
 
+    public enum Status {
+        /** the process finished by itself, see the exit code */
+        COMPLETED,
+        /** the process could not be started */
+        FAILED_TO_START,
+        /** the process was killed because it did not finish before its deadline */
+        TIMED_OUT,
+        /** the process was killed on request of the caller */
+        CANCELLED
+    }
+
+    private static final int MAX_OUTPUT_IN_TO_STRING = 255;
+
     private final String output;
     private final int exitCode;
     private final Exception exception;
+    private final Status status;
 
     public ExternalProcessExecutorResult(int exitCode, String output, Exception exception) {
+        this(exception == null ? Status.COMPLETED : Status.FAILED_TO_START, exitCode, output, exception);
+    }
+
+    public ExternalProcessExecutorResult(Status status, int exitCode, String output, Exception exception) {
+        this.status = status;
         this.exitCode = exitCode;
         this.output = output;
         this.exception = exception;
@@ -40,11 +59,16 @@ public class ExternalProcessExecutorResult {
         return exception;
     }
 
+    public Status getStatus() {
+        return status;
+    }
+
     @Override
     public String toString() {
         return "ExternalProcessExecutorResult{" +
-                "exception=" + exception +
-                ", output='" + ( output != null ? output.substring(1, 255) : "" ) + '\'' +
+                "status=" + status +
+                ", exception=" + exception +
+                ", output='" + ( output != null ? output.substring(0, Math.min(output.length(), MAX_OUTPUT_IN_TO_STRING)) : "" ) + '\'' +
                 ", exitCode=" + exitCode +
                 '}';
     }
@@ -17,10 +17,18 @@
 package org.trustedanalytics.servicebroker.gearpump.service.externals.helpers;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileContext;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Options;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.permission.FsAction;
 import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.security.Credentials;
+import org.apache.hadoop.security.UserGroupInformation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -30,9 +38,13 @@ import org.trustedanalytics.servicebroker.gearpump.kerberos.KerberosService;
 
 import javax.annotation.PostConstruct;
 import javax.security.auth.login.LoginException;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.security.PrivilegedExceptionAction;
+import java.util.UUID;
 
 @Service
 public class HdfsUtils {
@@ -40,6 +52,8 @@ public class HdfsUtils {
 
     private FileSystem hdfsFs;
 
+    private FileContext hdfsContext;
+
     @Value("${hdfs.uri}")
     private String hdfsUri;
 
@@ -73,6 +87,9 @@ public class HdfsUtils {
         String user = kerberosService.getKerberosProperties().getUser();
         hdfsFs = FileSystem.get(new URI(hdfsUri), hadoopConfiguration, user);
         hdfsFs.setWorkingDirectory(new Path(this.hdfsUri));
+        // FileContext binds the user it was created by, like FileSystem.get(uri, conf, user) does
+        hdfsContext = UserGroupInformation.getBestUGI(null, user).doAs(
+                (PrivilegedExceptionAction<FileContext>) () -> FileContext.getFileContext(hdfsFs.getUri(), hadoopConfiguration));
     }
 
     public boolean exists(String name) throws IOException {
@@ -109,6 +126,50 @@ public class HdfsUtils {
         hdfsFs.copyFromLocalFile(localFilePath, hdfsFilePath);
     }
 
+    /**
+     * Copies the file to a temporary path next to remotePath and renames it into place, replacing an existing file
+     * in the same NameNode operation, so that readers never see a partially written or missing file.
+     */
+    public void uploadAtomically(String localPath, String remotePath) throws IOException {
+        Path hdfsFilePath = new Path(makeLocal(remotePath));
+        Path tempPath = new Path(makeLocal(remotePath) + "._COPYING_" + UUID.randomUUID());
+        LOGGER.info("Uploading {} to {} through {}.", localPath, hdfsFilePath.toUri(), tempPath.toUri());
+        try {
+            hdfsFs.copyFromLocalFile(false, true, new Path(localPath), tempPath);
+            hdfsContext.rename(hdfsFs.makeQualified(tempPath), hdfsFs.makeQualified(hdfsFilePath), Options.Rename.OVERWRITE);
+        } finally {
+            if (hdfsFs.exists(tempPath)) {
+                hdfsFs.delete(tempPath, false);
+            }
+        }
+    }
+
+    public String readText(String name) throws IOException {
+        try (FSDataInputStream in = hdfsFs.open(new Path(makeLocal(name)))) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            IOUtils.copyBytes(in, out, 4096, false);
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    public void writeText(String name, String text) throws IOException {
+        try (FSDataOutputStream out = hdfsFs.create(new Path(makeLocal(name)), true)) {
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    public void delete(String name) throws IOException {
+        hdfsFs.delete(new Path(makeLocal(name)), false);
+    }
+
+    public FileStatus getFileStatus(String name) throws IOException {
+        return hdfsFs.getFileStatus(new Path(makeLocal(name)));
+    }
+
+    public void addDelegationTokens(String renewer, Credentials credentials) throws IOException {
+        hdfsFs.addDelegationTokens(renewer, credentials);
+    }
+
     public static String makeLocal(String path) {
         return path.startsWith("/") ? path.substring(1) : path;
     }
@@ -0,0 +1,190 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trustedanalytics.servicebroker.gearpump.service.externals.helpers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Handle to an external process started by {@link ExternalProcessExecutor}. The process is killed together with
+ * its children when the deadline passes, when {@link #cancel()} is called or when the thread waiting in {@link #await()}
+ * is interrupted.
+ */
+public class ProcessExecution {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ProcessExecution.class);
+
+    private static final long OUTPUT_DRAIN_TIMEOUT_MILLIS = 5000;
+    private static final long KILL_CHILDREN_TIMEOUT_MILLIS = 5000;
+
+    private final Process process;
+    private final String lineToRun;
+    private final BoundedOutputBuffer output;
+    private final ProcessOutputListener listener;
+    private final long deadlineNanos;
+    private final long timeoutMillis;
+    private final Future<?> outputReader;
+
+    private volatile boolean cancelled;
+
+    ProcessExecution(Process process, String lineToRun, BoundedOutputBuffer output, ProcessOutputListener listener,
+                     long timeoutMillis, ExecutorService outputReaders) {
+        this.process = process;
+        this.lineToRun = lineToRun;
+        this.output = output;
+        this.listener = listener;
+        this.timeoutMillis = timeoutMillis;
+        this.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.outputReader = outputReaders.submit(this::readOutput);
+    }
+
+    /**
+     * Kills the process. A thread waiting in {@link #await()} gets a {@link ExternalProcessExecutorResult.Status#CANCELLED} result.
+     */
+    public void cancel() {
+        if (process.isAlive()) {
+            LOGGER.info("Cancelling command '{}'", lineToRun);
+            cancelled = true;
+            destroyProcessTree();
+        }
+    }
+
+    public boolean isDone() {
+        return !process.isAlive();
+    }
+
+    /**
+     * Waits for the process to finish, but not longer than its deadline. If the waiting thread is interrupted,
+     * the process is killed and the interrupt flag is kept set.
+     */
+    public ExternalProcessExecutorResult await() {
+        ExternalProcessExecutorResult.Status status;
+        Exception exception = null;
+        try {
+            if (waitForProcess()) {
+                status = cancelled ? ExternalProcessExecutorResult.Status.CANCELLED : ExternalProcessExecutorResult.Status.COMPLETED;
+            } else {
+                LOGGER.warn("Command '{}' did not finish within {} ms, killing it.", lineToRun, timeoutMillis);
+                status = ExternalProcessExecutorResult.Status.TIMED_OUT;
+                exception = new TimeoutException(String.format("Command timed out after %d ms", timeoutMillis));
+            }
+        } catch (InterruptedException e) {
+            LOGGER.warn("Command '{}' interrupted, killing it.", lineToRun);
+            Thread.currentThread().interrupt();
+            status = ExternalProcessExecutorResult.Status.CANCELLED;
+            exception = e;
+        }
+
+        if (status == ExternalProcessExecutorResult.Status.COMPLETED) {
+            drainOutput();
+            return new ExternalProcessExecutorResult(status, process.exitValue(), output.toString(), null);
+        }
+
+        destroyProcessTree();
+        if (exception == null) {
+            exception = new CancellationException("Command cancelled");
+        }
+        return new ExternalProcessExecutorResult(status, Integer.MIN_VALUE, output.toString(), exception);
+    }
+
+    private boolean waitForProcess() throws InterruptedException {
+        if (timeoutMillis <= ExternalProcessExecutor.NO_TIMEOUT) {
+            process.waitFor();
+            return true;
+        }
+        return process.waitFor(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    private void readOutput() {
+        try (BufferedReader stdout = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = stdout.readLine()) != null) {
+                LOGGER.debug(":::::: " + line);
+                output.append(line);
+                if (listener != null) {
+                    notifyListener(line);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.debug("Stopped reading output of '{}'.", lineToRun, e);
+        }
+        if (output.isTruncated()) {
+            LOGGER.info("Output of '{}' exceeded its limit, only its end is kept.", lineToRun);
+        }
+    }
+
+    private void notifyListener(String line) {
+        try {
+            listener.onLine(line);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Process output listener failed.", e);
+        }
+    }
+
+    private void drainOutput() {
+        try {
+            outputReader.get(OUTPUT_DRAIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            LOGGER.warn("Output of '{}' was not fully read.", lineToRun, e);
+        }
+    }
+
+    /**
+     * Java 8 has no portable way to walk a process tree, so the direct children are killed with pkill
+     * (bin/yarnclient is a shell script that starts the JVM) and then the process itself.
+     */
+    private void destroyProcessTree() {
+        getPid().ifPresent(this::killChildren);
+        process.destroyForcibly();
+    }
+
+    private void killChildren(long pid) {
+        try {
+            Process pkill = new ProcessBuilder("pkill", "-KILL", "-P", String.valueOf(pid)).start();
+            pkill.waitFor(KILL_CHILDREN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (IOException e) {
+            LOGGER.warn("Cannot kill children of process {}.", pid, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Optional<Long> getPid() {
+        try {
+            Field pid = process.getClass().getDeclaredField("pid");
+            pid.setAccessible(true);
+            return Optional.of(pid.getLong(process));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.debug("Cannot determine pid of '{}'.", lineToRun, e);
+            return Optional.empty();
+        }
+    }
+}
@@ -18,33 +18,22 @@ package org.trustedanalytics.servicebroker.gearpump.service.file;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-import java.io.*;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
 
 
 @Service
 public class FileReaderService {
 
     @Autowired
-    private FileService fileService;
+    private FileService fileService = new FileService();
 
-    private String readData(BufferedReader input) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        String line;
-
-        while ((line = input.readLine()) != null) {
-            if (!line.trim().startsWith("#")) {
-                sb.append(line);
-            }
-        }
-
-        return sb.toString();
-    }
-
-    public String read(String filePath) throws IOException {
-        fileService.setFilePath(filePath);
-        try (BufferedReader reader = new BufferedReader(fileService.getFileReader())) {
-            return readData(reader);
-        }
+    /**
+     * @return buffered reader of the file, to be closed by the caller
+     */
+    public Reader open(String filePath) throws IOException {
+        return new BufferedReader(fileService.getFileReader(filePath));
     }
 
 }
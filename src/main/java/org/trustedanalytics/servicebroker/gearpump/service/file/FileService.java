@@ -19,40 +19,37 @@ import org.springframework.stereotype.Service;
 
 import java.io.*;
 
+/**
+ * Stateless file operations; every call names the file it works on, so the singleton can be shared by concurrent
+ * provisions.
+ */
 @Service
 class FileService {
 
-    private File file;
-
-    public void setFilePath(String path) {
-        file = new File(path);
-    }
-
-    public boolean isExists() {
-        return file.exists();
-    }
-
-    public void createDirectories() {
-        file.mkdirs();
+    public boolean exists(String path) {
+        return new File(path).exists();
     }
 
-    public void createPrentDirectories() {
-        file.getParentFile().mkdirs();
+    public void createDirectories(String path) {
+        new File(path).mkdirs();
     }
 
-    public OutputStream getOutputStream() throws FileNotFoundException {
-        return new FileOutputStream(file);
+    public void createParentDirectories(String path) {
+        File parent = new File(path).getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
     }
 
-    public Reader getFileReader() throws FileNotFoundException {
-        return new FileReader(file);
+    public OutputStream getOutputStream(String path) throws FileNotFoundException {
+        return new FileOutputStream(path);
     }
 
-    public boolean deleteFile() {
-        return file.delete();
+    public Reader getFileReader(String path) throws FileNotFoundException {
+        return new FileReader(path);
     }
 
-    public String getOutputName() {
-        return file.getName();
+    public boolean deleteFile(String path) {
+        return new File(path).delete();
     }
 }
@@ -29,47 +29,41 @@ public class FileWriterService {
 
     private static final int BUFFER = 2048;
 
-    private boolean shouldOverride;
-
     @Autowired
-    private FileService fileWriter;
-
-    public FileWriterService withOverride(boolean shouldOverride) {
-        this.shouldOverride = shouldOverride;
-        return this;
-    }
-
-    public FileWriterService intoDestination(String destinationDir) {
-        fileWriter.setFilePath(destinationDir);
-        return this;
-    }
+    private FileService fileWriter = new FileService();
 
-    public boolean writeToFile(InputStream inputStream, boolean isDirectory) throws IOException {
-        if (isOutputExists() && !shouldOverride) {
-            LOGGER.info("File {} exists and won't be overriden.", fileWriter.getOutputName());
+    /**
+     * @param destination path of the file or directory to create
+     * @param shouldOverride whether an existing destination may be overwritten
+     * @return false if the destination exists and mustn't be overwritten
+     */
+    public boolean writeToFile(String destination, InputStream inputStream, boolean isDirectory, boolean shouldOverride)
+            throws IOException {
+        if (isOutputExists(destination) && !shouldOverride) {
+            LOGGER.info("File {} exists and won't be overriden.", destination);
             return false;
         }
         if (isDirectory) {
-            fileWriter.createDirectories();
+            fileWriter.createDirectories(destination);
         } else {
-            fileWriter.createPrentDirectories();
-            writeData(inputStream);
+            fileWriter.createParentDirectories(destination);
+            writeData(destination, inputStream);
         }
         return true;
     }
 
-    public boolean isOutputExists() {
-        return fileWriter.isExists();
+    public boolean isOutputExists(String path) {
+        return fileWriter.exists(path);
     }
 
-    public boolean delete() {
-        return fileWriter.deleteFile();
+    public boolean delete(String path) {
+        return fileWriter.deleteFile(path);
     }
 
-    private void writeData(InputStream inputStream) throws IOException {
+    private void writeData(String destination, InputStream inputStream) throws IOException {
         int count;
         byte[] data = new byte[BUFFER];
-        OutputStream fos = fileWriter.getOutputStream();
+        OutputStream fos = fileWriter.getOutputStream(destination);
         try(BufferedOutputStream dest = new BufferedOutputStream(fos, BUFFER)){
             while ((count = inputStream.read(data, 0, BUFFER)) != -1) {
                 dest.write(data, 0, count);
@@ -0,0 +1,86 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.trustedanalytics.servicebroker.gearpump.service.health;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Result of checking every dependency of the broker; serialized as the body of /api/healthz/deep.
+ */
+public class DeepHealth {
+
+    public static final String UP = "UP";
+    public static final String DOWN = "DOWN";
+
+    private final Map<String, Check> checks;
+    private final Instant checkedAt;
+
+    DeepHealth(Map<String, Check> checks, Instant checkedAt) {
+        this.checks = Collections.unmodifiableMap(checks);
+        this.checkedAt = checkedAt;
+    }
+
+    @JsonIgnore
+    public boolean isUp() {
+        return checks.values().stream().allMatch(check -> UP.equals(check.getStatus()));
+    }
+
+    public String getStatus() {
+        return isUp() ? UP : DOWN;
+    }
+
+    public String getCheckedAt() {
+        return checkedAt.toString();
+    }
+
+    Instant getCheckedAtInstant() {
+        return checkedAt;
+    }
+
+    public Map<String, Check> getChecks() {
+        return checks;
+    }
+
+    public static class Check {
+        private final String status;
+        private final long latencyMs;
+        private final String error;
+
+        Check(String status, long latencyMs, String error) {
+            this.status = status;
+            this.latencyMs = latencyMs;
+            this.error = error;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        public long getLatencyMs() {
+            return latencyMs;
+        }
+
+        public String getError() {
+            return error;
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.trustedanalytics.servicebroker.gearpump.service.health;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.curator.framework.CuratorFramework;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.RestTemplate;
+import org.trustedanalytics.servicebroker.gearpump.config.GearPumpSpawnerConfig;
+import org.trustedanalytics.servicebroker.gearpump.service.externals.helpers.HdfsUtils;
+import org.trustedanalytics.servicebroker.gearpump.service.prerequisities.PrerequisitesCheckingService;
+import org.trustedanalytics.servicebroker.gearpump.yarn.YarnClientFactory;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Checks ZooKeeper, the Gearpump pack on HDFS (down until its upload has finished), the YARN ResourceManager, UAA and the TAP API concurrently, each
+ * bounded by gearpump.health.timeout. The result is cached for gearpump.health.ttl seconds, so frequent probes
+ * don't turn into load on those dependencies. A check that outlasts its timeout keeps running, and no new check of
+ * that dependency is started until it ends. UAA and the TAP API are only checked if their endpoints are configured.
+ */
+@Service
+public class DeepHealthService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeepHealthService.class);
+
+    static final String ZOOKEEPER = "zookeeper";
+    static final String HDFS = "hdfs";
+    static final String YARN = "yarn";
+    static final String UAA = "uaa";
+    static final String TAP_API = "tapApi";
+
+    @Value("${gearpump.health.ttl:10}")
+    private long ttl = 10;
+
+    @Value("${gearpump.health.timeout:2000}")
+    private long timeout = 2000;
+
+    @Value("${uaa.endpoint:}")
+    private String uaaEndpoint;
+
+    @Value("${tap.api.endpoint:}")
+    private String tapApiEndpoint;
+
+    private final CuratorFramework curatorFramework;
+    private final HdfsUtils hdfsUtils;
+    private final GearPumpSpawnerConfig gearPumpSpawnerConfig;
+    private final YarnClientFactory yarnClientFactory;
+    private final PrerequisitesCheckingService prerequisitesCheckingService;
+    private final RestTemplate restTemplate;
+
+    // one check per dependency runs at a time, so a thread for each of them is enough
+    private static final int CHECK_THREADS = 5;
+
+    private final ExecutorService checkExecutor = Executors.newFixedThreadPool(CHECK_THREADS,
+            new ThreadFactoryBuilder().setNameFormat("health-check-%d").setDaemon(true).build());
+
+    // the interrupt of Future.cancel doesn't reach a CompletableFuture's task, so a hung check is remembered instead
+    private final Map<String, CompletableFuture<DeepHealth.Check>> inFlight = new ConcurrentHashMap<>();
+
+    private volatile DeepHealth cached;
+
+    @FunctionalInterface
+    interface HealthCheck {
+        void run() throws Exception;
+    }
+
+    /**
+     * @param pooledRequestFactory reuses the connections to UAA and the TAP API the broker keeps open anyway
+     */
+    @Autowired
+    public DeepHealthService(CuratorFramework curatorFramework, HdfsUtils hdfsUtils,
+                             GearPumpSpawnerConfig gearPumpSpawnerConfig, YarnClientFactory yarnClientFactory,
+                             PrerequisitesCheckingService prerequisitesCheckingService,
+                             ClientHttpRequestFactory pooledRequestFactory) {
+        this.curatorFramework = curatorFramework;
+        this.hdfsUtils = hdfsUtils;
+        this.gearPumpSpawnerConfig = gearPumpSpawnerConfig;
+        this.yarnClientFactory = yarnClientFactory;
+        this.prerequisitesCheckingService = prerequisitesCheckingService;
+        this.restTemplate = new RestTemplate(pooledRequestFactory);
+    }
+
+    /**
+     * @return cached result if it is younger than the TTL, otherwise the result of a fresh round of checks
+     */
+    public DeepHealth getHealth() {
+        DeepHealth current = cached;
+        if (isFresh(current)) {
+            return current;
+        }
+        synchronized (this) {
+            current = cached;
+            if (!isFresh(current)) {
+                current = runChecks(getChecks());
+                cached = current;
+            }
+            return current;
+        }
+    }
+
+    DeepHealth runChecks(Map<String, HealthCheck> checks) {
+        Map<String, CompletableFuture<DeepHealth.Check>> running = new LinkedHashMap<>();
+        Map<String, Boolean> carriedOver = new LinkedHashMap<>();
+        checks.forEach((name, check) -> {
+            CompletableFuture<DeepHealth.Check> previous = inFlight.get(name);
+            carriedOver.put(name, previous != null);
+            running.put(name, previous != null ? previous : start(name, check));
+        });
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        Map<String, DeepHealth.Check> results = new LinkedHashMap<>();
+        running.forEach((name, future) -> results.put(name, await(name, future, deadline, carriedOver.get(name))));
+        return new DeepHealth(results, Instant.now());
+    }
+
+    private CompletableFuture<DeepHealth.Check> start(String name, HealthCheck check) {
+        CompletableFuture<DeepHealth.Check> future = CompletableFuture.supplyAsync(() -> timed(check), checkExecutor);
+        inFlight.put(name, future);
+        future.whenComplete((result, e) -> inFlight.remove(name, future));
+        return future;
+    }
+
+    private DeepHealth.Check await(String name, CompletableFuture<DeepHealth.Check> future, long deadline,
+                                   boolean carriedOver) {
+        try {
+            return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            if (carriedOver) {
+                LOGGER.warn("Health check {} started by an earlier probe is still running", name);
+                return new DeepHealth.Check(DeepHealth.DOWN, timeout, "still running");
+            }
+            LOGGER.warn("Health check {} timed out after {} ms", name, timeout);
+            return new DeepHealth.Check(DeepHealth.DOWN, timeout, "timed out");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new DeepHealth.Check(DeepHealth.DOWN, timeout, "interrupted");
+        } catch (ExecutionException e) {
+            return new DeepHealth.Check(DeepHealth.DOWN, 0, String.valueOf(e.getCause()));
+        }
+    }
+
+    private static DeepHealth.Check timed(HealthCheck check) {
+        long start = System.nanoTime();
+        try {
+            check.run();
+            return new DeepHealth.Check(DeepHealth.UP, elapsedMillis(start), null);
+        } catch (Exception e) {
+            LOGGER.debug("Health check failed", e);
+            return new DeepHealth.Check(DeepHealth.DOWN, elapsedMillis(start), e.toString());
+        }
+    }
+
+    private Map<String, HealthCheck> getChecks() {
+        ImmutableMap.Builder<String, HealthCheck> checks = ImmutableMap.<String, HealthCheck>builder()
+                .put(ZOOKEEPER, this::checkZookeeper)
+                .put(HDFS, this::checkGearpumpPack)
+                .put(YARN, this::checkResourceManager);
+        // an endpoint left empty is no dependency of this deployment, so it must not take the broker down
+        if (!Strings.isNullOrEmpty(uaaEndpoint)) {
+            checks.put(UAA, () -> checkReachable(uaaEndpoint));
+        }
+        if (!Strings.isNullOrEmpty(tapApiEndpoint)) {
+            checks.put(TAP_API, () -> checkReachable(tapApiEndpoint));
+        }
+        return checks.build();
+    }
+
+    private void checkZookeeper() throws Exception {
+        if (!curatorFramework.getZookeeperClient().isConnected()) {
+            throw new IOException("Not connected to ZooKeeper");
+        }
+        curatorFramework.checkExists().forPath("/");
+    }
+
+    private void checkGearpumpPack() throws IOException {
+        String packPath = gearPumpSpawnerConfig.getHdfsGearPumpPackPath();
+        if (!prerequisitesCheckingService.isGearpumpPackReady()) {
+            throw new IOException("Gearpump pack at " + packPath + " is still being verified or uploaded");
+        }
+        if (!hdfsUtils.exists(packPath)) {
+            throw new IOException("Gearpump pack not found at " + packPath);
+        }
+    }
+
+    private void checkResourceManager() throws Exception {
+        yarnClientFactory.execute(yarnClient -> yarnClient.getYarnClusterMetrics());
+    }
+
+    /**
+     * Any HTTP response, even an error status, proves the endpoint is reachable. The wait for it is bounded by the
+     * health timeout, the request itself by the timeouts of the pooled client.
+     */
+    private void checkReachable(String endpoint) {
+        try {
+            restTemplate.headForHeaders(endpoint);
+        } catch (HttpStatusCodeException e) {
+            LOGGER.debug("{} answered {}", endpoint, e.getStatusCode());
+        }
+    }
+
+    private boolean isFresh(DeepHealth health) {
+        return health != null && health.getCheckedAtInstant().plus(Duration.ofSeconds(ttl)).isAfter(Instant.now());
+    }
+
+    private static long elapsedMillis(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        checkExecutor.shutdownNow();
+    }
+}
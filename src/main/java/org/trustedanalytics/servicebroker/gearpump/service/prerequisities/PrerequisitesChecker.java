@@ -16,6 +16,8 @@
 
 package org.trustedanalytics.servicebroker.gearpump.service.prerequisities;
 
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -23,6 +25,7 @@ import org.springframework.stereotype.Service;
 import org.trustedanalytics.servicebroker.gearpump.config.GearPumpSpawnerConfig;
 import org.trustedanalytics.servicebroker.gearpump.service.externals.helpers.HdfsUtils;
 
+import java.io.File;
 import java.io.IOException;
 
 @Service
@@ -64,28 +67,70 @@ class PrerequisitesChecker {
         LOGGER.info("HDFS directory for GearPump archive exists.");
     }
 
+    /**
+     * Uploads the local pack unless HDFS already holds a complete copy of it. A copy counts as complete only when its
+     * size matches and its sidecar checksum equals the SHA-256 of the local pack; the sidecar is written after the
+     * pack has been renamed into place, so an interrupted upload never leaves a matching one behind.
+     */
     void ensureGearpumpArchiveExistsOnHdfs() {
+        String localPath = gearPumpSpawnerConfig.getGearPumpPackName();
         String hdfsFilePath = gearPumpSpawnerConfig.getHdfsGearPumpPackPath();
+        String checksumPath = getChecksumPath(hdfsFilePath);
         LOGGER.info("Checking if the archive ({}) is stored in hdfs", hdfsFilePath);
-        boolean hdfsFileExists;
+
+        File localPack = new File(localPath);
+        String localChecksum;
+        try {
+            localChecksum = Files.hash(localPack, Hashing.sha256()).toString();
+        } catch (IOException e) {
+            LOGGER.error("Error computing the checksum of the local archive.", e);
+            throw new PrerequisitesException("Error computing the checksum of the local archive.", e);
+        }
+
+        boolean upToDate;
         try {
-            hdfsFileExists = hdfsUtils.exists(hdfsFilePath);
+            upToDate = isUpToDate(hdfsFilePath, checksumPath, localPack.length(), localChecksum);
         } catch (IOException e) {
             LOGGER.error("Error checking the archive presence.", e);
             throw new PrerequisitesException("Error checking the archive presence.", e);
         }
 
-        if (!hdfsFileExists) {
+        if (!upToDate) {
             try {
-                LOGGER.info("The archive is not on HDFS. Uploading it now...", hdfsFilePath);
-                hdfsUtils.upload(gearPumpSpawnerConfig.getGearPumpPackName(), hdfsFilePath);
+                LOGGER.info("The archive on HDFS is missing or stale. Uploading it now...");
+                if (hdfsUtils.exists(checksumPath)) {
+                    hdfsUtils.delete(checksumPath);
+                }
+                hdfsUtils.uploadAtomically(localPath, hdfsFilePath);
                 // make sure VCAP user can use this file
                 hdfsUtils.elevatePermissions(hdfsFilePath);
+                hdfsUtils.writeText(checksumPath, localChecksum);
+                hdfsUtils.elevatePermissions(checksumPath);
             } catch (IOException e) {
                 LOGGER.error("Error uploading archive.", e);
                 throw new PrerequisitesException("Error uploading archive.", e);
             }
         }
-        LOGGER.info("Archive IS stored in hdfs");
+        LOGGER.info("Archive IS stored in hdfs, sha256: {}", localChecksum);
+    }
+
+    private boolean isUpToDate(String hdfsFilePath, String checksumPath, long localLength, String localChecksum) throws IOException {
+        if (!hdfsUtils.exists(hdfsFilePath) || !hdfsUtils.exists(checksumPath)) {
+            return false;
+        }
+        if (hdfsUtils.getFileStatus(hdfsFilePath).getLen() != localLength) {
+            LOGGER.warn("Size of the archive on HDFS differs from the local one.");
+            return false;
+        }
+        String remoteChecksum = hdfsUtils.readText(checksumPath).trim();
+        if (!localChecksum.equalsIgnoreCase(remoteChecksum)) {
+            LOGGER.warn("Checksum of the archive on HDFS ({}) differs from the local one ({}).", remoteChecksum, localChecksum);
+            return false;
+        }
+        return true;
+    }
+
+    static String getChecksumPath(String hdfsFilePath) {
+        return hdfsFilePath + ".sha256";
     }
 }
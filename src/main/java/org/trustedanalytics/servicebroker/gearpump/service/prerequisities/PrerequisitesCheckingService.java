@@ -16,19 +16,42 @@
 
 package org.trustedanalytics.servicebroker.gearpump.service.prerequisities;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ApplicationListener;
 import org.springframework.context.event.ContextRefreshedEvent;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PreDestroy;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Makes sure the Gearpump pack is on HDFS without blocking startup: the check and a possible upload run in the
+ * background, and are retried every gearpump.pack.uploadRetryDelay seconds until they succeed. Until then
+ * {@link #isGearpumpPackReady()} is false and the broker reports itself as not ready.
+ */
 @Service
 public class PrerequisitesCheckingService implements ApplicationListener<ContextRefreshedEvent> {
     private static final Logger LOGGER = LoggerFactory.getLogger(PrerequisitesCheckingService.class);
 
+    @Value("${gearpump.pack.uploadRetryDelay:60}")
+    private long uploadRetryDelay = 60;
+
     private final PrerequisitesChecker prerequisitesChecker;
 
+    private final ScheduledExecutorService checkExecutor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("prerequisites-check-%d").setDaemon(true).build());
+
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    private volatile boolean gearpumpPackReady;
+
     @Autowired
     public PrerequisitesCheckingService(PrerequisitesChecker prerequisitesChecker) {
         this.prerequisitesChecker = prerequisitesChecker;
@@ -37,11 +60,35 @@ public class PrerequisitesCheckingService implements ApplicationListener<Context
     @Override
     public void onApplicationEvent(ContextRefreshedEvent contextRefreshedEvent) {
         LOGGER.info("contextRefreshedEvent = [ {} ]", contextRefreshedEvent);
-        checkPrerequisites();
+        // the event is published again for every refreshed child context
+        if (started.compareAndSet(false, true)) {
+            checkExecutor.execute(this::checkPrerequisites);
+        }
+    }
+
+    /**
+     * @return true once the Gearpump pack on HDFS has been verified or uploaded
+     */
+    public boolean isGearpumpPackReady() {
+        return gearpumpPackReady;
+    }
+
+    void checkPrerequisites() {
+        try {
+            prerequisitesChecker.ensureHdfsDirectoryExists();
+            prerequisitesChecker.ensureGearpumpArchiveExistsOnHdfs();
+            gearpumpPackReady = true;
+        } catch (RuntimeException e) {
+            if (checkExecutor.isShutdown()) {
+                return;
+            }
+            LOGGER.error("Gearpump pack is not ready, retrying in {} seconds", uploadRetryDelay, e);
+            checkExecutor.schedule(this::checkPrerequisites, uploadRetryDelay, TimeUnit.SECONDS);
+        }
     }
 
-    private void checkPrerequisites() {
-        prerequisitesChecker.ensureHdfsDirectoryExists();
-        prerequisitesChecker.ensureGearpumpArchiveExistsOnHdfs();
+    @PreDestroy
+    public void shutdown() {
+        checkExecutor.shutdownNow();
     }
 }
@@ -15,18 +15,35 @@
  */
 package org.trustedanalytics.servicebroker.gearpump.yarn;
 
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.hadoop.yarn.api.records.NodeState;
+import org.apache.hadoop.yarn.api.records.QueueInfo;
 import org.apache.hadoop.yarn.client.api.YarnClient;
 import org.apache.hadoop.yarn.exceptions.ApplicationNotFoundException;
 import org.apache.hadoop.yarn.exceptions.YarnException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.trustedanalytics.servicebroker.gearpump.config.GearPumpPlan;
+import org.trustedanalytics.servicebroker.gearpump.metrics.StageMetrics;
 
+import javax.annotation.PreDestroy;
 import javax.security.auth.login.LoginException;
 import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @Configuration
 public class YarnAppManager {
@@ -36,6 +53,42 @@ public class YarnAppManager {
     @Autowired
     private YarnClientFactory yarnClientFactory;
 
+    @Autowired
+    private StageMetrics stageMetrics = StageMetrics.NOOP;
+
+    @Value("${gearpump.yarn.queue:default}")
+    private String queueName = "default";
+
+    @Value("${gearpump.yarn.capacity.check:true}")
+    private boolean capacityCheckEnabled = true;
+
+    @Value("${gearpump.yarn.capacity.refreshInterval:30}")
+    private long capacityRefreshInterval = 30;
+
+    @Value("${gearpump.yarn.capacity.workerMemory:1024}")
+    private int workerMemory = 1024;
+
+    @Value("${workers.memorylimit:}")
+    private String workersMemoryLimit = "";
+
+    @Value("${gearpump.yarn.capacity.masters:1}")
+    private int masters = 1;
+
+    @Value("${gearpump.yarn.capacity.masterMemory:1024}")
+    private int masterMemory = 1024;
+
+    @Value("${gearpump.yarn.capacity.amMemory:1024}")
+    private int amMemory = 1024;
+
+    private volatile YarnCapacity capacity;
+
+    private final Object capacityLock = new Object();
+
+    private final AtomicBoolean refreshScheduled = new AtomicBoolean();
+
+    private final ScheduledExecutorService capacityRefresher = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("yarn-capacity-refresh-%d").setDaemon(true).build());
+
     @Bean
     public YarnAppManager yarnAppManager() {
         return new YarnAppManager();
@@ -48,21 +101,142 @@ public class YarnAppManager {
      */
     public void killApplication(String applicationId) throws YarnException {
         if (applicationId != null) {
-            try (YarnClient yarnClient = getYarnClient()) {
-                yarnClient.killApplication(getApplicationId(applicationId));
+            ApplicationId yarnApplicationId = getApplicationId(applicationId);
+            StageMetrics.Sample sample = stageMetrics.start(StageMetrics.YARN_KILL);
+            boolean success = false;
+            try {
+                yarnClientFactory.execute(yarnClient -> {
+                    yarnClient.killApplication(yarnApplicationId);
+                    return null;
+                });
+                success = true;
             } catch (ApplicationNotFoundException anfe) {
                 LOGGER.warn(String.format("Haven't found application %s. Assuming it was removed manually.", applicationId), anfe);
+                success = true;
             } catch (IOException | LoginException e) {
                 throw new YarnException("YARN error during application removal.", e);
+            } finally {
+                sample.stop(success);
             }
         }
     }
 
-    private ApplicationId getApplicationId(String applicationId) throws IOException {
-        return new YarnAppIdParser(applicationId).getApplicationId();
+    /**
+     * @param applicationId should be in format application_1449093574559_0004
+     * @return tracking URL of the application master, where the Gearpump REST API is served
+     */
+    public String getTrackingUrl(String applicationId) throws YarnException {
+        ApplicationId yarnApplicationId = getApplicationId(applicationId);
+        try {
+            return yarnClientFactory.execute(yarnClient ->
+                    yarnClient.getApplicationReport(yarnApplicationId).getOriginalTrackingUrl());
+        } catch (IOException | LoginException e) {
+            throw new YarnException("YARN error while reading the application report.", e);
+        }
+    }
+
+    /**
+     * Checks the cached capacity snapshot, so that a plan which can't be scheduled is refused before anything is
+     * forked or submitted. Admits when the check is disabled, no recent snapshot is available or the plan is
+     * submitted to a queue other than the watched one.
+     * @param plan plan whose workers and master are requested; unset resources are taken from gearpump.yarn.capacity,
+     *             except for the worker memory which, like for yarnclient, falls back to workers.memorylimit first
+     */
+    public boolean canHost(GearPumpPlan plan) {
+        if (!capacityCheckEnabled || (plan.getQueue() != null && !plan.getQueue().equals(queueName))) {
+            return true;
+        }
+        Optional<YarnCapacity> snapshot = getCapacity();
+        if (!snapshot.isPresent()) {
+            return true;
+        }
+        boolean fits = snapshot.get().fits(plan.getWorkers(),
+                getWorkerMemory(plan),
+                Optional.ofNullable(plan.getWorkerVcores()).orElse(1),
+                masters,
+                Optional.ofNullable(plan.getMasterMemory()).orElse(masterMemory),
+                amMemory);
+        if (!fits) {
+            LOGGER.warn("Gearpump plan {} doesn't fit into YARN queue {}: {}", plan, queueName, snapshot.get());
+        }
+        return fits;
     }
 
-    private YarnClient getYarnClient() throws IOException, LoginException {
-        return yarnClientFactory.getYarnClient();
+    private int getWorkerMemory(GearPumpPlan plan) {
+        if (plan.getWorkerMemory() != null) {
+            return plan.getWorkerMemory();
+        }
+        if (!Strings.isNullOrEmpty(workersMemoryLimit)) {
+            try {
+                return Integer.parseInt(workersMemoryLimit.trim());
+            } catch (NumberFormatException e) {
+                LOGGER.warn("workers.memorylimit {} is not a number of MB, estimating workers with {} MB",
+                        workersMemoryLimit, workerMemory);
+            }
+        }
+        return workerMemory;
+    }
+
+    /**
+     * Takes the first snapshot on first use and from then on refreshes it every
+     * gearpump.yarn.capacity.refreshInterval seconds.
+     * @return latest snapshot, empty if none was taken within the last three refresh intervals
+     */
+    public Optional<YarnCapacity> getCapacity() {
+        YarnCapacity current = capacity;
+        if (current == null) {
+            synchronized (capacityLock) {
+                if (capacity == null) {
+                    refreshCapacityQuietly();
+                }
+                current = capacity;
+            }
+        }
+        long interval = Math.max(capacityRefreshInterval, 1);
+        if (refreshScheduled.compareAndSet(false, true)) {
+            capacityRefresher.scheduleWithFixedDelay(this::refreshCapacityQuietly, interval, interval, TimeUnit.SECONDS);
+        }
+        if (current == null || current.getTakenAt().isBefore(Instant.now().minus(Duration.ofSeconds(3 * interval)))) {
+            return Optional.empty();
+        }
+        return Optional.of(current);
+    }
+
+    YarnCapacity refreshCapacity() throws IOException, YarnException, LoginException {
+        YarnCapacity snapshot = yarnClientFactory.execute(yarnClient ->
+                YarnCapacity.of(yarnClient.getNodeReports(NodeState.RUNNING), getQueuePath(yarnClient)));
+        LOGGER.debug("YARN capacity of queue {}: {}", queueName, snapshot);
+        capacity = snapshot;
+        return snapshot;
+    }
+
+    /**
+     * @return the queue Gearpump is submitted to and its parents; a queue missing from the hierarchy, e.g. of a
+     *         scheduler that doesn't report it, is taken as a queue right below the root queue
+     */
+    private List<QueueInfo> getQueuePath(YarnClient yarnClient) throws IOException, YarnException {
+        List<QueueInfo> path = YarnCapacity.findQueuePath(yarnClient.getRootQueueInfos(), queueName);
+        if (!path.isEmpty()) {
+            return path;
+        }
+        QueueInfo queue = yarnClient.getQueueInfo(queueName);
+        return queue == null ? Collections.emptyList() : Collections.singletonList(queue);
+    }
+
+    private void refreshCapacityQuietly() {
+        try {
+            refreshCapacity();
+        } catch (IOException | YarnException | LoginException | RuntimeException e) {
+            LOGGER.warn("Cannot refresh YARN capacity of queue {}, keeping the previous snapshot", queueName, e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        capacityRefresher.shutdownNow();
+    }
+
+    private ApplicationId getApplicationId(String applicationId) {
+        return new YarnAppIdParser(applicationId).getApplicationId();
     }
 }
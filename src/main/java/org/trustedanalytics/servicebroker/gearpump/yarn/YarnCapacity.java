@@ -0,0 +1,149 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.trustedanalytics.servicebroker.gearpump.yarn;
+
+import org.apache.hadoop.yarn.api.records.NodeReport;
+import org.apache.hadoop.yarn.api.records.QueueInfo;
+import org.apache.hadoop.yarn.api.records.Resource;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Snapshot of the resources the broker's YARN queue can still hand out, taken from the node reports of running
+ * nodes and the capacity fractions of the queue and its parents.
+ */
+public class YarnCapacity {
+
+    private final long availableMemory;
+    private final long availableVcores;
+    private final long largestNodeMemory;
+    private final Instant takenAt;
+
+    YarnCapacity(long availableMemory, long availableVcores, long largestNodeMemory, Instant takenAt) {
+        this.availableMemory = availableMemory;
+        this.availableVcores = availableVcores;
+        this.largestNodeMemory = largestNodeMemory;
+        this.takenAt = takenAt;
+    }
+
+    /**
+     * @param nodes reports of the running nodes
+     * @param queuePath the queue Gearpump is submitted to, preceded by its parents below the root queue; may be empty,
+     *                  then only the free cluster resources count
+     */
+    static YarnCapacity of(List<NodeReport> nodes, List<QueueInfo> queuePath) {
+        long clusterMemory = 0;
+        long clusterVcores = 0;
+        long usedMemory = 0;
+        long usedVcores = 0;
+        long largestNodeMemory = 0;
+        for (NodeReport node : nodes) {
+            Resource capability = node.getCapability();
+            Resource used = node.getUsed();
+            long nodeUsedMemory = used == null ? 0 : used.getMemory();
+            clusterMemory += capability.getMemory();
+            clusterVcores += capability.getVirtualCores();
+            usedMemory += nodeUsedMemory;
+            usedVcores += used == null ? 0 : used.getVirtualCores();
+            largestNodeMemory = Math.max(largestNodeMemory, capability.getMemory() - nodeUsedMemory);
+        }
+
+        long availableMemory = clusterMemory - usedMemory;
+        long availableVcores = clusterVcores - usedVcores;
+        if (!queuePath.isEmpty()) {
+            // capacities are fractions of the parent queue, so the cluster's share is their product along the path;
+            // current capacity is relative to the queue's guaranteed share
+            float absoluteCapacity = 1.0f;
+            float absoluteMaximumCapacity = 1.0f;
+            for (QueueInfo queue : queuePath) {
+                absoluteCapacity *= queue.getCapacity();
+                absoluteMaximumCapacity *= queue.getMaximumCapacity() > 0 ? queue.getMaximumCapacity() : 1.0f;
+            }
+            float usedCapacity = absoluteCapacity * queuePath.get(queuePath.size() - 1).getCurrentCapacity();
+            float headroom = Math.max(0, absoluteMaximumCapacity - usedCapacity);
+            availableMemory = Math.min(availableMemory, (long) (clusterMemory * headroom));
+            availableVcores = Math.min(availableVcores, (long) (clusterVcores * headroom));
+        }
+        return new YarnCapacity(Math.max(0, availableMemory), Math.max(0, availableVcores),
+                Math.max(0, largestNodeMemory), Instant.now());
+    }
+
+    /**
+     * @param queues the queues below the root queue, with their children
+     * @return path from a queue below the root queue down to the named queue, empty if there is no such queue
+     */
+    static List<QueueInfo> findQueuePath(List<QueueInfo> queues, String queueName) {
+        for (QueueInfo queue : queues) {
+            if (queueName.equals(queue.getQueueName())) {
+                return Collections.singletonList(queue);
+            }
+            List<QueueInfo> childPath = queue.getChildQueues() == null
+                    ? Collections.emptyList() : findQueuePath(queue.getChildQueues(), queueName);
+            if (!childPath.isEmpty()) {
+                List<QueueInfo> path = new ArrayList<>();
+                path.add(queue);
+                path.addAll(childPath);
+                return path;
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * @param masterMemory memory of one Gearpump master container
+     * @param amMemory memory of the application master container
+     * @return whether a Gearpump cluster of the given size would be scheduled right away; the application master and
+     *         every master take one vcore
+     */
+    public boolean fits(int workers, int workerMemory, int workerVcores, int masters, int masterMemory, int amMemory) {
+        long requiredMemory = (long) workers * workerMemory + (long) masters * masterMemory + amMemory;
+        long requiredVcores = (long) workers * workerVcores + masters + 1;
+        return requiredMemory <= availableMemory
+                && requiredVcores <= availableVcores
+                && (workers == 0 || workerMemory <= largestNodeMemory);
+    }
+
+    public long getAvailableMemory() {
+        return availableMemory;
+    }
+
+    public long getAvailableVcores() {
+        return availableVcores;
+    }
+
+    public long getLargestNodeMemory() {
+        return largestNodeMemory;
+    }
+
+    public Instant getTakenAt() {
+        return takenAt;
+    }
+
+    @Override
+    public String toString() {
+        return "YarnCapacity{" +
+                "availableMemory=" + availableMemory +
+                ", availableVcores=" + availableVcores +
+                ", largestNodeMemory=" + largestNodeMemory +
+                ", takenAt=" + takenAt +
+                '}';
+    }
+}
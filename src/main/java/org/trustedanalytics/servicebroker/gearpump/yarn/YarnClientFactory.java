@@ -16,8 +16,13 @@
 package org.trustedanalytics.servicebroker.gearpump.yarn;
 
 import org.apache.hadoop.fs.CommonConfigurationKeys;
+import org.apache.hadoop.security.AccessControlException;
 import org.apache.hadoop.security.UserGroupInformation;
+import org.apache.hadoop.service.Service;
 import org.apache.hadoop.yarn.client.api.YarnClient;
+import org.apache.hadoop.yarn.exceptions.YarnException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -25,30 +30,123 @@ import org.trustedanalytics.hadoop.config.client.helper.DelegatingYarnClient;
 import org.trustedanalytics.hadoop.config.client.helper.UgiWrapper;
 import org.trustedanalytics.servicebroker.gearpump.kerberos.KerberosService;
 
+import javax.annotation.PreDestroy;
 import javax.security.auth.login.LoginException;
+import javax.security.sasl.SaslException;
 import java.io.IOException;
 
+/**
+ * Hands out a single, lazily started YarnClient shared by the whole broker. The client (and the UGI it runs as) is
+ * created on first use and re-created after an authentication failure. Callers must not close it.
+ */
 @Configuration
 public class YarnClientFactory {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(YarnClientFactory.class);
+
     @Autowired
     private KerberosService kerberosService;
 
     @Autowired
     private org.apache.hadoop.conf.Configuration yarnConfiguration;
 
+    private volatile YarnClient yarnClient;
+
+    @FunctionalInterface
+    public interface YarnOperation<T> {
+        T apply(YarnClient yarnClient) throws IOException, YarnException;
+    }
+
     @Bean
     public YarnClientFactory yarnClientFactory() {
         return new YarnClientFactory();
     }
 
+    /**
+     * @return the shared, started client
+     */
     public YarnClient getYarnClient() throws IOException, LoginException {
+        YarnClient client = yarnClient;
+        if (client == null || !client.isInState(Service.STATE.STARTED)) {
+            synchronized (this) {
+                client = yarnClient;
+                if (client == null || !client.isInState(Service.STATE.STARTED)) {
+                    client = createYarnClient();
+                    yarnClient = client;
+                }
+            }
+        }
+        return client;
+    }
+
+    /**
+     * Runs the operation with the shared client. If it fails on authentication, the client is re-created
+     * with a fresh login and the operation is retried once.
+     */
+    public <T> T execute(YarnOperation<T> operation) throws IOException, YarnException, LoginException {
+        YarnClient client = getYarnClient();
+        try {
+            return operation.apply(client);
+        } catch (IOException | YarnException e) {
+            if (!isAuthFailure(e)) {
+                throw e;
+            }
+            LOGGER.warn("YARN authentication failed, re-creating YarnClient and retrying.", e);
+            invalidate(client);
+            return operation.apply(getYarnClient());
+        }
+    }
+
+    /**
+     * Drops the given client if it is still the shared one, so the next call creates a new one.
+     */
+    public void invalidate(YarnClient client) {
+        synchronized (this) {
+            if (yarnClient != client) {
+                return;
+            }
+            yarnClient = null;
+        }
+        closeQuietly(client);
+    }
+
+    public static boolean isAuthFailure(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof AccessControlException || cause instanceof SaslException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @PreDestroy
+    public void close() {
+        YarnClient client;
+        synchronized (this) {
+            client = yarnClient;
+            yarnClient = null;
+        }
+        if (client != null) {
+            closeQuietly(client);
+        }
+    }
+
+    private YarnClient createYarnClient() throws IOException, LoginException {
+        LOGGER.info("Creating YarnClient");
         kerberosService.login();
         String ticketCachePath = yarnConfiguration.get(CommonConfigurationKeys.KERBEROS_TICKET_CACHE_PATH);
         UserGroupInformation ugi = UserGroupInformation.getBestUGI(ticketCachePath, kerberosService.getKerberosProperties().getUser());
-        YarnClient yarnClient = new DelegatingYarnClient(YarnClient.createYarnClient(), new UgiWrapper(ugi));
-        yarnClient.init(yarnConfiguration);
-        yarnClient.start();
-        return yarnClient;
+        YarnClient client = new DelegatingYarnClient(YarnClient.createYarnClient(), new UgiWrapper(ugi));
+        client.init(yarnConfiguration);
+        client.start();
+        return client;
+    }
+
+    private void closeQuietly(YarnClient client) {
+        try {
+            client.close();
+        } catch (IOException e) {
+            LOGGER.debug("Cannot close YarnClient.", e);
+        }
     }
 }
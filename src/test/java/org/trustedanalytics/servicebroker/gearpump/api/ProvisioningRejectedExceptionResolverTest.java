@@ -0,0 +1,138 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trustedanalytics.servicebroker.gearpump.api;
+
+import org.cloudfoundry.community.servicebroker.controller.ServiceInstanceController;
+import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
+import org.cloudfoundry.community.servicebroker.model.CreateServiceInstanceRequest;
+import org.cloudfoundry.community.servicebroker.model.ServiceDefinition;
+import org.cloudfoundry.community.servicebroker.service.CatalogService;
+import org.cloudfoundry.community.servicebroker.service.ServiceInstanceService;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.context.WebApplicationContext;
+import org.springframework.web.servlet.config.annotation.EnableWebMvc;
+import org.trustedanalytics.servicebroker.gearpump.service.ProvisioningRejectedException;
+
+import static org.hamcrest.core.StringContains.containsString;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Runs the resolver in a dispatcher servlet next to the broker library's provision endpoint, whose own exception
+ * handler would otherwise answer 500.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@WebAppConfiguration
+@ContextConfiguration(classes = ProvisioningRejectedExceptionResolverTest.Config.class)
+public class ProvisioningRejectedExceptionResolverTest {
+
+    private static final String PROVISION_URL = "/v2/service_instances/{instanceId}";
+    private static final String PROVISION_BODY = "{\"service_id\":\"serviceDefinitionId\",\"plan_id\":\"planId\","
+            + "\"organization_guid\":\"organizationGuid\",\"space_guid\":\"spaceGuid\"}";
+
+    @Configuration
+    @EnableWebMvc
+    static class Config {
+
+        @Bean
+        public ServiceInstanceService serviceInstanceService() {
+            return mock(ServiceInstanceService.class);
+        }
+
+        @Bean
+        public CatalogService catalogService() {
+            return mock(CatalogService.class);
+        }
+
+        @Bean
+        public ServiceInstanceController serviceInstanceController(ServiceInstanceService serviceInstanceService,
+                                                                   CatalogService catalogService) {
+            return new ServiceInstanceController(serviceInstanceService, catalogService);
+        }
+
+        @Bean
+        public ProvisioningRejectedExceptionResolver provisioningRejectedExceptionResolver() {
+            return new ProvisioningRejectedExceptionResolver();
+        }
+    }
+
+    @Autowired
+    private WebApplicationContext webApplicationContext;
+
+    @Autowired
+    private ServiceInstanceService serviceInstanceService;
+
+    @Autowired
+    private CatalogService catalogService;
+
+    private MockMvc mockMvc;
+
+    @Before
+    public void before() {
+        reset(serviceInstanceService, catalogService);
+        when(catalogService.getServiceDefinition("serviceDefinitionId")).thenReturn(mock(ServiceDefinition.class));
+        mockMvc = MockMvcBuilders.webAppContextSetup(webApplicationContext).build();
+    }
+
+    @Test
+    public void provision_rejectedByAdmissionControl_tooManyRequestsWithRetryAfter() throws Exception {
+        when(serviceInstanceService.createServiceInstance(any(CreateServiceInstanceRequest.class)))
+                .thenThrow(new ProvisioningRejectedException("Too many Apache Gearpump instances are being provisioned."));
+
+        mockMvc.perform(provisionRequest())
+                .andExpect(status().is(ProvisioningRejectedExceptionResolver.TOO_MANY_REQUESTS))
+                .andExpect(header().string(ProvisioningRejectedExceptionResolver.RETRY_AFTER,
+                        ProvisioningRejectedExceptionResolver.RETRY_AFTER_SECONDS))
+                .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
+                .andExpect(content().string(containsString("Too many Apache Gearpump instances are being provisioned.")));
+    }
+
+    @Test
+    public void provision_otherBrokerFailure_leftToBrokerLibrary() throws Exception {
+        when(serviceInstanceService.createServiceInstance(any(CreateServiceInstanceRequest.class)))
+                .thenThrow(new ServiceBrokerException("Couldn't spawn Apache Gearpump instance"));
+
+        mockMvc.perform(provisionRequest())
+                .andExpect(status().isInternalServerError())
+                .andExpect(header().doesNotExist(ProvisioningRejectedExceptionResolver.RETRY_AFTER));
+    }
+
+    private static MockHttpServletRequestBuilder provisionRequest() {
+        return put(PROVISION_URL, "instanceId")
+                .param("accepts_incomplete", "true")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(PROVISION_BODY);
+    }
+}
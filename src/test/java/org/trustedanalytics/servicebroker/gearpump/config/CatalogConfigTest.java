@@ -0,0 +1,80 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trustedanalytics.servicebroker.gearpump.config;
+
+import org.cloudfoundry.community.servicebroker.model.Plan;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.core.IsEqual.equalTo;
+
+public class CatalogConfigTest {
+
+    private CatalogConfig catalogConfig;
+
+    @Before
+    public void before() {
+        catalogConfig = new CatalogConfig();
+        catalogConfig.setCfBaseId("base");
+        catalogConfig.setCfServiceId("gearpump");
+        catalogConfig.setCfServiceName("gearpump");
+        catalogConfig.setImageUrl("");
+    }
+
+    @Test
+    public void getPlan_noPlansConfigured_defaultPlansOffered() {
+        catalogConfig.indexPlans();
+
+        assertThat(catalogConfig.getPlan("base-small").getWorkers(), equalTo(1));
+        assertThat(catalogConfig.getPlan("base-medium").getWorkers(), equalTo(3));
+    }
+
+    @Test
+    public void getPlan_configuredPlans_foundByPlanId() {
+        GearPumpPlan large = new GearPumpPlan("large", 5);
+        large.setWorkerMemory(4096);
+        catalogConfig.setPlans(Arrays.asList(new GearPumpPlan("small", 2), large));
+        catalogConfig.indexPlans();
+
+        assertThat(catalogConfig.getPlan("base-small").getWorkers(), equalTo(2));
+        assertThat(catalogConfig.getPlan("base-large").getWorkerMemory(), equalTo(4096));
+        List<String> planIds = catalogConfig.catalog().getServiceDefinitions().get(0).getPlans().stream()
+                .map(Plan::getId)
+                .collect(Collectors.toList());
+        assertThat(planIds, contains("base-small", "base-large"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void getPlan_planName_exceptionThrown() {
+        catalogConfig.indexPlans();
+
+        catalogConfig.getPlan("medium");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void indexPlans_duplicatePlanName_exceptionThrown() {
+        catalogConfig.setPlans(Arrays.asList(new GearPumpPlan("small", 1), new GearPumpPlan("small", 2)));
+
+        catalogConfig.indexPlans();
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trustedanalytics.servicebroker.gearpump.config;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.Configurable;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class CfCallerConfigurationTest {
+
+    private static final String[] POOL_GAUGES = {"leased", "pending", "available", "max"};
+
+    private CfCallerConfiguration configuration;
+
+    private MeterRegistry meterRegistry;
+
+    private ScheduledExecutorService idleConnectionEvictor;
+
+    @Before
+    public void before() {
+        configuration = new CfCallerConfiguration();
+        ReflectionTestUtils.setField(configuration, "maxConnections", 7);
+        ReflectionTestUtils.setField(configuration, "maxConnectionsPerRoute", 3);
+        ReflectionTestUtils.setField(configuration, "connectTimeout", 1000);
+        ReflectionTestUtils.setField(configuration, "readTimeout", 2000);
+        ReflectionTestUtils.setField(configuration, "connectionRequestTimeout", 3000);
+        ReflectionTestUtils.setField(configuration, "keepAlive", 30L);
+        ReflectionTestUtils.setField(configuration, "ioThreads", 1);
+        meterRegistry = new SimpleMeterRegistry();
+        idleConnectionEvictor = mock(ScheduledExecutorService.class);
+    }
+
+    @Test
+    public void pooledHttpClient_limitsAndTimeoutsApplied() throws Exception {
+        try (CloseableHttpClient client = configuration.pooledHttpClient(meterRegistry)) {
+            PoolingHttpClientConnectionManager connectionManager =
+                    (PoolingHttpClientConnectionManager) ReflectionTestUtils.getField(client, "connManager");
+
+            assertThat(connectionManager.getMaxTotal(), equalTo(7));
+            assertThat(connectionManager.getDefaultMaxPerRoute(), equalTo(3));
+            assertTimeouts(((Configurable) client).getConfig());
+        }
+    }
+
+    @Test
+    public void pooledHttpClient_poolGaugesRegistered() throws Exception {
+        try (CloseableHttpClient client = configuration.pooledHttpClient(meterRegistry)) {
+            assertPoolGauges("http.client.pool");
+        }
+    }
+
+    @Test
+    public void pooledHttpAsyncClient_limitsAndTimeoutsApplied() throws Exception {
+        try (CloseableHttpAsyncClient client = configuration.pooledHttpAsyncClient(meterRegistry, idleConnectionEvictor)) {
+            PoolingNHttpClientConnectionManager connectionManager =
+                    (PoolingNHttpClientConnectionManager) ReflectionTestUtils.getField(client, "connmgr");
+
+            assertThat(client.isRunning(), equalTo(true));
+            assertThat(connectionManager.getMaxTotal(), equalTo(7));
+            assertThat(connectionManager.getDefaultMaxPerRoute(), equalTo(3));
+            assertTimeouts((RequestConfig) ReflectionTestUtils.getField(client, "defaultConfig"));
+        }
+    }
+
+    @Test
+    public void pooledHttpAsyncClient_poolGaugesRegistered() throws Exception {
+        try (CloseableHttpAsyncClient client = configuration.pooledHttpAsyncClient(meterRegistry, idleConnectionEvictor)) {
+            assertPoolGauges("http.client.async.pool");
+        }
+    }
+
+    @Test
+    public void pooledHttpAsyncClient_idleConnectionsEvictedAfterKeepAlive() throws Exception {
+        try (CloseableHttpAsyncClient client = configuration.pooledHttpAsyncClient(meterRegistry, idleConnectionEvictor)) {
+            ArgumentCaptor<Runnable> eviction = ArgumentCaptor.forClass(Runnable.class);
+            verify(idleConnectionEvictor).scheduleWithFixedDelay(eviction.capture(), eq(30L), eq(30L), eq(TimeUnit.SECONDS));
+
+            eviction.getValue().run();
+        }
+    }
+
+    private static void assertTimeouts(RequestConfig requestConfig) {
+        assertThat(requestConfig.getConnectTimeout(), equalTo(1000));
+        assertThat(requestConfig.getSocketTimeout(), equalTo(2000));
+        assertThat(requestConfig.getConnectionRequestTimeout(), equalTo(3000));
+    }
+
+    private void assertPoolGauges(String prefix) {
+        for (String gauge : POOL_GAUGES) {
+            meterRegistry.get(prefix + "." + gauge).gauge();
+        }
+        assertThat(meterRegistry.get(prefix + ".max").gauge().value(), equalTo(7.0));
+        assertThat(meterRegistry.get(prefix + ".leased").gauge().value(), equalTo(0.0));
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trustedanalytics.servicebroker.gearpump.kerberos;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.hadoop.conf.Configuration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.trustedanalytics.hadoop.kerberos.KrbLoginManager;
+import org.trustedanalytics.servicebroker.gearpump.metrics.StageMetrics;
+
+import javax.security.auth.Subject;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class KerberosServiceTest {
+
+    @Mock
+    private KrbLoginManager loginManager;
+
+    private KerberosProperties kerberosProperties;
+    private MeterRegistry meterRegistry;
+    private KerberosService kerberosService;
+
+    @Before
+    public void before() throws Exception {
+        kerberosProperties = new KerberosProperties();
+        kerberosProperties.setKerberosEnabled(true);
+        kerberosProperties.setUser("user");
+        kerberosProperties.setPassword("password");
+        meterRegistry = new SimpleMeterRegistry();
+        when(loginManager.loginWithCredentials(anyString(), any(char[].class))).thenReturn(new Subject());
+        kerberosService = new KerberosService(loginManager, kerberosProperties, new Configuration(false), meterRegistry,
+                new StageMetrics(meterRegistry));
+    }
+
+    @After
+    public void after() {
+        kerberosService.shutdown();
+    }
+
+    @Test
+    public void testLoginReusesValidTicket() throws Exception {
+        kerberosService.login();
+        kerberosService.login();
+
+        verify(loginManager, times(1)).loginWithCredentials(anyString(), any(char[].class));
+        verify(loginManager, times(1)).loginInHadoop(any(Subject.class), any(Configuration.class));
+    }
+
+    @Test
+    public void testLoginPublishesTicketLifetime() throws Exception {
+        kerberosService.login();
+
+        assertThat(meterRegistry.get("kerberos.ticket.remaining").gauge().value(), greaterThan(0.0));
+    }
+
+    @Test
+    public void testLoginDoesNothingWhenKerberosIsDisabled() throws Exception {
+        kerberosProperties.setKerberosEnabled(false);
+
+        kerberosService.login();
+
+        verifyZeroInteractions(loginManager);
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.trustedanalytics.servicebroker.gearpump.metrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.IsEqual.equalTo;
+
+public class StageMetricsTest {
+
+    private MeterRegistry meterRegistry;
+    private StageMetrics stageMetrics;
+
+    @Before
+    public void before() {
+        meterRegistry = new SimpleMeterRegistry();
+        stageMetrics = new StageMetrics(meterRegistry);
+    }
+
+    @Test
+    public void record_insidePlanScope_taggedWithPlan() {
+        try (StageMetrics.PlanScope scope = StageMetrics.planScope("small")) {
+            stageMetrics.record(StageMetrics.YARN_KILL, () -> null);
+        }
+
+        assertThat(count(StageMetrics.YARN_KILL, "small", "success"), equalTo(1L));
+    }
+
+    @Test
+    public void record_outsidePlanScope_taggedWithNoPlan() {
+        try (StageMetrics.PlanScope scope = StageMetrics.planScope("small")) {
+            // closed before the step runs
+        }
+
+        stageMetrics.record(StageMetrics.UAA_TOKEN, () -> "token");
+
+        assertThat(count(StageMetrics.UAA_TOKEN, StageMetrics.NO_PLAN, "success"), equalTo(1L));
+    }
+
+    @Test
+    public void record_explicitPlan_taggedWithItOutsidePlanScope() {
+        try (StageMetrics.PlanScope scope = StageMetrics.planScope("small")) {
+            stageMetrics.record(StageMetrics.UAA_TOKEN, "medium", () -> "token");
+        }
+        stageMetrics.record(StageMetrics.UAA_TOKEN, "medium", () -> "token");
+
+        assertThat(count(StageMetrics.UAA_TOKEN, "medium", "success"), equalTo(2L));
+        assertThat(count(StageMetrics.UAA_TOKEN, "small", "success"), equalTo(0L));
+    }
+
+    @Test
+    public void record_stepThrows_recordedAsFailure() {
+        try {
+            stageMetrics.record(StageMetrics.CREDENTIALS_READ, () -> {
+                throw new IOException("connection loss");
+            });
+        } catch (IOException e) {
+            assertThat(count(StageMetrics.CREDENTIALS_READ, StageMetrics.NO_PLAN, "failure"), equalTo(1L));
+            return;
+        }
+        throw new AssertionError("exception expected");
+    }
+
+    @Test
+    public void record_resultRejected_recordedAsFailure() {
+        stageMetrics.record(StageMetrics.YARNCLIENT_RUN, () -> 1, exitCode -> exitCode == 0);
+
+        assertThat(count(StageMetrics.YARNCLIENT_RUN, StageMetrics.NO_PLAN, "failure"), equalTo(1L));
+    }
+
+    @Test
+    public void recordAsync_recordedWhenFutureCompletes() {
+        CompletableFuture<String> step = new CompletableFuture<>();
+        CompletableFuture<String> recorded = stageMetrics.recordAsync(StageMetrics.DASHBOARD_CREATE, "medium", () -> step);
+
+        assertThat(count(StageMetrics.DASHBOARD_CREATE, "medium", "success"), equalTo(0L));
+        step.complete("guid");
+
+        assertThat(recorded.join(), equalTo("guid"));
+        assertThat(count(StageMetrics.DASHBOARD_CREATE, "medium", "success"), equalTo(1L));
+    }
+
+    @Test
+    public void recordAsync_futureFails_recordedAsFailure() {
+        CompletableFuture<String> step = new CompletableFuture<>();
+        stageMetrics.recordAsync(StageMetrics.DASHBOARD_WAIT, "medium", () -> step);
+
+        step.completeExceptionally(new IllegalStateException("not running"));
+
+        assertThat(count(StageMetrics.DASHBOARD_WAIT, "medium", "failure"), equalTo(1L));
+    }
+
+    private long count(String stage, String plan, String outcome) {
+        return meterRegistry.timer(StageMetrics.STAGE_METRIC, "stage", stage, "plan", plan, "outcome", outcome).count();
+    }
+}
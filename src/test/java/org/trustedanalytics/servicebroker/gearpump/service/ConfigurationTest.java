@@ -21,6 +21,9 @@ import org.trustedanalytics.cfbroker.store.zookeeper.service.ZookeeperClientBuil
 import org.trustedanalytics.servicebroker.gearpump.config.GearPumpSpawnerConfig;
 import org.trustedanalytics.servicebroker.gearpump.utils.GearpumpTestUtils;
 
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
 import org.apache.curator.test.TestingServer;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
@@ -63,4 +66,14 @@ public class ConfigurationTest {
                         ZNODE).build();
         return client;
     }
+
+    @Bean(initMethod = "start", destroyMethod = "close")
+    public CuratorFramework getCuratorFramework(TestingServer zkServer) {
+        return CuratorFrameworkFactory.builder()
+                .connectString(zkServer.getConnectString())
+                .namespace(ZNODE.substring(1))
+                .authorization("digest", String.format("%s:%s", USER, PASSWORD).getBytes())
+                .retryPolicy(new RetryOneTime(100))
+                .build();
+    }
 }
@@ -0,0 +1,148 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trustedanalytics.servicebroker.gearpump.service;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.trustedanalytics.cfbroker.store.zookeeper.service.ZookeeperClient;
+import org.trustedanalytics.cfbroker.store.zookeeper.service.ZookeeperClientBuilder;
+import org.trustedanalytics.servicebroker.gearpump.model.GearPumpCredentials;
+import org.trustedanalytics.servicebroker.gearpump.utils.GearpumpTestUtils;
+
+import java.io.IOException;
+import java.util.function.BooleanSupplier;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+
+public class CredentialPersistorServiceCacheTest {
+
+    private static final String USER = "cf";
+    private static final String PASSWORD = "cf1";
+    private static final String ZNODE = "/node";
+    private static final long AWAIT_MILLIS = 10000;
+
+    private TestingServer zkServer;
+    private ZookeeperClient zookeeperClient;
+    private CuratorFramework writerCurator;
+    private CuratorFramework readerCurator;
+    private CredentialPersistorService writer;
+    private CredentialPersistorService reader;
+
+    @Before
+    public void init() throws Exception {
+        zkServer = new TestingServer();
+        zkServer.start();
+        GearpumpTestUtils.createDir(new GearpumpTestUtils.ZookeeperCredentials(zkServer.getConnectString(), USER, PASSWORD), ZNODE);
+
+        zookeeperClient = spy(new ZookeeperClientBuilder(zkServer.getConnectString(), USER, PASSWORD, ZNODE).build());
+        zookeeperClient.init();
+
+        writerCurator = newCurator();
+        readerCurator = newCurator();
+        writer = new CredentialPersistorService(zookeeperClient, writerCurator);
+        reader = new CredentialPersistorService(zookeeperClient, readerCurator);
+        writer.start();
+        reader.start();
+        await(() -> writer.isCacheUsable() && reader.isCacheUsable());
+    }
+
+    @After
+    public void cleanUp() throws Exception {
+        writer.close();
+        reader.close();
+        writerCurator.close();
+        readerCurator.close();
+        zookeeperClient.destroy();
+        zkServer.close();
+    }
+
+    @Test
+    public void testReplicaReadsOtherReplicaWriteFromMemory() throws Exception {
+        GearPumpCredentials credentials = new GearPumpCredentials("masters", "yarnApplicationId", "dashboardUrl", "dashboardGuid", "username", "password", "uaaClientName");
+
+        writer.persistCredentials("instanceId", credentials.toMap());
+        await(() -> reader.isCached("instanceId"));
+
+        GearPumpCredentials read = reader.readCredentials("instanceId");
+
+        assertThat(read.toMap(), equalTo(credentials.toMap()));
+        verify(zookeeperClient, never()).getZNode(anyString());
+    }
+
+    @Test
+    public void testRemovedCredentialsDisappearFromReplicaCache() throws Exception {
+        GearPumpCredentials credentials = new GearPumpCredentials("masters", "yarnApplicationId", "dashboardUrl", "dashboardGuid", "username", "password", "uaaClientName");
+        writer.persistCredentials("instanceId", credentials.toMap());
+        await(() -> reader.isCached("instanceId"));
+
+        writer.removeCredentials("instanceId");
+
+        await(() -> !reader.isCached("instanceId"));
+    }
+
+    @Test
+    public void testUpdatedCredentialsReplaceOldOnesInPlace() throws Exception {
+        GearPumpCredentials credentials = new GearPumpCredentials("masters", "yarnApplicationId", "dashboardUrl", "dashboardGuid", "username", "password", "uaaClientName");
+        writer.persistCredentials("instanceId", credentials.toMap());
+        await(() -> reader.isCached("instanceId"));
+        reader.readCredentials("instanceId");
+
+        credentials.setTargetWorkers(3);
+        credentials.setActualWorkers(2);
+        writer.updateCredentials("instanceId", credentials.toMap());
+
+        await(() -> {
+            try {
+                return Integer.valueOf(3).equals(reader.readCredentials("instanceId").getTargetWorkers());
+            } catch (IOException e) {
+                return false;
+            }
+        });
+        assertThat(reader.readCredentials("instanceId").toMap(), equalTo(credentials.toMap()));
+        verify(zookeeperClient, never()).deleteZNode(anyString());
+    }
+
+    private CuratorFramework newCurator() {
+        CuratorFramework curator = CuratorFrameworkFactory.builder()
+                .connectString(zkServer.getConnectString())
+                .namespace(ZNODE.substring(1))
+                .authorization("digest", String.format("%s:%s", USER, PASSWORD).getBytes())
+                .retryPolicy(new RetryOneTime(100))
+                .build();
+        curator.start();
+        return curator;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + AWAIT_MILLIS;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertTrue("condition not met in time", condition.getAsBoolean());
+    }
+}
@@ -17,10 +17,13 @@
 package org.trustedanalytics.servicebroker.gearpump.service;
 
 import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
+import org.cloudfoundry.community.servicebroker.exception.ServiceInstanceUpdateNotSupportedException;
 import org.cloudfoundry.community.servicebroker.model.CreateServiceInstanceRequest;
 import org.cloudfoundry.community.servicebroker.model.DeleteServiceInstanceRequest;
+import org.cloudfoundry.community.servicebroker.model.OperationState;
 import org.cloudfoundry.community.servicebroker.model.ServiceDefinition;
 import org.cloudfoundry.community.servicebroker.model.ServiceInstance;
+import org.cloudfoundry.community.servicebroker.model.UpdateServiceInstanceRequest;
 import org.cloudfoundry.community.servicebroker.service.ServiceInstanceService;
 import org.junit.Before;
 import org.junit.Test;
@@ -28,15 +31,24 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.trustedanalytics.servicebroker.gearpump.model.GearPumpCredentials;
+import org.trustedanalytics.servicebroker.gearpump.service.OperationStatePersistorService.OperationType;
+import org.trustedanalytics.servicebroker.gearpump.service.prerequisities.PrerequisitesCheckingService;
 
 import java.io.IOException;
+import java.time.Duration;
 import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.Executor;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.IsEqual.equalTo;
 import static org.mockito.Matchers.anyMapOf;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -52,6 +64,12 @@ public class GearPumpServiceInstanceServiceTest {
     @Mock
     private CredentialPersistorService credentialPersistorService;
 
+    @Mock
+    private OperationStatePersistorService operationStatePersistorService;
+
+    @Mock
+    private PrerequisitesCheckingService prerequisitesCheckingService;
+
     private GearPumpServiceInstanceService service;
 
     private ServiceInstance instance;
@@ -61,8 +79,13 @@ public class GearPumpServiceInstanceServiceTest {
     private DeleteServiceInstanceRequest deleteRequest;
 
     @Before
-    public void before() {
-        service = new GearPumpServiceInstanceService(instanceService, gearPumpSpawner, credentialPersistorService);
+    public void before() throws Exception {
+        when(operationStatePersistorService.startOperation(anyString(), any(OperationType.class), anyString()))
+                .thenReturn(Optional.empty());
+        when(operationStatePersistorService.readOperationInProgress(anyString())).thenReturn(Optional.empty());
+        when(operationStatePersistorService.readOperation(anyString())).thenReturn(Optional.empty());
+        when(prerequisitesCheckingService.isGearpumpPackReady()).thenReturn(true);
+        service = newService(Runnable::run, false, ProvisioningAdmissionController.unbounded(), WorkerScalingService.disabled());
         instance = getServiceInstance("id");
         gearPumpCredentials = getGearPumpCredentials();
         createRequest = getCreateServiceInstanceRequest(instance);
@@ -81,7 +104,7 @@ public class GearPumpServiceInstanceServiceTest {
 
         when(instanceService.createServiceInstance(createRequest)).thenReturn(instance);
         gearPumpCredentials = null;
-        when(gearPumpSpawner.provisionInstance(anyString(), anyString(), anyString(), anyString())).thenReturn(gearPumpCredentials);
+        when(gearPumpSpawner.provisionInstance(anyString(), anyString(), anyString(), anyString(), any(GearPumpSpawner.ProvisioningJournal.class))).thenReturn(gearPumpCredentials);
 
         service.createServiceInstance(createRequest);
     }
@@ -91,7 +114,7 @@ public class GearPumpServiceInstanceServiceTest {
 
         when(instanceService.createServiceInstance(createRequest)).thenReturn(instance);
         doThrow(Exception.class)
-                .when(gearPumpSpawner).provisionInstance(anyString(), anyString(), anyString(), anyString());
+                .when(gearPumpSpawner).provisionInstance(anyString(), anyString(), anyString(), anyString(), any(GearPumpSpawner.ProvisioningJournal.class));
 
         service.createServiceInstance(createRequest);
     }
@@ -100,10 +123,10 @@ public class GearPumpServiceInstanceServiceTest {
     public void testCreateServiceInstance_failureOnPersistCredentials_exceptionThrown() throws Exception {
 
         when(instanceService.createServiceInstance(createRequest)).thenReturn(instance);
-        when(gearPumpSpawner.provisionInstance(anyString(), anyString(), anyString(), anyString())).thenReturn(gearPumpCredentials);
+        when(gearPumpSpawner.provisionInstance(anyString(), anyString(), anyString(), anyString(), any(GearPumpSpawner.ProvisioningJournal.class))).thenReturn(gearPumpCredentials);
 
         doThrow(IOException.class).
-                when(credentialPersistorService).persistCredentials(anyString(), anyMapOf(String.class, Object.class));
+                when(credentialPersistorService).updateCredentials(anyString(), anyMapOf(String.class, Object.class));
 
         service.createServiceInstance(createRequest);
     }
@@ -118,12 +141,12 @@ public class GearPumpServiceInstanceServiceTest {
     @Test
     public void testCreateServiceInstance_success() throws Exception {
         when(instanceService.createServiceInstance(createRequest)).thenReturn(instance);
-        when(gearPumpSpawner.provisionInstance(anyString(), anyString(), anyString(), anyString())).thenReturn(gearPumpCredentials);
+        when(gearPumpSpawner.provisionInstance(anyString(), anyString(), anyString(), anyString(), any(GearPumpSpawner.ProvisioningJournal.class))).thenReturn(gearPumpCredentials);
 
         ServiceInstance returnedInstance = service.createServiceInstance(createRequest);
 
         verify(instanceService).createServiceInstance(this.createRequest);
-        verify(credentialPersistorService).persistCredentials(this.createRequest.getServiceInstanceId(), this.gearPumpCredentials.toMap());
+        verify(credentialPersistorService).updateCredentials(this.createRequest.getServiceInstanceId(), this.gearPumpCredentials.toMap());
 
         assertThat(returnedInstance, equalTo(this.instance));
 
@@ -137,7 +160,7 @@ public class GearPumpServiceInstanceServiceTest {
         ServiceInstance returnedInstance = service.deleteServiceInstance(deleteRequest);
 
         verify(credentialPersistorService).removeCredentials(deleteRequest.getServiceInstanceId());
-        verify(gearPumpSpawner).deprovisionInstance(gearPumpCredentials);
+        verify(gearPumpSpawner).deprovisionInstance(gearPumpCredentials, deleteRequest.getPlanId());
         verify(instanceService).deleteServiceInstance(deleteRequest);
 
         assertThat(returnedInstance, equalTo(instance));
@@ -151,6 +174,280 @@ public class GearPumpServiceInstanceServiceTest {
         service.deleteServiceInstance(deleteRequest);
     }
 
+    @Test
+    public void testCreateServiceInstance_async_success() throws Exception {
+        GearPumpServiceInstanceService asyncService = getAsyncService();
+        CreateServiceInstanceRequest asyncRequest = createRequest.withAsyncClient(true);
+        when(instanceService.createServiceInstance(asyncRequest)).thenReturn(instance);
+        when(gearPumpSpawner.provisionInstance(anyString(), anyString(), anyString(), anyString(), any(GearPumpSpawner.ProvisioningJournal.class))).thenReturn(gearPumpCredentials);
+
+        ServiceInstance returnedInstance = asyncService.createServiceInstance(asyncRequest);
+
+        assertThat(returnedInstance.isAsync(), equalTo(true));
+        verify(operationStatePersistorService).startOperation(eq(instance.getServiceInstanceId()), eq(OperationType.PROVISIONING), anyString());
+        verify(credentialPersistorService).updateCredentials(instance.getServiceInstanceId(), gearPumpCredentials.toMap());
+        verify(operationStatePersistorService).persistOperation(eq(instance.getServiceInstanceId()), eq(OperationState.SUCCEEDED), anyString());
+    }
+
+    @Test
+    public void testCreateServiceInstance_async_failureRecordedAsOperationState() throws Exception {
+        GearPumpServiceInstanceService asyncService = getAsyncService();
+        CreateServiceInstanceRequest asyncRequest = createRequest.withAsyncClient(true);
+        when(instanceService.createServiceInstance(asyncRequest)).thenReturn(instance);
+        doThrow(Exception.class)
+                .when(gearPumpSpawner).provisionInstance(anyString(), anyString(), anyString(), anyString(), any(GearPumpSpawner.ProvisioningJournal.class));
+
+        asyncService.createServiceInstance(asyncRequest);
+
+        verify(operationStatePersistorService).persistOperation(eq(instance.getServiceInstanceId()), eq(OperationState.FAILED), anyString());
+    }
+
+    @Test
+    public void testCreateServiceInstance_admissionRejected_instanceNotCreated() throws Exception {
+        ProvisioningAdmissionController admissionController =
+                new ProvisioningAdmissionController(1, Collections.emptyMap(), 0, Duration.ZERO, null);
+        GearPumpServiceInstanceService boundedService = newService(Runnable::run, false, admissionController,
+                WorkerScalingService.disabled());
+        admissionController.admit(instance.getPlanId());
+
+        try {
+            boundedService.createServiceInstance(createRequest);
+        } catch (ProvisioningRejectedException e) {
+            verify(instanceService, never()).createServiceInstance(any(CreateServiceInstanceRequest.class));
+            verify(gearPumpSpawner, never()).provisionInstance(anyString(), anyString(), anyString(), anyString(), any(GearPumpSpawner.ProvisioningJournal.class));
+            return;
+        }
+        throw new AssertionError("request should have been rejected");
+    }
+
+    @Test
+    public void testCreateServiceInstance_packNotUploadedYet_instanceNotCreated() throws Exception {
+        when(prerequisitesCheckingService.isGearpumpPackReady()).thenReturn(false);
+
+        try {
+            service.createServiceInstance(createRequest);
+        } catch (ProvisioningRejectedException e) {
+            verify(instanceService, never()).createServiceInstance(any(CreateServiceInstanceRequest.class));
+            verify(gearPumpSpawner, never()).provisionInstance(anyString(), anyString(), anyString(), anyString(), any(GearPumpSpawner.ProvisioningJournal.class));
+            return;
+        }
+        throw new AssertionError("request should have been rejected");
+    }
+
+    @Test
+    public void testCreateServiceInstance_success_admissionSlotReleased() throws Exception {
+        ProvisioningAdmissionController admissionController =
+                new ProvisioningAdmissionController(1, Collections.emptyMap(), 0, Duration.ZERO, null);
+        GearPumpServiceInstanceService boundedService = newService(Runnable::run, false, admissionController,
+                WorkerScalingService.disabled());
+        when(instanceService.createServiceInstance(createRequest)).thenReturn(instance);
+        when(gearPumpSpawner.provisionInstance(anyString(), anyString(), anyString(), anyString(), any(GearPumpSpawner.ProvisioningJournal.class))).thenReturn(gearPumpCredentials);
+
+        boundedService.createServiceInstance(createRequest);
+
+        assertThat(admissionController.getActive(), equalTo(0));
+    }
+
+    @Test
+    public void testCreateServiceInstance_rejectedBySpawner_instanceRecordRemoved() throws Exception {
+        when(instanceService.createServiceInstance(createRequest)).thenReturn(instance);
+        doThrow(new ProvisioningRejectedException("no capacity"))
+                .when(gearPumpSpawner).provisionInstance(anyString(), anyString(), anyString(), anyString(), any(GearPumpSpawner.ProvisioningJournal.class));
+
+        try {
+            service.createServiceInstance(createRequest);
+        } catch (ProvisioningRejectedException e) {
+            verify(instanceService).deleteServiceInstance(any(DeleteServiceInstanceRequest.class));
+            return;
+        }
+        throw new AssertionError("request should have been rejected");
+    }
+
+    @Test(expected = ServiceInstanceUpdateNotSupportedException.class)
+    public void testUpdateServiceInstance_scalingDisabled_exceptionThrown() throws Exception {
+        service.updateServiceInstance(getUpdateServiceInstanceRequest("id", "newPlanId"));
+    }
+
+    @Test
+    public void testUpdateServiceInstance_success_workersScaled() throws Exception {
+        WorkerScalingService workerScalingService = mock(WorkerScalingService.class);
+        service = newService(Runnable::run, false, ProvisioningAdmissionController.unbounded(), workerScalingService);
+        UpdateServiceInstanceRequest updateRequest = getUpdateServiceInstanceRequest("id", "newPlanId");
+        GearPumpCredentials scaled = getGearPumpCredentials();
+        scaled.setTargetWorkers(3);
+        scaled.setActualWorkers(3);
+        when(instanceService.getServiceInstance("id")).thenReturn(instance);
+        when(instanceService.updateServiceInstance(updateRequest)).thenReturn(instance);
+        when(workerScalingService.scale("id", "newPlanId")).thenReturn(scaled);
+
+        ServiceInstance updated = service.updateServiceInstance(updateRequest);
+
+        assertThat(updated, equalTo(instance));
+        verify(workerScalingService).scale("id", "newPlanId");
+    }
+
+    @Test
+    public void testUpdateServiceInstance_asyncClient_scaledInBackground() throws Exception {
+        WorkerScalingService workerScalingService = mock(WorkerScalingService.class);
+        service = newService(Runnable::run, true, ProvisioningAdmissionController.unbounded(), workerScalingService);
+        UpdateServiceInstanceRequest updateRequest = getUpdateServiceInstanceRequest("id", "newPlanId").withAsyncClient(true);
+        when(instanceService.getServiceInstance("id")).thenReturn(instance);
+        when(workerScalingService.scale("id", "newPlanId")).thenReturn(getGearPumpCredentials());
+
+        ServiceInstance updated = service.updateServiceInstance(updateRequest);
+
+        assertThat(updated.isAsync(), equalTo(true));
+        verify(operationStatePersistorService).startOperation("id", OperationType.SCALING,
+                GearPumpServiceInstanceService.SCALING_IN_PROGRESS);
+        verify(instanceService).updateServiceInstance(updateRequest);
+        verify(operationStatePersistorService).persistOperation("id", OperationState.SUCCEEDED,
+                GearPumpServiceInstanceService.SCALING_SUCCEEDED);
+    }
+
+    @Test
+    public void testUpdateServiceInstance_asyncScalingFails_operationFailedAndPlanKept() throws Exception {
+        WorkerScalingService workerScalingService = mock(WorkerScalingService.class);
+        service = newService(Runnable::run, true, ProvisioningAdmissionController.unbounded(), workerScalingService);
+        UpdateServiceInstanceRequest updateRequest = getUpdateServiceInstanceRequest("id", "newPlanId").withAsyncClient(true);
+        when(instanceService.getServiceInstance("id")).thenReturn(instance);
+        when(workerScalingService.scale("id", "newPlanId")).thenThrow(new IOException("ZooKeeper is down"));
+
+        service.updateServiceInstance(updateRequest);
+
+        verify(instanceService, never()).updateServiceInstance(any(UpdateServiceInstanceRequest.class));
+        verify(operationStatePersistorService).persistOperation(eq("id"), eq(OperationState.FAILED), anyString());
+    }
+
+    @Test
+    public void testUpdateServiceInstance_asyncWhileProvisioning_refusedAsProvisioning() throws Exception {
+        WorkerScalingService workerScalingService = mock(WorkerScalingService.class);
+        Executor executor = mock(Executor.class);
+        service = newService(executor, true, ProvisioningAdmissionController.unbounded(), workerScalingService);
+        UpdateServiceInstanceRequest updateRequest = getUpdateServiceInstanceRequest("id", "newPlanId").withAsyncClient(true);
+        when(instanceService.getServiceInstance("id")).thenReturn(instance);
+        when(operationStatePersistorService.startOperation("id", OperationType.SCALING,
+                GearPumpServiceInstanceService.SCALING_IN_PROGRESS)).thenReturn(Optional.of(OperationType.PROVISIONING));
+
+        try {
+            service.updateServiceInstance(updateRequest);
+        } catch (ServiceBrokerException e) {
+            assertThat(e.getMessage(), equalTo("Apache Gearpump instance is still being provisioned."));
+            verify(executor, never()).execute(any(Runnable.class));
+            return;
+        }
+        throw new AssertionError("update should have been refused");
+    }
+
+    @Test
+    public void testDeleteServiceInstance_whileScaling_refusedAsScaling() throws Exception {
+        GearPumpServiceInstanceService asyncService = getAsyncService();
+        when(operationStatePersistorService.readOperationInProgress(instance.getServiceInstanceId()))
+                .thenReturn(Optional.of(OperationType.SCALING));
+
+        try {
+            asyncService.deleteServiceInstance(deleteRequest);
+        } catch (ServiceBrokerException e) {
+            assertThat(e.getMessage(), equalTo("Apache Gearpump instance is still being scaled."));
+            verify(gearPumpSpawner, never()).deprovisionInstance(any(GearPumpCredentials.class), anyString());
+            verify(instanceService, never()).deleteServiceInstance(any(DeleteServiceInstanceRequest.class));
+            return;
+        }
+        throw new AssertionError("delete should have been refused");
+    }
+
+    @Test
+    public void testDeleteServiceInstance_failedAsyncProvisioning_recordRemovedWithoutTeardown() throws Exception {
+        GearPumpServiceInstanceService asyncService = getAsyncService();
+        when(credentialPersistorService.readCredentials(instance.getServiceInstanceId())).thenReturn(null);
+        when(instanceService.deleteServiceInstance(deleteRequest)).thenReturn(instance);
+
+        ServiceInstance returnedInstance = asyncService.deleteServiceInstance(deleteRequest);
+
+        assertThat(returnedInstance, equalTo(instance));
+        verify(gearPumpSpawner, never()).deprovisionInstance(any(GearPumpCredentials.class), anyString());
+        verify(operationStatePersistorService).removeOperation(instance.getServiceInstanceId());
+    }
+
+    @Test
+    public void testDeleteServiceInstance_interruptedAsyncProvisioning_recordedResourcesTornDown() throws Exception {
+        GearPumpServiceInstanceService asyncService = getAsyncService();
+        GearPumpCredentials created = new GearPumpCredentials(null, "yarnApplicationId", null, null, null, null, "uaaClientName");
+        when(credentialPersistorService.readCredentials(instance.getServiceInstanceId())).thenReturn(created);
+        when(instanceService.deleteServiceInstance(deleteRequest)).thenReturn(instance);
+
+        asyncService.deleteServiceInstance(deleteRequest);
+
+        verify(gearPumpSpawner).deprovisionInstance(created, deleteRequest.getPlanId());
+        verify(credentialPersistorService).removeCredentials(instance.getServiceInstanceId());
+        verify(instanceService).deleteServiceInstance(deleteRequest);
+    }
+
+    @Test
+    public void testDeleteServiceInstance_failedAsyncProvisioningCredentialsUnreadable_recordKept() throws Exception {
+        GearPumpServiceInstanceService asyncService = getAsyncService();
+        doThrow(new IOException("ZooKeeper is down"))
+                .when(credentialPersistorService).readCredentials(instance.getServiceInstanceId());
+
+        try {
+            asyncService.deleteServiceInstance(deleteRequest);
+        } catch (ServiceBrokerException e) {
+            verify(instanceService, never()).deleteServiceInstance(any(DeleteServiceInstanceRequest.class));
+            verify(operationStatePersistorService, never()).removeOperation(anyString());
+            return;
+        }
+        throw new AssertionError("delete should have been refused");
+    }
+
+    @Test
+    public void testCreateServiceInstance_journal_firstRecordPersistedLaterOnesReplaced() throws Exception {
+        when(instanceService.createServiceInstance(createRequest)).thenReturn(instance);
+        GearPumpCredentials started = new GearPumpCredentials(null, null, null, null, null, null, "uaaClientName");
+        GearPumpCredentials launched = new GearPumpCredentials(null, "yarnApplicationId", null, null, null, null, "uaaClientName");
+        when(gearPumpSpawner.provisionInstance(anyString(), anyString(), anyString(), anyString(), any(GearPumpSpawner.ProvisioningJournal.class)))
+                .thenAnswer(invocation -> {
+                    GearPumpSpawner.ProvisioningJournal journal = (GearPumpSpawner.ProvisioningJournal) invocation.getArguments()[4];
+                    journal.record(started);
+                    journal.record(launched);
+                    return gearPumpCredentials;
+                });
+
+        service.createServiceInstance(createRequest);
+
+        verify(credentialPersistorService).persistCredentials(instance.getServiceInstanceId(), started.toMap());
+        verify(credentialPersistorService).updateCredentials(instance.getServiceInstanceId(), launched.toMap());
+        verify(credentialPersistorService).updateCredentials(instance.getServiceInstanceId(), gearPumpCredentials.toMap());
+    }
+
+    @Test
+    public void testCreateServiceInstance_asyncRuntimeFailure_operationFailed() throws Exception {
+        GearPumpServiceInstanceService asyncService = getAsyncService();
+        CreateServiceInstanceRequest asyncRequest = createRequest.withAsyncClient(true);
+        when(instanceService.createServiceInstance(asyncRequest)).thenReturn(instance);
+        when(gearPumpSpawner.provisionInstance(anyString(), anyString(), anyString(), anyString(), any(GearPumpSpawner.ProvisioningJournal.class)))
+                .thenThrow(new IllegalArgumentException("Unknown Gearpump plan id: planId"));
+
+        asyncService.createServiceInstance(asyncRequest);
+
+        verify(operationStatePersistorService).persistOperation(eq(instance.getServiceInstanceId()),
+                eq(OperationState.FAILED), anyString());
+    }
+
+    private GearPumpServiceInstanceService getAsyncService() {
+        return newService(Runnable::run, true, ProvisioningAdmissionController.unbounded(), WorkerScalingService.disabled());
+    }
+
+    private GearPumpServiceInstanceService newService(Executor provisioningExecutor, boolean asyncProvisioning,
+                                                      ProvisioningAdmissionController admissionController,
+                                                      WorkerScalingService workerScalingService) {
+        return new GearPumpServiceInstanceService(instanceService, gearPumpSpawner, credentialPersistorService,
+                operationStatePersistorService, provisioningExecutor, asyncProvisioning, admissionController,
+                workerScalingService, prerequisitesCheckingService);
+    }
+
+    protected UpdateServiceInstanceRequest getUpdateServiceInstanceRequest(String id, String planId) {
+        return new UpdateServiceInstanceRequest(planId).withInstanceId(id);
+    }
+
     protected DeleteServiceInstanceRequest getDeleteServiceInstanceRequest(ServiceInstance instance) {
         return new DeleteServiceInstanceRequest(instance.getServiceInstanceId(), instance.getServiceDefinitionId(), instance.getPlanId());
     }
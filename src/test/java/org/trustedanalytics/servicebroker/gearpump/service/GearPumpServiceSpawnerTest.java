@@ -16,13 +16,17 @@
 
 package org.trustedanalytics.servicebroker.gearpump.service;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.trustedanalytics.servicebroker.gearpump.config.CatalogConfig;
+import org.trustedanalytics.servicebroker.gearpump.config.GearPumpPlan;
 import org.trustedanalytics.servicebroker.gearpump.kerberos.KerberosService;
+import org.trustedanalytics.servicebroker.gearpump.metrics.StageMetrics;
 import org.trustedanalytics.servicebroker.gearpump.model.GearPumpCredentials;
 import org.trustedanalytics.servicebroker.gearpump.service.dashboard.DashboardDeployer;
 import org.trustedanalytics.servicebroker.gearpump.service.dashboard.DashboardServiceException;
@@ -32,11 +36,19 @@ import org.trustedanalytics.servicebroker.gearpump.service.externals.SpawnResult
 import org.trustedanalytics.servicebroker.gearpump.yarn.YarnAppManager;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.*;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -59,66 +71,76 @@ public class GearPumpServiceSpawnerTest {
 
     private GearPumpSpawner gearPumpSpawner;
 
+    private final List<GearPumpCredentials> journal = new ArrayList<>();
+
     @Before
     public void before() throws IOException {
-        gearPumpSpawner = new GearPumpSpawner(gearPumpDriver, dashboardDeployer, yarnAppManager, catalogConfig, kerberosService);
+        gearPumpSpawner = new GearPumpSpawner(gearPumpDriver, dashboardDeployer, yarnAppManager, catalogConfig, kerberosService,
+                WarmPoolService.disabled(), Runnable::run, StageMetrics.NOOP);
+        when(dashboardDeployer.createUaaClient(anyString(), anyString(), anyString(), anyString())).thenReturn(CompletableFuture.completedFuture("uiAppUrl"));
+        when(yarnAppManager.canHost(any(GearPumpPlan.class))).thenReturn(true);
     }
 
     @Test
     public void testProvisionInstance_success() throws Exception {
 
         final String planId = "1 worker";
-        final String numberOfWorkers = "1";
+        final GearPumpPlan plan = new GearPumpPlan("plan", 1);
         final String serviceInstanceId = "serviceInstanceId";
         final String spaceId = "spaceId";
         final String orgId = "orgId";
 
-        when(catalogConfig.getNumberOfWorkers(planId)).thenReturn(numberOfWorkers);
+        when(catalogConfig.getPlan(planId)).thenReturn(plan);
 
         GearPumpCredentials gearPumpCredentials = getGearPumpCredentials();
         SpawnResult spawnResult = new SpawnResult(SpawnResult.STATUS_OK, gearPumpCredentials, null);
-        when(gearPumpDriver.spawnGearPumpOnYarn(numberOfWorkers)).thenReturn(spawnResult);
+        when(gearPumpDriver.spawnGearPumpOnYarn(eq(plan), any())).thenReturn(spawnResult);
 
-        Map<String, String> dashboardData = getDashboardData();
-        when(dashboardDeployer.deployUI(anyString(), anyString(), anyString(), anyString(), anyString(), anyString(), anyString())).thenReturn(dashboardData);
+        when(dashboardDeployer.createDashboard(anyString(), anyString(), anyString(), anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(CompletableFuture.completedFuture("uiServiceInstanceGuid"));
+        when(dashboardDeployer.whenDashboardRunning("uiServiceInstanceGuid")).thenReturn(CompletableFuture.completedFuture(null));
 
-        GearPumpCredentials returnedCredentials = gearPumpSpawner.provisionInstance(serviceInstanceId, spaceId, orgId, planId);
+        GearPumpCredentials returnedCredentials = gearPumpSpawner.provisionInstance(serviceInstanceId, spaceId, orgId, planId, journal::add);
 
-        verify(gearPumpDriver).spawnGearPumpOnYarn(numberOfWorkers);
-        verify(dashboardDeployer).deployUI(
+        verify(gearPumpDriver).spawnGearPumpOnYarn(eq(plan), any());
+        verify(dashboardDeployer).createUaaClient(
+                eq("gp-ui-" + serviceInstanceId),
+                eq(returnedCredentials.getPassword()),
+                eq(returnedCredentials.getUaaClientName()),
+                eq(planId));
+        verify(dashboardDeployer).createDashboard(
                 eq("gp-ui-" + serviceInstanceId),
                 eq("admin"),
-                anyString(),
+                eq(returnedCredentials.getPassword()),
                 eq(gearPumpCredentials.getMasters()),
                 eq(spaceId), eq(orgId),
-                anyString());
+                eq(returnedCredentials.getUaaClientName()));
+        verify(dashboardDeployer).whenDashboardRunning("uiServiceInstanceGuid");
 
         assertThat(returnedCredentials, equalTo(gearPumpCredentials));
 
-        // check if credentials are updated with values from dashboardData
-        assertThat(returnedCredentials.getDashboardUrl(), equalTo(dashboardData.get("uiAppUrl")));
-        assertThat(returnedCredentials.getDashboardGuid(), equalTo(dashboardData.get("uiServiceInstanceGuid")));
-        assertThat(returnedCredentials.getUsername(), equalTo(dashboardData.get("username")));
-        assertThat(returnedCredentials.getPassword(), equalTo(dashboardData.get("password")));
-        assertThat(returnedCredentials.getUaaClientName(), equalTo(dashboardData.get("uaaClientName")));
+        // check if credentials are updated with values from the dashboard stages
+        assertThat(returnedCredentials.getDashboardUrl(), equalTo("uiAppUrl"));
+        assertThat(returnedCredentials.getDashboardGuid(), equalTo("uiServiceInstanceGuid"));
+        assertThat(returnedCredentials.getUsername(), equalTo("admin"));
     }
 
     @Test
     public void testProvisionInstance_failure_spawnException() throws Exception {
 
         final String planId = "1 worker";
-        final String numberOfWorkers = "1";
+        final GearPumpPlan plan = new GearPumpPlan("plan", 1);
 
-        when(catalogConfig.getNumberOfWorkers(planId)).thenReturn(numberOfWorkers);
+        when(catalogConfig.getPlan(planId)).thenReturn(plan);
 
         GearPumpCredentials gearPumpCredentials = getGearPumpCredentials();
 
         ExternalProcessException exceptionInstance = new ExternalProcessException("onSpawnException");
         SpawnResult spawnResult = new SpawnResult(SpawnResult.STATUS_ERR, gearPumpCredentials, exceptionInstance);
-        when(gearPumpDriver.spawnGearPumpOnYarn(numberOfWorkers)).thenReturn(spawnResult);
+        when(gearPumpDriver.spawnGearPumpOnYarn(eq(plan), any())).thenReturn(spawnResult);
 
         try {
-            gearPumpSpawner.provisionInstance("serviceInstanceId", "spaceId", "orgId", planId);
+            gearPumpSpawner.provisionInstance("serviceInstanceId", "spaceId", "orgId", planId, journal::add);
         } catch (Exception ex) {
             assertThat(ex.getClass(), equalTo(ExternalProcessException.class));
             verify(yarnAppManager).killApplication(gearPumpCredentials.getYarnApplicationId());
@@ -126,27 +148,163 @@ public class GearPumpServiceSpawnerTest {
 
     }
 
+    @Test
+    public void testProvisionInstance_failure_launcherCrashAfterApplicationCreated() throws Exception {
+
+        final String planId = "1 worker";
+        final GearPumpPlan plan = new GearPumpPlan("plan", 1);
+
+        when(catalogConfig.getPlan(planId)).thenReturn(plan);
+
+        when(gearPumpDriver.spawnGearPumpOnYarn(eq(plan), any())).thenAnswer(invocation -> {
+            @SuppressWarnings("unchecked")
+            Consumer<String> onApplicationId = (Consumer<String>) invocation.getArguments()[1];
+            onApplicationId.accept("createdApplicationId");
+            throw new IllegalStateException("launcher crashed");
+        });
+
+        try {
+            gearPumpSpawner.provisionInstance("serviceInstanceId", "spaceId", "orgId", planId, journal::add);
+            fail("Exception expected");
+        } catch (IllegalStateException ex) {
+            verify(yarnAppManager).killApplication("createdApplicationId");
+            verify(dashboardDeployer).deleteUaaClient(anyString(), anyString());
+            verify(dashboardDeployer, never()).createDashboard(anyString(), anyString(), anyString(), anyString(), anyString(), anyString(), anyString());
+        }
+    }
+
     @Test
     public void testProvisionInstance_failure_cfException() throws Exception {
 
         final String planId = "2 workers";
-        final String numberOfWorkers = "2";
+        final GearPumpPlan plan = new GearPumpPlan("plan", 2);
 
-        when(catalogConfig.getNumberOfWorkers(planId)).thenReturn(numberOfWorkers);
+        when(catalogConfig.getPlan(planId)).thenReturn(plan);
 
         GearPumpCredentials gearPumpCredentials = getGearPumpCredentials();
 
         SpawnResult spawnResult = new SpawnResult(SpawnResult.STATUS_OK, gearPumpCredentials, null);
-        when(gearPumpDriver.spawnGearPumpOnYarn(numberOfWorkers)).thenReturn(spawnResult);
+        when(gearPumpDriver.spawnGearPumpOnYarn(eq(plan), any())).thenReturn(spawnResult);
 
-        when(dashboardDeployer.deployUI(anyString(), anyString(), anyString(), anyString(), anyString(), anyString(), anyString()))
-                .thenThrow(new DashboardServiceException(""));
+        when(dashboardDeployer.createDashboard(anyString(), anyString(), anyString(), anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(failed(new DashboardServiceException("")));
 
         try {
-            gearPumpSpawner.provisionInstance("serviceInstanceId", "spaceId", "orgId", planId);
+            gearPumpSpawner.provisionInstance("serviceInstanceId", "spaceId", "orgId", planId, journal::add);
+            fail("Exception expected");
         } catch (Exception ex) {
             assertThat(ex.getClass(), equalTo(DashboardServiceException.class));
             verify(yarnAppManager).killApplication(gearPumpCredentials.getYarnApplicationId());
+            verify(dashboardDeployer).deleteUaaClient(anyString(), anyString());
+        }
+    }
+
+    @Test
+    public void testProvisionInstance_failure_dashboardNotRunning() throws Exception {
+
+        final String planId = "1 worker";
+        final GearPumpPlan plan = new GearPumpPlan("plan", 1);
+
+        when(catalogConfig.getPlan(planId)).thenReturn(plan);
+
+        GearPumpCredentials gearPumpCredentials = getGearPumpCredentials();
+        SpawnResult spawnResult = new SpawnResult(SpawnResult.STATUS_OK, gearPumpCredentials, null);
+        when(gearPumpDriver.spawnGearPumpOnYarn(eq(plan), any())).thenReturn(spawnResult);
+        when(dashboardDeployer.createDashboard(anyString(), anyString(), anyString(), anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(CompletableFuture.completedFuture("uiServiceInstanceGuid"));
+        when(dashboardDeployer.whenDashboardRunning("uiServiceInstanceGuid")).thenReturn(failed(new DashboardServiceException("not running")));
+
+        try {
+            gearPumpSpawner.provisionInstance("serviceInstanceId", "spaceId", "orgId", planId, journal::add);
+            fail("Exception expected");
+        } catch (DashboardServiceException ex) {
+            verify(dashboardDeployer).deleteDashboard("uiServiceInstanceGuid");
+            verify(dashboardDeployer).deleteUaaClient(anyString(), anyString());
+            verify(yarnAppManager).killApplication(gearPumpCredentials.getYarnApplicationId());
+        }
+    }
+
+    @Test
+    public void testProvisionInstance_failure_uaaClientInParallelWithSpawn() throws Exception {
+
+        final String planId = "1 worker";
+        final GearPumpPlan plan = new GearPumpPlan("plan", 1);
+
+        when(catalogConfig.getPlan(planId)).thenReturn(plan);
+
+        CountDownLatch uaaClientRequested = new CountDownLatch(1);
+        CountDownLatch launchInterrupted = new CountDownLatch(1);
+        when(gearPumpDriver.spawnGearPumpOnYarn(eq(plan), any())).thenAnswer(invocation -> {
+            @SuppressWarnings("unchecked")
+            Consumer<String> onApplicationId = (Consumer<String>) invocation.getArguments()[1];
+            onApplicationId.accept("createdApplicationId");
+            // the UAA stage must not wait for the spawn to finish
+            assertTrue(uaaClientRequested.await(10, TimeUnit.SECONDS));
+            try {
+                // the cluster takes minutes to start, the failed provisioning must not wait for it
+                Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+                return new SpawnResult(SpawnResult.STATUS_OK, new GearPumpCredentials("masters", "createdApplicationId"), null);
+            } catch (InterruptedException e) {
+                launchInterrupted.countDown();
+                return new SpawnResult(SpawnResult.STATUS_ERR, new GearPumpCredentials(null, "createdApplicationId"), e);
+            }
+        });
+        when(dashboardDeployer.createUaaClient(anyString(), anyString(), anyString(), anyString())).thenAnswer(invocation -> {
+            uaaClientRequested.countDown();
+            return failed(new DashboardServiceException("UAA unavailable"));
+        });
+
+        ExecutorService stageExecutor = Executors.newFixedThreadPool(2);
+        try {
+            GearPumpSpawner parallelSpawner = new GearPumpSpawner(gearPumpDriver, dashboardDeployer, yarnAppManager,
+                    catalogConfig, kerberosService, WarmPoolService.disabled(), stageExecutor, StageMetrics.NOOP);
+            parallelSpawner.provisionInstance("serviceInstanceId", "spaceId", "orgId", planId, journal::add);
+            fail("Exception expected");
+        } catch (DashboardServiceException ex) {
+            // killed as soon as the provisioning failed, and again by the interrupted launch
+            verify(yarnAppManager, atLeastOnce()).killApplication("createdApplicationId");
+            verify(dashboardDeployer, never()).deleteUaaClient(anyString(), anyString());
+            verify(dashboardDeployer, never()).createDashboard(anyString(), anyString(), anyString(), anyString(), anyString(), anyString(), anyString());
+            assertTrue(launchInterrupted.await(10, TimeUnit.SECONDS));
+        } finally {
+            stageExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testProvisionInstance_success_stagesTimedWithPlan() throws Exception {
+        final String planId = "1 worker";
+        final GearPumpPlan plan = new GearPumpPlan("plan", 1);
+        when(catalogConfig.getPlan(planId)).thenReturn(plan);
+        when(gearPumpDriver.spawnGearPumpOnYarn(eq(plan), any()))
+                .thenReturn(new SpawnResult(SpawnResult.STATUS_OK, getGearPumpCredentials(), null));
+        when(dashboardDeployer.createDashboard(anyString(), anyString(), anyString(), anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(CompletableFuture.completedFuture("uiServiceInstanceGuid"));
+        when(dashboardDeployer.whenDashboardRunning("uiServiceInstanceGuid")).thenReturn(CompletableFuture.completedFuture(null));
+        MeterRegistry meterRegistry = new SimpleMeterRegistry();
+        GearPumpSpawner measuredSpawner = new GearPumpSpawner(gearPumpDriver, dashboardDeployer, yarnAppManager,
+                catalogConfig, kerberosService, WarmPoolService.disabled(), Runnable::run, new StageMetrics(meterRegistry));
+
+        measuredSpawner.provisionInstance("serviceInstanceId", "spaceId", "orgId", planId, journal::add);
+
+        for (String stage : new String[]{StageMetrics.UAA_CLIENT_CREATE, StageMetrics.DASHBOARD_CREATE, StageMetrics.DASHBOARD_WAIT}) {
+            assertThat(stage, meterRegistry.timer(StageMetrics.STAGE_METRIC, "stage", stage, "plan", planId,
+                    "outcome", "success").count(), equalTo(1L));
+        }
+    }
+
+    @Test(expected = ProvisioningRejectedException.class)
+    public void testProvisionInstance_yarnCapacityExceeded_rejectedBeforeSpawn() throws Exception {
+        final String planId = "3 workers";
+        final GearPumpPlan plan = new GearPumpPlan("plan", 3);
+        when(catalogConfig.getPlan(planId)).thenReturn(plan);
+        when(yarnAppManager.canHost(plan)).thenReturn(false);
+
+        try {
+            gearPumpSpawner.provisionInstance("serviceInstanceId", "spaceId", "orgId", planId, journal::add);
+        } finally {
+            verify(gearPumpDriver, never()).spawnGearPumpOnYarn(any(GearPumpPlan.class), any());
+            verify(dashboardDeployer, never()).createUaaClient(anyString(), anyString(), anyString(), anyString());
         }
     }
 
@@ -154,26 +312,99 @@ public class GearPumpServiceSpawnerTest {
     public void testDeprovisionInstance_success() throws Exception {
         GearPumpCredentials gearPumpCredentials = getGearPumpCredentials();
 
-        gearPumpSpawner.deprovisionInstance(gearPumpCredentials);
+        gearPumpSpawner.deprovisionInstance(gearPumpCredentials, "1 worker");
 
         verify(yarnAppManager).killApplication(gearPumpCredentials.getYarnApplicationId());
-        verify(dashboardDeployer).undeployUI(anyString(), anyString());
+        verify(dashboardDeployer).undeployUI(anyString(), anyString(), anyString());
+    }
+
+    @Test
+    public void testProvisionInstance_uaaClientAndApplicationJournaledBeforeDashboard() throws Exception {
+        final String planId = "1 worker";
+        final GearPumpPlan plan = new GearPumpPlan("plan", 1);
+        when(catalogConfig.getPlan(planId)).thenReturn(plan);
+        when(gearPumpDriver.spawnGearPumpOnYarn(eq(plan), any())).thenAnswer(invocation -> {
+            // nothing may be created before the journal knows the UAA client
+            assertThat(journal.size(), equalTo(1));
+            @SuppressWarnings("unchecked")
+            Consumer<String> onApplicationId = (Consumer<String>) invocation.getArguments()[1];
+            onApplicationId.accept("yarnApplicationId");
+            return new SpawnResult(SpawnResult.STATUS_OK, getGearPumpCredentials(), null);
+        });
+        when(dashboardDeployer.createDashboard(anyString(), anyString(), anyString(), anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(CompletableFuture.completedFuture("uiServiceInstanceGuid"));
+        when(dashboardDeployer.whenDashboardRunning("uiServiceInstanceGuid")).thenReturn(CompletableFuture.completedFuture(null));
+
+        GearPumpCredentials returnedCredentials = gearPumpSpawner.provisionInstance("serviceInstanceId", "spaceId", "orgId", planId, journal::add);
+
+        GearPumpCredentials started = journal.get(0);
+        assertThat(started.getUaaClientName(), equalTo(returnedCredentials.getUaaClientName()));
+        assertThat(started.getYarnApplicationId(), equalTo(null));
+        assertThat(journal.get(1).getYarnApplicationId(), equalTo("yarnApplicationId"));
+        GearPumpCredentials last = journal.get(journal.size() - 1);
+        assertThat(last.getDashboardGuid(), equalTo("uiServiceInstanceGuid"));
+        assertThat(last.getYarnApplicationId(), equalTo("yarnApplicationId"));
+    }
+
+    @Test
+    public void testProvisionInstance_failure_compensatedResourcesRemovedFromJournal() throws Exception {
+        final String planId = "1 worker";
+        final GearPumpPlan plan = new GearPumpPlan("plan", 1);
+        when(catalogConfig.getPlan(planId)).thenReturn(plan);
+        when(gearPumpDriver.spawnGearPumpOnYarn(eq(plan), any()))
+                .thenReturn(new SpawnResult(SpawnResult.STATUS_OK, getGearPumpCredentials(), null));
+        when(dashboardDeployer.createDashboard(anyString(), anyString(), anyString(), anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(CompletableFuture.completedFuture("uiServiceInstanceGuid"));
+        when(dashboardDeployer.whenDashboardRunning("uiServiceInstanceGuid")).thenReturn(failed(new DashboardServiceException("not running")));
+
+        try {
+            gearPumpSpawner.provisionInstance("serviceInstanceId", "spaceId", "orgId", planId, journal::add);
+            fail("Exception expected");
+        } catch (DashboardServiceException ex) {
+            GearPumpCredentials last = journal.get(journal.size() - 1);
+            assertThat(last.getDashboardGuid(), equalTo(null));
+            assertThat(last.getUaaClientName(), equalTo(null));
+            assertThat(last.getYarnApplicationId(), equalTo(null));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testProvisionInstance_journalUnavailable_nothingCreated() throws Exception {
+        final String planId = "1 worker";
+        when(catalogConfig.getPlan(planId)).thenReturn(new GearPumpPlan("plan", 1));
+
+        try {
+            gearPumpSpawner.provisionInstance("serviceInstanceId", "spaceId", "orgId", planId, created -> {
+                throw new IOException("ZooKeeper is down");
+            });
+        } finally {
+            verify(gearPumpDriver, never()).spawnGearPumpOnYarn(any(GearPumpPlan.class), any());
+            verify(dashboardDeployer, never()).createUaaClient(anyString(), anyString(), anyString(), anyString());
+        }
+    }
+
+    @Test
+    public void testDeprovisionInstance_interruptedProvisioning_onlyRecordedResourcesRemoved() throws Exception {
+        GearPumpCredentials created = new GearPumpCredentials(null, "yarnApplicationId", null, null, null, null, "uaaClientName");
+
+        gearPumpSpawner.deprovisionInstance(created, "1 worker");
+
+        verify(yarnAppManager).killApplication("yarnApplicationId");
+        verify(dashboardDeployer).deleteUaaClient("uaaClientName", "1 worker");
+        verify(dashboardDeployer, never()).undeployUI(anyString(), anyString(), anyString());
+        verify(dashboardDeployer, never()).deleteDashboard(anyString());
     }
 
     @Test
     public void testDeprovisionInstance_success_nullCredentials() throws Exception {
-        gearPumpSpawner.deprovisionInstance(null);
+        gearPumpSpawner.deprovisionInstance(null, "1 worker");
         verifyZeroInteractions(yarnAppManager, dashboardDeployer);
     }
 
-    private Map<String, String> getDashboardData() {
-        return new HashMap<String, String>() {{
-                put("uiAppUrl", "uiAppUrl");
-                put("uiServiceInstanceGuid", "uiServiceInstanceGuid");
-                put("username", "username");
-                put("password", "password");
-                put("uaaClientName", "uaaClientName");
-            }};
+    private static <T> CompletableFuture<T> failed(Exception e) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
     }
 
     protected GearPumpCredentials getGearPumpCredentials() {
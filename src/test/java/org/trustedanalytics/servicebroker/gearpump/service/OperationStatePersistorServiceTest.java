@@ -0,0 +1,183 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trustedanalytics.servicebroker.gearpump.service;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.apache.zookeeper.data.Stat;
+import org.cloudfoundry.community.servicebroker.model.OperationState;
+import org.cloudfoundry.community.servicebroker.model.ServiceInstanceLastOperation;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.trustedanalytics.cfbroker.store.zookeeper.service.ZookeeperClient;
+import org.trustedanalytics.servicebroker.gearpump.service.OperationStatePersistorService.OperationType;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Optional;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class OperationStatePersistorServiceTest {
+
+    private static final String PATH = "/operations/id";
+
+    private OperationStatePersistorService operationStatePersistorService;
+
+    @Mock
+    private ZookeeperClient zookeeperClient;
+
+    private TestingServer zkServer;
+    private CuratorFramework curatorFramework;
+
+    @Before
+    public void init() throws Exception {
+        zkServer = new TestingServer();
+        zkServer.start();
+        curatorFramework = CuratorFrameworkFactory.newClient(zkServer.getConnectString(), new RetryOneTime(100));
+        curatorFramework.start();
+        operationStatePersistorService = new OperationStatePersistorService(zookeeperClient, curatorFramework,
+                Duration.ofMinutes(10));
+    }
+
+    @After
+    public void cleanUp() throws Exception {
+        curatorFramework.close();
+        zkServer.close();
+    }
+
+    @Test
+    public void persistOperation_noOperation_created() throws Exception {
+        operationStatePersistorService.persistOperation("id", OperationState.IN_PROGRESS, "Provisioning");
+
+        assertThat(new String(curatorFramework.getData().forPath(PATH), StandardCharsets.UTF_8),
+                containsString("\"state\":\"IN_PROGRESS\""));
+    }
+
+    @Test
+    public void persistOperation_existingOperation_overwrittenInPlace() throws Exception {
+        operationStatePersistorService.persistOperation("id", OperationState.IN_PROGRESS, "Provisioning");
+        Stat created = curatorFramework.checkExists().forPath(PATH);
+
+        operationStatePersistorService.persistOperation("id", OperationState.SUCCEEDED, "Done");
+
+        Stat updated = curatorFramework.checkExists().forPath(PATH);
+        assertThat(updated.getCzxid(), equalTo(created.getCzxid()));
+        assertThat(updated.getVersion(), equalTo(created.getVersion() + 1));
+        assertThat(new String(curatorFramework.getData().forPath(PATH), StandardCharsets.UTF_8),
+                containsString("\"state\":\"SUCCEEDED\""));
+    }
+
+    @Test
+    public void startOperation_noOperation_startedWithItsType() throws Exception {
+        Optional<OperationType> running = operationStatePersistorService.startOperation("id", OperationType.SCALING, "Scaling");
+
+        assertThat(running.isPresent(), equalTo(false));
+        assertThat(operationStatePersistorService.readOperationInProgress("id"), equalTo(Optional.of(OperationType.SCALING)));
+    }
+
+    @Test
+    public void startOperation_anotherInProgress_notStartedAndRunningTypeReturned() throws Exception {
+        operationStatePersistorService.startOperation("id", OperationType.PROVISIONING, "Provisioning");
+        Stat started = curatorFramework.checkExists().forPath(PATH);
+
+        Optional<OperationType> running = operationStatePersistorService.startOperation("id", OperationType.SCALING, "Scaling");
+
+        assertThat(running, equalTo(Optional.of(OperationType.PROVISIONING)));
+        assertThat(curatorFramework.checkExists().forPath(PATH).getVersion(), equalTo(started.getVersion()));
+    }
+
+    @Test
+    public void startOperation_previousFinished_started() throws Exception {
+        operationStatePersistorService.startOperation("id", OperationType.PROVISIONING, "Provisioning");
+        operationStatePersistorService.persistOperation("id", OperationState.SUCCEEDED, "Done");
+
+        Optional<OperationType> running = operationStatePersistorService.startOperation("id", OperationType.SCALING, "Scaling");
+
+        assertThat(running.isPresent(), equalTo(false));
+        assertThat(operationStatePersistorService.readOperationInProgress("id"), equalTo(Optional.of(OperationType.SCALING)));
+    }
+
+    @Test
+    public void readOperationInProgress_inProgressWithoutType_provisioning() throws Exception {
+        curatorFramework.create().forPath(PATH, ("{\"state\":\"IN_PROGRESS\",\"description\":\"Provisioning\",\"updatedAt\":\""
+                + System.currentTimeMillis() + "\"}").getBytes(StandardCharsets.UTF_8));
+
+        assertThat(operationStatePersistorService.readOperationInProgress("id"), equalTo(Optional.of(OperationType.PROVISIONING)));
+    }
+
+    @Test
+    public void readOperation_recentlyUpdatedInProgress_stillInProgress() throws Exception {
+        givenOperation("{\"state\":\"IN_PROGRESS\",\"description\":\"Provisioning\",\"updatedAt\":\""
+                + System.currentTimeMillis() + "\"}");
+
+        ServiceInstanceLastOperation operation = operationStatePersistorService.readOperation("id").get();
+
+        assertThat(operation.getState(), equalTo(OperationState.IN_PROGRESS));
+        assertThat(operation.getDescription(), equalTo("Provisioning"));
+    }
+
+    @Test
+    public void readOperation_staleInProgress_reportedAsFailed() throws Exception {
+        givenOperation("{\"state\":\"IN_PROGRESS\",\"description\":\"Provisioning\",\"updatedAt\":\""
+                + (System.currentTimeMillis() - Duration.ofMinutes(11).toMillis()) + "\"}");
+
+        ServiceInstanceLastOperation operation = operationStatePersistorService.readOperation("id").get();
+
+        assertThat(operation.getState(), equalTo(OperationState.FAILED));
+        assertThat(operation.getDescription(), equalTo(OperationStatePersistorService.INTERRUPTED));
+    }
+
+    @Test
+    public void readOperation_inProgressWithoutTimestamp_reportedAsFailed() throws Exception {
+        givenOperation("{\"state\":\"IN_PROGRESS\",\"description\":\"Provisioning\"}");
+
+        ServiceInstanceLastOperation operation = operationStatePersistorService.readOperation("id").get();
+
+        assertThat(operation.getState(), equalTo(OperationState.FAILED));
+    }
+
+    @Test
+    public void readOperation_staleSucceeded_keptAsIs() throws Exception {
+        givenOperation("{\"state\":\"SUCCEEDED\",\"description\":\"Done\",\"updatedAt\":\"0\"}");
+
+        ServiceInstanceLastOperation operation = operationStatePersistorService.readOperation("id").get();
+
+        assertThat(operation.getState(), equalTo(OperationState.SUCCEEDED));
+    }
+
+    @Test
+    public void readOperation_noNode_empty() throws Exception {
+        when(zookeeperClient.getZNode(PATH)).thenReturn(null);
+
+        assertThat(operationStatePersistorService.readOperation("id").isPresent(), equalTo(false));
+    }
+
+    private void givenOperation(String json) throws Exception {
+        when(zookeeperClient.getZNode(PATH)).thenReturn(json.getBytes(StandardCharsets.UTF_8));
+    }
+}
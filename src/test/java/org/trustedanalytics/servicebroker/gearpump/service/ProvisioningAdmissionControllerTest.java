@@ -0,0 +1,169 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.trustedanalytics.servicebroker.gearpump.service;
+
+import com.google.common.collect.ImmutableMap;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.IsEqual.equalTo;
+
+public class ProvisioningAdmissionControllerTest {
+
+    private static final String SMALL = "small";
+    private static final String LARGE = "large";
+
+    private MeterRegistry meterRegistry;
+
+    @Before
+    public void before() {
+        meterRegistry = new SimpleMeterRegistry();
+    }
+
+    @Test
+    public void admit_freeSlot_admittedImmediately() throws Exception {
+        ProvisioningAdmissionController controller = getController(2, 0, Duration.ZERO);
+
+        try (ProvisioningAdmissionController.Permit permit = controller.admit(SMALL)) {
+            assertThat(controller.getActive(), equalTo(1));
+        }
+
+        assertThat(controller.getActive(), equalTo(0));
+        assertThat(meterRegistry.timer(ProvisioningAdmissionController.WAIT_METRIC, "plan", SMALL, "outcome", "immediate").count(), equalTo(1L));
+    }
+
+    @Test(expected = ProvisioningRejectedException.class)
+    public void admit_noSlotAndNoQueue_rejectedImmediately() throws Exception {
+        ProvisioningAdmissionController controller = getController(1, 0, Duration.ofMinutes(1));
+        controller.admit(SMALL);
+
+        controller.admit(LARGE);
+    }
+
+    @Test
+    public void tryAdmit_noSlot_rejectedWithoutWaiting() throws Exception {
+        ProvisioningAdmissionController controller = getController(1, 16, Duration.ofMinutes(10));
+        controller.admit(SMALL);
+
+        long start = System.nanoTime();
+        try {
+            controller.tryAdmit(SMALL);
+            throw new AssertionError("request should have been rejected");
+        } catch (ProvisioningRejectedException e) {
+            assertThat(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 1, equalTo(true));
+            assertThat(controller.getWaiting(), equalTo(0));
+        }
+    }
+
+    @Test
+    public void admit_planLimitReached_otherPlanStillAdmitted() throws Exception {
+        ProvisioningAdmissionController controller = getController(2, 0, Duration.ZERO);
+        controller.admit(SMALL);
+
+        controller.admit(LARGE);
+
+        assertThat(controller.getActive(), equalTo(2));
+    }
+
+    @Test(expected = ProvisioningRejectedException.class)
+    public void admit_planLimitReached_rejected() throws Exception {
+        ProvisioningAdmissionController controller = getController(2, 0, Duration.ZERO);
+        controller.admit(SMALL);
+
+        controller.admit(SMALL);
+    }
+
+    @Test
+    public void admit_slotFreedWhileWaiting_admitted() throws Exception {
+        ProvisioningAdmissionController controller = getController(1, 1, Duration.ofMinutes(1));
+        ProvisioningAdmissionController.Permit first = controller.admit(LARGE);
+        CountDownLatch admitted = new CountDownLatch(1);
+
+        Thread waiter = new Thread(() -> {
+            try (ProvisioningAdmissionController.Permit permit = controller.admit(LARGE)) {
+                admitted.countDown();
+            } catch (ProvisioningRejectedException e) {
+                // latch stays closed
+            }
+        });
+        waiter.start();
+        while (controller.getWaiting() == 0) {
+            Thread.sleep(10);
+        }
+        first.close();
+
+        assertThat(admitted.await(10, TimeUnit.SECONDS), equalTo(true));
+        waiter.join();
+        assertThat(controller.getWaiting(), equalTo(0));
+        assertThat(controller.getActive(), equalTo(0));
+        assertThat(meterRegistry.timer(ProvisioningAdmissionController.WAIT_METRIC, "plan", LARGE, "outcome", "queued").count(), equalTo(1L));
+    }
+
+    @Test
+    public void admit_slotNotFreedInTime_rejectedAndQueueEmptied() throws Exception {
+        ProvisioningAdmissionController controller = getController(1, 1, Duration.ofMillis(50));
+        controller.admit(LARGE);
+
+        try {
+            controller.admit(LARGE);
+        } catch (ProvisioningRejectedException e) {
+            assertThat(controller.getWaiting(), equalTo(0));
+            assertThat(meterRegistry.timer(ProvisioningAdmissionController.WAIT_METRIC, "plan", LARGE, "outcome", "timeout").count(), equalTo(1L));
+            return;
+        }
+        throw new AssertionError("request should have been rejected");
+    }
+
+    @Test
+    public void close_calledTwice_slotReleasedOnce() throws Exception {
+        ProvisioningAdmissionController controller = getController(2, 0, Duration.ZERO);
+        ProvisioningAdmissionController.Permit permit = controller.admit(LARGE);
+        controller.admit(LARGE);
+
+        permit.close();
+        permit.close();
+
+        assertThat(controller.getActive(), equalTo(1));
+    }
+
+    @Test(expected = ProvisioningRejectedException.class)
+    public void ensureCapacity_noSlotAndQueueFull_rejected() throws Exception {
+        ProvisioningAdmissionController controller = getController(1, 0, Duration.ZERO);
+        controller.admit(LARGE);
+
+        controller.ensureCapacity(LARGE);
+    }
+
+    @Test
+    public void ensureCapacity_freeSlot_passes() throws Exception {
+        ProvisioningAdmissionController controller = getController(1, 0, Duration.ZERO);
+
+        controller.ensureCapacity(LARGE);
+    }
+
+    private ProvisioningAdmissionController getController(int maxConcurrent, int queueSize, Duration maxWait) {
+        return new ProvisioningAdmissionController(maxConcurrent, ImmutableMap.of(SMALL, 1), queueSize, maxWait, meterRegistry);
+    }
+}
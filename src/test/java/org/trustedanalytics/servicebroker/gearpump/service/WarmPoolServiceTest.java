@@ -0,0 +1,201 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trustedanalytics.servicebroker.gearpump.service;
+
+import com.google.common.collect.ImmutableMap;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.trustedanalytics.servicebroker.gearpump.config.CatalogConfig;
+import org.trustedanalytics.servicebroker.gearpump.config.GearPumpPlan;
+import org.trustedanalytics.servicebroker.gearpump.kerberos.KerberosService;
+import org.trustedanalytics.servicebroker.gearpump.model.GearPumpCredentials;
+import org.trustedanalytics.servicebroker.gearpump.service.externals.GearPumpLauncher;
+import org.trustedanalytics.servicebroker.gearpump.service.externals.SpawnResult;
+import org.trustedanalytics.servicebroker.gearpump.yarn.YarnAppManager;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class WarmPoolServiceTest {
+
+    private static final String PLAN_ID = "base-small";
+    private static final GearPumpPlan PLAN = new GearPumpPlan("small", 1);
+
+    private TestingServer zkServer;
+    private CuratorFramework curatorFramework;
+    private GearPumpLauncher gearPumpLauncher;
+    private YarnAppManager yarnAppManager;
+    private CatalogConfig catalogConfig;
+    private MeterRegistry meterRegistry;
+    private ScheduledExecutorService executor;
+    private boolean gearpumpPackReady;
+
+    @Before
+    public void init() throws Exception {
+        zkServer = new TestingServer();
+        zkServer.start();
+        curatorFramework = CuratorFrameworkFactory.newClient(zkServer.getConnectString(), new RetryOneTime(100));
+        curatorFramework.start();
+
+        gearPumpLauncher = mock(GearPumpLauncher.class);
+        yarnAppManager = mock(YarnAppManager.class);
+        catalogConfig = mock(CatalogConfig.class);
+        meterRegistry = new SimpleMeterRegistry();
+        executor = mock(ScheduledExecutorService.class);
+        gearpumpPackReady = true;
+        when(catalogConfig.getPlan(anyString())).thenReturn(PLAN);
+        when(yarnAppManager.canHost(PLAN)).thenReturn(true);
+        when(gearPumpLauncher.spawnGearPumpOnYarn(PLAN)).thenReturn(spawned("application_1"), spawned("application_2"));
+    }
+
+    @After
+    public void cleanUp() throws Exception {
+        curatorFramework.close();
+        zkServer.close();
+    }
+
+    @Test
+    public void testClaimFromRefilledPool() throws Exception {
+        WarmPoolService warmPool = newWarmPool(Duration.ofHours(1));
+        warmPool.refill(PLAN_ID);
+
+        Optional<GearPumpCredentials> claimed = warmPool.claim(PLAN_ID);
+
+        assertTrue(claimed.isPresent());
+        assertThat(claimed.get().getYarnApplicationId(), equalTo("application_1"));
+        assertThat(claimed.get().getMasters(), equalTo("masters-application_1"));
+        assertThat(meterRegistry.counter(WarmPoolService.CLAIMS_METRIC, "plan", PLAN_ID, "result", "hit").count(), equalTo(1.0));
+        assertThat(meterRegistry.timer(WarmPoolService.REFILL_METRIC, "plan", PLAN_ID, "outcome", "success").count(), equalTo(1L));
+    }
+
+    @Test
+    public void testClusterIsClaimedByOneReplicaOnly() throws Exception {
+        WarmPoolService replica1 = newWarmPool(Duration.ofHours(1));
+        WarmPoolService replica2 = newWarmPool(Duration.ofHours(1));
+        replica1.refill(PLAN_ID);
+
+        assertTrue(replica1.claim(PLAN_ID).isPresent());
+        assertFalse(replica2.claim(PLAN_ID).isPresent());
+        assertThat(meterRegistry.counter(WarmPoolService.CLAIMS_METRIC, "plan", PLAN_ID, "result", "miss").count(), equalTo(1.0));
+    }
+
+    @Test
+    public void testPlanWithoutTargetIsNotPooled() throws Exception {
+        WarmPoolService warmPool = newWarmPool(Duration.ofHours(1));
+
+        assertFalse(warmPool.claim("other-plan").isPresent());
+        warmPool.refill("other-plan");
+
+        verify(gearPumpLauncher, times(0)).spawnGearPumpOnYarn(any(GearPumpPlan.class));
+    }
+
+    @Test
+    public void testExpiredClusterIsKilledAndReplaced() throws Exception {
+        WarmPoolService warmPool = newWarmPool(Duration.ofMillis(1));
+        warmPool.refill(PLAN_ID);
+        Thread.sleep(10);
+
+        warmPool.maintain();
+
+        verify(yarnAppManager).killApplication("application_1");
+        verify(gearPumpLauncher, times(2)).spawnGearPumpOnYarn(PLAN);
+    }
+
+    @Test
+    public void testFailedSpawnIsKilled() throws Exception {
+        when(gearPumpLauncher.spawnGearPumpOnYarn(PLAN)).thenReturn(
+                new SpawnResult(SpawnResult.STATUS_ERR, new GearPumpCredentials(null, "application_3"), new Exception("failed")));
+        WarmPoolService warmPool = newWarmPool(Duration.ofHours(1));
+
+        warmPool.refill(PLAN_ID);
+
+        verify(yarnAppManager).killApplication("application_3");
+        assertFalse(warmPool.claim(PLAN_ID).isPresent());
+        assertThat(meterRegistry.timer(WarmPoolService.REFILL_METRIC, "plan", PLAN_ID, "outcome", "failure").count(), equalTo(1L));
+    }
+
+    @Test
+    public void testNoRefillUntilGearpumpPackReady() throws Exception {
+        gearpumpPackReady = false;
+        WarmPoolService warmPool = newWarmPool(Duration.ofHours(1));
+
+        warmPool.start();
+        warmPool.refill(PLAN_ID);
+
+        verify(executor).schedule(any(Runnable.class), eq(WarmPoolService.PACK_CHECK_INTERVAL.toMillis()), eq(TimeUnit.MILLISECONDS));
+        verify(executor, never()).scheduleWithFixedDelay(any(Runnable.class), anyLong(), anyLong(), any(TimeUnit.class));
+        verify(gearPumpLauncher, never()).spawnGearPumpOnYarn(any(GearPumpPlan.class));
+    }
+
+    @Test
+    public void testMaintenanceStartsOnceGearpumpPackReady() throws Exception {
+        gearpumpPackReady = false;
+        WarmPoolService warmPool = newWarmPool(Duration.ofHours(1));
+        warmPool.start();
+        ArgumentCaptor<Runnable> retry = ArgumentCaptor.forClass(Runnable.class);
+        verify(executor).schedule(retry.capture(), anyLong(), any(TimeUnit.class));
+
+        gearpumpPackReady = true;
+        retry.getValue().run();
+
+        verify(executor).scheduleWithFixedDelay(any(Runnable.class), eq(0L), eq(Duration.ofMinutes(5).toMillis()), eq(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testNoRefillWithoutYarnCapacity() throws Exception {
+        when(yarnAppManager.canHost(PLAN)).thenReturn(false);
+        WarmPoolService warmPool = newWarmPool(Duration.ofHours(1));
+
+        warmPool.refill(PLAN_ID);
+
+        verify(gearPumpLauncher, never()).spawnGearPumpOnYarn(any(GearPumpPlan.class));
+        assertFalse(warmPool.claim(PLAN_ID).isPresent());
+    }
+
+    private WarmPoolService newWarmPool(Duration maxIdleAge) {
+        return new WarmPoolService(curatorFramework, gearPumpLauncher, yarnAppManager, catalogConfig, mock(KerberosService.class),
+                () -> gearpumpPackReady, meterRegistry, executor, ImmutableMap.of(PLAN_ID, 1), maxIdleAge, Duration.ofMinutes(5));
+    }
+
+    private static SpawnResult spawned(String yarnApplicationId) {
+        return new SpawnResult(SpawnResult.STATUS_OK, new GearPumpCredentials("masters-" + yarnApplicationId, yarnApplicationId), null);
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trustedanalytics.servicebroker.gearpump.service;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.trustedanalytics.servicebroker.gearpump.config.CatalogConfig;
+import org.trustedanalytics.servicebroker.gearpump.config.GearPumpPlan;
+import org.trustedanalytics.servicebroker.gearpump.model.GearPumpCredentials;
+import org.trustedanalytics.servicebroker.gearpump.service.externals.ExternalProcessException;
+import org.trustedanalytics.servicebroker.gearpump.service.externals.GearPumpClusterManager;
+import org.trustedanalytics.servicebroker.gearpump.service.externals.GearPumpRestClient;
+import org.trustedanalytics.servicebroker.gearpump.yarn.YarnAppManager;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class WorkerScalingServiceTest {
+
+    private static final String APPLICATION_ID = "application_1449093574559_0004";
+    private static final String PLAN_ID = "plan";
+    private static final String INSTANCE_ID = "instanceId";
+    private static final String TRACKING_URL = "am-host:8090";
+
+    @Mock
+    private YarnAppManager yarnAppManager;
+
+    @Mock
+    private GearPumpRestClient gearPumpRestClient;
+
+    @Mock
+    private GearPumpClusterManager clusterManager;
+
+    @Mock
+    private CatalogConfig catalogConfig;
+
+    @Mock
+    private CredentialPersistorService credentialPersistorService;
+
+    private WorkerScalingService service;
+    private GearPumpCredentials credentials;
+
+    @Before
+    public void before() throws Exception {
+        service = new WorkerScalingService(yarnAppManager, gearPumpRestClient, clusterManager, catalogConfig,
+                credentialPersistorService);
+        credentials = new GearPumpCredentials("master:3000", APPLICATION_ID, "dashboardUrl", "dashboardGuid",
+                "username", "password", "uaaClientName");
+        when(credentialPersistorService.readCredentials(INSTANCE_ID)).thenReturn(credentials);
+        when(yarnAppManager.getTrackingUrl(APPLICATION_ID)).thenReturn(TRACKING_URL);
+    }
+
+    @Test
+    public void scale_morePlanWorkers_missingWorkersAdded() throws Exception {
+        when(catalogConfig.getPlan(PLAN_ID)).thenReturn(new GearPumpPlan("medium", 3));
+        when(gearPumpRestClient.readWorkerContainers(TRACKING_URL))
+                .thenReturn(Collections.singletonList("container_3"), Arrays.asList("container_3", "container_4"));
+
+        GearPumpCredentials scaled = service.scale(INSTANCE_ID, PLAN_ID);
+
+        verify(clusterManager).addWorkers(APPLICATION_ID, 2);
+        verify(clusterManager, never()).removeWorker(anyString(), anyString());
+        assertThat(scaled.getTargetWorkers(), equalTo(3));
+        assertThat(scaled.getActualWorkers(), equalTo(2));
+        assertThat(credentials.getTargetWorkers(), equalTo(null));
+        verify(credentialPersistorService).updateCredentials(INSTANCE_ID, scaled.toMap());
+    }
+
+    @Test
+    public void scale_fewerPlanWorkers_newestWorkersRemoved() throws Exception {
+        when(catalogConfig.getPlan(PLAN_ID)).thenReturn(new GearPumpPlan("small", 1));
+        when(gearPumpRestClient.readWorkerContainers(TRACKING_URL))
+                .thenReturn(Arrays.asList("container_3", "container_4", "container_5"), Collections.singletonList("container_3"));
+
+        GearPumpCredentials scaled = service.scale(INSTANCE_ID, PLAN_ID);
+
+        verify(clusterManager).removeWorker(APPLICATION_ID, "container_4");
+        verify(clusterManager).removeWorker(APPLICATION_ID, "container_5");
+        verify(clusterManager, never()).removeWorker(APPLICATION_ID, "container_3");
+        verify(clusterManager, never()).addWorkers(anyString(), anyInt());
+        assertThat(scaled.getTargetWorkers(), equalTo(1));
+        assertThat(scaled.getActualWorkers(), equalTo(1));
+        verify(credentialPersistorService).updateCredentials(INSTANCE_ID, scaled.toMap());
+    }
+
+    @Test
+    public void scale_removalFails_partialStateStored() throws Exception {
+        when(catalogConfig.getPlan(PLAN_ID)).thenReturn(new GearPumpPlan("small", 1));
+        when(gearPumpRestClient.readWorkerContainers(TRACKING_URL))
+                .thenReturn(Arrays.asList("container_3", "container_4", "container_5"), Arrays.asList("container_3", "container_5"));
+        doThrow(new ExternalProcessException("yarnclient did not finish in time and was killed."))
+                .when(clusterManager).removeWorker(APPLICATION_ID, "container_5");
+
+        try {
+            service.scale(INSTANCE_ID, PLAN_ID);
+        } catch (ExternalProcessException e) {
+            ArgumentCaptor<Map> stored = ArgumentCaptor.forClass(Map.class);
+            verify(credentialPersistorService).updateCredentials(eq(INSTANCE_ID), stored.capture());
+            assertThat(stored.getValue().get("targetWorkers"), equalTo((Object) 1));
+            assertThat(stored.getValue().get("actualWorkers"), equalTo((Object) 2));
+            assertThat(stored.getValue().get("yarnApplicationId"), equalTo((Object) APPLICATION_ID));
+            return;
+        }
+        throw new AssertionError("failed removal should have been reported");
+    }
+}
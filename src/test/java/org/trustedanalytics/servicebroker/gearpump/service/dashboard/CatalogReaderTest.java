@@ -19,21 +19,34 @@ package org.trustedanalytics.servicebroker.gearpump.service.dashboard;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.runners.MockitoJUnitRunner;
-import org.springframework.http.HttpEntity;
+import org.mockito.verification.VerificationMode;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
-import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.mock.http.client.MockClientHttpRequest;
+import org.springframework.mock.http.client.MockClientHttpResponse;
 import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.ResponseExtractor;
 import org.springframework.web.client.RestTemplate;
 import org.trustedanalytics.servicebroker.gearpump.service.externals.helpers.CfCaller;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.core.IsInstanceOf.instanceOf;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.*;
 import static org.trustedanalytics.servicebroker.gearpump.service.dashboard.CatalogReader.CATALOG_URL;
 
@@ -65,16 +78,111 @@ public class CatalogReaderTest {
                 "  }" +
                 "]";
 
-        when(restTemplate.exchange(eq(CATALOG_URL), eq(HttpMethod.GET), Mockito.<HttpEntity>any(), Mockito.<Class<String>>any(), anyCollection()))
-                .thenReturn(new ResponseEntity<>(catalogResponseJson, HttpStatus.OK));
+        givenCatalogResponses(catalog(catalogResponseJson));
 
         // we need to inject some @Values via reflection
         ReflectionTestUtils.setField(catalogReader, "uiServiceName", "gearpump-dashboard");
 
         catalogReader.readGearpumpDashboardServiceOffering();
 
-        assertThat(catalogReader.getUiServiceGuid(), equalTo("service_guid"));
-        assertThat(catalogReader.getUiServicePlanGuid(), equalTo("service_plan_guid"));
+        CatalogReader.Offering offering = catalogReader.resolveAsync().join();
+        assertThat(offering.getServiceGuid(), equalTo("service_guid"));
+        assertThat(offering.getServicePlanGuid(), equalTo("service_plan_guid"));
+        catalogReader.shutdown();
     }
 
+    @Test
+    public void test_resolveAsync_resolvesLazilyAndSkipsOtherOfferings() throws Exception {
+
+        final String catalogResponseJson = "[" +
+                "  {\"name\": \"other\", \"id\": \"other_guid\", \"offeringPlans\": [{\"id\": \"other_plan\"}], \"metadata\": [{\"key\": \"k\"}]}," +
+                "  {\"id\": \"service_guid\", \"offeringPlans\": [{\"name\": \"p\", \"id\": \"service_plan_guid\"}, {\"id\": \"second\"}], \"name\": \"gearpump-dashboard\"}" +
+                "]";
+
+        givenCatalogResponses(catalog(catalogResponseJson));
+        ReflectionTestUtils.setField(catalogReader, "uiServiceName", "gearpump-dashboard");
+
+        verifyZeroInteractions(restTemplate);
+        CatalogReader.Offering offering = catalogReader.resolveAsync().join();
+        assertThat(offering.getServiceGuid(), equalTo("service_guid"));
+        assertThat(offering.getServicePlanGuid(), equalTo("service_plan_guid"));
+        assertThat(catalogReader.resolveAsync().join(), equalTo(offering));
+        verifyCatalogRead(times(1));
+        catalogReader.shutdown();
+    }
+
+    @Test
+    public void test_readGearpumpDashboardServiceOffering_notModified() throws Exception {
+
+        final String catalogResponseJson = "[{\"name\": \"gearpump-dashboard\", \"offeringPlans\": [{\"id\": \"service_plan_guid\"}], \"id\": \"service_guid\"}]";
+        MockClientHttpResponse first = catalog(catalogResponseJson);
+        first.getHeaders().setETag("\"v1\"");
+
+        givenCatalogResponses(first, new MockClientHttpResponse(new byte[0], HttpStatus.NOT_MODIFIED));
+        ReflectionTestUtils.setField(catalogReader, "uiServiceName", "gearpump-dashboard");
+
+        catalogReader.readGearpumpDashboardServiceOffering();
+        catalogReader.readGearpumpDashboardServiceOffering();
+
+        ArgumentCaptor<RequestCallback> request = ArgumentCaptor.forClass(RequestCallback.class);
+        verify(restTemplate, times(2)).execute(eq(CATALOG_URL), eq(HttpMethod.GET), request.capture(),
+                Mockito.<ResponseExtractor<Object>>any(), Mockito.<Object>anyVararg());
+        MockClientHttpRequest secondRequest = new MockClientHttpRequest();
+        request.getAllValues().get(1).doWithRequest(secondRequest);
+        assertThat(secondRequest.getHeaders().getIfNoneMatch().get(0), equalTo("\"v1\""));
+        assertThat(catalogReader.resolveAsync().join().getServiceGuid(), equalTo("service_guid"));
+        catalogReader.shutdown();
+    }
+
+    @Test
+    public void test_warmUp_offeringCachedBeforeFirstUse() throws Exception {
+
+        final String catalogResponseJson = "[{\"name\": \"gearpump-dashboard\", \"offeringPlans\": [{\"id\": \"service_plan_guid\"}], \"id\": \"service_guid\"}]";
+
+        givenCatalogResponses(catalog(catalogResponseJson));
+        ReflectionTestUtils.setField(catalogReader, "uiServiceName", "gearpump-dashboard");
+
+        catalogReader.warmUp();
+
+        assertThat(catalogReader.resolveAsync().get(10, TimeUnit.SECONDS).getServiceGuid(), equalTo("service_guid"));
+        verifyCatalogRead(times(1));
+        catalogReader.shutdown();
+    }
+
+    @Test
+    public void test_resolveAsync_offeringMissing_notCachedAndRetried() throws Exception {
+
+        final String catalogResponseJson = "[{\"name\": \"gearpump-dashboard\", \"offeringPlans\": [{\"id\": \"service_plan_guid\"}], \"id\": \"service_guid\"}]";
+
+        givenCatalogResponses(catalog("[{\"name\": \"other\", \"id\": \"other_guid\"}]"), catalog(catalogResponseJson));
+        ReflectionTestUtils.setField(catalogReader, "uiServiceName", "gearpump-dashboard");
+
+        try {
+            catalogReader.resolveAsync().join();
+            fail("CompletionException expected");
+        } catch (CompletionException e) {
+            assertThat(e.getCause(), instanceOf(UncheckedIOException.class));
+            assertThat(e.getCause().getCause().getMessage(), equalTo("No offering 'gearpump-dashboard' in the service catalog"));
+        }
+        assertThat(catalogReader.resolveAsync().join().getServiceGuid(), equalTo("service_guid"));
+        verifyCatalogRead(times(2));
+        catalogReader.shutdown();
+    }
+
+    private static MockClientHttpResponse catalog(String json) {
+        return new MockClientHttpResponse(json.getBytes(StandardCharsets.UTF_8), HttpStatus.OK);
+    }
+
+    // the extractor is fed the way RestTemplate feeds it, one response per call
+    private void givenCatalogResponses(ClientHttpResponse... responses) {
+        Iterator<ClientHttpResponse> next = Arrays.asList(responses).iterator();
+        when(restTemplate.execute(eq(CATALOG_URL), eq(HttpMethod.GET), any(RequestCallback.class),
+                Mockito.<ResponseExtractor<Object>>any(), Mockito.<Object>anyVararg()))
+                .thenAnswer(invocation -> ((ResponseExtractor<?>) invocation.getArguments()[3]).extractData(next.next()));
+    }
+
+    private void verifyCatalogRead(VerificationMode mode) {
+        verify(restTemplate, mode).execute(eq(CATALOG_URL), eq(HttpMethod.GET), any(RequestCallback.class),
+                Mockito.<ResponseExtractor<Object>>any(), Mockito.<Object>anyVararg());
+    }
 }
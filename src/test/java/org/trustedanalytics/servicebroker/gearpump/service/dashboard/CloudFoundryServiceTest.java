@@ -21,11 +21,16 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.http.HttpStatus;
 import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.HttpClientErrorException;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.IsEqual.equalTo;
@@ -45,25 +50,89 @@ public class CloudFoundryServiceTest {
     @Before
     public void before() throws IOException {
         dashboardDeployer = new CloudFoundryService(dashboardFactory, uaaConnector);
+        when(uaaConnector.getCachedUaaToken(anyString())).thenReturn(Optional.empty());
     }
 
     @Test
     public void test_deployUI() throws Exception {
 
-        when(dashboardFactory.createInstance(anyString(), anyString(), anyString(), anyString(), anyString(), anyString(), anyString())).thenReturn("my_guid");
+        when(dashboardFactory.createInstanceAsync(anyString(), anyString(), anyString(), anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(CompletableFuture.completedFuture("my_guid"));
+        when(uaaConnector.createUaaClientAsync(anyString(), anyString(), anyString(), anyString())).thenReturn(CompletableFuture.completedFuture("{}"));
         when(dashboardFactory.ensureInstanceRunning(anyString())).thenReturn(true);
 
         ReflectionTestUtils.setField(dashboardDeployer, "platformApiEndpoint", "http://api.domain.com");
 
         Map<String, String> dashboardData = dashboardDeployer.deployUI("uiInstanceName", "username", "password", "gearpumpMaster",
-                "spaceId", "orgId", "uaaClientName");
+                "spaceId", "orgId", "uaaClientName", "planId");
 
-        verify(uaaConnector).createUaaToken(anyString(), anyString());
-        verify(uaaConnector).createUaaClient(anyString(), anyString(), anyString(), anyString());
+        verify(uaaConnector).getUaaToken(anyString(), anyString(), anyString());
+        verify(uaaConnector).createUaaClientAsync(anyString(), anyString(), anyString(), anyString());
 
         assertThat(dashboardData.get("uiServiceInstanceGuid"), equalTo("my_guid"));
     }
 
+    @Test
+    public void test_createUaaClient_retriesWithNewTokenWhenUnauthorized() throws Exception {
+
+        ReflectionTestUtils.setField(dashboardDeployer, "platformApiEndpoint", "http://api.domain.com");
+        CompletableFuture<String> unauthorized = new CompletableFuture<>();
+        unauthorized.completeExceptionally(new HttpClientErrorException(HttpStatus.UNAUTHORIZED));
+        when(uaaConnector.getUaaToken(anyString(), anyString(), anyString())).thenReturn("bearer expired", "bearer fresh");
+        when(uaaConnector.createUaaClientAsync("uaaClientName", "password", "uiInstanceName.domain.com", "bearer expired")).thenReturn(unauthorized);
+        when(uaaConnector.createUaaClientAsync("uaaClientName", "password", "uiInstanceName.domain.com", "bearer fresh"))
+                .thenReturn(CompletableFuture.completedFuture("{}"));
+
+        String uiAppUrl = dashboardDeployer.createUaaClient("uiInstanceName", "password", "uaaClientName", "planId").get();
+
+        assertThat(uiAppUrl, equalTo("uiInstanceName.domain.com"));
+        verify(uaaConnector).invalidateUaaToken("bearer expired");
+    }
+
+    @Test
+    public void test_createUaaClient_tokenFetchedOnTokenExecutor() throws Exception {
+
+        List<Runnable> tokenTasks = new ArrayList<>();
+        dashboardDeployer = new CloudFoundryService(dashboardFactory, uaaConnector, tokenTasks::add);
+        ReflectionTestUtils.setField(dashboardDeployer, "platformApiEndpoint", "http://api.domain.com");
+        when(uaaConnector.getUaaToken(anyString(), anyString(), anyString())).thenReturn("bearer token");
+        when(uaaConnector.createUaaClientAsync("uaaClientName", "password", "uiInstanceName.domain.com", "bearer token"))
+                .thenReturn(CompletableFuture.completedFuture("{}"));
+
+        CompletableFuture<String> uiAppUrl = dashboardDeployer.createUaaClient("uiInstanceName", "password", "uaaClientName", "planId");
+
+        verify(uaaConnector, never()).getUaaToken(anyString(), anyString(), anyString());
+        assertThat(tokenTasks.size(), equalTo(1));
+        tokenTasks.get(0).run();
+        verify(uaaConnector).getUaaToken(anyString(), anyString(), eq("planId"));
+        assertThat(uiAppUrl.get(), equalTo("uiInstanceName.domain.com"));
+    }
+
+    @Test
+    public void test_createUaaClient_cachedToken_noTokenExecutor() throws Exception {
+
+        List<Runnable> tokenTasks = new ArrayList<>();
+        dashboardDeployer = new CloudFoundryService(dashboardFactory, uaaConnector, tokenTasks::add);
+        ReflectionTestUtils.setField(dashboardDeployer, "platformApiEndpoint", "http://api.domain.com");
+        when(uaaConnector.getCachedUaaToken(anyString())).thenReturn(Optional.of("bearer cached"));
+        when(uaaConnector.createUaaClientAsync("uaaClientName", "password", "uiInstanceName.domain.com", "bearer cached"))
+                .thenReturn(CompletableFuture.completedFuture("{}"));
+
+        String uiAppUrl = dashboardDeployer.createUaaClient("uiInstanceName", "password", "uaaClientName", "planId").get();
+
+        assertThat(uiAppUrl, equalTo("uiInstanceName.domain.com"));
+        assertThat(tokenTasks.size(), equalTo(0));
+        verify(uaaConnector, never()).getUaaToken(anyString(), anyString(), anyString());
+    }
+
+    @Test(expected = DashboardServiceException.class)
+    public void test_ensureDashboardRunning_notRunning() throws Exception {
+
+        when(dashboardFactory.ensureInstanceRunning("my_guid")).thenReturn(false);
+
+        dashboardDeployer.ensureDashboardRunning("my_guid");
+    }
+
     @Test
     public void test_undeployUI() throws Exception {
 
@@ -72,10 +141,22 @@ public class CloudFoundryServiceTest {
         when(dashboardFactory.stopInstance(eq(uiServiceInstanceId))).thenReturn(true);
         when(dashboardFactory.ensureInstanceStopped(uiServiceInstanceId)).thenReturn(true);
 
-        dashboardDeployer.undeployUI(uiServiceInstanceId, "clientId");
+        dashboardDeployer.undeployUI(uiServiceInstanceId, "clientId", "planId");
 
         verify(dashboardFactory).deleteInstance(uiServiceInstanceId);
-        verify(uaaConnector).createUaaToken(anyString(), anyString());
+        verify(uaaConnector).getUaaToken(anyString(), anyString(), anyString());
         verify(uaaConnector).deleteUaaClient(anyString(), anyString());
     }
+
+    @Test
+    public void test_undeployUI_retriesWithNewTokenWhenUnauthorized() throws Exception {
+
+        when(uaaConnector.getUaaToken(anyString(), anyString(), anyString())).thenReturn("bearer expired", "bearer fresh");
+        when(uaaConnector.deleteUaaClient("clientId", "bearer expired")).thenThrow(new HttpClientErrorException(HttpStatus.UNAUTHORIZED));
+
+        dashboardDeployer.undeployUI("uiServiceInstanceId", "clientId", "planId");
+
+        verify(uaaConnector).invalidateUaaToken("bearer expired");
+        verify(uaaConnector).deleteUaaClient("clientId", "bearer fresh");
+    }
 }
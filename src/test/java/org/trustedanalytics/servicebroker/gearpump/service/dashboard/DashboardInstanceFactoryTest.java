@@ -34,6 +34,7 @@ import org.trustedanalytics.servicebroker.gearpump.service.externals.helpers.CfC
 
 import java.io.IOException;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.IsEqual.equalTo;
@@ -64,8 +65,8 @@ public class DashboardInstanceFactoryTest {
 
         mockCreateInstanceResponse();
 
-        when(catalogReader.getUiServiceGuid()).thenReturn("service_guid");
-        when(catalogReader.getUiServiceGuid()).thenReturn("service_plan_guid");
+        when(catalogReader.resolveAsync()).thenReturn(
+                CompletableFuture.completedFuture(new CatalogReader.Offering("service_guid", "service_plan_guid")));
 
         // we need to inject some @Values via reflection
         ReflectionTestUtils.setField(dashboardInstanceFactory, "platformApiEndpoint", "http://app.domain.com");
@@ -21,9 +21,13 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import java.io.IOException;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @RunWith(MockitoJUnitRunner.class)
 public class DashboardStateValidatorTest {
@@ -37,9 +41,59 @@ public class DashboardStateValidatorTest {
     }
 
     @Test
-    public void test_validate() throws Exception {
-        Assert.assertEquals(false, validator.validate((instanceId, expectedState) -> Optional.of(false), "", InstanceState.STOPPED));
-        Assert.assertEquals(false, validator.validate((instanceId, expectedState) -> Optional.empty(), "", InstanceState.STOPPED));
-        Assert.assertEquals(true, validator.validate((instanceId, expectedState) -> Optional.of(true), "", InstanceState.RUNNING));
+    public void test_watchAsync() throws Exception {
+        Assert.assertEquals(false, validator.await(validator.watchAsync((instanceId, expectedState) -> completed(Optional.of(false)), "", InstanceState.STOPPED)));
+        Assert.assertEquals(false, validator.await(validator.watchAsync((instanceId, expectedState) -> completed(Optional.empty()), "", InstanceState.STOPPED)));
+        Assert.assertEquals(true, validator.await(validator.watchAsync((instanceId, expectedState) -> completed(Optional.of(true)), "", InstanceState.RUNNING)));
+    }
+
+    @Test
+    public void test_watchAsync_returnsOnFirstObservedTransition() throws Exception {
+        validator = new DashboardStateValidator();
+        ReflectionTestUtils.setField(validator, "maxRetryCount", 6);
+        ReflectionTestUtils.setField(validator, "retryInterval", 10L);
+        ReflectionTestUtils.setField(validator, "initialRetryInterval", 10L);
+        ReflectionTestUtils.setField(validator, "retryEnabled", true);
+        AtomicInteger polls = new AtomicInteger();
+
+        long start = System.currentTimeMillis();
+        boolean running = validator.await(validator.watchAsync(
+                (instanceId, expectedState) -> completed(Optional.of(polls.incrementAndGet() == 3)), "", InstanceState.RUNNING));
+
+        Assert.assertTrue(running);
+        Assert.assertEquals(3, polls.get());
+        Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+        validator.shutdown();
+    }
+
+    @Test
+    public void test_watchAsync_sharedAcrossInstances() throws Exception {
+        CompletableFuture<Boolean> first = validator.watchAsync((instanceId, expectedState) -> completed(Optional.of(true)), "first", InstanceState.RUNNING);
+        CompletableFuture<Boolean> second = validator.watchAsync((instanceId, expectedState) -> completed(Optional.empty()), "second", InstanceState.RUNNING);
+
+        Assert.assertEquals(true, first.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(false, second.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void test_watchAsync_checkCompletedLater() throws Exception {
+        CompletableFuture<Optional<Boolean>> check = new CompletableFuture<>();
+        CompletableFuture<Boolean> watch = validator.watchAsync((instanceId, expectedState) -> check, "", InstanceState.RUNNING);
+
+        check.complete(Optional.of(true));
+
+        Assert.assertEquals(true, watch.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test(expected = DashboardServiceException.class)
+    public void test_watchAsync_propagatesPollFailure() throws Exception {
+        CompletableFuture<Optional<Boolean>> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new DashboardServiceException("cannot read state"));
+
+        validator.await(validator.watchAsync((instanceId, expectedState) -> failed, "", InstanceState.RUNNING));
+    }
+
+    private static CompletableFuture<Optional<Boolean>> completed(Optional<Boolean> state) {
+        return CompletableFuture.completedFuture(state);
     }
 }
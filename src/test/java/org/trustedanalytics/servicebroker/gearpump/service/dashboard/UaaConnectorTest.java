@@ -16,6 +16,8 @@
 
 package org.trustedanalytics.servicebroker.gearpump.service.dashboard;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -25,15 +27,20 @@ import org.mockito.runners.MockitoJUnitRunner;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.web.client.RestTemplate;
+import org.trustedanalytics.servicebroker.gearpump.metrics.StageMetrics;
 import org.trustedanalytics.servicebroker.gearpump.service.externals.helpers.CfCaller;
 
 import java.io.IOException;
+import java.util.Optional;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.IsEqual.equalTo;
 import static org.mockito.Matchers.anyCollection;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.trustedanalytics.servicebroker.gearpump.service.dashboard.UaaConnector.CREATE_UAA_CLIENT_URL;
 import static org.trustedanalytics.servicebroker.gearpump.service.dashboard.UaaConnector.CREATE_UAA_TOKEN_URL;
@@ -68,20 +75,53 @@ public class UaaConnectorTest {
     }
 
     @Test
-    public void test_createUaaToken() throws Exception {
+    public void test_getUaaToken_reusesTokenUntilExpiry() throws Exception {
 
-        final String clientId = "uaaClientName";
-        final String clientSecret = "uaaPassword";
+        when(restTemplate.exchange(eq(CREATE_UAA_TOKEN_URL), Mockito.any(), Mockito.<HttpEntity>any(), Mockito.<Class<String>>any(), anyCollection()))
+                .thenReturn(tokenResponse("first", 3600), tokenResponse("second", 3600));
+
+        assertThat(uaaConnector.getUaaToken("admin", "secret", "planId"), equalTo("bearer first"));
+        assertThat(uaaConnector.getUaaToken("admin", "secret", "planId"), equalTo("bearer first"));
+        verify(restTemplate, times(1)).exchange(eq(CREATE_UAA_TOKEN_URL), Mockito.any(), Mockito.<HttpEntity>any(), Mockito.<Class<String>>any(), anyCollection());
+
+        uaaConnector.invalidateUaaToken("bearer first");
+        assertThat(uaaConnector.getUaaToken("admin", "secret", "planId"), equalTo("bearer second"));
+    }
+
+    @Test
+    public void test_getUaaToken_refreshesTokenCloseToExpiry() throws Exception {
+
+        when(restTemplate.exchange(eq(CREATE_UAA_TOKEN_URL), Mockito.any(), Mockito.<HttpEntity>any(), Mockito.<Class<String>>any(), anyCollection()))
+                .thenReturn(tokenResponse("first", UaaConnector.DEFAULT_TOKEN_REFRESH_MARGIN - 1), tokenResponse("second", 3600));
+
+        assertThat(uaaConnector.getUaaToken("admin", "secret", "planId"), equalTo("bearer first"));
+        assertThat(uaaConnector.getUaaToken("admin", "secret", "planId"), equalTo("bearer second"));
+    }
 
+    @Test
+    public void test_getUaaToken_requestRecordedForGivenPlan() throws Exception {
+
+        MeterRegistry meterRegistry = new SimpleMeterRegistry();
+        ReflectionTestUtils.setField(uaaConnector, "stageMetrics", new StageMetrics(meterRegistry));
         when(restTemplate.exchange(eq(CREATE_UAA_TOKEN_URL), Mockito.any(), Mockito.<HttpEntity>any(), Mockito.<Class<String>>any(), anyCollection()))
-                .thenReturn(new ResponseEntity<>(
-                        "{" +
-                                "  \"access_token\": \"test_access_token\"," +
-                                "  \"token_type\": \"test_token_type\"" +
-                                "}" , HttpStatus.OK));
-
-        String createdToken = uaaConnector.createUaaToken(clientId, clientSecret);
-        assertThat(createdToken, equalTo("test_token_type test_access_token"));
+                .thenReturn(tokenResponse("first", 3600));
+
+        uaaConnector.getUaaToken("admin", "secret", "planId");
+
+        assertThat(meterRegistry.timer(StageMetrics.STAGE_METRIC, "stage", StageMetrics.UAA_TOKEN, "plan", "planId",
+                "outcome", "success").count(), equalTo(1L));
+    }
+
+    @Test
+    public void test_getCachedUaaToken_onlyUsableTokenOfSameClient() throws Exception {
+
+        when(restTemplate.exchange(eq(CREATE_UAA_TOKEN_URL), Mockito.any(), Mockito.<HttpEntity>any(), Mockito.<Class<String>>any(), anyCollection()))
+                .thenReturn(tokenResponse("first", 3600));
+
+        assertThat(uaaConnector.getCachedUaaToken("admin"), equalTo(Optional.empty()));
+        uaaConnector.getUaaToken("admin", "secret", "planId");
+        assertThat(uaaConnector.getCachedUaaToken("admin"), equalTo(Optional.of("bearer first")));
+        assertThat(uaaConnector.getCachedUaaToken("other"), equalTo(Optional.empty()));
     }
 
     @Test
@@ -96,4 +136,12 @@ public class UaaConnectorTest {
         assertThat(responseBody, equalTo("deleted!"));
     }
 
+    private ResponseEntity<String> tokenResponse(String accessToken, long expiresIn) {
+        return new ResponseEntity<>(
+                "{" +
+                        "  \"access_token\": \"" + accessToken + "\"," +
+                        "  \"token_type\": \"bearer\"," +
+                        "  \"expires_in\": " + expiresIn +
+                        "}", HttpStatus.OK);
+    }
 }
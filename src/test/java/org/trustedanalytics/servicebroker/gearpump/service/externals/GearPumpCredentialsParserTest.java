@@ -22,6 +22,10 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.equalTo;
 import static org.junit.Assert.assertThat;
 
@@ -123,4 +127,18 @@ public class GearPumpCredentialsParserTest extends TestCase {
         assertThat(applicationId, equalTo(EXPECTED_APPLICATION_ID));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testApplicationIdListenerReportsCreatedApplicationOnce() throws Exception {
+        List<String> reportedIds = new ArrayList<>();
+        GearPumpCredentialsParser.ApplicationIdListener listener = new GearPumpCredentialsParser.ApplicationIdListener(reportedIds::add);
+
+        for (String line : TIMEOUTED_DEPLOY.split("\n")) {
+            listener.onLine(line);
+        }
+        listener.onLine("16/02/17 14:28:41 INFO YarnClient: Create application, appId: application_1456149538698_0015");
+
+        assertThat(listener.getApplicationId(), equalTo(EXPECTED_APPLICATION_ID));
+        assertThat(reportedIds, contains(EXPECTED_APPLICATION_ID));
+    }
+
+}
@@ -16,23 +16,45 @@
 
 package org.trustedanalytics.servicebroker.gearpump.service.externals;
 
+import com.google.common.io.Files;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.trustedanalytics.servicebroker.gearpump.config.GearPumpPlan;
 import org.trustedanalytics.servicebroker.gearpump.config.GearPumpSpawnerConfig;
 import org.trustedanalytics.servicebroker.gearpump.kerberos.KerberosService;
 import org.trustedanalytics.servicebroker.gearpump.model.GearPumpCredentials;
 import org.trustedanalytics.servicebroker.gearpump.service.externals.helpers.ExternalProcessExecutor;
 import org.trustedanalytics.servicebroker.gearpump.service.externals.helpers.ExternalProcessExecutorResult;
 import org.trustedanalytics.servicebroker.gearpump.service.externals.helpers.HdfsUtils;
+import org.trustedanalytics.servicebroker.gearpump.service.externals.helpers.ProcessOutputListener;
+import org.trustedanalytics.servicebroker.gearpump.service.file.FileReaderService;
+import org.trustedanalytics.servicebroker.gearpump.service.file.FileWriterService;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.instanceOf;
 import static org.junit.Assert.assertThat;
@@ -52,6 +74,7 @@ public class GearPumpDriverExecTest {
             "16/02/17 14:28:42 INFO YarnClient: Submit Application application_1456149538698_0014 to YARN...\n"+
             "16/02/17 14:28:42 INFO impl.YarnClientImpl: Submitted application application_1456149538698_0014\n";
     private static final String EMPTY_ENV = "JAVA_OPTS=";
+    private static final GearPumpPlan PLAN = new GearPumpPlan("small", 1);
 
     @Mock
     private GearPumpCredentialsParser gearPumpCredentialsParser;
@@ -69,6 +92,9 @@ public class GearPumpDriverExecTest {
     @InjectMocks
     private GearPumpDriverExec gearPumpDriverExec;
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @Before
     public void init() throws IOException, ExternalProcessException {
         gearPumpDriverExec = new GearPumpDriverExec();
@@ -84,10 +110,10 @@ public class GearPumpDriverExecTest {
 
         when(hdfsUtils.getHdfsUri()).thenReturn(HDFS_URI);
 
-        when(gearPumpOutputReportReader.fromOutput(Mockito.anyString())).thenReturn(gearPumpOutputReportReader);
-        when(gearPumpOutputReportReader.getMasterUrl()).thenReturn(MASTER_URL);
+        when(gearPumpOutputReportReader.getMasterUrl(Mockito.anyString())).thenReturn(MASTER_URL);
 
-        when(externalProcessExecutor.run(Mockito.<String[]>any(), Mockito.anyString(), Mockito.anyMapOf(String.class, String.class)))
+        when(externalProcessExecutor.run(Mockito.<String[]>any(), Mockito.anyString(), Mockito.anyMapOf(String.class, String.class),
+                Mockito.any(ProcessOutputListener.class), Mockito.anyLong()))
                 .thenReturn(new ExternalProcessExecutorResult(0, COMMAND_OUTPUT, null));
 
         when(kerberosService.getKerberosJavaOpts()).thenReturn(EMPTY_ENV);
@@ -95,18 +121,85 @@ public class GearPumpDriverExecTest {
 
     @Test
     public void spawnGearPumpOnYarnSuccess() throws IOException, ExternalProcessException {
-        SpawnResult result = gearPumpDriverExec.spawnGearPumpOnYarn("");
+        SpawnResult result = gearPumpDriverExec.spawnGearPumpOnYarn(PLAN);
         assertThat(result.getStatus(), equalTo(SpawnResult.STATUS_OK));
         GearPumpCredentials credentials = result.getGearPumpCredentials();
         assertThat(credentials.getYarnApplicationId(), equalTo(APPLICATION_ID));
         assertThat(credentials.getMasters(), equalTo(MASTER_URL));
-        Mockito.verify(externalProcessExecutor).run(Mockito.<String[]>any(), Mockito.anyString(), Mockito.anyMapOf(String.class, String.class));
+        Mockito.verify(externalProcessExecutor).run(Mockito.<String[]>any(), Mockito.anyString(), Mockito.anyMapOf(String.class, String.class),
+                Mockito.any(ProcessOutputListener.class), Mockito.anyLong());
+    }
+
+    @Test
+    public void spawnGearPumpOnYarnPassesPlanResourcesToYarnclient() throws IOException, ExternalProcessException {
+        when(externalConfiguration.getWorkersMemoryLimit()).thenReturn("1024");
+        GearPumpPlan plan = new GearPumpPlan("large", 4);
+        plan.setWorkerVcores(2);
+        plan.setMasterMemory(4096);
+        plan.setQueue("streaming");
+
+        gearPumpDriverExec.spawnGearPumpOnYarn(plan);
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Map<String, String>> env = ArgumentCaptor.forClass((Class) Map.class);
+        Mockito.verify(externalProcessExecutor).run(Mockito.<String[]>any(), Mockito.anyString(), env.capture(),
+                Mockito.any(ProcessOutputListener.class), Mockito.anyLong());
+        assertThat(env.getValue().get("JAVA_OPTS"), equalTo(EMPTY_ENV
+                + " -Dgearpump.yarn.worker.containers=4 -Dgearpump.yarn.worker.memory=1024 -Dgearpump.yarn.worker.vcores=2"
+                + " -Dgearpump.yarn.master.memory=4096 -Dgearpump.yarn.applicationmaster.queue=streaming"));
+    }
+
+    @Test
+    public void spawnGearPumpOnYarnSubmitsToConfiguredQueueByDefault() throws IOException, ExternalProcessException {
+        when(externalConfiguration.getYarnQueue()).thenReturn("gearpump");
+
+        gearPumpDriverExec.spawnGearPumpOnYarn(PLAN);
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Map<String, String>> env = ArgumentCaptor.forClass((Class) Map.class);
+        Mockito.verify(externalProcessExecutor).run(Mockito.<String[]>any(), Mockito.anyString(), env.capture(),
+                Mockito.any(ProcessOutputListener.class), Mockito.anyLong());
+        assertThat(env.getValue().get("JAVA_OPTS"), containsString(" -Dgearpump.yarn.applicationmaster.queue=gearpump"));
+    }
+
+    @Test
+    public void spawnGearPumpOnYarnReportsApplicationIdWhileProcessIsRunning() throws IOException, ExternalProcessException {
+        when(externalProcessExecutor.run(Mockito.<String[]>any(), Mockito.anyString(), Mockito.anyMapOf(String.class, String.class),
+                Mockito.any(ProcessOutputListener.class), Mockito.anyLong())).thenAnswer(invocation -> {
+                    ProcessOutputListener listener = (ProcessOutputListener) invocation.getArguments()[3];
+                    listener.onLine("16/02/17 14:28:41 INFO YarnClient: Create application, appId: " + APPLICATION_ID);
+                    return new ExternalProcessExecutorResult(1, "", null);
+                });
+        List<String> reportedIds = new ArrayList<>();
+
+        SpawnResult result = gearPumpDriverExec.spawnGearPumpOnYarn(PLAN, reportedIds::add);
+
+        assertThat(reportedIds, contains(APPLICATION_ID));
+        assertThat(result.getStatus(), equalTo(SpawnResult.STATUS_ERR));
+        assertThat(result.getGearPumpCredentials().getYarnApplicationId(), equalTo(APPLICATION_ID));
+        Mockito.verify(gearPumpCredentialsParser, Mockito.never()).getApplicationId(Mockito.anyString());
+    }
+
+    @Test
+    public void spawnGearPumpOnYarnFailsWithApplicationIdWhenYarnclientTimesOut() throws IOException, ExternalProcessException {
+        when(externalConfiguration.getYarnclientTimeoutMillis()).thenReturn(1000L);
+        when(externalProcessExecutor.run(Mockito.<String[]>any(), Mockito.anyString(), Mockito.anyMapOf(String.class, String.class),
+                Mockito.any(ProcessOutputListener.class), Mockito.eq(1000L)))
+                .thenReturn(new ExternalProcessExecutorResult(ExternalProcessExecutorResult.Status.TIMED_OUT, Integer.MIN_VALUE,
+                        COMMAND_OUTPUT, new TimeoutException()));
+
+        SpawnResult result = gearPumpDriverExec.spawnGearPumpOnYarn(PLAN);
+
+        assertThat(result.getStatus(), equalTo(SpawnResult.STATUS_ERR));
+        assertThat(result.getException(), instanceOf(ExternalProcessException.class));
+        assertThat(result.getGearPumpCredentials().getYarnApplicationId(), equalTo(APPLICATION_ID));
+        Mockito.verify(gearPumpOutputReportReader, Mockito.never()).getMasterUrl(Mockito.anyString());
     }
 
     @Test
     public void spawnGearPumpOnYarnThrowsExternalProcessExceptionWhenMasterIsNull() throws IOException, ExternalProcessException {
-        when(gearPumpOutputReportReader.getMasterUrl()).thenReturn(null);
-        SpawnResult result = gearPumpDriverExec.spawnGearPumpOnYarn(null);
+        when(gearPumpOutputReportReader.getMasterUrl(Mockito.anyString())).thenReturn(null);
+        SpawnResult result = gearPumpDriverExec.spawnGearPumpOnYarn(PLAN);
         assertThat(result.getStatus(), equalTo(SpawnResult.STATUS_ERR));
         assertThat(result.getException(), instanceOf(ExternalProcessException.class));
     }
@@ -114,8 +207,86 @@ public class GearPumpDriverExecTest {
     @Test
     public void spawnGearPumpOnYarnThrowsExternalProcessExceptionWhenApplicationIdIsNull() throws IOException, ExternalProcessException {
         when(gearPumpCredentialsParser.getApplicationId(Mockito.anyString())).thenReturn(null);
-        SpawnResult result = gearPumpDriverExec.spawnGearPumpOnYarn(null);
+        SpawnResult result = gearPumpDriverExec.spawnGearPumpOnYarn(PLAN);
         assertThat(result.getStatus(), equalTo(SpawnResult.STATUS_ERR));
         assertThat(result.getException(), instanceOf(ExternalProcessException.class));
     }
+
+    @Test
+    public void spawnGearPumpOnYarnInParallelReadsAndDeletesOnlyOwnReports() throws Exception {
+        File destination = temporaryFolder.newFolder("gearpump");
+        when(externalConfiguration.getGearPumpDestinationFolder()).thenReturn(destination.getPath());
+        ReflectionTestUtils.setField(gearPumpDriverExec, "gearPumpOutputReportReader", createReportReader());
+        // the fake yarnclient reports a master named after the number of workers it was asked for
+        when(externalProcessExecutor.run(Mockito.<String[]>any(), Mockito.anyString(), Mockito.anyMapOf(String.class, String.class),
+                Mockito.any(ProcessOutputListener.class), Mockito.anyLong())).thenAnswer(invocation -> {
+                    List<String> command = Arrays.asList((String[]) invocation.getArguments()[0]);
+                    String reportPath = command.get(command.indexOf("-output") + 1);
+                    @SuppressWarnings("unchecked")
+                    Map<String, String> env = (Map<String, String>) invocation.getArguments()[2];
+                    String workers = env.get("JAVA_OPTS").replaceAll(".*gearpump.yarn.worker.containers=(\\d+).*", "$1");
+                    Files.write("# report\n{\"gearpump\":{\"cluster\":{\"masters\":[\"master-" + workers + ":3000\"]}}}",
+                            new File(reportPath), StandardCharsets.UTF_8);
+                    Thread.sleep(5);
+                    return new ExternalProcessExecutorResult(0, COMMAND_OUTPUT, null);
+                });
+
+        int spawns = 64;
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            List<Future<SpawnResult>> results = new ArrayList<>();
+            for (int i = 0; i < spawns; i++) {
+                GearPumpPlan plan = new GearPumpPlan("plan", i);
+                results.add(executor.submit(() -> gearPumpDriverExec.spawnGearPumpOnYarn(plan)));
+            }
+            for (int i = 0; i < spawns; i++) {
+                SpawnResult result = results.get(i).get(30, TimeUnit.SECONDS);
+                assertThat(result.getStatus(), equalTo(SpawnResult.STATUS_OK));
+                assertThat(result.getGearPumpCredentials().getMasters(), equalTo("master-" + i + ":3000"));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertThat(destination.list().length, equalTo(0));
+    }
+
+    @Test
+    public void spawnGearPumpOnYarnInFifoModeReadsReportFromPipe() throws Exception {
+        ReflectionTestUtils.setField(gearPumpDriverExec, "reportMode", "fifo");
+        ReflectionTestUtils.setField(gearPumpDriverExec, "gearPumpOutputReportReader", createReportReader());
+        List<String> reportPaths = new ArrayList<>();
+        when(externalProcessExecutor.run(Mockito.<String[]>any(), Mockito.anyString(), Mockito.anyMapOf(String.class, String.class),
+                Mockito.any(ProcessOutputListener.class), Mockito.anyLong())).thenAnswer(invocation -> {
+                    List<String> command = Arrays.asList((String[]) invocation.getArguments()[0]);
+                    String reportPath = command.get(command.indexOf("-output") + 1);
+                    reportPaths.add(reportPath);
+                    Files.write("# report\n{\"gearpump\":{\"cluster\":{\"masters\":[\"" + MASTER_URL + "\"]}}}",
+                            new File(reportPath), StandardCharsets.UTF_8);
+                    return new ExternalProcessExecutorResult(0, COMMAND_OUTPUT, null);
+                });
+
+        SpawnResult result = gearPumpDriverExec.spawnGearPumpOnYarn(PLAN);
+
+        assertThat(result.getStatus(), equalTo(SpawnResult.STATUS_OK));
+        assertThat(result.getGearPumpCredentials().getMasters(), equalTo(MASTER_URL));
+        assertThat(new File(reportPaths.get(0)).exists(), equalTo(false));
+    }
+
+    @Test(timeout = 30000)
+    public void spawnGearPumpOnYarnInFifoModeFailsWithoutHangingWhenNoReportIsWritten() throws Exception {
+        ReflectionTestUtils.setField(gearPumpDriverExec, "reportMode", "fifo");
+        ReflectionTestUtils.setField(gearPumpDriverExec, "gearPumpOutputReportReader", createReportReader());
+
+        SpawnResult result = gearPumpDriverExec.spawnGearPumpOnYarn(PLAN);
+
+        assertThat(result.getStatus(), equalTo(SpawnResult.STATUS_ERR));
+        assertThat(result.getException(), instanceOf(ExternalProcessException.class));
+    }
+
+    private static GearPumpOutputReportReader createReportReader() {
+        GearPumpOutputReportReader reportReader = new GearPumpOutputReportReader();
+        ReflectionTestUtils.setField(reportReader, "fileReaderService", new FileReaderService());
+        ReflectionTestUtils.setField(reportReader, "fileWriterService", new FileWriterService());
+        return reportReader;
+    }
 }
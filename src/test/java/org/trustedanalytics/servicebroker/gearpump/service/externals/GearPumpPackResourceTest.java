@@ -0,0 +1,106 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trustedanalytics.servicebroker.gearpump.service.externals;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.yarn.api.records.LocalResource;
+import org.apache.hadoop.yarn.api.records.LocalResourceType;
+import org.apache.hadoop.yarn.api.records.LocalResourceVisibility;
+import org.junit.Before;
+import org.junit.Test;
+import org.trustedanalytics.servicebroker.gearpump.service.externals.helpers.HdfsUtils;
+
+import java.io.IOException;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class GearPumpPackResourceTest {
+
+    private static final String PACK_PATH = "/user/gearpump/gearpump.zip";
+    private static final Path PACK_URI = new Path("hdfs://nameservice1/user/gearpump/gearpump.zip");
+
+    private HdfsUtils hdfsUtils;
+
+    @Before
+    public void init() {
+        hdfsUtils = mock(HdfsUtils.class);
+    }
+
+    @Test
+    public void get_publicReadablePack_publicResourceWithHdfsSizeAndTimestamp() throws IOException {
+        givenPack(new FsPermission((short) 0644));
+        GearPumpPackResource packResource = new GearPumpPackResource(hdfsUtils, PACK_PATH, LocalResourceVisibility.PUBLIC);
+
+        LocalResource resource = packResource.get();
+
+        assertThat(resource.getVisibility(), equalTo(LocalResourceVisibility.PUBLIC));
+        assertThat(resource.getType(), equalTo(LocalResourceType.ARCHIVE));
+        assertThat(resource.getSize(), equalTo(100L));
+        assertThat(resource.getTimestamp(), equalTo(1000L));
+    }
+
+    @Test
+    public void get_publicPackNotReadableByOthers_applicationResource() throws IOException {
+        givenPack(new FsPermission((short) 0640));
+        GearPumpPackResource packResource = new GearPumpPackResource(hdfsUtils, PACK_PATH, LocalResourceVisibility.PUBLIC);
+
+        assertThat(packResource.get().getVisibility(), equalTo(LocalResourceVisibility.APPLICATION));
+    }
+
+    @Test
+    public void get_publicPackInDirectoryNotExecutableByOthers_applicationResource() throws IOException {
+        givenPack(new FsPermission((short) 0644));
+        givenDirectory("hdfs://nameservice1/user/gearpump", new FsPermission((short) 0750));
+        GearPumpPackResource packResource = new GearPumpPackResource(hdfsUtils, PACK_PATH, LocalResourceVisibility.PUBLIC);
+
+        assertThat(packResource.get().getVisibility(), equalTo(LocalResourceVisibility.APPLICATION));
+    }
+
+    @Test
+    public void get_calledTwice_statusReadOnceUntilInvalidated() throws IOException {
+        givenPack(new FsPermission((short) 0644));
+        GearPumpPackResource packResource = new GearPumpPackResource(hdfsUtils, PACK_PATH, LocalResourceVisibility.APPLICATION);
+
+        packResource.get();
+        packResource.get();
+        verify(hdfsUtils, times(1)).getFileStatus(PACK_PATH);
+
+        packResource.invalidate();
+        packResource.get();
+        verify(hdfsUtils, times(2)).getFileStatus(PACK_PATH);
+    }
+
+    private void givenPack(FsPermission permission) throws IOException {
+        when(hdfsUtils.getFileStatus(PACK_PATH))
+                .thenReturn(new FileStatus(100, false, 3, 128, 1000, 1000, permission, "cf", "cf", PACK_URI));
+        for (Path dir = PACK_URI.getParent(); dir != null; dir = dir.getParent()) {
+            givenDirectory(dir.toString(), new FsPermission((short) 0755));
+        }
+    }
+
+    private void givenDirectory(String path, FsPermission permission) throws IOException {
+        when(hdfsUtils.getFileStatus(path))
+                .thenReturn(new FileStatus(0, true, 0, 0, 1000, 1000, permission, "cf", "cf", new Path(path)));
+    }
+}
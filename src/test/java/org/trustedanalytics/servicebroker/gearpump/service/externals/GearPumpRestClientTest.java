@@ -0,0 +1,91 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trustedanalytics.servicebroker.gearpump.service.externals;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Optional;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class GearPumpRestClientTest {
+
+    private static final String TRACKING_URL = "http://am-host:8090/";
+    private static final String MASTER_API_URL = "http://am-host:8090/api/v1.0/master";
+    private static final String WORKER_LIST_URL = "http://am-host:8090/api/v1.0/master/workerlist";
+
+    @Mock
+    private RestTemplate restTemplate;
+
+    private GearPumpRestClient client;
+
+    @Before
+    public void before() {
+        client = new GearPumpRestClient(restTemplate);
+    }
+
+    @Test
+    public void readMasters_masterArraysAndObjects_joinedAsHostPort() {
+        when(restTemplate.getForObject(MASTER_API_URL, String.class))
+                .thenReturn("{\"masterDescription\":{\"cluster\":[[\"master-1\",3000],{\"host\":\"master-2\",\"port\":3001}]}}");
+
+        assertThat(client.readMasters(TRACKING_URL), equalTo(Optional.of("master-1:3000,master-2:3001")));
+    }
+
+    @Test
+    public void readMasters_noTrackingUrl_empty() {
+        assertThat(client.readMasters("N/A"), equalTo(Optional.empty()));
+    }
+
+    @Test
+    public void readWorkerContainers_workersOfRestartedMaster_onlyWorkerContainersOldestFirst() throws Exception {
+        // the master restarted by YARN runs in container 7, which is newer than both workers
+        when(restTemplate.getForObject(WORKER_LIST_URL, String.class)).thenReturn("["
+                + "{\"workerId\":{\"sessionId\":1},\"state\":\"active\",\"resourceManagerContainerId\":\"container_1449093574559_0004_01_000005\"},"
+                + "{\"workerId\":{\"sessionId\":0},\"state\":\"active\",\"resourceManagerContainerId\":\"container_1449093574559_0004_01_000003\"}"
+                + "]");
+
+        assertThat(client.readWorkerContainers(TRACKING_URL), equalTo(Arrays.asList(
+                "container_1449093574559_0004_01_000003", "container_1449093574559_0004_01_000005")));
+    }
+
+    @Test(expected = IOException.class)
+    public void readWorkerContainers_apiNotAnswering_exceptionThrown() throws Exception {
+        when(restTemplate.getForObject(WORKER_LIST_URL, String.class)).thenThrow(new ResourceAccessException("Connection refused"));
+
+        client.readWorkerContainers(TRACKING_URL);
+    }
+
+    @Test(expected = IOException.class)
+    public void readWorkerContainers_workerWithoutContainer_exceptionThrown() throws Exception {
+        when(restTemplate.getForObject(WORKER_LIST_URL, String.class))
+                .thenReturn("[{\"workerId\":{\"sessionId\":0},\"state\":\"active\"}]");
+
+        client.readWorkerContainers(TRACKING_URL);
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trustedanalytics.servicebroker.gearpump.service.externals;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.hadoop.yarn.api.records.ApplicationReport;
+import org.apache.hadoop.yarn.api.records.ApplicationSubmissionContext;
+import org.apache.hadoop.yarn.api.records.LocalResourceVisibility;
+import org.apache.hadoop.yarn.api.records.YarnApplicationState;
+import org.apache.hadoop.yarn.client.api.YarnClient;
+import org.apache.hadoop.yarn.client.api.YarnClientApplication;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestTemplate;
+import org.trustedanalytics.servicebroker.gearpump.config.GearPumpPlan;
+import org.trustedanalytics.servicebroker.gearpump.config.GearPumpSpawnerConfig;
+import org.trustedanalytics.servicebroker.gearpump.kerberos.KerberosService;
+import org.trustedanalytics.servicebroker.gearpump.service.externals.helpers.HdfsUtils;
+import org.trustedanalytics.servicebroker.gearpump.yarn.YarnClientFactory;
+
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class InProcessGearPumpLauncherTest {
+
+    private static final ApplicationId APPLICATION_ID = ApplicationId.newInstance(1456149538698L, 14);
+    private static final GearPumpPlan PLAN = new GearPumpPlan("small", 2);
+    private static final String MASTER_API_URL = "http://am-host:8090/api/v1.0/master";
+    private static final String MASTER_API_RESPONSE =
+            "{\"masterDescription\":{\"leader\":{\"host\":\"master-host\",\"port\":3000},"
+            + "\"cluster\":[{\"host\":\"master-host\",\"port\":3000}],\"masterStatus\":\"synced\"}}";
+
+    @Mock
+    private YarnClientFactory yarnClientFactory;
+    @Mock
+    private YarnClient yarnClient;
+    @Mock
+    private YarnClientApplication yarnClientApplication;
+    @Mock
+    private ApplicationSubmissionContext submissionContext;
+    @Mock
+    private ApplicationReport applicationReport;
+    @Mock
+    private GearPumpSpawnerConfig gearPumpSpawnerConfig;
+    @Mock
+    private HdfsUtils hdfsUtils;
+    @Mock
+    private KerberosService kerberosService;
+    @Mock
+    private org.apache.hadoop.conf.Configuration yarnConfiguration;
+    @Mock
+    private RestTemplate restTemplate;
+
+    @InjectMocks
+    private InProcessGearPumpLauncher launcher;
+
+    @Before
+    public void init() throws Exception {
+        launcher = new InProcessGearPumpLauncher();
+        MockitoAnnotations.initMocks(this);
+        ReflectionTestUtils.setField(launcher, "gearPumpRestClient", new GearPumpRestClient(restTemplate));
+        ReflectionTestUtils.setField(launcher, "startTimeout", 5L);
+        ReflectionTestUtils.setField(launcher, "pollInterval", 1L);
+        ReflectionTestUtils.setField(launcher, "gearPumpPackResource",
+                new GearPumpPackResource(hdfsUtils, "/user/gearpump/gearpump.zip", LocalResourceVisibility.PUBLIC));
+
+        when(yarnClientFactory.getYarnClient()).thenReturn(yarnClient);
+        when(yarnClient.createApplication()).thenReturn(yarnClientApplication);
+        when(yarnClientApplication.getApplicationSubmissionContext()).thenReturn(submissionContext);
+        when(submissionContext.getApplicationId()).thenReturn(APPLICATION_ID);
+        when(yarnClient.getApplicationReport(APPLICATION_ID)).thenReturn(applicationReport);
+        when(applicationReport.getOriginalTrackingUrl()).thenReturn("am-host:8090");
+        when(restTemplate.getForObject(MASTER_API_URL, String.class)).thenReturn(MASTER_API_RESPONSE);
+
+        when(gearPumpSpawnerConfig.getHdfsGearPumpPackPath()).thenReturn("/user/gearpump/gearpump.zip");
+        when(gearPumpSpawnerConfig.getGearPumpPackDirectory()).thenReturn("gearpump-2.11-0.8.0");
+        when(hdfsUtils.getFileStatus(Mockito.anyString()))
+                .thenReturn(new FileStatus(100, false, 3, 128, 1000, new Path("hdfs://nameservice1/user/gearpump/gearpump.zip")));
+    }
+
+    @Test
+    public void spawnGearPumpOnYarnSuccess() throws Exception {
+        when(applicationReport.getYarnApplicationState()).thenReturn(YarnApplicationState.RUNNING);
+
+        SpawnResult result = launcher.spawnGearPumpOnYarn(PLAN);
+
+        assertThat(result.getStatus(), equalTo(SpawnResult.STATUS_OK));
+        assertThat(result.getGearPumpCredentials().getYarnApplicationId(), equalTo(APPLICATION_ID.toString()));
+        assertThat(result.getGearPumpCredentials().getMasters(), equalTo("master-host:3000"));
+        verify(yarnClient).submitApplication(submissionContext);
+    }
+
+    @Test
+    public void spawnGearPumpOnYarnWaitsUntilRestApiReportsMasters() throws Exception {
+        when(applicationReport.getYarnApplicationState()).thenReturn(YarnApplicationState.RUNNING);
+        when(restTemplate.getForObject(MASTER_API_URL, String.class))
+                .thenThrow(new ResourceAccessException("Connection refused"))
+                .thenReturn("{\"masterDescription\":{\"cluster\":[]}}")
+                .thenReturn(MASTER_API_RESPONSE);
+
+        SpawnResult result = launcher.spawnGearPumpOnYarn(PLAN);
+
+        assertThat(result.getStatus(), equalTo(SpawnResult.STATUS_OK));
+        assertThat(result.getGearPumpCredentials().getMasters(), equalTo("master-host:3000"));
+        verify(restTemplate, times(3)).getForObject(MASTER_API_URL, String.class);
+    }
+
+    @Test
+    public void spawnGearPumpOnYarnFailsWhenRestApiNeverAnswers() throws Exception {
+        ReflectionTestUtils.setField(launcher, "startTimeout", 0L);
+        when(applicationReport.getYarnApplicationState()).thenReturn(YarnApplicationState.RUNNING);
+        when(restTemplate.getForObject(MASTER_API_URL, String.class)).thenThrow(new ResourceAccessException("Connection refused"));
+
+        SpawnResult result = launcher.spawnGearPumpOnYarn(PLAN);
+
+        assertThat(result.getStatus(), equalTo(SpawnResult.STATUS_ERR));
+        assertThat(result.getGearPumpCredentials().getYarnApplicationId(), equalTo(APPLICATION_ID.toString()));
+    }
+
+    @Test
+    public void spawnGearPumpOnYarnSubmitsToPlanQueue() throws Exception {
+        when(gearPumpSpawnerConfig.getYarnQueue()).thenReturn("default");
+        when(applicationReport.getYarnApplicationState()).thenReturn(YarnApplicationState.RUNNING);
+        GearPumpPlan plan = new GearPumpPlan("large", 4);
+        plan.setQueue("streaming");
+
+        launcher.spawnGearPumpOnYarn(plan);
+        launcher.spawnGearPumpOnYarn(PLAN);
+
+        verify(submissionContext).setQueue("streaming");
+        verify(submissionContext).setQueue("default");
+    }
+
+    @Test
+    public void spawnGearPumpOnYarnFailsWithApplicationIdWhenApplicationIsKilled() throws Exception {
+        when(applicationReport.getYarnApplicationState()).thenReturn(YarnApplicationState.KILLED);
+
+        SpawnResult result = launcher.spawnGearPumpOnYarn(PLAN);
+
+        assertThat(result.getStatus(), equalTo(SpawnResult.STATUS_ERR));
+        assertThat(result.getException(), instanceOf(ExternalProcessException.class));
+        assertThat(result.getGearPumpCredentials().getYarnApplicationId(), equalTo(APPLICATION_ID.toString()));
+    }
+
+    @Test
+    public void spawnGearPumpOnYarnReadsPackStatusOnceUntilLaunchFails() throws Exception {
+        when(applicationReport.getYarnApplicationState()).thenReturn(YarnApplicationState.RUNNING);
+
+        launcher.spawnGearPumpOnYarn(PLAN);
+        launcher.spawnGearPumpOnYarn(PLAN);
+        verify(hdfsUtils, times(1)).getFileStatus("/user/gearpump/gearpump.zip");
+
+        when(applicationReport.getYarnApplicationState()).thenReturn(YarnApplicationState.FAILED);
+        launcher.spawnGearPumpOnYarn(PLAN);
+        launcher.spawnGearPumpOnYarn(PLAN);
+        verify(hdfsUtils, times(2)).getFileStatus("/user/gearpump/gearpump.zip");
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trustedanalytics.servicebroker.gearpump.service.externals.helpers;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.oauth2.client.DefaultOAuth2ClientContext;
+import org.springframework.security.oauth2.client.OAuth2RestTemplate;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.web.client.AsyncRestTemplate;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.header;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.method;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withStatus;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
+
+public class CfCallerTest {
+
+    private static final String URL = "{apiUrl}/api/v3/services/{instanceId}";
+
+    private MockRestServiceServer server;
+    private CfCaller cfCaller;
+
+    @Before
+    public void before() {
+        AsyncRestTemplate asyncRestTemplate = new AsyncRestTemplate();
+        server = MockRestServiceServer.createServer(asyncRestTemplate);
+        cfCaller = new CfCaller(new RestTemplate(), asyncRestTemplate);
+    }
+
+    @Test
+    public void test_executeAsync() throws Exception {
+        server.expect(requestTo("http://api.domain.com/api/v3/services/id"))
+                .andExpect(method(HttpMethod.GET))
+                .andRespond(withSuccess("{\"id\":\"id\"}", MediaType.APPLICATION_JSON));
+
+        ResponseEntity<String> response = cfCaller.executeAsync(URL, HttpMethod.GET, "", "http://api.domain.com", "id")
+                .get(10, TimeUnit.SECONDS);
+
+        assertThat(response.getBody(), equalTo("{\"id\":\"id\"}"));
+        server.verify();
+    }
+
+    @Test
+    public void test_await_rethrowsHttpError() throws Exception {
+        server.expect(requestTo("http://api.domain.com/api/v3/services/id"))
+                .andRespond(withStatus(HttpStatus.NOT_FOUND));
+
+        CompletableFuture<ResponseEntity<String>> response = cfCaller.executeAsync(URL, HttpMethod.GET, "", "http://api.domain.com", "id");
+
+        try {
+            CfCaller.await(response);
+        } catch (HttpClientErrorException e) {
+            assertThat(e.getStatusCode(), equalTo(HttpStatus.NOT_FOUND));
+            return;
+        }
+        throw new AssertionError("HttpClientErrorException expected");
+    }
+
+    @Test
+    public void test_executeAsync_accessTokenFetchedOnTokenExecutor() throws Exception {
+        OAuth2RestTemplate oAuth2RestTemplate = mock(OAuth2RestTemplate.class);
+        when(oAuth2RestTemplate.getOAuth2ClientContext()).thenReturn(new DefaultOAuth2ClientContext());
+        AtomicReference<String> tokenThread = new AtomicReference<>();
+        when(oAuth2RestTemplate.getAccessToken()).thenAnswer(invocation -> {
+            tokenThread.set(Thread.currentThread().getName());
+            return new DefaultOAuth2AccessToken("token");
+        });
+        AsyncRestTemplate asyncRestTemplate = new AsyncRestTemplate();
+        server = MockRestServiceServer.createServer(asyncRestTemplate);
+        ExecutorService tokenExecutor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("token-%d").build());
+        cfCaller = new CfCaller(oAuth2RestTemplate, asyncRestTemplate, tokenExecutor);
+        server.expect(requestTo("http://api.domain.com/api/v3/services/id"))
+                .andExpect(header(CfCaller.AUTHORIZATION_HEADER, "Bearer token"))
+                .andRespond(withSuccess("{\"id\":\"id\"}", MediaType.APPLICATION_JSON));
+
+        try {
+            cfCaller.executeAsync(URL, HttpMethod.GET, "", "http://api.domain.com", "id").get(10, TimeUnit.SECONDS);
+        } finally {
+            tokenExecutor.shutdown();
+        }
+
+        assertThat(tokenThread.get(), equalTo("token-0"));
+        server.verify();
+    }
+
+    @Test
+    public void test_executeAsync_validAccessToken_noThreadHop() throws Exception {
+        OAuth2RestTemplate oAuth2RestTemplate = mock(OAuth2RestTemplate.class);
+        DefaultOAuth2AccessToken accessToken = new DefaultOAuth2AccessToken("token");
+        accessToken.setExpiration(new Date(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1)));
+        when(oAuth2RestTemplate.getOAuth2ClientContext()).thenReturn(new DefaultOAuth2ClientContext(accessToken));
+        when(oAuth2RestTemplate.getAccessToken()).thenReturn(accessToken);
+        AsyncRestTemplate asyncRestTemplate = new AsyncRestTemplate();
+        server = MockRestServiceServer.createServer(asyncRestTemplate);
+        List<Runnable> tokenTasks = new ArrayList<>();
+        cfCaller = new CfCaller(oAuth2RestTemplate, asyncRestTemplate, tokenTasks::add);
+        server.expect(requestTo("http://api.domain.com/api/v3/services/id"))
+                .andExpect(header(CfCaller.AUTHORIZATION_HEADER, "Bearer token"))
+                .andRespond(withSuccess("{\"id\":\"id\"}", MediaType.APPLICATION_JSON));
+
+        cfCaller.executeAsync(URL, HttpMethod.GET, "", "http://api.domain.com", "id").get(10, TimeUnit.SECONDS);
+
+        assertThat(tokenTasks.size(), equalTo(0));
+        server.verify();
+    }
+}
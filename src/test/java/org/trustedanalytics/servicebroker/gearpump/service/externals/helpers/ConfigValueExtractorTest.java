@@ -0,0 +1,90 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trustedanalytics.servicebroker.gearpump.service.externals.helpers;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class ConfigValueExtractorTest {
+
+    private static final String MASTERS = "gearpump.cluster.masters";
+
+    @Test
+    public void readStringList_renderedReportWithComments_allMasters() throws IOException {
+        String report = "# Config rendered by yarnclient\n"
+                + "{\n"
+                + "    # hardcoded value\n"
+                + "    \"gearpump\" : {\n"
+                + "        \"hostname\" : \"worker-1\",\n"
+                + "        \"cluster\" : {\n"
+                + "            // merge of defaults\n"
+                + "            \"masters\" : [ \"worker-1:3000\", \"worker-2:3000\" ]\n"
+                + "        }\n"
+                + "    }\n"
+                + "}\n";
+
+        Optional<List<String>> masters = ConfigValueExtractor.readStringList(new StringReader(report), MASTERS);
+
+        assertThat(masters, equalTo(Optional.of(Arrays.asList("worker-1:3000", "worker-2:3000"))));
+    }
+
+    @Test
+    public void readStringList_dottedAndUnquotedKeys_valueFound() throws IOException {
+        String report = "{ gearpump: { \"cluster.masters\": ['worker-1:3000'] } }";
+
+        Optional<List<String>> masters = ConfigValueExtractor.readStringList(new StringReader(report), MASTERS);
+
+        assertThat(masters, equalTo(Optional.of(Collections.singletonList("worker-1:3000"))));
+    }
+
+    @Test
+    public void readStringList_siblingsBeforeValue_skipped() throws IOException {
+        String report = "{ \"gearpump\": { \"cluster\": { \"other\": { \"masters\": [\"nope\"] }, \"masters\": [\"worker-1:3000\"] } },"
+                + " \"masters\": [\"nope\"] }";
+
+        Optional<List<String>> masters = ConfigValueExtractor.readStringList(new StringReader(report), MASTERS);
+
+        assertThat(masters, equalTo(Optional.of(Collections.singletonList("worker-1:3000"))));
+    }
+
+    @Test
+    public void readStringList_garbageAfterValue_notParsed() throws IOException {
+        String report = "{ \"gearpump\": { \"cluster\": { \"masters\": [\"worker-1:3000\"] ] ] not json";
+
+        Optional<List<String>> masters = ConfigValueExtractor.readStringList(new StringReader(report), MASTERS);
+
+        assertThat(masters, equalTo(Optional.of(Collections.singletonList("worker-1:3000"))));
+    }
+
+    @Test
+    public void readStringList_noValue_empty() throws IOException {
+        String report = "{ \"gearpump\": { \"cluster\": { } } }";
+
+        Optional<List<String>> masters = ConfigValueExtractor.readStringList(new StringReader(report), MASTERS);
+
+        assertThat(masters, equalTo(Optional.empty()));
+    }
+}
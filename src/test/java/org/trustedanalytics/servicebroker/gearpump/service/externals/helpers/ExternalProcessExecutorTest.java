@@ -23,11 +23,17 @@ import org.junit.runner.RunWith;
 import org.mockito.InjectMocks;
 import org.mockito.MockitoAnnotations;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.test.util.ReflectionTestUtils;
 import org.trustedanalytics.servicebroker.gearpump.service.externals.ExternalProcessException;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
 
 import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.Is.is;
@@ -71,4 +77,60 @@ public class ExternalProcessExecutorTest extends TestCase {
         assertThat(output,  is(nullValue()));
 
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testRunNotifiesListenerAboutEachLine() throws Exception {
+        if (system.startsWith("Win")) {
+            return;
+        }
+        List<String> lines = new ArrayList<>();
+
+        String[] cmd = {"printf", "first\\nsecond\\n"};
+        ExternalProcessExecutorResult result = externalProcessExecutor.run(cmd, null, null, lines::add, ExternalProcessExecutor.NO_TIMEOUT);
+
+        assertThat(result.getExitCode(), equalTo(0));
+        assertThat(lines, contains("first", "second"));
+    }
+
+    @Test
+    public void testRunKeepsOnlyEndOfLongOutput() throws Exception {
+        if (system.startsWith("Win")) {
+            return;
+        }
+        ReflectionTestUtils.setField(externalProcessExecutor, "maxOutputSize", 14);
+
+        String[] cmd = {"printf", "first\\nsecond\\nthird\\n"};
+        ExternalProcessExecutorResult result = externalProcessExecutor.run(cmd, null, null);
+
+        assertThat(result.getOutput(), equalTo("second\nthird\n"));
+    }
+
+    @Test
+    public void testRunKillsProcessAfterTimeout() throws Exception {
+        if (system.startsWith("Win")) {
+            return;
+        }
+        String[] cmd = {"sleep", "30"};
+        long start = System.currentTimeMillis();
+        ExternalProcessExecutorResult result = externalProcessExecutor.run(cmd, null, null, null, 200);
+
+        assertThat(result.getStatus(), equalTo(ExternalProcessExecutorResult.Status.TIMED_OUT));
+        assertThat(result.getException(), instanceOf(TimeoutException.class));
+        assertThat(System.currentTimeMillis() - start < 10000, is(true));
+    }
+
+    @Test
+    public void testCancelKillsRunningProcess() throws Exception {
+        if (system.startsWith("Win")) {
+            return;
+        }
+        String[] cmd = {"sleep", "30"};
+        ProcessExecution execution = externalProcessExecutor.start(cmd, null, null, null, ExternalProcessExecutor.NO_TIMEOUT);
+
+        execution.cancel();
+        ExternalProcessExecutorResult result = execution.await();
+
+        assertThat(result.getStatus(), equalTo(ExternalProcessExecutorResult.Status.CANCELLED));
+        assertThat(execution.isDone(), is(true));
+    }
+}
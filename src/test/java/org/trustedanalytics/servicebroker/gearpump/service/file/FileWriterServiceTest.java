@@ -46,6 +46,7 @@ public class FileWriterServiceTest {
     private ByteArrayOutputStream outputStream;
 
     private static final byte[] INPUT_CONTENT = "Test Content".getBytes();
+    private static final String DESTINATION = "/tmp/gearpump/output.conf";
 
     @Before
     public void init() throws IOException {
@@ -67,21 +68,17 @@ public class FileWriterServiceTest {
 
     @Test
     public void testWriteToFileNoOverride() throws IOException {
-        when(fileWriter.isExists()).thenReturn(true);
+        when(fileWriter.exists(DESTINATION)).thenReturn(true);
 
-        fileWriterService.withOverride(false);
-
-        boolean result = fileWriterService.writeToFile(inputStream, false);
+        boolean result = fileWriterService.writeToFile(DESTINATION, inputStream, false, false);
         assertThat(result, equalTo(false));
     }
 
     @Test
     public void testWriteToFileOverride() throws IOException {
-        when(fileWriter.isExists()).thenReturn(true);
-        fileWriterService.withOverride(true);
-        fileWriterService.intoDestination("");
+        when(fileWriter.exists(DESTINATION)).thenReturn(true);
 
-        boolean result = fileWriterService.writeToFile(inputStream, false);
+        boolean result = fileWriterService.writeToFile(DESTINATION, inputStream, false, true);
 
         assertThat(result, equalTo(true));
         assertThat(Arrays.equals(outputStream.toByteArray(), INPUT_CONTENT), equalTo(true));
@@ -89,7 +86,7 @@ public class FileWriterServiceTest {
 
     @Test
     public void testWriteToFileCreateDirectory() throws IOException {
-        boolean result = fileWriterService.writeToFile(inputStream, true);
+        boolean result = fileWriterService.writeToFile(DESTINATION, inputStream, true, false);
 
         assertThat(result, equalTo(true));
         assertThat(outputStream.toByteArray().length, equalTo(0));
@@ -101,10 +98,9 @@ public class FileWriterServiceTest {
     }
 
     private void mockFileWriter() throws IOException {
-        doNothing().when(fileWriter).createDirectories();
-        doNothing().when(fileWriter).createPrentDirectories();
-        doNothing().when(fileWriter).setFilePath(Mockito.anyString());
-        when(fileWriter.getOutputStream()).thenReturn(outputStream);
-        when(fileWriter.isExists()).thenReturn(false);
+        doNothing().when(fileWriter).createDirectories(Mockito.anyString());
+        doNothing().when(fileWriter).createParentDirectories(Mockito.anyString());
+        when(fileWriter.getOutputStream(DESTINATION)).thenReturn(outputStream);
+        when(fileWriter.exists(DESTINATION)).thenReturn(false);
     }
 }
@@ -0,0 +1,190 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.trustedanalytics.servicebroker.gearpump.service.health;
+
+import com.google.common.collect.ImmutableMap;
+import org.apache.curator.framework.CuratorFramework;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.mock.http.client.MockClientHttpRequest;
+import org.springframework.mock.http.client.MockClientHttpResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.trustedanalytics.servicebroker.gearpump.config.GearPumpSpawnerConfig;
+import org.trustedanalytics.servicebroker.gearpump.service.externals.helpers.HdfsUtils;
+import org.trustedanalytics.servicebroker.gearpump.service.prerequisities.PrerequisitesCheckingService;
+import org.trustedanalytics.servicebroker.gearpump.yarn.YarnClientFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+public class DeepHealthServiceTest {
+
+    private static final String PACK_PATH = "/gearpump/gearpump-pack.zip";
+
+    private HdfsUtils hdfsUtils;
+    private PrerequisitesCheckingService prerequisitesCheckingService;
+    private ClientHttpRequestFactory requestFactory;
+    private DeepHealthService service;
+
+    @Before
+    public void before() {
+        CuratorFramework curatorFramework = mock(CuratorFramework.class, RETURNS_DEEP_STUBS);
+        when(curatorFramework.getZookeeperClient().isConnected()).thenReturn(true);
+        GearPumpSpawnerConfig gearPumpSpawnerConfig = mock(GearPumpSpawnerConfig.class);
+        when(gearPumpSpawnerConfig.getHdfsGearPumpPackPath()).thenReturn(PACK_PATH);
+        hdfsUtils = mock(HdfsUtils.class);
+        prerequisitesCheckingService = mock(PrerequisitesCheckingService.class);
+        when(prerequisitesCheckingService.isGearpumpPackReady()).thenReturn(true);
+        requestFactory = mock(ClientHttpRequestFactory.class);
+        service = new DeepHealthService(curatorFramework, hdfsUtils, gearPumpSpawnerConfig, mock(YarnClientFactory.class),
+                prerequisitesCheckingService, requestFactory);
+    }
+
+    @After
+    public void after() {
+        service.shutdown();
+    }
+
+    @Test
+    public void getHealth_packMissing_hdfsDown() throws Exception {
+        when(hdfsUtils.exists(PACK_PATH)).thenReturn(false);
+
+        DeepHealth health = service.getHealth();
+
+        assertThat(health.isUp(), equalTo(false));
+        assertThat(health.getChecks().get(DeepHealthService.HDFS).getStatus(), equalTo(DeepHealth.DOWN));
+        assertThat(health.getChecks().get(DeepHealthService.ZOOKEEPER).getStatus(), equalTo(DeepHealth.UP));
+        assertThat(health.getChecks().get(DeepHealthService.YARN).getStatus(), equalTo(DeepHealth.UP));
+    }
+
+    @Test
+    public void getHealth_packUploadInProgress_hdfsDown() throws Exception {
+        when(prerequisitesCheckingService.isGearpumpPackReady()).thenReturn(false);
+        when(hdfsUtils.exists(PACK_PATH)).thenReturn(true);
+
+        DeepHealth health = service.getHealth();
+
+        assertThat(health.isUp(), equalTo(false));
+        assertThat(health.getChecks().get(DeepHealthService.HDFS).getStatus(), equalTo(DeepHealth.DOWN));
+    }
+
+    @Test
+    public void getHealth_endpointsNotConfigured_notChecked() throws Exception {
+        ReflectionTestUtils.setField(service, "uaaEndpoint", "");
+        when(hdfsUtils.exists(PACK_PATH)).thenReturn(true);
+
+        DeepHealth health = service.getHealth();
+
+        assertThat(health.isUp(), equalTo(true));
+        assertThat(health.getChecks().containsKey(DeepHealthService.UAA), equalTo(false));
+        assertThat(health.getChecks().containsKey(DeepHealthService.TAP_API), equalTo(false));
+        verifyZeroInteractions(requestFactory);
+    }
+
+    @Test
+    public void getHealth_endpointAnswersWithError_reachable() throws Exception {
+        ReflectionTestUtils.setField(service, "uaaEndpoint", "http://uaa.domain.com");
+        MockClientHttpRequest request = new MockClientHttpRequest(HttpMethod.HEAD, URI.create("http://uaa.domain.com"));
+        request.setResponse(new MockClientHttpResponse(new byte[0], HttpStatus.UNAUTHORIZED));
+        when(requestFactory.createRequest(any(URI.class), eq(HttpMethod.HEAD))).thenReturn(request);
+        when(hdfsUtils.exists(PACK_PATH)).thenReturn(true);
+
+        DeepHealth health = service.getHealth();
+
+        assertThat(health.getChecks().get(DeepHealthService.UAA).getStatus(), equalTo(DeepHealth.UP));
+        assertThat(health.isUp(), equalTo(true));
+    }
+
+    @Test
+    public void getHealth_withinTtl_dependenciesCheckedOnce() throws Exception {
+        when(hdfsUtils.exists(PACK_PATH)).thenReturn(true);
+
+        DeepHealth first = service.getHealth();
+        DeepHealth second = service.getHealth();
+
+        assertThat(second, equalTo(first));
+        verify(hdfsUtils, times(1)).exists(PACK_PATH);
+    }
+
+    @Test
+    public void getHealth_ttlExpired_dependenciesCheckedAgain() throws Exception {
+        ReflectionTestUtils.setField(service, "ttl", 0L);
+        when(hdfsUtils.exists(PACK_PATH)).thenReturn(true);
+
+        service.getHealth();
+        service.getHealth();
+
+        verify(hdfsUtils, times(2)).exists(PACK_PATH);
+    }
+
+    @Test
+    public void runChecks_slowCheck_reportedDownWithoutWaitingForIt() {
+        ReflectionTestUtils.setField(service, "timeout", 100L);
+        CountDownLatch never = new CountDownLatch(1);
+
+        DeepHealth health = service.runChecks(ImmutableMap.<String, DeepHealthService.HealthCheck>of(
+                "slow", never::await,
+                "failing", () -> {
+                    throw new IOException("unreachable");
+                },
+                "fast", () -> { }));
+
+        assertThat(health.getChecks().get("slow").getStatus(), equalTo(DeepHealth.DOWN));
+        assertThat(health.getChecks().get("slow").getError(), equalTo("timed out"));
+        assertThat(health.getChecks().get("failing").getStatus(), equalTo(DeepHealth.DOWN));
+        assertThat(health.getChecks().get("fast").getStatus(), equalTo(DeepHealth.UP));
+        assertThat(health.getStatus(), equalTo(DeepHealth.DOWN));
+    }
+
+    @Test
+    public void runChecks_previousCheckStillRunning_notStartedAgain() {
+        ReflectionTestUtils.setField(service, "timeout", 100L);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger started = new AtomicInteger();
+        ImmutableMap<String, DeepHealthService.HealthCheck> checks = ImmutableMap.<String, DeepHealthService.HealthCheck>of(
+                "slow", () -> {
+                    started.incrementAndGet();
+                    release.await();
+                });
+
+        service.runChecks(checks);
+        DeepHealth health = service.runChecks(checks);
+        release.countDown();
+
+        assertThat(health.getChecks().get("slow").getStatus(), equalTo(DeepHealth.DOWN));
+        assertThat(health.getChecks().get("slow").getError(), equalTo("still running"));
+        assertThat(started.get(), equalTo(1));
+    }
+}
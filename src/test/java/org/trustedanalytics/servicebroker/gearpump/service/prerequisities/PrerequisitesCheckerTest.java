@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trustedanalytics.servicebroker.gearpump.service.prerequisities;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import org.apache.hadoop.fs.FileStatus;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.InOrder;
+import org.trustedanalytics.servicebroker.gearpump.config.GearPumpSpawnerConfig;
+import org.trustedanalytics.servicebroker.gearpump.service.externals.helpers.HdfsUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PrerequisitesCheckerTest {
+
+    private static final String PACK_PATH = "/user/gearpump/gearpump-pack.zip";
+    private static final String CHECKSUM_PATH = PACK_PATH + ".sha256";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private HdfsUtils hdfsUtils;
+    private File localPack;
+    private String localChecksum;
+    private PrerequisitesChecker checker;
+
+    @Before
+    public void before() throws IOException {
+        localPack = temporaryFolder.newFile("gearpump-pack.zip");
+        Files.write("gearpump binaries", localPack, StandardCharsets.UTF_8);
+        localChecksum = Files.hash(localPack, Hashing.sha256()).toString();
+
+        GearPumpSpawnerConfig gearPumpSpawnerConfig = mock(GearPumpSpawnerConfig.class);
+        when(gearPumpSpawnerConfig.getGearPumpPackName()).thenReturn(localPack.getPath());
+        when(gearPumpSpawnerConfig.getHdfsGearPumpPackPath()).thenReturn(PACK_PATH);
+        hdfsUtils = mock(HdfsUtils.class);
+        checker = new PrerequisitesChecker(hdfsUtils, gearPumpSpawnerConfig);
+    }
+
+    @Test
+    public void ensureGearpumpArchiveExistsOnHdfs_checksumMatches_noUpload() throws IOException {
+        givenRemotePack(localPack.length(), localChecksum);
+
+        checker.ensureGearpumpArchiveExistsOnHdfs();
+
+        verify(hdfsUtils, never()).uploadAtomically(anyString(), anyString());
+    }
+
+    @Test
+    public void ensureGearpumpArchiveExistsOnHdfs_checksumDiffers_packReplacedBeforeChecksumWritten() throws IOException {
+        givenRemotePack(localPack.length(), "0000");
+
+        checker.ensureGearpumpArchiveExistsOnHdfs();
+
+        InOrder inOrder = inOrder(hdfsUtils);
+        inOrder.verify(hdfsUtils).delete(CHECKSUM_PATH);
+        inOrder.verify(hdfsUtils).uploadAtomically(localPack.getPath(), PACK_PATH);
+        inOrder.verify(hdfsUtils).writeText(CHECKSUM_PATH, localChecksum);
+    }
+
+    @Test
+    public void ensureGearpumpArchiveExistsOnHdfs_partialUpload_packReplaced() throws IOException {
+        givenRemotePack(localPack.length() - 1, localChecksum);
+
+        checker.ensureGearpumpArchiveExistsOnHdfs();
+
+        verify(hdfsUtils).uploadAtomically(localPack.getPath(), PACK_PATH);
+    }
+
+    @Test
+    public void ensureGearpumpArchiveExistsOnHdfs_noChecksum_packUploaded() throws IOException {
+        when(hdfsUtils.exists(PACK_PATH)).thenReturn(true);
+        when(hdfsUtils.exists(CHECKSUM_PATH)).thenReturn(false);
+
+        checker.ensureGearpumpArchiveExistsOnHdfs();
+
+        verify(hdfsUtils).uploadAtomically(localPack.getPath(), PACK_PATH);
+        verify(hdfsUtils).writeText(CHECKSUM_PATH, localChecksum);
+    }
+
+    @Test(expected = PrerequisitesException.class)
+    public void ensureGearpumpArchiveExistsOnHdfs_uploadFails_exceptionThrown() throws IOException {
+        when(hdfsUtils.exists(anyString())).thenReturn(false);
+        doThrow(new IOException("disk full")).when(hdfsUtils).uploadAtomically(anyString(), anyString());
+
+        checker.ensureGearpumpArchiveExistsOnHdfs();
+    }
+
+    private void givenRemotePack(long length, String checksum) throws IOException {
+        FileStatus fileStatus = mock(FileStatus.class);
+        when(fileStatus.getLen()).thenReturn(length);
+        when(hdfsUtils.exists(PACK_PATH)).thenReturn(true);
+        when(hdfsUtils.exists(CHECKSUM_PATH)).thenReturn(true);
+        when(hdfsUtils.getFileStatus(PACK_PATH)).thenReturn(fileStatus);
+        when(hdfsUtils.readText(CHECKSUM_PATH)).thenReturn(checksum + "\n");
+    }
+}
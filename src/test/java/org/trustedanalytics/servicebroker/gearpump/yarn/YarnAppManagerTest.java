@@ -16,7 +16,12 @@
 package org.trustedanalytics.servicebroker.gearpump.yarn;
 
 import org.apache.hadoop.conf.Configuration;
+import com.google.common.collect.ImmutableList;
 import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.hadoop.yarn.api.records.NodeReport;
+import org.apache.hadoop.yarn.api.records.NodeState;
+import org.apache.hadoop.yarn.api.records.QueueInfo;
+import org.apache.hadoop.yarn.api.records.Resource;
 import org.apache.hadoop.yarn.client.api.YarnClient;
 import org.apache.hadoop.yarn.exceptions.YarnException;
 import org.junit.Before;
@@ -27,10 +32,15 @@ import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.trustedanalytics.servicebroker.gearpump.config.GearPumpPlan;
 
 import javax.security.auth.login.LoginException;
 import java.io.IOException;
+import java.util.Optional;
 
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.IsEqual.equalTo;
 import static org.mockito.Mockito.*;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -69,10 +79,171 @@ public class YarnAppManagerTest {
         yarnAppManager.killApplication(correct_application_id);
     }
 
+    @Test
+    public void testKillApplicationUsesSharedClientWithoutClosingIt() throws IOException, YarnException {
+        yarnAppManager.killApplication(correct_application_id);
+        verify(yarnClient).killApplication(ApplicationId.newInstance(1449093574559L, 4));
+        verify(yarnClient, never()).close();
+    }
+
+    @Test
+    public void testGetCapacityLimitedByQueueHeadroom() throws IOException, YarnException {
+        // 2 x 8192 MB cluster with 4096 MB used; the queue may use up to half of it and already uses a quarter
+        mockNodes(node(8192, 8, 4096, 4), node(8192, 8, 0, 0));
+        mockQueue(0.5f, 0.5f, 0.5f);
+
+        Optional<YarnCapacity> capacity = yarnAppManager.getCapacity();
+
+        assertThat(capacity.get().getAvailableMemory(), equalTo(4096L));
+        assertThat(capacity.get().getAvailableVcores(), equalTo(4L));
+        assertThat(capacity.get().getLargestNodeMemory(), equalTo(8192L));
+    }
+
+    @Test
+    public void testGetCapacityOfNestedQueueRelativeToCluster() throws IOException, YarnException {
+        // "default" may take up to half of its parent, which may take up to half of the cluster
+        mockNodes(node(8192, 8, 0, 0));
+        QueueInfo leaf = queue("default", 0.5f, 1.0f, 0.0f);
+        QueueInfo sibling = queue("batch", 0.5f, 1.0f, 0.0f);
+        QueueInfo parent = queue("streaming", 0.5f, 0.5f, 0.0f, leaf);
+        when(yarnClient.getRootQueueInfos()).thenReturn(ImmutableList.of(sibling, parent));
+
+        Optional<YarnCapacity> capacity = yarnAppManager.getCapacity();
+
+        assertThat(capacity.get().getAvailableMemory(), equalTo(4096L));
+        assertThat(capacity.get().getAvailableVcores(), equalTo(4L));
+    }
+
+    @Test
+    public void testGetCapacityOfNestedQueueCountsItsUsedShare() throws IOException, YarnException {
+        // the queue is guaranteed a quarter of the cluster and already uses twice that, all its parent may take
+        mockNodes(node(8192, 8, 0, 0));
+        QueueInfo leaf = queue("default", 0.5f, 1.0f, 2.0f);
+        QueueInfo parent = queue("streaming", 0.5f, 0.5f, 0.0f, leaf);
+        when(yarnClient.getRootQueueInfos()).thenReturn(ImmutableList.of(parent));
+
+        assertThat(yarnAppManager.getCapacity().get().getAvailableMemory(), equalTo(0L));
+    }
+
+    @Test
+    public void testCanHostRejectsPlanBiggerThanFreeResources() throws IOException, YarnException {
+        mockNodes(node(8192, 8, 4096, 4));
+        mockQueue(1.0f, 1.0f, 0.0f);
+
+        assertThat(yarnAppManager.canHost(new GearPumpPlan("small", 2)), equalTo(true));
+        assertThat(yarnAppManager.canHost(new GearPumpPlan("medium", 3)), equalTo(false));
+    }
+
+    @Test
+    public void testCanHostUsesPlanResources() throws IOException, YarnException {
+        mockNodes(node(8192, 8, 4096, 4));
+        mockQueue(1.0f, 1.0f, 0.0f);
+        GearPumpPlan plan = new GearPumpPlan("large", 2);
+        plan.setWorkerVcores(2);
+
+        assertThat(yarnAppManager.canHost(plan), equalTo(false));
+
+        plan.setWorkerVcores(1);
+        plan.setWorkerMemory(2048);
+
+        assertThat(yarnAppManager.canHost(plan), equalTo(false));
+    }
+
+    @Test
+    public void testCanHostCountsVcoresOfBothMasterSideContainers() throws IOException, YarnException {
+        mockNodes(node(16384, 8, 0, 5));
+        mockQueue(1.0f, 1.0f, 0.0f);
+
+        assertThat(yarnAppManager.canHost(new GearPumpPlan("small", 1)), equalTo(true));
+        assertThat(yarnAppManager.canHost(new GearPumpPlan("medium", 2)), equalTo(false));
+    }
+
+    @Test
+    public void testCanHostCountsVcoresOfEveryMaster() throws IOException, YarnException {
+        // 1 worker, 2 masters and the application master need 4 vcores
+        mockNodes(node(16384, 8, 0, 5));
+        mockQueue(1.0f, 1.0f, 0.0f);
+        ReflectionTestUtils.setField(yarnAppManager, "masters", 2);
+
+        assertThat(yarnAppManager.canHost(new GearPumpPlan("small", 1)), equalTo(false));
+    }
+
+    @Test
+    public void testCanHostAddsApplicationMasterToPlanMasterMemory() throws IOException, YarnException {
+        // 4096 MB free: a 2048 MB master and a 1024 MB worker fit, the 1024 MB application master doesn't
+        mockNodes(node(8192, 8, 4097, 0));
+        mockQueue(1.0f, 1.0f, 0.0f);
+        GearPumpPlan plan = new GearPumpPlan("large", 1);
+        plan.setMasterMemory(2048);
+
+        assertThat(yarnAppManager.canHost(plan), equalTo(false));
+
+        plan.setMasterMemory(2047);
+
+        assertThat(yarnAppManager.canHost(plan), equalTo(true));
+    }
+
+    @Test
+    public void testCanHostEstimatesWorkersWithWorkersMemoryLimit() throws IOException, YarnException {
+        // 4096 MB free: 2 x 1024 MB workers and the masters fit, 2 x 2048 MB workers don't
+        mockNodes(node(8192, 8, 4096, 0));
+        mockQueue(1.0f, 1.0f, 0.0f);
+        ReflectionTestUtils.setField(yarnAppManager, "workersMemoryLimit", "2048");
+
+        assertThat(yarnAppManager.canHost(new GearPumpPlan("small", 2)), equalTo(false));
+    }
+
+    @Test
+    public void testGetCapacityWithZeroRefreshIntervalNotStale() throws IOException, YarnException {
+        ReflectionTestUtils.setField(yarnAppManager, "capacityRefreshInterval", 0L);
+        mockNodes(node(8192, 8, 0, 0));
+        mockQueue(1.0f, 1.0f, 0.0f);
+
+        assertThat(yarnAppManager.getCapacity().isPresent(), equalTo(true));
+    }
+
+    @Test
+    public void testCanHostAdmitsWhenCapacityUnknown() throws IOException, YarnException {
+        doThrow(IOException.class).when(yarnClient).getNodeReports(NodeState.RUNNING);
+
+        assertThat(yarnAppManager.canHost(new GearPumpPlan("huge", 100)), equalTo(true));
+    }
+
+    private void mockNodes(NodeReport... nodes) throws IOException, YarnException {
+        when(yarnClient.getNodeReports(NodeState.RUNNING)).thenReturn(ImmutableList.copyOf(nodes));
+    }
+
+    private void mockQueue(float capacity, float maximumCapacity, float currentCapacity) throws IOException, YarnException {
+        QueueInfo queue = mock(QueueInfo.class);
+        when(queue.getCapacity()).thenReturn(capacity);
+        when(queue.getMaximumCapacity()).thenReturn(maximumCapacity);
+        when(queue.getCurrentCapacity()).thenReturn(currentCapacity);
+        when(yarnClient.getQueueInfo("default")).thenReturn(queue);
+    }
+
+    private static QueueInfo queue(String name, float capacity, float maximumCapacity, float currentCapacity,
+                                   QueueInfo... children) {
+        QueueInfo queue = mock(QueueInfo.class);
+        when(queue.getQueueName()).thenReturn(name);
+        when(queue.getCapacity()).thenReturn(capacity);
+        when(queue.getMaximumCapacity()).thenReturn(maximumCapacity);
+        when(queue.getCurrentCapacity()).thenReturn(currentCapacity);
+        when(queue.getChildQueues()).thenReturn(ImmutableList.copyOf(children));
+        return queue;
+    }
+
+    private static NodeReport node(int memory, int vcores, int usedMemory, int usedVcores) {
+        NodeReport node = mock(NodeReport.class);
+        when(node.getCapability()).thenReturn(Resource.newInstance(memory, vcores));
+        when(node.getUsed()).thenReturn(Resource.newInstance(usedMemory, usedVcores));
+        return node;
+    }
+
     private void mockYarnClient() throws IOException, YarnException, LoginException {
         doNothing().when(yarnClient).start();
         doNothing().when(yarnClient).init(Mockito.<Configuration>any());
         doNothing().when(yarnClient).killApplication(Mockito.<ApplicationId>any());
-        when(yarnClientFactory.getYarnClient()).thenReturn(yarnClient);
+        when(yarnClientFactory.execute(Mockito.<YarnClientFactory.YarnOperation<Object>>any())).thenAnswer(invocation ->
+                ((YarnClientFactory.YarnOperation<?>) invocation.getArguments()[0]).apply(yarnClient));
     }
 }
@@ -0,0 +1,43 @@
+/**
+ * Copyright (c) 2017 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trustedanalytics.servicebroker.gearpump.yarn;
+
+import org.apache.hadoop.security.AccessControlException;
+import org.apache.hadoop.yarn.exceptions.YarnException;
+import org.junit.Test;
+
+import javax.security.sasl.SaslException;
+import java.io.IOException;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class YarnClientFactoryTest {
+
+    @Test
+    public void testAuthFailureIsRecognizedInCauseChain() {
+        assertThat(YarnClientFactory.isAuthFailure(new AccessControlException("denied")), is(true));
+        assertThat(YarnClientFactory.isAuthFailure(new IOException("Failed on local exception", new SaslException("GSS initiate failed"))), is(true));
+        assertThat(YarnClientFactory.isAuthFailure(new YarnException(new AccessControlException("token expired"))), is(true));
+    }
+
+    @Test
+    public void testOtherFailuresAreNotAuthFailures() {
+        assertThat(YarnClientFactory.isAuthFailure(new IOException("Connection refused")), is(false));
+        assertThat(YarnClientFactory.isAuthFailure(new YarnException("Application not found")), is(false));
+    }
+}